@@ -0,0 +1,84 @@
+package martinandersson.com.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Iterator;
+import java.util.List;
+import martinandersson.com.library.dedup.Block;
+
+/**
+ * A readable channel over a selection of blocks in a file. Reading the
+ * channel yields the bytes of each block, in list order, as if they were one
+ * continuous file.<p>
+ * 
+ * The underlying file channel is read using positional reads and is not
+ * closed by this channel.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+final class BlockChannel implements ReadableByteChannel
+{
+    private final FileChannel file;
+    
+    private final Iterator<Block> blocks;
+    
+    private long position, end;
+    
+    private boolean open = true;
+    
+    BlockChannel(FileChannel file, List<Block> blocks) {
+        this.file = file;
+        this.blocks = blocks.iterator();
+    }
+    
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        
+        while (position == end) {
+            if (!blocks.hasNext()) {
+                return -1;
+            }
+            
+            Block next = blocks.next();
+            position = next.getOffset();
+            end = position + next.getLength();
+        }
+        
+        int limit = dst.limit();
+        
+        // Don't read past the current block:
+        if (dst.remaining() > end - position) {
+            dst.limit(dst.position() + (int) (end - position));
+        }
+        
+        try {
+            int r = file.read(dst, position);
+            
+            if (r == -1) {
+                throw new IOException("File shrunk while sending, block ending at " + end + " is gone.");
+            }
+            
+            position += r;
+            return r;
+        }
+        finally {
+            dst.limit(limit);
+        }
+    }
+    
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+    
+    @Override
+    public void close() {
+        open = false;
+    }
+}
\ No newline at end of file
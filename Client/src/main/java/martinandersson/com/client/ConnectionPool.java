@@ -0,0 +1,336 @@
+package martinandersson.com.client;
+
+import com.nimbusds.srp6.SRP6Exception;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import javax.websocket.DeploymentException;
+import martinandersson.com.client.login.ClientProcedures;
+import martinandersson.com.library.AesGcmCipher;
+
+/**
+ * Holds several authenticated connections to the server.<p>
+ * 
+ * Each connection has a session and a message queue of its own and is {@link
+ * #acquire() leased} by one task at a time, so the answers of one transfer are
+ * never mixed up with those of another. The server handle one file transfer at
+ * a time per session, so the session is what messages are routed by.<p>
+ * 
+ * Connections are opened lazily, up to the size of the pool. Each new
+ * connection register and authenticate the user anew, the server only
+ * remember a registration for as long as the session last, and get a session
+ * key and cipher of its own.<p>
+ * 
+ * Before a connection is leased, it is checked. A closed connection, or one
+ * that has been idle for long and does not answer a ping, is replaced by a new
+ * one. {@link #startHealthChecks(long, TimeUnit)} also ping idle connections
+ * in the background, so that dead ones are found before they are needed.<p>
+ * 
+ * Safe to use by concurrent threads.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class ConnectionPool implements AutoCloseable
+{
+    private static final Logger LOGGER = Logger.getLogger(ConnectionPool.class.getName());
+    
+    /** Idle time after which a connection is pinged before it is leased. Current value: {@value}. */
+    private static final long VALIDATE_AFTER_MILLIS = 30_000L;
+    
+    /** Longest wait for a pong, or for an answer during login. Current value: {@value}. */
+    private static final long TIMEOUT_MILLIS = 10_000L;
+    
+    
+    
+    private final String uri, username, password;
+    
+    private final int size;
+    
+    private final BlockingQueue<Pooled> idle = new LinkedBlockingQueue<>();
+    
+    private final List<Pooled> all = new ArrayList<>();
+    
+    private ScheduledExecutorService checker;
+    
+    private boolean closed;
+    
+    /**
+     * Initializes a new pool. No connection is opened until leased.
+     * 
+     * @param uri server endpoint
+     * @param username user username
+     * @param password user password
+     * @param size most connections open at once
+     * 
+     * @throws IllegalArgumentException if {@code size} is not positive
+     */
+    public ConnectionPool(String uri, String username, String password, int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Size must be positive, got: " + size);
+        }
+        
+        this.uri = uri;
+        this.username = username;
+        this.password = password;
+        this.size = size;
+    }
+    
+    /**
+     * Lease a connection, waiting for one to be returned if all are leased.
+     * The lease must be closed when done.
+     * 
+     * @return the lease
+     * 
+     * @throws IOException if a new connection could not be opened or
+     *         authenticated
+     * @throws InterruptedException if interrupted while waiting
+     * @throws IllegalStateException if the pool is closed
+     */
+    public Lease acquire() throws IOException, InterruptedException {
+        Pooled p = idle.poll();
+        
+        while (p == null) {
+            p = reserveNew();
+            
+            if (p == null) {
+                // All leased. Poll, because a discarded connection free a place without being returned:
+                p = idle.poll(100L, TimeUnit.MILLISECONDS);
+            }
+        }
+        
+        try {
+            validate(p);
+        }
+        catch (IOException | RuntimeException e) {
+            forget(p);
+            throw e;
+        }
+        
+        return new Lease(p);
+    }
+    
+    public int getSize() {
+        return size;
+    }
+    
+    /**
+     * Returns the number of connections currently open or being opened.
+     * 
+     * @return number of connections
+     */
+    public synchronized int getOpen() {
+        return all.size();
+    }
+    
+    /**
+     * Ping idle connections every {@code period}. Those that do not answer are
+     * closed and replaced the next time a connection is leased.
+     * 
+     * @param period time between checks
+     * @param unit unit of {@code period}
+     */
+    public synchronized void startHealthChecks(long period, TimeUnit unit) {
+        if (checker != null) {
+            return;
+        }
+        
+        checker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ConnectionPool health check");
+            t.setDaemon(true);
+            return t;
+        });
+        
+        checker.scheduleWithFixedDelay(this::checkIdle, period, period, unit);
+    }
+    
+    /**
+     * Ping all idle connections now and close those that do not answer.
+     */
+    public void checkIdle() {
+        List<Pooled> checked = new ArrayList<>();
+        idle.drainTo(checked);
+        
+        for (Pooled p : checked) {
+            try {
+                if (p.conn.ping(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    p.lastUsed = System.nanoTime();
+                    idle.add(p);
+                }
+                else {
+                    LOGGER.info("Idle connection did not answer ping, closing.");
+                    forget(p);
+                }
+            }
+            catch (InterruptedException e) {
+                idle.add(p);
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Close all connections. Leased connections are closed as their lease is
+     * closed.
+     */
+    @Override
+    public void close() {
+        List<Pooled> open;
+        
+        synchronized (this) {
+            closed = true;
+            
+            if (checker != null) {
+                checker.shutdownNow();
+            }
+            
+            open = new ArrayList<>(all);
+        }
+        
+        idle.clear();
+        open.forEach(p -> p.conn.close());
+    }
+    
+    /**
+     * Claim a place for a new connection, if the pool is not full.
+     * 
+     * @return a pooled connection not yet connected, or {@code null} if full
+     */
+    private synchronized Pooled reserveNew() {
+        if (closed) {
+            throw new IllegalStateException("Pool is closed.");
+        }
+        
+        if (all.size() >= size) {
+            return null;
+        }
+        
+        Pooled p = new Pooled();
+        all.add(p);
+        return p;
+    }
+    
+    private synchronized void forget(Pooled p) {
+        all.remove(p);
+        p.conn.close();
+    }
+    
+    private void validate(Pooled p) throws IOException, InterruptedException {
+        boolean stale = System.nanoTime() - p.lastUsed > TimeUnit.MILLISECONDS.toNanos(VALIDATE_AFTER_MILLIS);
+        
+        if (p.cipher != null && p.conn.isOpen() && (!stale || p.conn.ping(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS))) {
+            return;
+        }
+        
+        if (p.cipher != null) {
+            LOGGER.info("Connection is dead, reconnecting.");
+            p.conn.close();
+            p.conn = new ServerConnection();
+        }
+        
+        connect(p);
+    }
+    
+    private void connect(Pooled p) throws IOException, InterruptedException {
+        try {
+            p.conn.connectToServer(uri);
+            BigInteger key = ClientProcedures.login(p.conn, username, password, TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            p.cipher = new AesGcmCipher(key);
+        }
+        catch (DeploymentException | SRP6Exception | GeneralSecurityException e) {
+            p.cipher = null;
+            throw new IOException("Failed to open an authenticated connection to " + uri + ".", e);
+        }
+        
+        p.lastUsed = System.nanoTime();
+        
+        LOGGER.info(() -> "Opened pooled connection " + getOpen() + " of " + size + ".");
+    }
+    
+    private void giveBack(Pooled p, boolean broken) {
+        boolean keep;
+        
+        synchronized (this) {
+            keep = !closed && !broken && p.conn.isOpen();
+        }
+        
+        if (keep) {
+            p.lastUsed = System.nanoTime();
+            idle.add(p);
+        }
+        else {
+            forget(p);
+        }
+    }
+    
+    private static final class Pooled {
+        ServerConnection conn = new ServerConnection();
+        
+        AesGcmCipher cipher; // <-- null until authenticated
+        
+        long lastUsed = System.nanoTime();
+    }
+    
+    /**
+     * The right to use one connection of the pool until closed.<p>
+     * 
+     * Not safe to use by concurrent threads.
+     */
+    public final class Lease implements AutoCloseable {
+        private final Pooled pooled;
+        
+        private boolean broken, closed;
+        
+        private Lease(Pooled pooled) {
+            this.pooled = pooled;
+        }
+        
+        public ServerConnection getConnection() {
+            return pooled.conn;
+        }
+        
+        /**
+         * Returns a cipher made from the session key of this connection.
+         * 
+         * @return the cipher
+         */
+        public AesGcmCipher getCipher() {
+            return pooled.cipher;
+        }
+        
+        /**
+         * Mark the connection as unusable, for example if a transfer failed
+         * half-way and the protocol state is unknown. The connection is closed
+         * instead of returned to the pool.
+         */
+        public void discard() {
+            broken = true;
+        }
+        
+        /**
+         * Return the connection to the pool. May be called many times.
+         */
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            
+            closed = true;
+            
+            if (broken) {
+                LOGGER.info("Discarding a broken pooled connection.");
+            }
+            
+            giveBack(pooled, broken);
+        }
+    }
+}
\ No newline at end of file
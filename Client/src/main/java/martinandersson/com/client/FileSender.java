@@ -4,12 +4,13 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.security.GeneralSecurityException;
-import java.security.spec.InvalidParameterSpecException;
+import java.security.MessageDigest;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
@@ -17,19 +18,37 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import javafx.concurrent.Task;
 import javax.crypto.Cipher;
-import javax.crypto.spec.GCMParameterSpec;
-import javax.json.Json;
-import javax.json.JsonObjectBuilder;
 import javax.xml.bind.DatatypeConverter;
+import martinandersson.com.client.upload.FileUploader;
+import martinandersson.com.client.upload.UploadOptions;
+import martinandersson.com.client.upload.UploadResult;
 import martinandersson.com.library.AesGcmCipher;
+import martinandersson.com.library.CipherSuite;
+import martinandersson.com.library.Digests;
+import martinandersson.com.library.Durability;
+import martinandersson.com.library.Hex;
 import martinandersson.com.library.ServerStrategy;
+import martinandersson.com.library.TokenBucket;
+import martinandersson.com.library.control.ControlMessage;
+import martinandersson.com.library.control.Field;
+import martinandersson.com.library.dedup.Block;
+import martinandersson.com.library.dedup.ContentDefinedChunker;
+import martinandersson.com.library.delta.DeltaEncoder;
+import martinandersson.com.library.delta.Signature;
 
 /**
- * A JavaFX task that send a file to the server.
+ * A JavaFX task that send a file to the server.<p>
+ * 
+ * A chunked transfer that doesn't need deduplication, delta or any of the
+ * test features is handed over to a non-blocking {@link FileUploader} and this
+ * task only report its progress. Everything else is sent by this task itself,
+ * blocking the thread that run it.
  * 
  * @author Martin Andersson (webmaster at martinandersson.com)
  */
@@ -48,6 +67,8 @@ public class FileSender extends Task<Long>
     
     private long chunkSize;
     
+    private boolean chunked, dedup, delta, optimistic;
+    
     private final ServerStrategy strategy;
     
     private Optional<Boolean> tell       = Optional.empty(),
@@ -57,10 +78,24 @@ public class FileSender extends Task<Long>
     
     private AesGcmCipher cipher;
     
+    private String digestAlgorithm = Digests.DEFAULT_ALGORITHM;
+    
+    private Durability durability = Durability.NONE;
+    
+    private long syncInterval = Durability.DEFAULT_SYNC_INTERVAL;
+    
+    private MessageDigest digest;
+    
+    private TokenBucket pace; // <-- null unless server advertised a rate
+    
+    private byte[] fileDigest;
+    
     private long sent;
     
     private Duration taskDuration;
     
+    private Duration syncDuration = Duration.ZERO;
+    
     private final List<Duration> chunkDurations        = new ArrayList<>(),
                                  confirmationDurations = new ArrayList<>();
     
@@ -79,10 +114,24 @@ public class FileSender extends Task<Long>
      * @param strategy the strategy the server should use to receive the file
      */
     public FileSender(Path file, ServerStrategy strategy) {
+        this(file, strategy, ServerConnection.getInstance());
+    }
+    
+    /**
+     * Initializes a newly constructed {@code FileSender} that send over the
+     * provided connection, for example one leased from a {@link
+     * ConnectionPool}. The connection must be authenticated and must not be
+     * used by anyone else until the task is done.
+     * 
+     * @param file file to send
+     * @param strategy the strategy the server should use to receive the file
+     * @param conn connection to send over
+     */
+    public FileSender(Path file, ServerStrategy strategy, ServerConnection conn) {
         this.file = file;
         chunkSize = Long.MAX_VALUE;
         this.strategy = strategy;
-        this.conn = ServerConnection.getInstance();
+        this.conn = conn;
     }
     
     public void useCipher(AesGcmCipher cipher) {
@@ -97,6 +146,94 @@ public class FileSender extends Task<Long>
         this.chunkSize = chunkSize;
     }
     
+    /**
+     * Cut the file into content-defined blocks and send only the blocks the
+     * server does not already have.
+     * 
+     * @param dedup {@code true} if the transfer should be deduplicated
+     */
+    public void useDeduplication(boolean dedup) {
+        if (getState().compareTo(State.RUNNING) >= 0) {
+            throw new IllegalStateException("Too late.");
+        }
+        
+        this.dedup = dedup;
+    }
+    
+    /**
+     * If server already has a file with the same name, send only a delta
+     * against his copy.
+     * 
+     * @param delta {@code true} if a delta should be sent when possible
+     */
+    public void useDelta(boolean delta) {
+        if (getState().compareTo(State.RUNNING) >= 0) {
+            throw new IllegalStateException("Too late.");
+        }
+        
+        this.delta = delta;
+    }
+    
+    /**
+     * Compute a digest of all bytes sent and have the server compute the same
+     * of all bytes received. The two are compared after each confirmation.
+     * 
+     * @param algorithm digest algorithm, or {@code null} for no digest
+     * 
+     * @throws IllegalArgumentException if the algorithm is not available
+     */
+    public void useDigest(String algorithm) {
+        if (getState().compareTo(State.RUNNING) >= 0) {
+            throw new IllegalStateException("Too late.");
+        }
+        
+        if (algorithm != null) {
+            Digests.newDigest(algorithm);
+        }
+        
+        this.digestAlgorithm = algorithm;
+    }
+    
+    /**
+     * Ask the server to force the file to disk according to the provided
+     * policy. The time the server spent doing so is reported in {@link
+     * #getSyncDuration()}.
+     * 
+     * @param durability the policy
+     * @param syncInterval bytes between forces, only used by {@link
+     *        Durability#PERIODIC}
+     * 
+     * @throws IllegalArgumentException if {@code syncInterval} is not positive
+     */
+    public void useDurability(Durability durability, long syncInterval) {
+        if (getState().compareTo(State.RUNNING) >= 0) {
+            throw new IllegalStateException("Too late.");
+        }
+        
+        if (syncInterval < 1L) {
+            throw new IllegalArgumentException("Sync interval must be positive, got: " + syncInterval);
+        }
+        
+        this.durability = durability;
+        this.syncInterval = syncInterval;
+    }
+    
+    /**
+     * Send the first chunk without waiting for the server to accept the
+     * request, see {@link UploadOptions#useOptimisticStart(boolean)}. Only a
+     * transfer handed over to a {@link FileUploader} start optimistically,
+     * this task itself always wait for the accept.
+     * 
+     * @param optimistic {@code true} to start optimistically
+     */
+    public void useOptimisticStart(boolean optimistic) {
+        if (getState().compareTo(State.RUNNING) >= 0) {
+            throw new IllegalStateException("Too late.");
+        }
+        
+        this.optimistic = optimistic;
+    }
+    
     public void tellServerAboutEncryption(boolean tell) {
         if (getState().compareTo(State.RUNNING) >= 0) {
             throw new IllegalStateException("Too late.");
@@ -113,6 +250,16 @@ public class FileSender extends Task<Long>
         this.manipulate = Optional.of(manipulate);
     }
     
+    /**
+     * Returns the digest of all bytes sent, which the server has confirmed.
+     * 
+     * @return the digest, or {@code null} if no digest was used
+     */
+    public byte[] getDigest() {
+        requireSucceeded();
+        return fileDigest == null ? null : fileDigest.clone();
+    }
+    
     public String getProblem() {
         requireSucceeded();
         return problem;
@@ -142,6 +289,16 @@ public class FileSender extends Task<Long>
                 .collect(Collectors.reducing(Duration.ZERO, Duration::plus));
     }
     
+    /**
+     * Returns the time the server reported he spent forcing the file to disk.
+     * 
+     * @return the time the server spent syncing
+     */
+    public Duration getSyncDuration() {
+        requireSucceeded();
+        return syncDuration;
+    }
+    
     public Duration getTaskDuration() {
         requireSucceeded();
         return taskDuration;
@@ -151,57 +308,285 @@ public class FileSender extends Task<Long>
     
     @Override
     protected Long call() throws Exception {
-        final long TOT = Files.size(file);
+        if (__canUpload()) {
+            return __upload();
+        }
+        
+        final long FILE_SIZE = Files.size(file);
+        
+        List<Block> blocks = null;
+        
+        if (dedup) {
+            updateMessage("Computing content-defined blocks of " + file + "..\n");
+            updateProgress(-1L, -1L);
+            
+            try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+                blocks = new ContentDefinedChunker().chunk(in);
+            }
+        }
         
         updateMessage("Sending file transmission request to server..\n");
         updateProgress(-1L, -1L);
         
-        __sendFileTransferRequest(TOT);
+        digest = digestAlgorithm == null ? null : Digests.newDigest(digestAlgorithm);
+        
+        ControlMessage accept = __sendFileTransferRequest(FILE_SIZE, blocks);
+        
+        if (cipher != null && accept.has(Field.CIPHER_SUITE)) {
+            cipher = cipher.withSuite(CipherSuite.valueOf(accept.getString(Field.CIPHER_SUITE)));
+            LOGGER.info(() -> "Server picked cipher suite " + cipher.getSuite() + ".");
+        }
+        
+        if (accept.has(Field.RATE)) {
+            // Sending faster would only fill buffers between us and the server:
+            pace = new TokenBucket(accept.getLong(Field.RATE));
+            LOGGER.info(() -> "Server limit our rate to " + pace.getRate() + " bytes/s.");
+        }
+        
+        /*
+         * What we send is the file, or only the blocks server is missing, or a
+         * delta against the copy server already has.
+         */
+        List<Block> payload = blocks == null ? null : __getMissingBlocks(accept, blocks);
+        Path delta = accept.has(Field.SIGNATURE) ? __computeDelta(accept) : null;
+        
+        Path source = delta == null ? file : delta;
         
-        updateMessage(reportBytesLeft(TOT));
-        updateProgress(0L, TOT);
+        final long TOT = payload == null ? Files.size(source) :
+                payload.stream().mapToLong(Block::getLength).sum();
         
         Instant taskStart = Instant.now();
         
-        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
-            while (__transferChunk(in, TOT) & !__waitForConfirmation()) {
-                ; // All work done in transferChunk() and waitForConfirmation()
+        try {
+            if (payload != null && payload.isEmpty()) {
+                LOGGER.info(() -> "Server already has all blocks of " + file + ", nothing to send.");
+                __waitForConfirmation();
+            }
+            else {
+                updateMessage(reportBytesLeft(TOT));
+                updateProgress(0L, TOT);
+                
+                try (FileChannel raw = FileChannel.open(source, StandardOpenOption.READ)) {
+                    ReadableByteChannel in = payload == null ? raw : new BlockChannel(raw, payload);
+                    
+                    while (__transferChunk(in, TOT) & !__waitForConfirmation()) {
+                        ; // All work done in transferChunk() and waitForConfirmation()
+                    }
+                }
+            }
+        }
+        finally {
+            if (delta != null) {
+                Files.deleteIfExists(delta);
             }
         }
         
         taskDuration = Duration.between(taskStart, Instant.now());
         
+        if (digest != null) {
+            fileDigest = digest.digest();
+            LOGGER.info(() -> digestAlgorithm + " of bytes sent: " + Hex.toHex(fileDigest));
+        }
+        
         /*
-         * If chunkSize < TOT, then wewe sent the file in pieces, so if
+         * If chunked, then wewe sent the file in pieces, so if
          * problem.isEmpty() (all chunks succeeded without any problems), then
          * we need to tell the server we're not gonna send him anything more.
          * 
          * If there was a problem, then the server already know and assume that
          * no more chunks will be sent.
          */
-        if (chunkSize < TOT && problem.isEmpty()) {
-            conn.sendAsync(Json.createObjectBuilder().add("eof", true).build());
+        if (chunked && !(payload != null && payload.isEmpty()) && problem.isEmpty()) {
+            ControlMessage eof = new ControlMessage().put(Field.EOF, true);
+            
+            if (fileDigest != null) {
+                eof.put(Field.DIGEST, fileDigest);
+            }
+            
+            conn.sendAsync(eof);
+            
+            // Server confirm once the file is complete and he is ready for our next message:
+            __waitForConfirmation();
         }
         
         return sent;
     }
     
-    private void __sendFileTransferRequest(long fileSize) throws InterruptedException {
+    /**
+     * Send the file transfer request and wait for the server to accept it.
+     * 
+     * @param fileSize total file size
+     * @param blocks all blocks of the file, {@code null} if not deduplicating
+     * 
+     * @return the accept message
+     * 
+     * @throws InterruptedException if interrupted while waiting for the accept
+     */
+    private ControlMessage __sendFileTransferRequest(long fileSize, List<Block> blocks) throws InterruptedException {
+        /*
+         * A deduplicated payload is at most the file size, so this is a safe
+         * guess. A delta may outgrow the file, by its header and instructions,
+         * and its size is not known until the signature has arrived, after the
+         * request has been sent. So a delta is always chunked.
+         */
+        chunked = fileSize > chunkSize || delta;
+        
         // What happens if we don't tell server? Apparently, the file goes away over the wire?
-        JsonObjectBuilder b = Json.createObjectBuilder();
+        ControlMessage req = new ControlMessage();
         
-        b.add("file", file.getFileName().toString())
-         .add("chunked", fileSize > chunkSize)
-         .add("encrypted", tell.orElse(cipher != null))
-         .add("strategy", strategy.name());
+        req.put(Field.FILE, file.getFileName().toString())
+           .put(Field.SIZE, fileSize)
+           .put(Field.CHUNKED, chunked)
+           .put(Field.ENCRYPTED, tell.orElse(cipher != null))
+           .put(Field.STRATEGY, strategy.name());
         
-        conn.sendBlock(b.build());
+        if (cipher != null && tell.orElse(true)) {
+            req.put(Field.CIPHER_SUITES, CipherSuite.offer());
+        }
+        
+        if (blocks != null) {
+            req.put(Field.DEDUP, true)
+               .put(Field.BLOCKS, blocks);
+        }
+        
+        if (delta) {
+            req.put(Field.DELTA, true);
+        }
+        
+        if (digest != null) {
+            req.put(Field.DIGEST_ALGORITHM, digestAlgorithm);
+        }
+        
+        if (durability != Durability.NONE) {
+            req.put(Field.DURABILITY, durability.name());
+            
+            if (durability == Durability.PERIODIC) {
+                req.put(Field.SYNC_INTERVAL, syncInterval);
+            }
+        }
+        
+        conn.sendBlock(req);
         
         updateMessage("Waiting for server accept..\n");
         
-        if (!conn.receiveNext().getBoolean("accept")) {
-            throw new RuntimeException("Server did not accept the request to send a file.");
+        ControlMessage accept = conn.receiveNext();
+        
+        // Server may queue us behind other transfers and tell us so until we're admitted:
+        while (accept.has(Field.QUEUE_POSITION)) {
+            long wait = accept.getLong(Field.QUEUE_WAIT);
+            
+            updateMessage("Queued by server, position " + accept.getLong(Field.QUEUE_POSITION) +
+                    (wait < 0L ? "" : ", estimated start in " + Duration.ofMillis(wait).getSeconds() + " s") + "..\n");
+            
+            accept = conn.receiveNext();
+        }
+        
+        if (!accept.getBoolean(Field.ACCEPT)) {
+            throw new RuntimeException("Server did not accept the request to send a file" +
+                    (accept.has(Field.PROBLEM) ? ": " + accept.getString(Field.PROBLEM) : "."));
+        }
+        
+        return accept;
+    }
+    
+    /**
+     * Returns {@code true} if a {@link FileUploader} can do the job. It always
+     * send in chunks of bounded size, and doesn't know how to lie.
+     * 
+     * @return {@code true} if the transfer may be handed over
+     */
+    private boolean __canUpload() {
+        return chunkSize <= UploadOptions.MAX_CHUNK_SIZE && !dedup && !delta &&
+               !manipulate.orElse(false) && tell.orElse(cipher != null) == (cipher != null);
+    }
+    
+    private long __upload() throws Exception {
+        UploadOptions options = new UploadOptions()
+                .useStrategy(strategy)
+                .useCipher(cipher)
+                .useChunkSize(chunkSize)
+                .useDigest(digestAlgorithm)
+                .useDurability(durability, syncInterval)
+                .useOptimisticStart(optimistic);
+        
+        final UploadResult result;
+        
+        try {
+            result = new FileUploader(conn).upload(file, options, (s, total, message) -> {
+                updateMessage(message);
+                updateProgress(total < 0L ? -1L : s, total);
+            }).get();
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof CompletionException ? e.getCause().getCause() : e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+        
+        sent = result.getBytesSent();
+        problem = result.getProblem();
+        fileDigest = result.getDigest();
+        chunkDurations.addAll(result.getChunkDurations());
+        confirmationDurations.addAll(result.getConfirmationDurations());
+        syncDuration = result.getSyncDuration();
+        taskDuration = result.getTotalDuration();
+        
+        return sent;
+    }
+    
+    /**
+     * Returns the blocks server asked for, in the order they must be sent.
+     * 
+     * @param accept server's accept message
+     * @param blocks all blocks of the file
+     * 
+     * @return the blocks server is missing
+     */
+    private List<Block> __getMissingBlocks(ControlMessage accept, List<Block> blocks) {
+        int[] missing = accept.getInts(Field.MISSING);
+        List<Block> payload = new ArrayList<>(missing.length);
+        
+        for (int i : missing) {
+            payload.add(blocks.get(i));
         }
+        
+        LOGGER.info(() -> "Server is missing " + payload.size() + " of " + blocks.size() + " block(s).");
+        
+        return payload;
+    }
+    
+    /**
+     * Compute a delta of the file against the signature of server's copy and
+     * put it in a temporary file. The caller is responsible for deleting the
+     * file.
+     * 
+     * @param accept server's accept message, containing the signature
+     * 
+     * @return the delta file
+     * 
+     * @throws IOException if IO errors
+     */
+    private Path __computeDelta(ControlMessage accept) throws IOException {
+        Signature sig = Signature.fromBytes(accept.getBytes(Field.SIGNATURE));
+        
+        LOGGER.info(() -> "Server has a copy of " + file.getFileName() + ", computing delta against " + sig);
+        updateMessage("Computing delta against server's copy of " + file.getFileName() + "..\n");
+        updateProgress(-1L, -1L);
+        
+        Path delta = Files.createTempFile(file.getFileName().toString(), ".delta");
+        
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(delta, StandardOpenOption.WRITE)) {
+            long literal = new DeltaEncoder(sig).encode(in, out);
+            
+            LOGGER.info(() -> "Delta has " + literal + " literal byte(s) of " + file.toFile().length() +
+                    ", " + delta.toFile().length() + " byte(s) in total.");
+        }
+        catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(delta);
+            throw e;
+        }
+        
+        return delta;
     }
     
     /**
@@ -210,15 +595,16 @@ public class FileSender extends Task<Long>
      * The chunk might be the entire file of course.
      * 
      * @param in channel to read from
-     * @param fileSize total file size
+     * @param fileSize total bytes to send
      * 
      * @return {@code true} if there are more bytes to read from the file,
      *         otherwise {@code false}
      * 
      * @throws GeneralSecurityException if cipher errors
      * @throws IOException if IO errors
+     * @throws InterruptedException if interrupted while keeping to server's rate
      */
-    private boolean __transferChunk(FileChannel in, long fileSize) throws GeneralSecurityException, IOException {
+    private boolean __transferChunk(ReadableByteChannel in, long fileSize) throws GeneralSecurityException, IOException, InterruptedException {
         final long MID = fileSize / 2;
         final int BUFFER = (int) Math.min(BUFFER_SIZE, chunkSize);
         
@@ -226,10 +612,13 @@ public class FileSender extends Task<Long>
         
         Cipher c = null;
         ByteBuffer encoded = null;
+        ByteBuffer nonce = null;
         
         if (cipher != null) {
-            c = cipher.initForEncryption(); // <-- GeneralSecurityException
-            encoded = ByteBuffer.allocate(BUFFER + getAuthenticationTagLength(c)); // <-- GeneralSecurityException
+            long invocation = cipher.nextInvocation();
+            c = cipher.initForEncryption(invocation); // <-- GeneralSecurityException
+            nonce = (ByteBuffer) ByteBuffer.allocate(AesGcmCipher.NONCE_LENGTH).putLong(invocation).flip();
+            encoded = ByteBuffer.allocate(BUFFER + cipher.getSuite().getTagLength());
         }
         
         boolean manipulate = this.manipulate.orElse(false);
@@ -240,10 +629,22 @@ public class FileSender extends Task<Long>
             long bytesLeft = chunkSize;
             int r = 0;
             
+            if (nonce != null) { // .. header first, server need it to decrypt:
+                sent += out.write(nonce); // <-- IOException
+            }
+            
             while (((bytesLeft -= r) > 0) && ((r = in.read(raw)) != -1)) {
                 raw.flip();
                 final int w;
                 
+                if (pace != null) {
+                    pace.acquire(raw.remaining());
+                }
+                
+                if (digest != null) {
+                    digest.update(raw.duplicate());
+                }
+                
                 if (encoded != null) { // .. do some crypto:
                     int need = c.getOutputSize(raw.remaining());
 
@@ -282,7 +683,7 @@ public class FileSender extends Task<Long>
 
             if (cipher != null) {
                 final byte[] residue = c.doFinal(); // <-- GeneralSecurityException
-                final int tLen = getAuthenticationTagLength(c); // <-- GeneralSecurityException
+                final int tLen = cipher.getSuite().getTagLength();
 
                 if (residue.length > tLen) {
 
@@ -318,7 +719,22 @@ public class FileSender extends Task<Long>
         updateMessage("Waiting for server confirmation..\n ");
         updateProgress(-1L, -1L);
         
-        problem = conn.receiveNext().getString("problem");
+        ControlMessage confirmation = conn.receiveNext();
+        problem = confirmation.getString(Field.PROBLEM);
+        
+        if (problem.isEmpty() && digest != null && confirmation.has(Field.DIGEST)) {
+            byte[] ours = Digests.peek(digest),
+                   theirs = confirmation.getBytes(Field.DIGEST);
+            
+            if (!MessageDigest.isEqual(ours, theirs)) {
+                problem = "Digest mismatch, server received " + Hex.toHex(theirs) + " but we sent " + Hex.toHex(ours) + ".";
+                LOGGER.warning(problem);
+            }
+        }
+        
+        if (confirmation.has(Field.SYNC_NANOS)) {
+            syncDuration = syncDuration.plusNanos(confirmation.getLong(Field.SYNC_NANOS));
+        }
         
         confirmationDurations.add(Duration.between(confStart, Instant.now()));
         return !problem.isEmpty();
@@ -330,12 +746,6 @@ public class FileSender extends Task<Long>
         }
     }
     
-    private int getAuthenticationTagLength(Cipher cipher) throws InvalidParameterSpecException {
-        return cipher.getParameters()
-                    .getParameterSpec(GCMParameterSpec.class)
-                    .getTLen() / Byte.SIZE;
-    }
-    
     private String reportBytesLeft(long totalBytes) {
         return new StringBuilder("Sending \"").append(file).append('"').append("\n")
                 .append(totalBytes - sent).append(" bytes left..\n")
@@ -2,32 +2,48 @@ package martinandersson.com.client;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.StringReader;
 import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.Future;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
-import javax.json.Json;
-import javax.json.JsonObject;
-import javax.json.JsonReader;
-import javax.json.JsonReaderFactory;
+import javax.websocket.ClientEndpointConfig;
 import javax.websocket.CloseReason;
 import javax.websocket.ContainerProvider;
 import javax.websocket.DeploymentException;
 import javax.websocket.Endpoint;
 import javax.websocket.EndpointConfig;
 import javax.websocket.MessageHandler;
+import javax.websocket.PongMessage;
 import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
 import javax.websocket.Session;
 import javax.websocket.WebSocketContainer;
+import martinandersson.com.library.control.BinaryControlCodec;
+import martinandersson.com.library.control.ControlMessage;
+import martinandersson.com.library.control.JsonControlCodec;
 
 /**
- * Is the client's view of the server, by which client speak with the server.
+ * Is the client's view of the server, by which client speak with the server.<p>
+ * 
+ * The user interface use one connection, the {@linkplain #getInstance()
+ * singleton}. More connections, each with a session and message queue of its
+ * own, may be created and are best managed by a {@link ConnectionPool}.
  * 
  * @author Martin Andersson (webmaster at martinandersson.com)
  */
@@ -35,6 +51,9 @@ public class ServerConnection
 {
     private static final Logger LOGGER = Logger.getLogger(ServerConnection.class.getName());
     
+    /** Smallest buffer for incoming binary messages, room for a download slice and then some. Current value: {@value}. */
+    private static final int MIN_BINARY_BUFFER = 1024 * 1024;
+    
     
     /*
      * Why is the next declared singleton field marked volatile?
@@ -134,16 +153,31 @@ public class ServerConnection
     }
     
     
-    private final BlockingQueue<JsonObject> messages;
+    private final BlockingQueue<ControlMessage> messages;
+    
+    /** Callers of {@code nextMessage()} waiting for a message, also guards the hand-off. */
+    private final Deque<CompletableFuture<ControlMessage>> waiting = new ArrayDeque<>();
     
     private Session session;
     
     private RemoteEndpoint.Async async;
     private RemoteEndpoint.Basic basic;
     
+    private BinaryControlCodec binary; // <-- null unless the binary control protocol was negotiated
+    
+    private volatile CompletableFuture<Void> pong; // <-- completed by the next pong received
     
+    private volatile Consumer<ByteBuffer> data; // <-- receives downloaded file data, null if no download is running
     
-    private ServerConnection() {
+    private volatile Predicate<ControlMessage> check; // <-- consumes the next control message, null if none is expected
+    
+    
+    
+    /**
+     * Initializes a new connection, not yet connected. Most code should use
+     * the {@linkplain #getInstance() singleton} or a {@link ConnectionPool}.
+     */
+    public ServerConnection() {
         messages = new LinkedBlockingQueue<>(500);
     }
     
@@ -162,19 +196,102 @@ public class ServerConnection
         
         WebSocketListener listener = new WebSocketListener();
         
+        // Ask for the binary control protocol, server fallback to JSON if he doesn't speak it:
+        ClientEndpointConfig config = ClientEndpointConfig.Builder.create()
+                .preferredSubprotocols(Collections.singletonList(BinaryControlCodec.SUBPROTOCOL))
+                .build();
+        
         // Possible source of all exceptions:
-        session = container.connectToServer(listener, typed); // <-- this adds the life cycle methods.
+        session = container.connectToServer(listener, config, typed); // <-- this adds the life cycle methods.
+        
+        if (BinaryControlCodec.SUBPROTOCOL.equals(session.getNegotiatedSubprotocol())) {
+            binary = new BinaryControlCodec();
+        }
         
+        session.setMaxBinaryMessageBufferSize(Math.max(MIN_BINARY_BUFFER, session.getMaxBinaryMessageBufferSize()));
+        session.addMessageHandler(listener.new BinaryListener());
         session.addMessageHandler(listener); // .. and this call adds the onMessage listener method.
+        session.addMessageHandler(listener.new PongListener());
         
         async = session.getAsyncRemote();
         basic = session.getBasicRemote();
+        
+        LOGGER.info(() -> "Control protocol: " + (binary == null ? "JSON" : "binary"));
     }
     
     public boolean isOpen() {
         return session != null && session.isOpen();
     }
     
+    /**
+     * Send a ping and wait for the server's pong. A connection that is open
+     * may still be dead, if the network went away without a close.
+     * 
+     * @param timeout longest wait for the pong
+     * @param unit unit of {@code timeout}
+     * 
+     * @return {@code true} if the server answered in time, otherwise {@code false}
+     * 
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean ping(long timeout, TimeUnit unit) throws InterruptedException {
+        if (!isOpen()) {
+            return false;
+        }
+        
+        CompletableFuture<Void> answer = new CompletableFuture<>();
+        pong = answer;
+        
+        try {
+            basic.sendPing(ByteBuffer.wrap(new byte[]{ 1 }));
+            answer.get(timeout, unit);
+            return true;
+        }
+        catch (IOException | ExecutionException | TimeoutException e) {
+            LOGGER.info(() -> "Ping failed: " + e);
+            return false;
+        }
+    }
+    
+    /**
+     * Close the connection. May be called many times.
+     */
+    public void close() {
+        if (isOpen()) {
+            try {
+                session.close();
+            }
+            catch (IOException e) {
+                LOGGER.info(() -> "Failed to close session: " + e);
+            }
+        }
+    }
+    
+    /**
+     * Have the next control message received passed to the provided check
+     * instead of the inbound queue. If the check fail, the connection is
+     * closed, so that no later message is acted on.<p>
+     * 
+     * Used to send requests right behind a message, before its answer has
+     * been received, while still verifying the answer before anything that
+     * follow it.
+     * 
+     * @param check return {@code true} if the message is as expected
+     */
+    public void checkNext(Predicate<ControlMessage> check) {
+        this.check = check;
+    }
+    
+    /**
+     * Returns {@code true} if the binary control protocol was negotiated with
+     * the server, otherwise {@code false} and JSON is used.
+     * 
+     * @return {@code true} if the binary control protocol is used
+     */
+    public boolean usesBinaryProtocol() {
+        return binary != null;
+    }
+    
     /**
      * Receive next message.<p>
      * 
@@ -185,28 +302,156 @@ public class ServerConnection
      * 
      * @throws InterruptedException if thread is interrupted while waiting (blocking)
      */
-    public JsonObject receiveNext() throws InterruptedException {
+    public ControlMessage receiveNext() throws InterruptedException {
         return messages.take();
     }
     
-    public Future<Void> sendAsync(JsonObject json) {
-        return async.sendText(json.toString());
+    /**
+     * Receive next message, waiting at most the provided time.
+     * 
+     * @param timeout longest wait
+     * @param unit unit of {@code timeout}
+     * 
+     * @return the message, or {@code null} if none arrived in time
+     * 
+     * @throws InterruptedException if thread is interrupted while waiting
+     */
+    public ControlMessage receiveNext(long timeout, TimeUnit unit) throws InterruptedException {
+        return messages.poll(timeout, unit);
+    }
+    
+    /**
+     * Receive next message without blocking.<p>
+     * 
+     * The returned future is already completed if a message is available in
+     * the inbound queue. Otherwise it is completed by the thread delivering
+     * the next message, which must not be blocked by the caller. Don't mix
+     * this method with the blocking variants on the same connection.
+     * 
+     * @return the next message
+     */
+    public CompletableFuture<ControlMessage> nextMessage() {
+        synchronized (waiting) {
+            ControlMessage msg = messages.poll();
+            
+            if (msg != null) {
+                return CompletableFuture.completedFuture(msg);
+            }
+            
+            CompletableFuture<ControlMessage> next = new CompletableFuture<>();
+            waiting.add(next);
+            return next;
+        }
+    }
+    
+    /**
+     * Send a message using the negotiated control protocol, without blocking.
+     * 
+     * @param msg message to send
+     * 
+     * @return a future completed when the message has been sent
+     */
+    public CompletableFuture<Void> sendControl(ControlMessage msg) {
+        CompletableFuture<Void> sent = new CompletableFuture<>();
+        
+        if (binary == null) {
+            async.sendText(JsonControlCodec.encode(msg), completing(sent));
+        }
+        else {
+            ByteBuffer copy;
+            
+            synchronized (binary) {
+                ByteBuffer encoded = binary.encode(msg);
+                copy = ByteBuffer.allocate(encoded.remaining()).put(encoded); // <-- codec buffer is reused
+            }
+            
+            copy.flip();
+            async.sendBinary(copy, completing(sent));
+        }
+        
+        return sent;
+    }
+    
+    /**
+     * Send a whole binary message (a file, or a chunk thereof) without
+     * blocking. The buffer must not be touched until the future completes.
+     * 
+     * @param data bytes to send
+     * 
+     * @return a future completed when the message has been sent
+     */
+    public CompletableFuture<Void> sendData(ByteBuffer data) {
+        CompletableFuture<Void> sent = new CompletableFuture<>();
+        async.sendBinary(data, completing(sent));
+        return sent;
     }
     
-    public void sendBlock(JsonObject json) {
+    /**
+     * Send a message asynchronously, always as JSON text.<p>
+     * 
+     * Used for the end-of-file message of a chunked transfer, which the server
+     * must receive as text no matter which control protocol is used.
+     * 
+     * @param msg message to send
+     * 
+     * @return the future of the send operation
+     */
+    public CompletableFuture<Void> sendAsync(ControlMessage msg) {
+        CompletableFuture<Void> sent = new CompletableFuture<>();
+        async.sendText(JsonControlCodec.encode(msg), completing(sent));
+        return sent;
+    }
+    
+    /**
+     * Send a message using the negotiated control protocol, block until sent.
+     * 
+     * @param msg message to send
+     */
+    public void sendBlock(ControlMessage msg) {
         try {
-            basic.sendText(json.toString());
+            if (binary == null) {
+                basic.sendText(JsonControlCodec.encode(msg));
+            }
+            else synchronized (binary) {
+                basic.sendBinary(binary.encode(msg)); // <-- codec buffer reused only after we return
+            }
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
     }
     
+    /**
+     * Set who receives the binary messages of a download, until set to {@code
+     * null}.<p>
+     * 
+     * A download message start with a position in the file, so it is told
+     * apart from a binary control message by the magic bytes the latter start
+     * with. The consumer is called by the thread delivering the message and
+     * should not block for long.
+     * 
+     * @param consumer receiver of download messages, or {@code null}
+     */
+    public void receiveData(Consumer<ByteBuffer> consumer) {
+        data = consumer;
+    }
+    
     public OutputStream getOutputStream() throws IOException {
         return basic.getSendStream();
     }
     
     
     
+    private static SendHandler completing(CompletableFuture<Void> sent) {
+        return result -> {
+            if (result.isOK()) {
+                sent.complete(null);
+            }
+            else {
+                sent.completeExceptionally(result.getException());
+            }
+        };
+    }
+    
     private void trace(String method, Object... args) {
         LOGGER.info(() -> {
             String prefix = "ENTER " + method + ", ARGS: ";
@@ -225,15 +470,6 @@ public class ServerConnection
     
     private class WebSocketListener extends Endpoint implements MessageHandler.Whole<String> {
         
-        /**
-         * Prefer this cached factory instead of {@code Json.createReader()} or
-         * other similar constructs. {@code Json.createReader()} will traverse
-         * the classpath each time to look for the Json provider.<p>
-         * 
-         * Safe to use for concurrent threads.
-         */
-        private final JsonReaderFactory jsonReaderFactory = Json.createReaderFactory(null);
-        
         @Override
         public void onOpen(Session session, EndpointConfig config) {
             trace("onOpen", session, config);
@@ -242,6 +478,16 @@ public class ServerConnection
         @Override
         public void onClose(Session session, CloseReason reason) {
             trace("onClose", reason);
+            
+            List<CompletableFuture<ControlMessage>> orphans;
+            
+            synchronized (waiting) {
+                orphans = new ArrayList<>(waiting);
+                waiting.clear();
+            }
+            
+            IOException closed = new IOException("Connection closed: " + reason);
+            orphans.forEach(f -> f.completeExceptionally(closed));
         }
 
         @Override
@@ -252,19 +498,83 @@ public class ServerConnection
         @Override
         public void onMessage(String data) {
             LOGGER.info(() -> "Received message: " + data);
-
-            final JsonObject obj;
-
-            try (StringReader strReader = new StringReader(data);
-                 JsonReader jsonReader = jsonReaderFactory.createReader(strReader);) {
-                 obj = jsonReader.readObject();
+            enqueue(JsonControlCodec.decode(data));
+        }
+        
+        private void enqueue(ControlMessage msg) {
+            Predicate<ControlMessage> c = check;
+            
+            if (c != null) {
+                check = null;
+                
+                if (!c.test(msg)) {
+                    LOGGER.warning(() -> "Closing connection, unexpected message: " + msg);
+                    close();
+                }
+                
+                return;
             }
-
+            
+            CompletableFuture<ControlMessage> next;
+            
+            synchronized (waiting) {
+                next = waiting.poll();
+                
+                if (next == null && messages.offer(msg)) {
+                    return;
+                }
+            }
+            
+            if (next != null) {
+                next.complete(msg);
+                return;
+            }
+            
+            // Queue is full, nobody is waiting asynchronously:
             try {
-                messages.put(obj);
+                messages.put(msg);
             } catch (InterruptedException e) {
                 LOGGER.warning("Interrupted while waiting for space to become available, message lost.");
             }
         }
+        
+        /**
+         * Receives control messages of the binary protocol, and the file data
+         * of downloads. Registered for as long as the session is open.
+         */
+        private class BinaryListener implements MessageHandler.Whole<ByteBuffer> {
+            @Override
+            public void onMessage(ByteBuffer message) {
+                boolean control = binary != null &&
+                        message.remaining() >= Short.BYTES && message.getShort(message.position()) == BinaryControlCodec.MAGIC;
+                
+                if (control) {
+                    ControlMessage msg = binary.decode(message);
+                    LOGGER.info(() -> "Received message: " + msg);
+                    enqueue(msg);
+                    return;
+                }
+                
+                Consumer<ByteBuffer> d = data;
+                
+                if (d != null) {
+                    d.accept(message);
+                }
+                else {
+                    LOGGER.warning(() -> "Received " + message.remaining() + " byte(s) of file data nobody asked for, dropped.");
+                }
+            }
+        }
+        
+        private class PongListener implements MessageHandler.Whole<PongMessage> {
+            @Override
+            public void onMessage(PongMessage ignored) {
+                CompletableFuture<Void> p = pong;
+                
+                if (p != null) {
+                    p.complete(null);
+                }
+            }
+        }
     }
 }
\ No newline at end of file
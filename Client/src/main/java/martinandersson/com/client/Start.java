@@ -7,6 +7,7 @@ import javafx.fxml.FXMLLoader;
 import javafx.scene.Scene;
 import javafx.stage.Stage;
 import javafx.stage.StageStyle;
+import martinandersson.com.library.CipherSuite;
 
 
 /**
@@ -26,6 +27,11 @@ public class Start extends Application
     
     @Override
     public void start(Stage stage) throws IOException {
+        // Measure the cipher suites while the user log in, off the FX thread:
+        Thread probe = new Thread(CipherSuite::throughputs, "Cipher suite probe");
+        probe.setDaemon(true);
+        probe.start();
+        
         FXMLLoader frameLoader = new FXMLLoader();
         
         frameLoader.setController(new FrameController(stage, getHostServices()));
@@ -0,0 +1,482 @@
+package martinandersson.com.client.download;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.crypto.Cipher;
+import martinandersson.com.client.ConnectionPool;
+import martinandersson.com.client.ServerConnection;
+import martinandersson.com.library.AesGcmCipher;
+import martinandersson.com.library.CipherSuite;
+import martinandersson.com.library.control.ControlMessage;
+import martinandersson.com.library.control.Field;
+import martinandersson.com.library.merkle.MerkleTree;
+
+/**
+ * Downloads files from the server, fetching ranges in parallel over the
+ * connections of a {@link ConnectionPool}.<p>
+ * 
+ * {@link #download(String, Path, boolean) download()} first fetch the
+ * leading {@value #PART_SIZE} bytes, whose accept tell the file size, then
+ * split the rest into as many ranges as the pool has connections, at least
+ * {@value #PART_SIZE} bytes each, and fetch all of them at once. Each range is
+ * written where it belong in the target file using positional writes, so the
+ * ranges need no ordering and share one channel.<p>
+ * 
+ * Each slice the server send carry its position in the file and is written by
+ * the thread delivering it. If encrypted, slices are decrypted using the
+ * server-to-client instance of the connection's cipher, see {@link
+ * AesGcmCipher#reversed()}. Nothing is ever sent by the client while a range
+ * is being received.<p>
+ * 
+ * {@link #repair(String, Path, boolean) repair()} make a local copy whole
+ * again, for example after an interrupted download, using the {@link
+ * MerkleTree} the server stored with the file. Only blocks that differ are
+ * fetched.<p>
+ * 
+ * Safe to use by concurrent threads.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class FileDownloader
+{
+    private static final Logger LOGGER = Logger.getLogger(FileDownloader.class.getName());
+    
+    /** Smallest range worth a connection of its own. Current value: {@value}. */
+    public static final long PART_SIZE = 4L * 1024 * 1024;
+    
+    /** Leasing a connection and hashing blocks may block, and is done by these threads. */
+    private static final ExecutorService BLOCKING = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "FileDownloader worker");
+        t.setDaemon(true);
+        return t;
+    });
+    
+    
+    
+    private final ConnectionPool pool;
+    
+    /**
+     * Initializes a new downloader.
+     * 
+     * @param pool connections to fetch over
+     */
+    public FileDownloader(ConnectionPool pool) {
+        this.pool = pool;
+    }
+    
+    /**
+     * Download a whole file. The target is created, or truncated, and is left
+     * incomplete if the download fails.
+     * 
+     * @param file name of the file on the server
+     * @param target where to write it
+     * @param encrypted {@code true} if the server should encrypt the file
+     * 
+     * @return a future completed with the file size once all of it has been
+     *         written, or exceptionally if the download failed
+     */
+    public CompletableFuture<Long> download(String file, Path target, boolean encrypted) {
+        final FileChannel out;
+        
+        try {
+            out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+        catch (IOException e) {
+            return failed(e);
+        }
+        
+        final long start = System.nanoTime();
+        
+        return fetch(file, 0L, PART_SIZE, out, encrypted)
+                .thenCompose(size -> {
+                    final long rest = Math.max(0L, size - PART_SIZE);
+                    final int parts = (int) Math.min(pool.getSize(), (rest + PART_SIZE - 1) / PART_SIZE);
+                    
+                    List<CompletableFuture<Long>> fetches = new ArrayList<>(parts);
+                    
+                    for (int i = 0; i < parts; ++i) {
+                        long from = PART_SIZE + rest * i / parts,
+                             to   = PART_SIZE + rest * (i + 1) / parts;
+                        
+                        fetches.add(fetch(file, from, to - from, out, encrypted).thenApply(s -> {
+                            if (s.longValue() != size.longValue()) {
+                                throw new CompletionException(new IOException(file + " changed size while downloading."));
+                            }
+                            
+                            return s;
+                        }));
+                    }
+                    
+                    LOGGER.info(() -> "Fetching " + file + " of " + size + " byte(s) in " + (parts + 1) + " range(s).");
+                    
+                    return CompletableFuture.allOf(fetches.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> size);
+                })
+                .whenComplete((size, failure) -> {
+                    close(out);
+                    
+                    if (failure == null) {
+                        LOGGER.info(() -> "Downloaded " + file + " in " + (System.nanoTime() - start) / 1_000_000 + " ms.");
+                    }
+                });
+    }
+    
+    /**
+     * Download a byte range of a file, for example to resume a download. The
+     * range is written at the same position in the target, which is created
+     * if need be but not truncated. The range is clamped to the file.
+     * 
+     * @param file name of the file on the server
+     * @param offset position of the first byte
+     * @param length number of bytes
+     * @param target where to write them
+     * @param encrypted {@code true} if the server should encrypt the range
+     * 
+     * @return a future completed with the file size once the range has been
+     *         written, or exceptionally if the download failed
+     */
+    public CompletableFuture<Long> downloadRange(String file, long offset, long length, Path target, boolean encrypted) {
+        final FileChannel out;
+        
+        try {
+            out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        }
+        catch (IOException e) {
+            return failed(e);
+        }
+        
+        return fetch(file, offset, length, out, encrypted).whenComplete((size, failure) -> close(out));
+    }
+    
+    /**
+     * Make a local copy of a file whole again, fetching only the blocks that
+     * differ.<p>
+     * 
+     * The Merkle tree of the file is fetched first, then all blocks of the
+     * target are hashed, using as many threads as there are processors, and
+     * compared with the leaves. Each run of bad blocks is fetched as a range,
+     * all at once. Last, the target is verified again. A target longer than
+     * the file is truncated.<p>
+     * 
+     * The server has a tree only of a file uploaded using digest {@value
+     * martinandersson.com.library.merkle.MerkleDigest#ALGORITHM}.
+     * 
+     * @param file name of the file on the server
+     * @param target the local copy, created if need be
+     * @param encrypted {@code true} if the server should encrypt what is
+     *        fetched
+     * 
+     * @return a future completed with the number of bytes fetched, not
+     *         counting the tree, {@code 0} if the target was intact, or
+     *         exceptionally if the server has no tree of the file or the
+     *         repair failed
+     */
+    public CompletableFuture<Long> repair(String file, Path target, boolean encrypted) {
+        final Path treeFile;
+        
+        try {
+            treeFile = Files.createTempFile("download", MerkleTree.FILE_SUFFIX);
+        }
+        catch (IOException e) {
+            return failed(e);
+        }
+        
+        final long start = System.nanoTime();
+        
+        return download(MerkleTree.fileOf(file), treeFile, encrypted)
+                .thenComposeAsync(ignored -> {
+                    try {
+                        MerkleTree tree = MerkleTree.decode(ByteBuffer.wrap(Files.readAllBytes(treeFile)));
+                        
+                        try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                            if (out.size() > tree.getSize()) {
+                                out.truncate(tree.getSize());
+                            }
+                        }
+                        
+                        BitSet bad = verify(tree, target);
+                        
+                        LOGGER.info(() -> "Fetching " + bad.cardinality() + " of " + tree.getBlockCount() + " block(s) of " + file +
+                                ", " + tree.intactPrefix(bad) + " byte(s) from the start are intact.");
+                        
+                        return fetchBlocks(file, tree, bad, target, encrypted).thenApplyAsync(fetched -> {
+                            try {
+                                if (!verify(tree, target).isEmpty()) {
+                                    throw new IOException(file + " does not match its Merkle tree, was it replaced?");
+                                }
+                            }
+                            catch (IOException e) {
+                                throw new CompletionException(e);
+                            }
+                            
+                            return fetched;
+                        }, BLOCKING);
+                    }
+                    catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                }, BLOCKING)
+                .whenComplete((fetched, failure) -> {
+                    try {
+                        Files.deleteIfExists(treeFile);
+                    }
+                    catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Failed to delete " + treeFile + ".", e);
+                    }
+                    
+                    if (failure == null) {
+                        LOGGER.info(() -> "Repaired " + file + ", fetching " + fetched + " byte(s), in " +
+                                (System.nanoTime() - start) / 1_000_000 + " ms.");
+                    }
+                });
+    }
+    
+    private static BitSet verify(MerkleTree tree, Path target) throws IOException {
+        return tree.verify(() -> FileChannel.open(target, StandardOpenOption.READ),
+                Runtime.getRuntime().availableProcessors(), BLOCKING);
+    }
+    
+    /**
+     * Fetch the provided blocks, each run of adjacent blocks as one range.
+     */
+    private CompletableFuture<Long> fetchBlocks(String file, MerkleTree tree, BitSet bad, Path target, boolean encrypted) throws IOException {
+        if (bad.isEmpty()) {
+            return CompletableFuture.completedFuture(0L);
+        }
+        
+        final FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE);
+        final List<CompletableFuture<Long>> fetches = new ArrayList<>();
+        long total = 0L;
+        
+        for (int from = bad.nextSetBit(0); from >= 0; from = bad.nextSetBit(bad.nextClearBit(from))) {
+            final long offset = (long) from * tree.getBlockSize(),
+                       length = Math.min((long) bad.nextClearBit(from) * tree.getBlockSize(), tree.getSize()) - offset;
+            
+            fetches.add(fetch(file, offset, length, out, encrypted).thenApply(size -> {
+                if (size != tree.getSize()) {
+                    throw new CompletionException(new IOException(file + " has " + size + " byte(s), its Merkle tree " + tree.getSize() + "."));
+                }
+                
+                return size;
+            }));
+            
+            total += length;
+        }
+        
+        final long fetched = total;
+        
+        return CompletableFuture.allOf(fetches.toArray(new CompletableFuture<?>[0]))
+                .thenApply(ignored -> fetched)
+                .whenComplete((ignored, failure) -> close(out));
+    }
+    
+    private CompletableFuture<Long> fetch(String file, long offset, long length, FileChannel out, boolean encrypted) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return pool.acquire();
+            }
+            catch (IOException e) {
+                throw new CompletionException(e);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(e);
+            }
+        }, BLOCKING).thenCompose(lease -> {
+            AesGcmCipher cipher = encrypted ? lease.getCipher() : null;
+            
+            return new Range(lease.getConnection(), cipher, file, offset, length, out).start().whenComplete((size, failure) -> {
+                if (failure != null) {
+                    // Slices or a confirmation may still be on their way:
+                    lease.discard();
+                }
+                
+                lease.close();
+            });
+        });
+    }
+    
+    private static <T> CompletableFuture<T> failed(Throwable t) {
+        CompletableFuture<T> f = new CompletableFuture<>();
+        f.completeExceptionally(t);
+        return f;
+    }
+    
+    private static void close(FileChannel out) {
+        try {
+            out.close();
+        }
+        catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to close download target.", e);
+        }
+    }
+    
+    
+    
+    /**
+     * Fetch of one range over one connection.
+     */
+    private static final class Range implements Consumer<ByteBuffer> {
+        private final ServerConnection conn;
+        
+        private final String file;
+        
+        private final long offset, length;
+        
+        private final FileChannel out;
+        
+        /** Completed once the accept has been processed, slices are written only after. */
+        private final CompletableFuture<Void> ready = new CompletableFuture<>();
+        
+        private AesGcmCipher cipher; // <-- forward cipher until accepted, then the server-to-client one
+        
+        private long size, first, count;
+        
+        /** Bytes of the range written. Only touched by the thread delivering slices. */
+        private long received;
+        
+        private volatile Throwable failure; // <-- first failure of a slice, the rest are ignored
+        
+        Range(ServerConnection conn, AesGcmCipher cipher, String file, long offset, long length, FileChannel out) {
+            this.conn = conn;
+            this.cipher = cipher;
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+            this.out = out;
+        }
+        
+        CompletableFuture<Long> start() {
+            ControlMessage req = new ControlMessage()
+                    .put(Field.DOWNLOAD, true)
+                    .put(Field.FILE, file)
+                    .put(Field.OFFSET, offset)
+                    .put(Field.LENGTH, length)
+                    .put(Field.ENCRYPTED, cipher != null);
+            
+            if (cipher != null) {
+                req.put(Field.CIPHER_SUITES, CipherSuite.offer());
+            }
+            
+            // Slices may arrive right after the accept, before it has been processed:
+            conn.receiveData(this);
+            
+            return conn.sendControl(req)
+                    .thenCompose(ignored -> accepted())
+                    .thenCompose(ignored -> conn.nextMessage())
+                    .thenApply(this::confirmed)
+                    .whenComplete((s, t) -> {
+                        conn.receiveData(null);
+                        ready.complete(null); // <-- release a slice waiting for an accept that never came
+                    });
+        }
+        
+        private CompletableFuture<Void> accepted() {
+            return conn.nextMessage().thenCompose(msg -> {
+                if (msg.has(Field.QUEUE_POSITION)) {
+                    LOGGER.info(() -> "Download of " + file + " queued by server, position " + msg.getLong(Field.QUEUE_POSITION) + ".");
+                    return accepted();
+                }
+                
+                if (!msg.getBoolean(Field.ACCEPT)) {
+                    throw new CompletionException(new IOException("Server did not accept the download request: " +
+                            (msg.has(Field.PROBLEM) ? msg.getString(Field.PROBLEM) : "no reason given")));
+                }
+                
+                size = msg.getLong(Field.SIZE);
+                first = msg.getLong(Field.OFFSET);
+                count = msg.getLong(Field.LENGTH);
+                
+                try {
+                    cipher = cipher == null ? null :
+                            cipher.reversed().withSuite(CipherSuite.valueOf(msg.getString(Field.CIPHER_SUITE)));
+                }
+                catch (GeneralSecurityException e) {
+                    throw new CompletionException(e);
+                }
+                finally {
+                    ready.complete(null);
+                }
+                
+                return CompletableFuture.completedFuture(null);
+            });
+        }
+        
+        private Long confirmed(ControlMessage confirmation) {
+            String problem = confirmation.getString(Field.PROBLEM);
+            
+            if (!problem.isEmpty()) {
+                throw new CompletionException(new IOException("Server failed to send " + file + ": " + problem));
+            }
+            
+            Throwable t = failure;
+            
+            if (t != null) {
+                throw new CompletionException(t);
+            }
+            
+            if (received != count) {
+                throw new CompletionException(new IOException("Received " + received + " of " + count + " byte(s) of " + file + "."));
+            }
+            
+            return size;
+        }
+        
+        /**
+         * Write one slice.
+         * 
+         * @param message the slice, as sent by the server
+         */
+        @Override
+        public void accept(ByteBuffer message) {
+            if (failure != null) {
+                return;
+            }
+            
+            // The accept precede all slices, we may only have to wait for the thread processing it:
+            ready.join();
+            
+            try {
+                long position = message.getLong();
+                ByteBuffer plain = cipher == null ? message : decrypt(position, message);
+                
+                if (position < first || position + plain.remaining() > first + count) {
+                    throw new IOException("Slice at position " + position + " is outside the range.");
+                }
+                
+                received += plain.remaining();
+                
+                while (plain.hasRemaining()) {
+                    position += out.write(plain, position);
+                }
+            }
+            catch (IOException | GeneralSecurityException | RuntimeException e) {
+                failure = e;
+            }
+        }
+        
+        private ByteBuffer decrypt(long position, ByteBuffer message) throws GeneralSecurityException {
+            Cipher c = cipher.initForDecryption(message.getLong());
+            c.updateAAD(ByteBuffer.allocate(Long.BYTES).putLong(0, position).array());
+            
+            ByteBuffer plain = ByteBuffer.allocate(c.getOutputSize(message.remaining()));
+            c.doFinal(message, plain); // <-- AEADBadTagException
+            plain.flip();
+            return plain;
+        }
+    }
+}
\ No newline at end of file
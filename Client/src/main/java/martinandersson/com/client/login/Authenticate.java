@@ -1,16 +1,14 @@
 package martinandersson.com.client.login;
 
-import com.nimbusds.srp6.BigIntegerUtils;
 import com.nimbusds.srp6.SRP6ClientCredentials;
 import com.nimbusds.srp6.SRP6ClientSession;
 import com.nimbusds.srp6.SRP6ClientSession.State;
 import com.nimbusds.srp6.SRP6Exception;
 import java.math.BigInteger;
-import javax.json.Json;
-import javax.json.JsonObject;
-import javax.json.JsonObjectBuilder;
 import martinandersson.com.client.ServerConnection;
 import martinandersson.com.library.Constants;
+import martinandersson.com.library.control.ControlMessage;
+import martinandersson.com.library.control.Field;
 
 /**
  * Is the client's view of the SRP authentication process and outbound messages
@@ -51,10 +49,7 @@ public class Authenticate
         
         s.step1(username, password);
         
-        JsonObjectBuilder b = Json.createObjectBuilder();
-        b.add("username", username);
-        
-        conn.sendBlock(b.build());
+        conn.sendBlock(new ControlMessage().put(Field.USERNAME, username));
         
         session = s;
         completed = State.STEP_1;
@@ -68,23 +63,20 @@ public class Authenticate
      * @throws IllegalStateException if invoked in a state other than step 1
      * @throws SRP6Exception if timeout or invalid server B
      */
-    public void step2(JsonObject saltAndB) throws SRP6Exception {
+    public void step2(ControlMessage saltAndB) throws SRP6Exception {
         if (completed != State.STEP_1) {
             throw new IllegalStateException();
         }
         
-        BigInteger salt = BigIntegerUtils.fromHex(saltAndB.getString("salt"));
-        BigInteger B = BigIntegerUtils.fromHex(saltAndB.getString("B"));
+        BigInteger salt = saltAndB.getBigInteger(Field.SALT);
+        BigInteger B = saltAndB.getBigInteger(Field.B);
         
         SRP6ClientCredentials cred = session.step2(Constants.CRYPTO_PARAMS, salt, B); // <-- SRP6Exception, IllegalStateException
         
         // Send client public value 'A' and evidence message 'M1' to server
-        JsonObjectBuilder b = Json.createObjectBuilder();
-        
-        b.add("A", BigIntegerUtils.toHex(cred.A))
-         .add("M1", BigIntegerUtils.toHex(cred.M1));
-        
-        conn.sendBlock(b.build());
+        conn.sendBlock(new ControlMessage()
+                .put(Field.A, cred.A)
+                .put(Field.M1, cred.M1));
     }
     
     /**
@@ -96,8 +88,8 @@ public class Authenticate
      * @throws SRP6Exception if the session has timed out or the server evidence
      *         message 'M2' is invalid. 
      */
-    public void step3(JsonObject m2) throws SRP6Exception {
-        BigInteger __m2 = BigIntegerUtils.fromHex(m2.getString("M2"));
+    public void step3(ControlMessage m2) throws SRP6Exception {
+        BigInteger __m2 = m2.getBigInteger(Field.M2);
         session.step3(__m2);
     }
     
@@ -106,6 +98,26 @@ public class Authenticate
         return session != null && session.getState() == State.STEP_3;
     }
     
+    /**
+     * Returns the session key computed in step 2, before the server has
+     * proven that he know the verifier. Messages encrypted with it are safe
+     * even if he has not, he can not compute the key without the verifier.
+     * But nothing he send may be trusted until step 3 has completed.
+     * 
+     * @return the session key
+     * 
+     * @throws IllegalStateException if step 2 has not been completed
+     */
+    public BigInteger getUnconfirmedSessionKey() {
+        BigInteger key = session == null ? null : session.getSessionKey(false);
+        
+        if (key == null) {
+            throw new IllegalStateException("Step 2 not completed.");
+        }
+        
+        return key;
+    }
+    
     public BigInteger getSessionKey() {
         if (!isAuthenticated()) {
             throw new IllegalStateException("Not authenticated.");
@@ -1,19 +1,25 @@
 package martinandersson.com.client.login;
 
 import com.nimbusds.srp6.BigIntegerUtils;
+import com.nimbusds.srp6.SRP6Exception;
 import com.nimbusds.srp6.SRP6Routines;
-import com.nimbusds.srp6.SRP6VerifierGenerator;
 import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 import java.util.logging.Logger;
-import javax.json.Json;
-import javax.json.JsonObjectBuilder;
 import martinandersson.com.client.ServerConnection;
 import martinandersson.com.library.Constants;
+import martinandersson.com.library.FixedBaseExponentiator;
+import martinandersson.com.library.control.ControlMessage;
+import martinandersson.com.library.control.Field;
 
 /**
  * Utility class for client procedures.<p>
  * 
- * Currently, only the procedure to register a user is provided.
+ * Provides the procedure to register a user, and to register and authenticate
+ * in one go.
  * 
  * @author Martin Andersson (webmaster at martinandersson.com)
  */
@@ -36,8 +42,6 @@ public final class ClientProcedures {
      * @param password user password
      */
     public static void registerUser(ServerConnection conn, String username, String password) {
-        SRP6VerifierGenerator gen = new SRP6VerifierGenerator(Constants.CRYPTO_PARAMS);
-        
         
         /*
          * If salt was hard coded to a test value and not random, then the
@@ -55,20 +59,112 @@ public final class ClientProcedures {
         LOGGER.info(() -> "Computed salt: " + BigIntegerUtils.toHex(salt));
         
         // Compute verifier 'v'
-        BigInteger v = gen.generateVerifier(salt, username, password);
+        BigInteger v = computeVerifier(salt, password);
         LOGGER.info(() -> "Computed verifier: " + BigIntegerUtils.toHex(v));
         
         // Send salt and v to server
         sendToServer(conn, username, salt, v);
     }
     
-    private static void sendToServer(ServerConnection conn, String username, BigInteger salt, BigInteger v) {
-        JsonObjectBuilder b = Json.createObjectBuilder();
+    /**
+     * Register the user and then authenticate him, without any user
+     * interaction. The server only remember a registration for as long as the
+     * session last, so this is what a new or reconnected session must do
+     * before it may send files.<p>
+     * 
+     * The registration and the username go out back to back, so the session
+     * key is known after one round-trip, once A and M1 have been sent. This
+     * method return right then, without waiting for the server's evidence
+     * message M2. The caller may send his first request right behind M1, which
+     * save the second round-trip. M2 is {@linkplain
+     * ServerConnection#checkNext(Predicate) checked} as soon as it arrive,
+     * before any answer to that request is handed out, and the connection is
+     * closed if the server could not prove himself.
+     * 
+     * @param conn server connection
+     * @param username user username
+     * @param password user password
+     * @param timeout longest wait for each answer of the server
+     * @param unit unit of {@code timeout}
+     * 
+     * @return the session key
+     * 
+     * @throws SRP6Exception if authentication fails, or if the server did not
+     *         answer in time
+     * @throws InterruptedException if interrupted while waiting for the server
+     */
+    public static BigInteger login(ServerConnection conn, String username, String password, long timeout, TimeUnit unit)
+            throws SRP6Exception, InterruptedException
+    {
+        registerUser(conn, username, password);
+        
+        Authenticate auth = new Authenticate(conn);
+        auth.step1(username, password);
         
-        b.add("username", username)
-         .add("salt", BigIntegerUtils.toHex(salt))
-         .add("verifier", BigIntegerUtils.toHex(v));
+        ControlMessage saltAndB = answer(conn, timeout, unit);
         
-        conn.sendBlock(b.build());
+        // Before M1 is sent, M2 may come back any time after that:
+        conn.checkNext(m2 -> {
+            try {
+                auth.step3(m2);
+                return true;
+            }
+            catch (SRP6Exception | RuntimeException e) {
+                LOGGER.warning(() -> "Server failed authentication: " + e);
+                return false;
+            }
+        });
+        
+        try {
+            auth.step2(saltAndB);
+        }
+        catch (SRP6Exception | RuntimeException e) {
+            conn.checkNext(null);
+            throw e;
+        }
+        
+        return auth.getUnconfirmedSessionKey();
+    }
+    
+    /**
+     * Computes the verifier {@code v = g^x}, exactly like {@code
+     * SRP6VerifierGenerator.generateVerifier(salt, username, password)} does,
+     * but using the group's {@link FixedBaseExponentiator} instead of a general
+     * {@code modPow()}.
+     * 
+     * @param salt the salt
+     * @param password user password
+     * 
+     * @return the verifier
+     */
+    private static BigInteger computeVerifier(BigInteger salt, String password) {
+        byte[] s = salt.toByteArray();
+        
+        if (s[0] == 0) {
+            // Same as Nimbus, drop the sign byte:
+            s = Arrays.copyOfRange(s, 1, s.length);
+        }
+        
+        BigInteger x = SRP6Routines.computeX(Constants.CRYPTO_PARAMS.getMessageDigestInstance(), s,
+                password.getBytes(StandardCharsets.UTF_8));
+        
+        return FixedBaseExponentiator.of(Constants.CRYPTO_PARAMS).pow(x);
+    }
+    
+    private static ControlMessage answer(ServerConnection conn, long timeout, TimeUnit unit) throws SRP6Exception, InterruptedException {
+        ControlMessage msg = conn.receiveNext(timeout, unit);
+        
+        if (msg == null) {
+            throw new SRP6Exception("Server did not answer.", SRP6Exception.CauseType.TIMEOUT);
+        }
+        
+        return msg;
+    }
+    
+    private static void sendToServer(ServerConnection conn, String username, BigInteger salt, BigInteger v) {
+        conn.sendBlock(new ControlMessage()
+                .put(Field.USERNAME, username)
+                .put(Field.SALT, salt)
+                .put(Field.VERIFIER, v));
     }
 }
\ No newline at end of file
@@ -15,11 +15,11 @@ import javafx.fxml.FXML;
 import javafx.scene.control.Button;
 import javafx.scene.control.TextField;
 import javafx.scene.layout.GridPane;
-import javax.json.JsonObject;
 import martinandersson.com.client.FrameController;
 import martinandersson.com.client.ServerConnection;
 import martinandersson.com.client.login.Authenticate;
 import martinandersson.com.client.login.ClientProcedures;
+import martinandersson.com.library.control.ControlMessage;
 
 /**
  * Controller of page 2: register and authenticate user.
@@ -126,7 +126,7 @@ public class Page2Controller implements PageController
                  
                 // Get salt and B from server (yes, same salt)
                 try {
-                    JsonObject saltAndB = conn.receiveNext();
+                    ControlMessage saltAndB = conn.receiveNext();
                     auth.step2(saltAndB);
                 } catch (InterruptedException | SRP6Exception e) {
                     LOGGER.log(Level.WARNING, "Caught exception going from step 1 to step 2: ", e);
@@ -136,7 +136,7 @@ public class Page2Controller implements PageController
                 
                 // Get M2 from server
                 try {
-                    JsonObject m2 = conn.receiveNext();
+                    ControlMessage m2 = conn.receiveNext();
                     auth.step3(m2);
                 } catch (InterruptedException | SRP6Exception e) {
                     LOGGER.log(Level.WARNING, "Caught exception going from step 2 to step 3: ", e);
@@ -36,6 +36,7 @@ import martinandersson.com.client.Dialogs;
 import martinandersson.com.client.FileSender;
 import martinandersson.com.client.ServerConnection;
 import martinandersson.com.library.AesGcmCipher;
+import martinandersson.com.library.Durability;
 import martinandersson.com.library.ServerStrategy;
 import org.controlsfx.dialog.ProgressDialog;
 
@@ -48,6 +49,9 @@ public class Page3Controller implements PageController
 {
     private static final Logger LOGGER = Logger.getLogger(Page3Controller.class.getName());
     
+    /** Bytes per unit of the sync interval field, a mebibyte. Current value: {@value}. */
+    private static final long MIB = 1024 * 1024;
+    
     @FXML
     private Label lblFile;
     
@@ -68,11 +72,19 @@ public class Page3Controller implements PageController
     @FXML
     private CheckBox cbEncrypt,
                      cbTellServer,
-                     cbManipulate;
+                     cbManipulate,
+                     cbDedup,
+                     cbDelta;
     
     @FXML
     private ComboBox<ServerStrategy> cbStrategy;
     
+    @FXML
+    private ComboBox<Durability> cbDurability;
+    
+    @FXML
+    private TextField tfSyncInterval;
+    
     @FXML
     private Label lblDescription;
     
@@ -135,6 +147,10 @@ public class Page3Controller implements PageController
         cbTellServer.disableProperty().bind(cbEncrypt.selectedProperty().not());
         cbManipulate.disableProperty().bind(cbEncrypt.selectedProperty().not().or(cbTellServer.selectedProperty().not()));
         
+        // Deduplication and delta are mutually exclusive:
+        cbDedup.disableProperty().bind(cbDelta.selectedProperty());
+        cbDelta.disableProperty().bind(cbDedup.selectedProperty());
+        
         cbStrategy.getItems().addAll(ServerStrategy.values());
         lblDescription.disableProperty().bind(cbStrategy.getSelectionModel().selectedItemProperty().isNull());
         
@@ -146,11 +162,18 @@ public class Page3Controller implements PageController
                     noStrategy);
         });
         
+        cbDurability.getItems().addAll(Durability.values());
+        cbDurability.setValue(Durability.NONE);
+        
+        tfSyncInterval.setText(String.valueOf(Durability.DEFAULT_SYNC_INTERVAL / MIB));
+        tfSyncInterval.disableProperty().bind(cbDurability.valueProperty().isNotEqualTo(Durability.PERIODIC));
+        
         btnSend.disableProperty().bind(
                 file.isNull().or(
                 cbStrategy.getSelectionModel().selectedItemProperty().isNull()).or(
                 sending).or(
-                Bindings.createBooleanBinding(() -> !isChunkSizeValid(), tfChunkVal.styleProperty())));
+                Bindings.createBooleanBinding(() -> !isChunkSizeValid(), tfChunkVal.styleProperty())).or(
+                Bindings.createBooleanBinding(() -> getSyncInterval() < 1L, tfSyncInterval.textProperty())));
         
         btnSend.setOnAction(this::sendFile);
     }
@@ -255,6 +278,22 @@ public class Page3Controller implements PageController
         return tfChunkVal.getStyle().isEmpty();
     }
     
+    /**
+     * Returns the sync interval entered, in bytes.
+     * 
+     * @return the sync interval, or {@code -1} if the text is not a positive
+     *         integer
+     */
+    private long getSyncInterval() {
+        try {
+            long MiB = Long.parseLong(tfSyncInterval.getText());
+            return MiB > 0L ? MiB * MIB : -1L;
+        }
+        catch (NumberFormatException e) {
+            return -1L;
+        }
+    }
+    
     private void disableSlider() {
         cbChunks.setDisable(true);
         slider.setMin(1);
@@ -290,6 +329,15 @@ public class Page3Controller implements PageController
             }
             
             sender.manipulateBitInMiddle(cbManipulate.isSelected());
+            sender.useDeduplication(cbDedup.isSelected());
+            sender.useDelta(cbDelta.isSelected());
+            
+            Durability durability = cbDurability.getValue();
+            
+            if (durability != Durability.NONE) {
+                sender.useDurability(durability, durability == Durability.PERIODIC ?
+                        getSyncInterval() : Durability.DEFAULT_SYNC_INTERVAL);
+            }
             
             ProgressDialog pd = new ProgressDialog(sender);
             pd.setTitle("Sending file..");
@@ -312,7 +360,8 @@ public class Page3Controller implements PageController
                 
                 msg.append("\n\n")
                    .append("Transfer time: ").append(sender.getTransferDurationTotal()).append("\n")
-                   .append("Server's time to respond (decryption if enabled): ").append(sender.getConfirmationDurationTotal()).append("\n\n")
+                   .append("Server's time to respond (decryption if enabled): ").append(sender.getConfirmationDurationTotal()).append("\n")
+                   .append("Server's time to sync to disk (").append(durability).append("): ").append(sender.getSyncDuration()).append("\n\n")
                    .append("Total working time: ").append(sender.getTaskDuration());
                 
                 final Window owner = btnSend.getScene().getWindow();
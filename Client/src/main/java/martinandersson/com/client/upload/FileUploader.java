@@ -0,0 +1,618 @@
+package martinandersson.com.client.upload;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.crypto.Cipher;
+import martinandersson.com.client.ServerConnection;
+import martinandersson.com.library.AesGcmCipher;
+import martinandersson.com.library.CipherSuite;
+import martinandersson.com.library.Digests;
+import martinandersson.com.library.Durability;
+import martinandersson.com.library.Hex;
+import martinandersson.com.library.TokenBucket;
+import martinandersson.com.library.batch.BatchPacker;
+import martinandersson.com.library.control.ControlMessage;
+import martinandersson.com.library.control.Field;
+
+/**
+ * Uploads files over one {@link ServerConnection} without blocking.<p>
+ * 
+ * {@link #upload(Path, UploadOptions, ProgressListener) upload()} return at
+ * once with a future of the result. The file is read using an {@code
+ * AsynchronousFileChannel}, chunks are sent using {@code RemoteEndpoint.Async}
+ * and answers of the server are awaited using {@link
+ * ServerConnection#nextMessage()}. Each step is run by the thread that
+ * completed the previous one, so no thread ever wait on a transfer and a few
+ * threads may drive any number of uploads, each over a connection of its own
+ * (see {@link martinandersson.com.client.ConnectionPool}).<p>
+ * 
+ * The server receive one file at a time per session, so uploads started on
+ * the same uploader run one after the other.<p>
+ * 
+ * The asynchronous WebSocket API only send whole messages, which is why the
+ * file is always sent in chunks of bounded size, see {@link UploadOptions}.
+ * Deduplication and delta transfers are not supported, use {@link
+ * martinandersson.com.client.FileSender} for those.<p>
+ * 
+ * Many small files are best {@linkplain #uploadBatch(List, UploadOptions,
+ * ProgressListener) uploaded as a batch}, one transfer for all of them.<p>
+ * 
+ * Safe to use by concurrent threads.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class FileUploader
+{
+    private static final Logger LOGGER = Logger.getLogger(FileUploader.class.getName());
+    
+    /** Wakes up uploads that wait to keep within the server's rate. */
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "FileUploader timer");
+        t.setDaemon(true);
+        return t;
+    });
+    
+    
+    
+    private final ServerConnection conn;
+    
+    /** Completes when the last upload started has finished, one way or another. */
+    private CompletableFuture<?> tail = CompletableFuture.completedFuture(null);
+    
+    /**
+     * Initializes a new uploader. The connection must be authenticated, and
+     * must not be used by anyone else while uploads run.
+     * 
+     * @param conn connection to send over
+     */
+    public FileUploader(ServerConnection conn) {
+        this.conn = conn;
+    }
+    
+    /**
+     * Upload a file.
+     * 
+     * @param file file to send
+     * @param options how to send it, copied before this method return
+     * @param progress receives progress, may be {@code null}
+     * 
+     * @return a future completed with the result once the server has
+     *         confirmed the whole file, or exceptionally if the upload failed
+     * 
+     * @throws IllegalArgumentException if sealed storage is asked for without
+     *         a cipher
+     */
+    public synchronized CompletableFuture<UploadResult> upload(Path file, UploadOptions options, ProgressListener progress) {
+        final UploadOptions copy = options.clone();
+        final ProgressListener listener = progress == null ? ProgressListener.NONE : progress;
+        
+        if (copy.isSealedStorage() && copy.getCipher() == null) {
+            throw new IllegalArgumentException("A sealed file must be encrypted.");
+        }
+        
+        CompletableFuture<UploadResult> result = tail
+                .handle((ignored, previousFailure) -> null)
+                .thenCompose(ignored -> new Upload(file, copy, listener, false).start());
+        
+        tail = result;
+        return result;
+    }
+    
+    /**
+     * Upload many files as one batch.<p>
+     * 
+     * The files are packed into a temporary file, see {@link BatchPacker},
+     * which is uploaded like any other file and unpacked by the server. All
+     * files thus cost one request, one accept and one confirmation, and the
+     * server write them using a few workers. The result describe the batch as
+     * a whole, and a problem means that some files may not have been
+     * written.<p>
+     * 
+     * Files are known to the server by file name only, so names must be
+     * unique within the batch. Packing is done by the thread that start the
+     * upload, which is the calling thread unless another upload is running.
+     * 
+     * @param files files to send
+     * @param options how to send the batch, copied before this method return
+     * @param progress receives progress, may be {@code null}
+     * 
+     * @return a future completed with the result once the server has
+     *         confirmed the whole batch, or exceptionally if the upload failed
+     * 
+     * @throws IllegalArgumentException if two files have the same name, or
+     *         if sealed storage is asked for
+     */
+    public synchronized CompletableFuture<UploadResult> uploadBatch(List<Path> files, UploadOptions options, ProgressListener progress) {
+        final List<Path> batch = new ArrayList<>(files);
+        final UploadOptions copy = options.clone();
+        final ProgressListener listener = progress == null ? ProgressListener.NONE : progress;
+        
+        if (batch.stream().map(p -> p.getFileName().toString()).distinct().count() != batch.size()) {
+            throw new IllegalArgumentException("Files of a batch must have unique names.");
+        }
+        
+        if (copy.isSealedStorage()) {
+            throw new IllegalArgumentException("A batch can not be sealed.");
+        }
+        
+        CompletableFuture<UploadResult> result = tail
+                .handle((ignored, previousFailure) -> null)
+                .thenCompose(ignored -> {
+                    final Path packed;
+                    
+                    try {
+                        packed = pack(batch);
+                    }
+                    catch (IOException e) {
+                        CompletableFuture<UploadResult> failed = new CompletableFuture<>();
+                        failed.completeExceptionally(e);
+                        return failed;
+                    }
+                    
+                    return new Upload(packed, copy, listener, true).start()
+                            .whenComplete((r, failure) -> delete(packed));
+                });
+        
+        tail = result;
+        return result;
+    }
+    
+    private static Path pack(List<Path> files) throws IOException {
+        Path packed = Files.createTempFile("batch-", "");
+        
+        try (FileChannel out = FileChannel.open(packed, StandardOpenOption.WRITE)) {
+            BatchPacker.pack(files, out);
+        }
+        catch (IOException | RuntimeException e) {
+            delete(packed);
+            throw e;
+        }
+        
+        LOGGER.info(() -> "Packed " + files.size() + " file(s) into " + packed + ".");
+        
+        return packed;
+    }
+    
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        }
+        catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to delete " + file + ".", e);
+        }
+    }
+    
+    private static CompletableFuture<Void> delay(long nanos) {
+        if (nanos <= 0L) {
+            return CompletableFuture.completedFuture(null);
+        }
+        
+        CompletableFuture<Void> later = new CompletableFuture<>();
+        TIMER.schedule(() -> later.complete(null), nanos, TimeUnit.NANOSECONDS);
+        return later;
+    }
+    
+    /**
+     * State of one upload. Only one step run at a time, each step is started
+     * by the completion of the previous one.
+     */
+    private final class Upload {
+        final Path file;
+        final UploadOptions options;
+        final ProgressListener progress;
+        
+        final MessageDigest digest;
+        
+        final List<Duration> chunkDurations = new ArrayList<>(),
+                             confirmationDurations = new ArrayList<>();
+        
+        AsynchronousFileChannel channel;
+        
+        TokenBucket pace; // <-- null unless server advertised a rate
+        
+        AesGcmCipher cipher; // <-- the suite server picked, null if not encrypting
+        
+        long transfer; // <-- counter of a sealed transfer, its cipher is derived for it
+        
+        long size, position, sent;
+        
+        boolean chunked;
+        
+        final boolean batch;
+        
+        boolean optimistic; // <-- the first chunk goes ahead of the accept
+        
+        boolean resend; // <-- server refused an optimistic start, the file is sent from the start
+        
+        String problem = "";
+        
+        byte[] fileDigest;
+        
+        Duration syncDuration = Duration.ZERO;
+        
+        Instant start;
+        
+        Upload(Path file, UploadOptions options, ProgressListener progress, boolean batch) {
+            this.file = file;
+            this.batch = batch;
+            this.options = options;
+            this.progress = progress;
+            this.cipher = options.getCipher();
+            // The server does not see the plaintext of a sealed file, so it has no digest to compare:
+            this.digest = options.getDigestAlgorithm() == null || options.isSealedStorage() ? null :
+                    Digests.newDigest(options.getDigestAlgorithm());
+            
+            // Over the binary protocol, the early bytes would reach the server's control handler:
+            this.optimistic = options.isOptimisticStart() && !conn.usesBinaryProtocol();
+        }
+        
+        CompletableFuture<UploadResult> start() {
+            start = Instant.now();
+            
+            try {
+                channel = AsynchronousFileChannel.open(file, StandardOpenOption.READ);
+                size = channel.size();
+            }
+            catch (IOException e) {
+                CompletableFuture<UploadResult> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                close();
+                return failed;
+            }
+            
+            // Each chunk of a sealed file is one record, even a small file is chunked:
+            chunked = size > options.getChunkSize() || options.isSealedStorage();
+            
+            return request()
+                    .thenCompose(ignored -> sendAll())
+                    .thenCompose(ignored -> finish())
+                    .thenApply(ignored -> new UploadResult(sent, fileDigest, problem,
+                            chunkDurations, confirmationDurations, syncDuration, Duration.between(start, Instant.now())))
+                    .whenComplete((result, failure) -> close());
+        }
+        
+        CompletableFuture<?> request() {
+            if (options.isSealedStorage()) {
+                transfer = options.getCipher().nextTransfer();
+            }
+            
+            ControlMessage req = new ControlMessage()
+                    .put(Field.FILE, file.getFileName().toString())
+                    .put(Field.SIZE, size)
+                    .put(Field.CHUNKED, chunked)
+                    .put(Field.ENCRYPTED, options.getCipher() != null)
+                    .put(Field.STRATEGY, options.getStrategy().name());
+            
+            if (cipher != null) {
+                if (optimistic) {
+                    // Nobody to negotiate with, use what is fastest here:
+                    try {
+                        cipher = useSuite(CipherSuite.throughputs().keySet().iterator().next());
+                    }
+                    catch (GeneralSecurityException e) {
+                        CompletableFuture<Void> failed = new CompletableFuture<>();
+                        failed.completeExceptionally(e);
+                        return failed;
+                    }
+                    
+                    req.put(Field.CIPHER_SUITE, cipher.getSuite().name());
+                }
+                else {
+                    req.put(Field.CIPHER_SUITES, CipherSuite.offer());
+                }
+            }
+            
+            if (optimistic) {
+                req.put(Field.OPTIMISTIC, true);
+            }
+            
+            if (batch) {
+                req.put(Field.BATCH, true);
+            }
+            
+            if (options.isSealedStorage()) {
+                // Each chunk become one record:
+                req.put(Field.SEALED, true)
+                   .put(Field.RECORD_SIZE, options.getChunkSize())
+                   .put(Field.TRANSFER, transfer);
+            }
+            
+            if (digest != null) {
+                req.put(Field.DIGEST_ALGORITHM, options.getDigestAlgorithm());
+            }
+            
+            Durability durability = options.getDurability();
+            
+            if (durability != Durability.NONE) {
+                req.put(Field.DURABILITY, durability.name());
+                
+                if (durability == Durability.PERIODIC) {
+                    req.put(Field.SYNC_INTERVAL, options.getSyncInterval());
+                }
+            }
+            
+            progress.onProgress(0L, -1L, "Sending file transmission request to server..\n");
+            
+            if (optimistic) {
+                // The accept is read after the first chunk has been sent:
+                return conn.sendControl(req);
+            }
+            
+            return conn.sendControl(req).thenCompose(ignored -> accepted());
+        }
+        
+        /**
+         * Wait for the server to accept the request.
+         * 
+         * @return a future of {@code true} if accepted, {@code false} if the
+         *         server refused an optimistic request
+         */
+        CompletableFuture<Boolean> accepted() {
+            return conn.nextMessage().thenCompose(msg -> {
+                // Server may queue us behind other transfers and tell us so until we're admitted:
+                if (msg.has(Field.QUEUE_POSITION)) {
+                    long wait = msg.getLong(Field.QUEUE_WAIT);
+                    
+                    progress.onProgress(0L, -1L, "Queued by server, position " + msg.getLong(Field.QUEUE_POSITION) +
+                            (wait < 0L ? "" : ", estimated start in " + Duration.ofMillis(wait).getSeconds() + " s") + "..\n");
+                    
+                    return accepted();
+                }
+                
+                if (!msg.getBoolean(Field.ACCEPT)) {
+                    if (optimistic) {
+                        LOGGER.info(() -> "Server refused optimistic start, asking again: " + msg.getString(Field.PROBLEM));
+                        return CompletableFuture.completedFuture(false);
+                    }
+                    
+                    throw new CompletionException(new IOException("Server did not accept the request to send a file" +
+                            (msg.has(Field.PROBLEM) ? ": " + msg.getString(Field.PROBLEM) : ".")));
+                }
+                
+                if (msg.has(Field.RATE)) {
+                    pace = new TokenBucket(msg.getLong(Field.RATE));
+                }
+                
+                // An optimistic client picked the suite himself, and may have used the cipher already:
+                if (cipher != null && msg.has(Field.CIPHER_SUITE) && !optimistic) {
+                    try {
+                        cipher = useSuite(CipherSuite.valueOf(msg.getString(Field.CIPHER_SUITE)));
+                    }
+                    catch (GeneralSecurityException e) {
+                        throw new CompletionException(e);
+                    }
+                }
+                
+                return CompletableFuture.completedFuture(true);
+            });
+        }
+        
+        /**
+         * Returns the cipher of the session for the provided suite, or, if the
+         * file is stored sealed, the cipher derived for this transfer.
+         */
+        AesGcmCipher useSuite(CipherSuite suite) throws GeneralSecurityException {
+            AesGcmCipher c = options.getCipher().withSuite(suite);
+            return options.isSealedStorage() ? c.forTransfer(file.getFileName().toString(), transfer) : c;
+        }
+        
+        /**
+         * Start over after the server refused an optimistic request: forget
+         * the chunk sent and ask again, the ordinary way.
+         * 
+         * @return a future of {@code true} once the new request is accepted
+         */
+        CompletableFuture<Boolean> restart() {
+            optimistic = false;
+            resend = true;
+            
+            position = 0L;
+            sent = 0L;
+            chunkDurations.clear();
+            cipher = options.getCipher();
+            
+            if (digest != null) {
+                digest.reset();
+            }
+            
+            return request().thenApply(ignored -> true);
+        }
+        
+        /**
+         * Send all chunks, each followed by a confirmation, until the file is
+         * sent or the server report a problem.
+         */
+        CompletableFuture<Void> sendAll() {
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            next(done);
+            return done;
+        }
+        
+        void next(CompletableFuture<Void> done) {
+            final boolean first = optimistic && position == 0L && !resend;
+            resend = false;
+            
+            sendChunk()
+                    .thenCompose(ignored -> !first ? confirmed() :
+                            accepted().thenCompose(ok -> ok ? confirmed() : restart()))
+                    // Async, so that a long file doesn't become a deep stack:
+                    .whenCompleteAsync((ok, failure) -> {
+                        if (failure != null) {
+                            done.completeExceptionally(failure);
+                        }
+                        else if (ok && (position < size || resend)) {
+                            next(done);
+                        }
+                        else {
+                            done.complete(null);
+                        }
+                    });
+        }
+        
+        CompletableFuture<Void> sendChunk() {
+            final int len = (int) Math.min(options.getChunkSize(), size - position);
+            final Instant chunkStart = Instant.now();
+            
+            return read(ByteBuffer.allocate(len), position).thenCompose(plain -> {
+                plain.flip();
+                
+                if (digest != null) {
+                    digest.update(plain.duplicate());
+                }
+                
+                final ByteBuffer out = encrypt(plain);
+                final int wire = out.remaining();
+                
+                return delay(pace == null ? 0L : pace.take(wire))
+                        .thenCompose(ignored -> conn.sendData(out))
+                        .thenRun(() -> {
+                            position += len;
+                            sent += wire;
+                            chunkDurations.add(Duration.between(chunkStart, Instant.now()));
+                            
+                            progress.onProgress(sent, size, new StringBuilder("Sending \"").append(file).append('"').append("\n")
+                                    .append(size - position).append(" bytes left..\n")
+                                    .toString());
+                        });
+            });
+        }
+        
+        ByteBuffer encrypt(ByteBuffer plain) {
+            if (cipher == null) {
+                return plain;
+            }
+            
+            try {
+                long invocation = cipher.nextInvocation();
+                Cipher c = cipher.initForEncryption(invocation);
+                
+                ByteBuffer out = ByteBuffer.allocate(AesGcmCipher.NONCE_LENGTH + c.getOutputSize(plain.remaining()));
+                out.putLong(invocation); // <-- server need it to decrypt
+                c.doFinal(plain, out);
+                out.flip();
+                return out;
+            }
+            catch (GeneralSecurityException e) {
+                throw new CompletionException(e);
+            }
+        }
+        
+        /**
+         * Wait for server to confirm a chunk (or file) received.
+         * 
+         * @return a future of {@code true} if all is well, {@code false} if
+         *         the server reported a problem
+         */
+        CompletableFuture<Boolean> confirmed() {
+            final Instant confStart = Instant.now();
+            
+            progress.onProgress(sent, size, "Waiting for server confirmation..\n ");
+            
+            return conn.nextMessage().thenApply(confirmation -> {
+                problem = confirmation.getString(Field.PROBLEM);
+                
+                if (problem.isEmpty() && digest != null && confirmation.has(Field.DIGEST)) {
+                    byte[] ours = Digests.peek(digest),
+                           theirs = confirmation.getBytes(Field.DIGEST);
+                    
+                    if (!MessageDigest.isEqual(ours, theirs)) {
+                        problem = "Digest mismatch, server received " + Hex.toHex(theirs) + " but we sent " + Hex.toHex(ours) + ".";
+                        LOGGER.warning(problem);
+                    }
+                }
+                
+                if (confirmation.has(Field.SYNC_NANOS)) {
+                    syncDuration = syncDuration.plusNanos(confirmation.getLong(Field.SYNC_NANOS));
+                }
+                
+                confirmationDurations.add(Duration.between(confStart, Instant.now()));
+                return problem.isEmpty();
+            });
+        }
+        
+        /**
+         * Tell the server a chunked transfer is done, unless he already know
+         * because of a problem, and wait for the final confirmation.
+         */
+        CompletableFuture<Void> finish() {
+            if (digest != null) {
+                fileDigest = digest.digest();
+                LOGGER.info(() -> options.getDigestAlgorithm() + " of bytes sent: " + Hex.toHex(fileDigest));
+            }
+            
+            if (!chunked || !problem.isEmpty()) {
+                return CompletableFuture.completedFuture(null);
+            }
+            
+            ControlMessage eof = new ControlMessage().put(Field.EOF, true);
+            
+            if (fileDigest != null) {
+                eof.put(Field.DIGEST, fileDigest);
+            }
+            
+            // Server confirm once the file has been merged, reporting any problem doing so:
+            return conn.sendAsync(eof).thenCompose(ignored -> confirmed()).thenApply(ok -> null);
+        }
+        
+        CompletableFuture<ByteBuffer> read(ByteBuffer dst, long at) {
+            CompletableFuture<ByteBuffer> filled = new CompletableFuture<>();
+            readMore(dst, at, filled);
+            return filled;
+        }
+        
+        void readMore(ByteBuffer dst, long at, CompletableFuture<ByteBuffer> filled) {
+            if (!dst.hasRemaining()) {
+                filled.complete(dst);
+                return;
+            }
+            
+            channel.read(dst, at, null, new CompletionHandler<Integer, Void>() {
+                @Override
+                public void completed(Integer r, Void ignored) {
+                    if (r == -1) {
+                        filled.completeExceptionally(new EOFException(file + " shrunk while sending."));
+                    }
+                    else {
+                        readMore(dst, at + r, filled);
+                    }
+                }
+                
+                @Override
+                public void failed(Throwable t, Void ignored) {
+                    filled.completeExceptionally(t);
+                }
+            });
+        }
+        
+        void close() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                }
+                catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to close " + file + ".", e);
+                }
+            }
+        }
+    }
+}
\ No newline at end of file
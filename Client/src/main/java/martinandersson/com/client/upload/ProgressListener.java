@@ -0,0 +1,25 @@
+package martinandersson.com.client.upload;
+
+/**
+ * Receives progress of an upload.<p>
+ * 
+ * Called by whichever thread moved the upload forward, never concurrently for
+ * the same upload. Implementations must return quickly and must not block.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+@FunctionalInterface
+public interface ProgressListener
+{
+    /** A listener that ignore all progress. */
+    ProgressListener NONE = (sent, total, message) -> {};
+    
+    /**
+     * Report progress.
+     * 
+     * @param sent bytes sent so far, including authentication tags
+     * @param total bytes to send, or {@code -1} if not yet known
+     * @param message what is going on, for humans
+     */
+    void onProgress(long sent, long total, String message);
+}
\ No newline at end of file
@@ -0,0 +1,218 @@
+package martinandersson.com.client.upload;
+
+import martinandersson.com.library.AesGcmCipher;
+import martinandersson.com.library.Digests;
+import martinandersson.com.library.Durability;
+import martinandersson.com.library.ServerStrategy;
+
+/**
+ * How a file is uploaded by a {@link FileUploader}.<p>
+ * 
+ * The file is always sent in chunks of at most {@linkplain #useChunkSize(long)
+ * the chunk size}, each chunk as one whole WebSocket message. A chunk is read,
+ * encrypted and held in memory until sent. A file no larger than one chunk is
+ * sent without chunking, unless {@linkplain #useSealedStorage(boolean)
+ * stored sealed}.<p>
+ * 
+ * Not safe to use by concurrent threads. An upload copy the options when it
+ * starts.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class UploadOptions implements Cloneable
+{
+    /** Chunk size used unless configured. Current value: {@value}. */
+    public static final long DEFAULT_CHUNK_SIZE = 4_000_000L;
+    
+    /** Largest chunk size, which bound the memory used by an upload. Current value: {@value}. */
+    public static final long MAX_CHUNK_SIZE = 64_000_000L;
+    
+    
+    
+    private ServerStrategy strategy = ServerStrategy.BYTE_BUFFER;
+    
+    private AesGcmCipher cipher;
+    
+    private long chunkSize = DEFAULT_CHUNK_SIZE;
+    
+    private String digestAlgorithm = Digests.DEFAULT_ALGORITHM;
+    
+    private Durability durability = Durability.NONE;
+    
+    private long syncInterval = Durability.DEFAULT_SYNC_INTERVAL;
+    
+    private boolean optimistic;
+    
+    private boolean sealed;
+    
+    /**
+     * Set the strategy the server should use to receive the file. Default is
+     * {@link ServerStrategy#BYTE_BUFFER}.
+     * 
+     * @param strategy the strategy
+     * 
+     * @return this
+     */
+    public UploadOptions useStrategy(ServerStrategy strategy) {
+        if (strategy == null) {
+            throw new NullPointerException("strategy");
+        }
+        
+        this.strategy = strategy;
+        return this;
+    }
+    
+    /**
+     * Encrypt the file. The cipher must belong to the connection the file is
+     * sent over.
+     * 
+     * @param cipher the cipher, or {@code null} for no encryption (default)
+     * 
+     * @return this
+     */
+    public UploadOptions useCipher(AesGcmCipher cipher) {
+        this.cipher = cipher;
+        return this;
+    }
+    
+    /**
+     * Set the largest number of plaintext bytes sent in one message.
+     * 
+     * @param chunkSize bytes per chunk
+     * 
+     * @return this
+     * 
+     * @throws IllegalArgumentException if not between 1 and {@link #MAX_CHUNK_SIZE}
+     */
+    public UploadOptions useChunkSize(long chunkSize) {
+        if (chunkSize < 1L || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Chunk size must be between 1 and " + MAX_CHUNK_SIZE + ", got: " + chunkSize);
+        }
+        
+        this.chunkSize = chunkSize;
+        return this;
+    }
+    
+    /**
+     * Compute a digest of all bytes sent and have the server compare.
+     * 
+     * @param algorithm digest algorithm, or {@code null} for no digest
+     * 
+     * @return this
+     * 
+     * @throws IllegalArgumentException if the algorithm is not available
+     */
+    public UploadOptions useDigest(String algorithm) {
+        if (algorithm != null) {
+            Digests.newDigest(algorithm);
+        }
+        
+        this.digestAlgorithm = algorithm;
+        return this;
+    }
+    
+    /**
+     * Ask the server to force the file to disk according to the provided
+     * policy.
+     * 
+     * @param durability the policy
+     * @param syncInterval bytes between forces, only used by {@link
+     *        Durability#PERIODIC}
+     * 
+     * @return this
+     * 
+     * @throws IllegalArgumentException if {@code syncInterval} is not positive
+     */
+    public UploadOptions useDurability(Durability durability, long syncInterval) {
+        if (syncInterval < 1L) {
+            throw new IllegalArgumentException("Sync interval must be positive, got: " + syncInterval);
+        }
+        
+        this.durability = durability;
+        this.syncInterval = syncInterval;
+        return this;
+    }
+    
+    /**
+     * Send the first chunk right after the request, without waiting for the
+     * server to accept it. This save a round-trip per file. If the server
+     * refuse, the chunk is dropped and the upload ask again the ordinary way.
+     * Nothing past the first chunk is sent before the server has answered.
+     * The client then pick the cipher suite, the fastest of its own, and the
+     * first chunk is not paced by the server's rate.<p>
+     * 
+     * Only the JSON control protocol supports an optimistic start, over the
+     * binary protocol this option is ignored.
+     * 
+     * @param optimistic {@code true} to start optimistically (default is
+     *        {@code false})
+     * 
+     * @return this
+     */
+    public UploadOptions useOptimisticStart(boolean optimistic) {
+        this.optimistic = optimistic;
+        return this;
+    }
+    
+    /**
+     * Ask the server to store the file sealed: each encrypted chunk is
+     * written as received and the server never decrypt it on ingest. Tags are
+     * verified when the file is downloaded, or by a background scrub if the
+     * server run one.<p>
+     * 
+     * Requires a cipher. The file is always sent chunked, and the server
+     * refuse a chunk size larger than it allow for a record, 16 MiB unless
+     * changed. No digest is computed, the tag of each chunk vouch for it. A
+     * batch can not be sealed.
+     * 
+     * @param sealed {@code true} to store sealed (default is {@code false})
+     * 
+     * @return this
+     */
+    public UploadOptions useSealedStorage(boolean sealed) {
+        this.sealed = sealed;
+        return this;
+    }
+    
+    public ServerStrategy getStrategy() {
+        return strategy;
+    }
+    
+    public AesGcmCipher getCipher() {
+        return cipher;
+    }
+    
+    public long getChunkSize() {
+        return chunkSize;
+    }
+    
+    public String getDigestAlgorithm() {
+        return digestAlgorithm;
+    }
+    
+    public Durability getDurability() {
+        return durability;
+    }
+    
+    public long getSyncInterval() {
+        return syncInterval;
+    }
+    
+    public boolean isOptimisticStart() {
+        return optimistic;
+    }
+    
+    public boolean isSealedStorage() {
+        return sealed;
+    }
+    
+    @Override
+    public UploadOptions clone() {
+        try {
+            return (UploadOptions) super.clone();
+        }
+        catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,119 @@
+package martinandersson.com.client.upload;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of an upload that ran to the end.<p>
+ * 
+ * An upload the server complained about still has a result, with a
+ * {@linkplain #getProblem() problem}. Failures on the client side, or of the
+ * connection, complete the upload's future exceptionally instead.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class UploadResult
+{
+    private final long bytesSent;
+    
+    private final byte[] digest;
+    
+    private final String problem;
+    
+    private final List<Duration> chunkDurations, confirmationDurations;
+    
+    private final Duration syncDuration, totalDuration;
+    
+    UploadResult(long bytesSent, byte[] digest, String problem,
+            List<Duration> chunkDurations, List<Duration> confirmationDurations,
+            Duration syncDuration, Duration totalDuration)
+    {
+        this.bytesSent = bytesSent;
+        this.digest = digest;
+        this.problem = problem;
+        this.chunkDurations = Collections.unmodifiableList(chunkDurations);
+        this.confirmationDurations = Collections.unmodifiableList(confirmationDurations);
+        this.syncDuration = syncDuration;
+        this.totalDuration = totalDuration;
+    }
+    
+    /**
+     * Returns bytes sent, including authentication tags.
+     * 
+     * @return bytes sent
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+    
+    /**
+     * Returns the digest of all bytes sent, which the server has confirmed.
+     * 
+     * @return the digest, or {@code null} if no digest was used
+     */
+    public byte[] getDigest() {
+        return digest == null ? null : digest.clone();
+    }
+    
+    /**
+     * Returns what the server complained about.
+     * 
+     * @return the problem, empty if none
+     */
+    public String getProblem() {
+        return problem;
+    }
+    
+    public boolean isSuccessful() {
+        return problem.isEmpty();
+    }
+    
+    /**
+     * Returns the time spent reading, encrypting and sending each chunk.
+     * 
+     * @return time per chunk
+     */
+    public List<Duration> getChunkDurations() {
+        return chunkDurations;
+    }
+    
+    /**
+     * Returns the time spent waiting for the server to confirm each chunk.
+     * 
+     * @return time per confirmation
+     */
+    public List<Duration> getConfirmationDurations() {
+        return confirmationDurations;
+    }
+    
+    /**
+     * Returns the time the server reported he spent forcing the file to disk.
+     * 
+     * @return the time the server spent syncing
+     */
+    public Duration getSyncDuration() {
+        return syncDuration;
+    }
+    
+    /**
+     * Returns the time from request until the last confirmation.
+     * 
+     * @return total time
+     */
+    public Duration getTotalDuration() {
+        return totalDuration;
+    }
+    
+    @Override
+    public String toString() {
+        return new StringBuilder(UploadResult.class.getSimpleName())
+                .append('[')
+                  .append("bytesSent=").append(bytesSent)
+                  .append(", chunks=").append(chunkDurations.size())
+                  .append(", problem=").append(problem.isEmpty() ? "none" : problem)
+                  .append(", total=").append(totalDuration)
+                .append(']')
+                .toString();
+    }
+}
\ No newline at end of file
@@ -1,16 +1,23 @@
 package martinandersson.com.library;
 
+import java.io.ByteArrayOutputStream;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.crypto.Cipher;
+import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
-import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 /**
@@ -47,21 +54,130 @@ import javax.crypto.spec.SecretKeySpec;
  * 
  * }</pre>
  * 
+ * The invocation field is not kept in lockstep by the two peers. The sender
+ * draw a {@linkplain #nextInvocation() new invocation} for each message and
+ * write it in clear as the first {@value #NONCE_LENGTH} bytes (big-endian) of
+ * the message, before the ciphertext. The receiver read it back and {@linkplain
+ * #initForDecryption(long) initialize} a cipher of its own with it. Messages
+ * may therefore be decrypted in any order and by concurrent threads.<p>
+ * 
+ * A receiver accept each invocation only once. The highest invocation seen and
+ * a window of the {@value #REPLAY_WINDOW} invocations below it are remembered;
+ * a repeated invocation, or one too old to tell, is rejected. The invocation
+ * need not be secret. It is authenticated anyways since a modified one produce
+ * the wrong IV, and so the tag check fail.<p>
+ * 
+ * Despite the name, any {@link CipherSuite} may be used. The constructor that
+ * take only the session key use {@link CipherSuite#AES_128_GCM}, and {@link
+ * #withSuite(CipherSuite)} return an instance of the same session for another
+ * suite. Each suite derive a key, fixed IV field and counter of its own from
+ * the session key, so the suites never share a key.<p>
+ * 
+ * Messages sent by the server to the client, such as file downloads, use the
+ * {@linkplain #reversed() reversed} instance. It derive yet another key, so
+ * that the server never use a (key, IV) pair also used by the client.<p>
+ * 
+ * A transfer whose messages are stored as received, still encrypted, use an
+ * instance {@linkplain #forTransfer(String, long) of its own}. It derive a key
+ * from the session key, the suite, the file name and a transfer counter, so
+ * that the key of one stored file open nothing else sent during the session.
+ * Only that key and the fixed IV field are needed to read the messages back,
+ * see {@link #getDerivedKey()}. An instance {@linkplain
+ * #ofDerivedKey(CipherSuite, byte[]) restored} from them know nothing of the
+ * session key and can only decrypt.<p>
+ * 
+ * Safe to use by concurrent threads.
+ * 
  * @author Martin Andersson (webmaster at martinandersson.com)
  */
 public final class AesGcmCipher
 {
+    /** Length of the invocation header that prefix each encrypted message. Current value: {@value}. */
+    public static final int NONCE_LENGTH = 8;
+    
+    /** Number of invocations below the highest seen that are tracked for replay. Current value: {@value}. */
+    public static final int REPLAY_WINDOW = 64;
+    
+    
+    
+    /** {@code null} if this instance is not one of the session, but of a transfer or restored. */
+    private final BigInteger sessionKey;
+    
+    private final CipherSuite suite;
+    
+    private final boolean reverse, decryptOnly;
+    
+    /** All instances of the session, by suite and direction. Guarded by itself. */
+    private final Map<List<Object>, AesGcmCipher> siblings;
+    
+    /** Last transfer counter handed out by any instance of the session. */
+    private final AtomicLong transfers;
+    
     private final SecretKey key;
     
     private final byte[] ivFixed;
+    
+    /** Last invocation handed out to a sender. */
     private long ivInvocation;
     
-    private final Cipher cipher;
+    /** Highest invocation accepted from a peer and bit i set if {@code highest - i} was accepted. */
+    private long highest, seen;
     
     public AesGcmCipher(BigInteger sessionKey) throws NoSuchAlgorithmException, NoSuchPaddingException {
-        // Produce 256-bit digest
-        byte[] bytes = MessageDigest.getInstance("SHA-256")
-                .digest(sessionKey.toByteArray());
+        this(sessionKey, CipherSuite.AES_128_GCM);
+    }
+    
+    public AesGcmCipher(BigInteger sessionKey, CipherSuite suite) throws NoSuchAlgorithmException, NoSuchPaddingException {
+        this(sessionKey, suite, false, new HashMap<>(), new AtomicLong());
+    }
+    
+    /**
+     * Returns an instance that decrypt stored messages, given what {@link
+     * #getDerivedKey()} returned.
+     * 
+     * @param suite the suite the messages were encrypted with
+     * @param derived key and fixed IV field of that suite
+     * 
+     * @return an instance that can only decrypt
+     * 
+     * @throws IllegalArgumentException if {@code derived} has the wrong length
+     *         for the suite
+     * @throws NoSuchAlgorithmException if the suite is not available
+     * @throws NoSuchPaddingException if the suite is not available
+     */
+    public static AesGcmCipher ofDerivedKey(CipherSuite suite, byte[] derived) throws NoSuchAlgorithmException, NoSuchPaddingException {
+        if (derived.length != suite.getKeyLength() + suite.getIvLength() - 8) {
+            throw new IllegalArgumentException("Expected " + (suite.getKeyLength() + suite.getIvLength() - 8) +
+                    " byte(s) of derived key for " + suite + ", got " + derived.length + ".");
+        }
+        
+        return new AesGcmCipher(suite, derived, true);
+    }
+    
+    private AesGcmCipher(BigInteger sessionKey, CipherSuite suite, boolean reverse,
+            Map<List<Object>, AesGcmCipher> siblings, AtomicLong transfers)
+            throws NoSuchAlgorithmException, NoSuchPaddingException
+    {
+        this.sessionKey = sessionKey;
+        this.suite = suite;
+        this.reverse = reverse;
+        this.decryptOnly = false;
+        this.siblings = siblings;
+        this.transfers = transfers;
+        
+        // Produce 256-bit digest, or 512-bit if the key alone need 256
+        MessageDigest md = MessageDigest.getInstance(suite.getKeyLength() > 16 ? "SHA-512" : "SHA-256");
+        md.update(sessionKey.toByteArray());
+        
+        if (suite != CipherSuite.AES_128_GCM) {
+            md.update(suite.name().getBytes(StandardCharsets.US_ASCII)); // <-- a key of its own
+        }
+        
+        if (reverse) {
+            md.update("server-to-client".getBytes(StandardCharsets.US_ASCII)); // <-- and one for each direction
+        }
+        
+        byte[] bytes = md.digest();
         
         /**
          * If Nimbus is provided SHA-512, then key length will mostly be 512 if
@@ -76,24 +192,241 @@ public final class AesGcmCipher
          * for most negative keys.
          */
         
-        // Split 128 bits into key, and 128 bits into IV base
+        // Split key length into key, and 128 bits into IV base
         
-        byte[] keyBytes = Arrays.copyOf(bytes, bytes.length / 2);
-        key = new SecretKeySpec(keyBytes, "AES");
+        final int k = suite.getKeyLength();
         
-        byte[] ivBytes = Arrays.copyOfRange(bytes, bytes.length / 2, bytes.length);
+        byte[] keyBytes = Arrays.copyOf(bytes, k);
+        key = new SecretKeySpec(keyBytes, suite.getKeyAlgorithm());
         
-        // Furthermore, split IV base into 64 bits fixed, and 64 bits into a long counter
-        ivFixed = Arrays.copyOf(ivBytes, ivBytes.length / 2);
+        byte[] ivBytes = Arrays.copyOfRange(bytes, k, k + 16);
         
-        byte[] counterBytes = Arrays.copyOfRange(ivBytes, ivBytes.length / 2, ivBytes.length);
+        // Furthermore, split IV base into 64 bits fixed (or what fit), and 64 bits into a long counter
+        ivFixed = Arrays.copyOf(ivBytes, suite.getIvLength() - 8);
+        
+        byte[] counterBytes = Arrays.copyOfRange(ivBytes, 8, 16);
         ByteBuffer counterBuff = ByteBuffer.wrap(counterBytes);
         ivInvocation = counterBuff.getLong();
+        highest = ivInvocation;
+        seen = 1L; // <-- the base itself is never used
+        
+        Cipher.getInstance(suite.getTransformation()); // <-- fail fast: NoSuchAlgorithmException, NoSuchPaddingException
+        
+        synchronized (siblings) {
+            siblings.put(Arrays.asList(suite, reverse), this);
+        }
+    }
+    
+    /**
+     * Instance of one transfer, or decrypt-only instance restored from a
+     * derived key.
+     * 
+     * @param bytes key, fixed IV field and, unless {@code decryptOnly}, 8
+     *        bytes of counter base, back to back
+     */
+    private AesGcmCipher(CipherSuite suite, byte[] bytes, boolean decryptOnly) throws NoSuchAlgorithmException, NoSuchPaddingException {
+        final int k = suite.getKeyLength(),
+                  f = suite.getIvLength() - 8;
         
-        cipher = Cipher.getInstance("AES_128/GCM/NoPadding"); // <-- NoSuchAlgorithmException, NoSuchPaddingException
+        this.sessionKey = null;
+        this.suite = suite;
+        this.reverse = false;
+        this.decryptOnly = decryptOnly;
+        this.siblings = new HashMap<>();
+        this.transfers = new AtomicLong();
+        this.key = new SecretKeySpec(Arrays.copyOf(bytes, k), suite.getKeyAlgorithm());
+        this.ivFixed = Arrays.copyOfRange(bytes, k, k + f);
+        
+        if (!decryptOnly) {
+            ivInvocation = ByteBuffer.wrap(bytes, k + f, 8).getLong();
+            highest = ivInvocation;
+            seen = 1L;
+        }
+        
+        Cipher.getInstance(suite.getTransformation()); // <-- fail fast: NoSuchAlgorithmException, NoSuchPaddingException
+    }
+    
+    /**
+     * Returns the instance of this session that use the provided suite,
+     * creating it the first time it is asked for.
+     * 
+     * @param suite the suite
+     * 
+     * @return an instance for the same session key
+     * 
+     * @throws IllegalStateException if this instance is not one of the session
+     * @throws NoSuchAlgorithmException if the suite is not available
+     * @throws NoSuchPaddingException if the suite is not available
+     */
+    public AesGcmCipher withSuite(CipherSuite suite) throws NoSuchAlgorithmException, NoSuchPaddingException {
+        return sibling(suite, reverse);
     }
     
-    public Cipher initForEncryption() throws InvalidKeyException, InvalidAlgorithmParameterException {
+    /**
+     * Returns the instance of this session, using the same suite, for messages
+     * sent in the other direction. Reversing twice give back this instance.
+     * 
+     * @return an instance for the same session key and suite
+     * 
+     * @throws IllegalStateException if this instance is not one of the session
+     * @throws NoSuchAlgorithmException if the suite is not available
+     * @throws NoSuchPaddingException if the suite is not available
+     */
+    public AesGcmCipher reversed() throws NoSuchAlgorithmException, NoSuchPaddingException {
+        return sibling(suite, !reverse);
+    }
+    
+    private AesGcmCipher sibling(CipherSuite suite, boolean reverse) throws NoSuchAlgorithmException, NoSuchPaddingException {
+        requireSessionKey();
+        
+        synchronized (siblings) {
+            AesGcmCipher c = siblings.get(Arrays.asList(suite, reverse));
+            return c != null ? c : new AesGcmCipher(sessionKey, suite, reverse, siblings, transfers);
+        }
+    }
+    
+    /**
+     * Returns a new transfer counter, never returned before by any instance
+     * of the session. The counter must be sent to the peer together with the
+     * transfer request, see {@link #forTransfer(String, long)}.
+     * 
+     * @return a new transfer counter, greater than all returned before
+     * 
+     * @throws IllegalStateException if this instance is not one of the session
+     */
+    public long nextTransfer() {
+        requireSessionKey();
+        return transfers.incrementAndGet();
+    }
+    
+    /**
+     * Returns an instance for one transfer of a file, using the suite and
+     * direction of this instance.<p>
+     * 
+     * Its key, fixed IV field and counter are derived using HKDF-SHA-256 (RFC
+     * 5869) of the session key, with the suite, the direction, the file name
+     * and the transfer counter as info. Both peers get the same instance given
+     * the same file name and counter. The instance has its own invocations,
+     * and no siblings.<p>
+     * 
+     * A peer that receive the transfer must make sure a counter is never used
+     * twice during the session, or else the messages of an old transfer may
+     * be replayed into the new one.
+     * 
+     * @param file name of the file, as sent in the request
+     * @param transfer from {@link #nextTransfer()}
+     * 
+     * @return a new instance for the transfer
+     * 
+     * @throws IllegalStateException if this instance is not one of the session
+     * @throws NoSuchAlgorithmException if HMAC-SHA-256 or the suite is not
+     *         available
+     * @throws NoSuchPaddingException if the suite is not available
+     */
+    public AesGcmCipher forTransfer(String file, long transfer) throws NoSuchAlgorithmException, NoSuchPaddingException {
+        requireSessionKey();
+        
+        ByteArrayOutputStream info = new ByteArrayOutputStream();
+        
+        for (String part : new String[]{ "transfer", suite.name(), reverse ? "server-to-client" : "client-to-server", file }) {
+            byte[] bytes = part.getBytes(StandardCharsets.UTF_8);
+            info.write(bytes, 0, bytes.length);
+            info.write(0); // <-- no two tuples give the same info
+        }
+        
+        byte[] counter = ByteBuffer.allocate(8).putLong(transfer).array();
+        info.write(counter, 0, counter.length);
+        
+        return new AesGcmCipher(suite, hkdf(sessionKey.toByteArray(), info.toByteArray(),
+                suite.getKeyLength() + suite.getIvLength() - 8 + 8), false);
+    }
+    
+    /**
+     * HKDF-SHA-256 with an empty salt, see RFC 5869.
+     */
+    private static byte[] hkdf(byte[] ikm, byte[] info, int length) throws NoSuchAlgorithmException {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            
+            // Extract:
+            mac.init(new SecretKeySpec(new byte[32], "HmacSHA256"));
+            byte[] prk = mac.doFinal(ikm);
+            
+            // Expand:
+            mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+            
+            byte[] okm = new byte[length],
+                   t = new byte[0];
+            
+            for (int i = 1, n = 0; n < length; i++) {
+                mac.update(t);
+                mac.update(info);
+                mac.update((byte) i);
+                t = mac.doFinal();
+                
+                System.arraycopy(t, 0, okm, n, Math.min(t.length, length - n));
+                n += t.length;
+            }
+            
+            return okm;
+        }
+        catch (InvalidKeyException e) {
+            throw new AssertionError("An HMAC take a key of any length.", e);
+        }
+    }
+    
+    public CipherSuite getSuite() {
+        return suite;
+    }
+    
+    /**
+     * Returns the key and the fixed IV field this instance derived from the
+     * session key, back to back. That is all it takes to decrypt a stored
+     * message encrypted by this instance, and nothing more: neither the
+     * session key nor the key of any other suite or transfer can be computed
+     * from it. Only the key of a {@linkplain #forTransfer(String, long)
+     * transfer} should be stored, the key of an instance of the session open
+     * all messages of its suite and direction.
+     * 
+     * @return a new array holding the derived key
+     * 
+     * @see #ofDerivedKey(CipherSuite, byte[])
+     */
+    public byte[] getDerivedKey() {
+        byte[] k = key.getEncoded();
+        byte[] derived = Arrays.copyOf(k, k.length + ivFixed.length);
+        System.arraycopy(ivFixed, 0, derived, k.length, ivFixed.length);
+        return derived;
+    }
+    
+    /**
+     * Returns a new invocation, never returned before by this instance. The
+     * invocation must be sent to the peer together with the message encrypted
+     * using it.
+     * 
+     * @return a new invocation
+     * 
+     * @throws IllegalStateException if this instance was restored from a
+     *         derived key
+     */
+    public synchronized long nextInvocation() {
+        if (decryptOnly) {
+            throw new IllegalStateException("Restored from a derived key, can only decrypt stored messages.");
+        }
+        
+        return ++ivInvocation;
+    }
+    
+    /**
+     * Returns a new cipher ready for encryption using the provided invocation.
+     * 
+     * @param invocation from {@link #nextInvocation()}
+     * 
+     * @return a new cipher
+     * 
+     * @throws GeneralSecurityException if the cipher could not be initialized
+     */
+    public Cipher initForEncryption(long invocation) throws GeneralSecurityException {
         /*
          * Had we provided a "new IvParameterSpec(IV)" instead of
          * GCMParameterSpec, then the next statement would crash with:
@@ -108,17 +441,86 @@ public final class AesGcmCipher
          * enforce that constraint and I dare not write a nighthack built on
          * implementation specific details.
          */
-        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(96, getNextIV())); // InvalidKeyException, InvalidAlgorithmParameterException
+        Cipher cipher = Cipher.getInstance(suite.getTransformation());
+        cipher.init(Cipher.ENCRYPT_MODE, key, suite.getParameterSpec(getIV(invocation))); // InvalidKeyException, InvalidAlgorithmParameterException
         return cipher;
     }
     
-    public Cipher initForDecryption() throws InvalidKeyException, InvalidAlgorithmParameterException {
-        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(96, getNextIV())); // <-- InvalidKeyException, InvalidAlgorithmParameterException
+    /**
+     * Returns a new cipher ready for decryption of a message that was
+     * encrypted using the provided invocation.<p>
+     * 
+     * The invocation is consumed, so that a replayed message is rejected. It is
+     * consumed before the message has been authenticated. A forged message may
+     * therefore get the genuine one with the same invocation rejected, but
+     * whoever can inject messages can corrupt the genuine one just as well.
+     * 
+     * @param invocation read from the message header
+     * 
+     * @return a new cipher
+     * 
+     * @throws InvalidAlgorithmParameterException if the invocation has been
+     *         used before, or is too old to tell
+     * @throws GeneralSecurityException if the cipher could not be initialized
+     */
+    public Cipher initForDecryption(long invocation) throws GeneralSecurityException {
+        accept(invocation);
+        
+        Cipher cipher = Cipher.getInstance(suite.getTransformation());
+        cipher.init(Cipher.DECRYPT_MODE, key, suite.getParameterSpec(getIV(invocation))); // <-- InvalidKeyException, InvalidAlgorithmParameterException
         return cipher;
     }
     
-    private byte[] getNextIV() {
-        ByteBuffer iv = ByteBuffer.allocate(16);
+    /**
+     * Returns a new cipher ready for decryption of a message that was stored
+     * as received, still encrypted, and is now read back.<p>
+     * 
+     * Unlike {@link #initForDecryption(long)}, the invocation is not consumed.
+     * A stored message may be read many times and in any order, so whoever
+     * read it must check for replays, if at all.
+     * 
+     * @param invocation read from the message header
+     * 
+     * @return a new cipher
+     * 
+     * @throws GeneralSecurityException if the cipher could not be initialized
+     */
+    public Cipher initForStoredDecryption(long invocation) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(suite.getTransformation());
+        cipher.init(Cipher.DECRYPT_MODE, key, suite.getParameterSpec(getIV(invocation))); // <-- InvalidKeyException, InvalidAlgorithmParameterException
+        return cipher;
+    }
+    
+    private void requireSessionKey() {
+        if (sessionKey == null) {
+            throw new IllegalStateException("Not an instance of the session, but of a transfer or restored from a derived key.");
+        }
+    }
+    
+    private synchronized void accept(long invocation) throws InvalidAlgorithmParameterException {
+        long diff = invocation - highest; // <-- overflow safe, as is the counter itself
+        
+        if (diff > 0L) {
+            seen = diff >= REPLAY_WINDOW ? 1L : (seen << diff) | 1L;
+            highest = invocation;
+            return;
+        }
+        
+        if (-diff >= REPLAY_WINDOW) {
+            throw new InvalidAlgorithmParameterException("Invocation too old: " + invocation);
+        }
+        
+        long bit = 1L << -diff;
+        
+        if ((seen & bit) != 0L) {
+            throw new InvalidAlgorithmParameterException("Replayed invocation: " + invocation);
+        }
+        
+        seen |= bit;
+    }
+    
+    private byte[] getIV(long invocation) {
+        ByteBuffer iv = ByteBuffer.allocate(suite.getIvLength());
         
         /*
          * Do I feel honored or what. A real professional just said the next
@@ -128,7 +530,7 @@ public final class AesGcmCipher
          */
         
         iv.put(ivFixed);
-        iv.put(ByteBuffer.allocate(8).putLong(++ivInvocation).array());
+        iv.put(ByteBuffer.allocate(8).putLong(invocation).array());
         
         return iv.array();
     }
@@ -137,6 +539,6 @@ public final class AesGcmCipher
     
     @Override
     public String toString() {
-        return cipher.getAlgorithm();
+        return suite.getTransformation();
     }
 }
\ No newline at end of file
@@ -0,0 +1,288 @@
+package martinandersson.com.library;
+
+import java.security.GeneralSecurityException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * An authenticated cipher that may be used to encrypt file transfers.<p>
+ * 
+ * Which suite is fastest depend on the hardware. AES/GCM is very fast on a CPU
+ * with AES instructions and slow on one without, where ChaCha20-Poly1305 is
+ * usually faster. Each side therefore measure the {@linkplain #throughputs()
+ * throughput} of all suites available in the JVM, once, the first time it is
+ * asked for. The client {@linkplain #offer() offer} its suites and
+ * throughputs in the file transfer request and the server {@linkplain
+ * #negotiate(String) pick} the suite whose throughput on the slower of the two
+ * sides is the highest.<p>
+ * 
+ * ChaCha20-Poly1305 was added to the JDK in Java 11 and is simply not
+ * available on an older JVM. Neither is AES-256 on an old Java 8 without the
+ * unlimited strength policy. {@link #AES_128_GCM} is always available, and is
+ * used if the client offer nothing.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public enum CipherSuite
+{
+    AES_128_GCM       ("AES_128/GCM/NoPadding", "AES",      16, 16, 12) {
+        @Override AlgorithmParameterSpec getParameterSpec(byte[] iv) {
+            return new GCMParameterSpec(96, iv);
+        }
+    },
+    
+    AES_256_GCM       ("AES_256/GCM/NoPadding", "AES",      32, 16, 12) {
+        @Override AlgorithmParameterSpec getParameterSpec(byte[] iv) {
+            return new GCMParameterSpec(96, iv);
+        }
+    },
+    
+    CHACHA20_POLY1305 ("ChaCha20-Poly1305",     "ChaCha20", 32, 12, 16) {
+        @Override AlgorithmParameterSpec getParameterSpec(byte[] iv) {
+            return new IvParameterSpec(iv);
+        }
+    };
+    
+    /** Suite used when nothing else has been agreed on. */
+    public static final CipherSuite DEFAULT = AES_128_GCM;
+    
+    private static final Logger LOGGER = Logger.getLogger(CipherSuite.class.getName());
+    
+    /** Bytes encrypted by each round of the probe. Current value: {@value}. */
+    private static final int PROBE_SIZE = 128 * 1024;
+    
+    /** Rounds run to warm up the JIT, and then as many measured. Current value: {@value}. */
+    private static final int PROBE_ROUNDS = 8;
+    
+    
+    
+    private final String transformation, keyAlgorithm;
+    
+    private final int keyLength, ivLength, tagLength;
+    
+    private CipherSuite(String transformation, String keyAlgorithm, int keyLength, int ivLength, int tagLength) {
+        this.transformation = transformation;
+        this.keyAlgorithm = keyAlgorithm;
+        this.keyLength = keyLength;
+        this.ivLength = ivLength;
+        this.tagLength = tagLength;
+    }
+    
+    public String getTransformation() {
+        return transformation;
+    }
+    
+    public String getKeyAlgorithm() {
+        return keyAlgorithm;
+    }
+    
+    /**
+     * Returns the key length.
+     * 
+     * @return key length in bytes
+     */
+    public int getKeyLength() {
+        return keyLength;
+    }
+    
+    /**
+     * Returns the IV length. The last 8 bytes are the invocation counter.
+     * 
+     * @return IV length in bytes
+     */
+    public int getIvLength() {
+        return ivLength;
+    }
+    
+    /**
+     * Returns the length of the authentication tag appended to each message.
+     * 
+     * @return tag length in bytes
+     */
+    public int getTagLength() {
+        return tagLength; // <-- must agree with getParameterSpec()
+    }
+    
+    /**
+     * Returns {@code true} if this JVM can encrypt using this suite.
+     * 
+     * @return {@code true} if available
+     */
+    public boolean isAvailable() {
+        try {
+            newProbeCipher(0L);
+            return true;
+        }
+        catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+    
+    abstract AlgorithmParameterSpec getParameterSpec(byte[] iv);
+    
+    /**
+     * Returns the suites available in this JVM and their throughput, fastest
+     * first. The throughput is measured the first time this method is called,
+     * which take a fraction of a second.
+     * 
+     * @return bytes per second, by suite
+     */
+    public static Map<CipherSuite, Long> throughputs() {
+        return Probe.THROUGHPUTS;
+    }
+    
+    /**
+     * Returns the suites this side offer, encoded for the file transfer
+     * request. Each suite is written as {@code NAME=bytesPerSecond}, separated
+     * by commas and fastest first.
+     * 
+     * @return the offer
+     */
+    public static String offer() {
+        StringBuilder offer = new StringBuilder();
+        
+        throughputs().forEach((suite, bps) -> {
+            if (offer.length() > 0) {
+                offer.append(',');
+            }
+            
+            offer.append(suite.name()).append('=').append(bps);
+        });
+        
+        return offer.toString();
+    }
+    
+    /**
+     * Pick the suite to use given the peer's offer. Of the suites both sides
+     * have, the one whose throughput is highest on the slower side is picked.
+     * Suites the peer offer that this side does not know of are ignored.
+     * 
+     * @param offer the peer's offer, may be {@code null}
+     * 
+     * @return the suite, {@link #DEFAULT} if nothing else was agreed on
+     * 
+     * @see #offer()
+     */
+    public static CipherSuite negotiate(String offer) {
+        if (offer == null || offer.isEmpty()) {
+            return DEFAULT;
+        }
+        
+        Map<CipherSuite, Long> ours = throughputs();
+        
+        CipherSuite best = null;
+        long bestBps = -1L;
+        
+        for (String entry : offer.split(",")) {
+            String[] pair = entry.split("=", 2);
+            
+            final CipherSuite suite;
+            final long theirs;
+            
+            try {
+                suite = CipherSuite.valueOf(pair[0].trim());
+                theirs = pair.length == 2 ? Long.parseLong(pair[1].trim()) : 0L;
+            }
+            catch (IllegalArgumentException e) { // <-- also NumberFormatException
+                continue;
+            }
+            
+            Long mine = ours.get(suite);
+            
+            if (mine == null) {
+                continue;
+            }
+            
+            long bps = Math.min(mine, theirs);
+            
+            if (bps > bestBps) { // <-- ties go to the peer's preference
+                best = suite;
+                bestBps = bps;
+            }
+        }
+        
+        return best == null ? DEFAULT : best;
+    }
+    
+    private Cipher newProbeCipher(long invocation) throws GeneralSecurityException {
+        byte[] iv = new byte[ivLength];
+        
+        for (int i = 0; i < Long.BYTES; ++i) {
+            iv[ivLength - 1 - i] = (byte) (invocation >>> (i * Byte.SIZE));
+        }
+        
+        Cipher c = Cipher.getInstance(transformation);
+        c.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(new byte[keyLength], keyAlgorithm), getParameterSpec(iv));
+        return c;
+    }
+    
+    /**
+     * Encrypt {@value #PROBE_SIZE} bytes {@value #PROBE_ROUNDS} times.
+     * 
+     * @return bytes per second
+     */
+    private long probe() throws GeneralSecurityException {
+        final byte[] plain = new byte[PROBE_SIZE];
+        final byte[] out = new byte[PROBE_SIZE + getTagLength()];
+        
+        final long start = System.nanoTime();
+        
+        for (int round = 1; round <= PROBE_ROUNDS; ++round) {
+            newProbeCipher(round).doFinal(plain, 0, plain.length, out); // <-- a new IV each round, or SunJCE complain
+        }
+        
+        long nanos = Math.max(1L, System.nanoTime() - start);
+        return (long) (PROBE_ROUNDS * (double) PROBE_SIZE * 1e9 / nanos);
+    }
+    
+    /**
+     * Holder of the measured throughputs, initialized on first use.
+     */
+    private static final class Probe {
+        static final Map<CipherSuite, Long> THROUGHPUTS = measure();
+        
+        private static Map<CipherSuite, Long> measure() {
+            Map<CipherSuite, Long> measured = new EnumMap<>(CipherSuite.class);
+            
+            // Warm up all suites first, so that the first measured doesn't also pay for the JIT of the shared code:
+            for (CipherSuite s : values()) {
+                try {
+                    s.probe();
+                    measured.put(s, 0L);
+                }
+                catch (GeneralSecurityException e) {
+                    LOGGER.info(() -> s + " not available: " + e);
+                }
+            }
+            
+            for (CipherSuite s : measured.keySet()) {
+                try {
+                    measured.put(s, s.probe());
+                }
+                catch (GeneralSecurityException e) {
+                    throw new AssertionError("Worked a moment ago.", e);
+                }
+            }
+            
+            List<Map.Entry<CipherSuite, Long>> sorted = new ArrayList<>(measured.entrySet());
+            sorted.sort(Map.Entry.<CipherSuite, Long>comparingByValue().reversed());
+            
+            Map<CipherSuite, Long> fastestFirst = new LinkedHashMap<>();
+            sorted.forEach(e -> fastestFirst.put(e.getKey(), e.getValue()));
+            
+            LOGGER.info(() -> "Cipher suite throughput in bytes/s: " + fastestFirst);
+            
+            return Collections.unmodifiableMap(fastestFirst);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,67 @@
+package martinandersson.com.library;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import martinandersson.com.library.merkle.MerkleDigest;
+
+/**
+ * Utilities for the file-level integrity digest that client and server
+ * compute while a file is transferred.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class Digests
+{
+    /**
+     * Digest algorithm used unless the client ask for another. The client may
+     * ask for {@value MerkleDigest#ALGORITHM} to have the server keep a Merkle
+     * tree of the file, see {@link MerkleDigest}. Current value: {@value}.
+     */
+    public static final String DEFAULT_ALGORITHM = "SHA-256";
+    
+    private Digests() {
+        // Is utility class
+    }
+    
+    /**
+     * Returns a new message digest. Besides the algorithms of the platform,
+     * {@value MerkleDigest#ALGORITHM} is known.
+     * 
+     * @param algorithm name of the algorithm
+     * 
+     * @return a new message digest
+     * 
+     * @throws IllegalArgumentException if the algorithm is not available
+     */
+    public static MessageDigest newDigest(String algorithm) {
+        if (MerkleDigest.ALGORITHM.equalsIgnoreCase(algorithm)) {
+            return new MerkleDigest();
+        }
+        
+        try {
+            return MessageDigest.getInstance(algorithm);
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Unsupported digest algorithm: " + algorithm, e);
+        }
+    }
+    
+    /**
+     * Returns the digest of all bytes so far, without resetting the provided
+     * digest. Used to compare a running digest after each chunk.
+     * 
+     * @param digest the running digest
+     * 
+     * @return digest of all bytes so far
+     * 
+     * @throws UnsupportedOperationException if the digest can not be cloned
+     */
+    public static byte[] peek(MessageDigest digest) {
+        try {
+            return ((MessageDigest) digest.clone()).digest();
+        }
+        catch (CloneNotSupportedException e) {
+            throw new UnsupportedOperationException(digest.getAlgorithm() + " can not be cloned.", e);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package martinandersson.com.library;
+
+/**
+ * How hard the server should try to get a received file onto stable storage
+ * before confirming it.<p>
+ * 
+ * Forcing bytes to disk cost time, so the client pick a policy per transfer
+ * and the server report how long it spent syncing in each confirmation.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public enum Durability
+{
+    NONE ("None",
+            "Server never force bytes to disk, the operating system write them back whenever it like. Fastest, but a crash may lose the file."),
+    
+    ON_COMPLETION ("Sync on completion",
+            "Server force the file to disk once it has been fully received, before confirming."),
+    
+    PERIODIC ("Sync every N MB",
+            "Server force bytes to disk every N MB received, and once more on completion. Spread the cost over the transfer.");
+    
+    /** Sync interval used by {@link #PERIODIC} unless the client say otherwise. Current value: {@value}. */
+    public static final long DEFAULT_SYNC_INTERVAL = 64L * 1024 * 1024;
+    
+    private final String readable, description;
+    
+    Durability(String readable, String description) {
+        this.readable = readable;
+        this.description = description;
+    }
+    
+    public String getDescription() {
+        return description;
+    }
+    
+    @Override
+    public String toString() {
+        return readable;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,202 @@
+package martinandersson.com.library;
+
+import com.nimbusds.srp6.SRP6CryptoParams;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Computes powers of a fixed base modulo a fixed modulus, such as the
+ * generator {@code g} of an SRP group, faster than {@link
+ * BigInteger#modPow(BigInteger, BigInteger)}.<p>
+ * 
+ * This is the comb method of Lim and Lee. The exponent bits are laid out in
+ * rows of {@value #COLUMNS} bits each, so that row {@code n} is worth {@code
+ * g^(2^(n*}{@value #COLUMNS}{@code ))}. Rows are grouped {@value #TEETH} at a
+ * time into blocks, and a table per block hold the product for every
+ * combination of its rows. The power is then computed column by column, with
+ * one squaring per column and one multiplication per block. A 512 bit
+ * exponent thus cost {@value #COLUMNS} squarings and 64 multiplications, where
+ * a general exponentiation need one squaring per exponent bit. Each table has
+ * {@code 2^}{@value #TEETH} entries; a 512 bit modulus need two tables of 16
+ * KiB each and a 2048 bit modulus eight of 64 KiB. The tables are built once
+ * per group, see {@link #of(SRP6CryptoParams)}.<p>
+ * 
+ * {@code BigInteger.mod()} does a long division, which would cost more than
+ * the squarings saved, so products are reduced using Barrett reduction: two
+ * multiplications and a few shifts, with a constant computed once per
+ * modulus.<p>
+ * 
+ * Exponents longer than the modulus, or negative, are handed over to {@code
+ * modPow()}.<p>
+ * 
+ * Immutable, and so safe to use by concurrent threads.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class FixedBaseExponentiator
+{
+    /** Rows per block, the table of a block has 2 to the power of this many entries. Current value: {@value}. */
+    public static final int TEETH = 8;
+    
+    /** Bits per row, which is also the number of squarings. Current value: {@value}. */
+    public static final int COLUMNS = 32;
+    
+    private static final Map<List<BigInteger>, FixedBaseExponentiator> CACHE = new ConcurrentHashMap<>();
+    
+    /**
+     * Returns the exponentiator of the provided group's generator. It is built
+     * the first time it is asked for and then reused.
+     * 
+     * @param params SRP group
+     * 
+     * @return the exponentiator
+     */
+    public static FixedBaseExponentiator of(SRP6CryptoParams params) {
+        return CACHE.computeIfAbsent(Arrays.asList(params.g, params.N),
+                key -> new FixedBaseExponentiator(params.g, params.N));
+    }
+    
+    
+    
+    private final BigInteger base, modulus;
+    
+    /** Barrett constant, {@code 4^k / modulus} where {@code k} is the bit length of the modulus. */
+    private final BigInteger mu;
+    
+    private final int k;
+    
+    /**
+     * Entry {@code [b][j]} is the product of {@code base^(2^(n*COLUMNS))} for
+     * each bit {@code i} set in {@code j}, where {@code n = b*TEETH + i}.
+     */
+    private final BigInteger[][] tables;
+    
+    /**
+     * Initializes a new exponentiator for exponents up to the bit length of
+     * the modulus.
+     * 
+     * @param base the base
+     * @param modulus the modulus
+     * 
+     * @throws IllegalArgumentException if {@code modulus} is not greater than 1
+     */
+    public FixedBaseExponentiator(BigInteger base, BigInteger modulus) {
+        if (modulus.compareTo(BigInteger.ONE) <= 0) {
+            throw new IllegalArgumentException("Modulus must be greater than 1, got: " + modulus);
+        }
+        
+        this.base = base;
+        this.modulus = modulus;
+        this.k = modulus.bitLength();
+        this.mu = BigInteger.ONE.shiftLeft(2 * k).divide(modulus);
+        
+        final int blockBits = TEETH * COLUMNS;
+        tables = new BigInteger[(k + blockBits - 1) / blockBits][];
+        
+        BigInteger row = base.mod(modulus);
+        
+        for (int b = 0; b < tables.length; ++b) {
+            BigInteger[] rows = new BigInteger[TEETH];
+            
+            for (int i = 0; i < TEETH; ++i) {
+                rows[i] = row;
+                
+                for (int c = 0; c < COLUMNS; ++c) {
+                    row = reduce(row.multiply(row));
+                }
+            }
+            
+            BigInteger[] t = new BigInteger[1 << TEETH];
+            t[0] = BigInteger.ONE;
+            
+            for (int j = 1; j < t.length; ++j) {
+                int high = 31 - Integer.numberOfLeadingZeros(j);
+                t[j] = reduce(t[j & ~(1 << high)].multiply(rows[high]));
+            }
+            
+            tables[b] = t;
+        }
+    }
+    
+    /**
+     * Returns {@code base^exponent mod modulus}.
+     * 
+     * @param exponent the exponent
+     * 
+     * @return the power
+     */
+    public BigInteger pow(BigInteger exponent) {
+        final int bits = exponent.bitLength();
+        
+        if (exponent.signum() < 0 || bits > tables.length * TEETH * COLUMNS) {
+            return base.modPow(exponent, modulus);
+        }
+        
+        // Blocks above the exponent's highest bit would only multiply by one:
+        final int blocks = (bits + TEETH * COLUMNS - 1) / (TEETH * COLUMNS);
+        
+        BigInteger r = BigInteger.ONE;
+        
+        for (int col = COLUMNS - 1; col >= 0; --col) {
+            if (r != BigInteger.ONE) {
+                r = reduce(r.multiply(r));
+            }
+            
+            for (int b = 0; b < blocks; ++b) {
+                int j = 0;
+                
+                for (int i = 0; i < TEETH; ++i) {
+                    if (exponent.testBit((b * TEETH + i) * COLUMNS + col)) {
+                        j |= 1 << i;
+                    }
+                }
+                
+                if (j != 0) {
+                    r = r == BigInteger.ONE ? tables[b][j] : reduce(r.multiply(tables[b][j]));
+                }
+            }
+        }
+        
+        return r;
+    }
+    
+    public BigInteger getBase() {
+        return base;
+    }
+    
+    public BigInteger getModulus() {
+        return modulus;
+    }
+    
+    /**
+     * Returns {@code x mod modulus}.
+     * 
+     * @param x a product of two reduced values, so less than {@code modulus^2}
+     * 
+     * @return the reduced value
+     */
+    private BigInteger reduce(BigInteger x) {
+        BigInteger q = x.shiftRight(k - 1).multiply(mu).shiftRight(k + 1);
+        BigInteger r = x.subtract(q.multiply(modulus));
+        
+        while (r.compareTo(modulus) >= 0) { // <-- at most twice
+            r = r.subtract(modulus);
+        }
+        
+        return r;
+    }
+    
+    @Override
+    public String toString() {
+        return new StringBuilder(FixedBaseExponentiator.class.getSimpleName())
+                .append('[')
+                  .append("base=").append(base)
+                  .append(", modulusBits=").append(k)
+                  .append(", tables=").append(tables.length)
+                .append(']')
+                .toString();
+    }
+}
\ No newline at end of file
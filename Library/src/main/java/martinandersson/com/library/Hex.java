@@ -0,0 +1,51 @@
+package martinandersson.com.library;
+
+/**
+ * Utility class for converting raw bytes to and from lower case hexadecimal
+ * strings.<p>
+ * 
+ * Nimbus's {@code BigIntegerUtils} does the same for BigIntegers, but hashes
+ * and other fixed-length byte sequences must keep their leading zeros.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class Hex
+{
+    private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+    
+    private Hex() {
+        // Is utility class
+    }
+    
+    public static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        
+        for (int i = 0; i < bytes.length; ++i) {
+            chars[i * 2]     = DIGITS[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = DIGITS[bytes[i] & 0xF];
+        }
+        
+        return new String(chars);
+    }
+    
+    public static byte[] fromHex(String hex) {
+        if (hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("Odd number of hex digits: " + hex);
+        }
+        
+        byte[] bytes = new byte[hex.length() / 2];
+        
+        for (int i = 0; i < bytes.length; ++i) {
+            int hi = Character.digit(hex.charAt(i * 2), 16),
+                lo = Character.digit(hex.charAt(i * 2 + 1), 16);
+            
+            if (hi == -1 || lo == -1) {
+                throw new IllegalArgumentException("Not a hex string: " + hex);
+            }
+            
+            bytes[i] = (byte) ((hi << 4) | lo);
+        }
+        
+        return bytes;
+    }
+}
\ No newline at end of file
@@ -8,19 +8,19 @@ package martinandersson.com.library;
 public enum ServerStrategy
 {
     COPY_INPUT_STREAM ("Copy InputStream",
-            "Server will use a MessageHandler.Whole<InputStream> that use Files.copy() to transfer all bytes to disk."),
+            "Server will use a MessageHandler.Whole<InputStream> that move all bytes in bulk through a reusable 64 KiB buffer, decrypting using Cipher.update() directly."),
     
     NO_USE_INPUT_STREAM ("No-use InputStream",
-            "Server will use a MessageHandler.Whole<InputStream> that throw away all bytes without using disk IO."),
+            "Server will use a MessageHandler.Whole<InputStream> that throw away all bytes without using disk IO, one byte at a time. Kept as a baseline."),
     
     SINGLE_BYTE_INPUT_STREAM ("Single-byte InputStream",
-            "Server will use a MessageHandler.Whole<InputStream> that save the bytes using a buffered FileOutputStream."),
+            "Server will use a MessageHandler.Whole<InputStream> that save the bytes one by one using a buffered OutputStream. Kept as a baseline."),
     
     BYTE_ARRAY ("byte[]",
             "Server will use a MessageHandler.Partial<byte[]> that save the bytes using a buffered OutputStream."),
     
     BYTE_BUFFER ("ByteBuffer",
-            "Server will use a MessageHandler.Partial<ByteBuffer> that save the bytes using a blocking FileChannel.");
+            "Server will use a MessageHandler.Partial<ByteBuffer> that write the bytes straight to the storage channel.");
 
     private final String readable, description;
     
@@ -0,0 +1,100 @@
+package martinandersson.com.library;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket limiting a byte rate.<p>
+ * 
+ * The bucket fill with {@code rate} tokens per second, up to {@code burst}
+ * tokens. Taking a byte cost one token. A taker is never refused, the bucket
+ * instead go into debt and the taker is told how long to wait for the debt to
+ * be paid off. The lock is only held for a few arithmetic operations, never
+ * while waiting, so the bucket may be shared by many threads at a low cost.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class TokenBucket
+{
+    private final long rate, burst;
+    
+    private double tokens;
+    
+    private long last = System.nanoTime();
+    
+    /**
+     * Initializes a full bucket with a burst of one second.
+     * 
+     * @param rate bytes per second
+     * 
+     * @throws IllegalArgumentException if {@code rate} is not positive
+     */
+    public TokenBucket(long rate) {
+        this(rate, rate);
+    }
+    
+    /**
+     * Initializes a full bucket.
+     * 
+     * @param rate bytes per second
+     * @param burst most bytes that may be taken at once without waiting
+     * 
+     * @throws IllegalArgumentException if {@code rate} or {@code burst} is not positive
+     */
+    public TokenBucket(long rate, long burst) {
+        if (rate < 1L || burst < 1L) {
+            throw new IllegalArgumentException("Rate and burst must be positive, got: " + rate + " and " + burst);
+        }
+        
+        this.rate = rate;
+        this.burst = burst;
+        this.tokens = burst;
+    }
+    
+    /**
+     * Take the provided number of tokens without waiting.
+     * 
+     * @param bytes tokens to take
+     * 
+     * @return nanoseconds the caller must wait to stay within the rate, {@code
+     *         0} if none
+     */
+    public synchronized long take(long bytes) {
+        long now = System.nanoTime();
+        
+        tokens = Math.min(burst, tokens + (now - last) * (rate / 1e9));
+        last = now;
+        
+        tokens -= bytes;
+        
+        return tokens >= 0.0 ? 0L : (long) (-tokens * 1e9 / rate);
+    }
+    
+    /**
+     * Take the provided number of tokens, waiting as long as needed.
+     * 
+     * @param bytes tokens to take
+     * 
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void acquire(long bytes) throws InterruptedException {
+        TimeUnit.NANOSECONDS.sleep(take(bytes));
+    }
+    
+    public long getRate() {
+        return rate;
+    }
+    
+    public long getBurst() {
+        return burst;
+    }
+    
+    @Override
+    public String toString() {
+        return new StringBuilder(TokenBucket.class.getSimpleName())
+                .append('[')
+                  .append("rate=").append(rate)
+                  .append(", burst=").append(burst)
+                .append(']')
+                .toString();
+    }
+}
\ No newline at end of file
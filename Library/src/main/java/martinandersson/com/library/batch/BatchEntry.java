@@ -0,0 +1,51 @@
+package martinandersson.com.library.batch;
+
+/**
+ * One file of a batch: its name, and where its content is in the batch.<p>
+ * 
+ * Immutable.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class BatchEntry
+{
+    private final String name;
+    
+    private final long offset, length;
+    
+    /**
+     * Initializes a new entry.
+     * 
+     * @param name file name
+     * @param offset position of the first byte in the batch
+     * @param length file length in bytes
+     */
+    public BatchEntry(String name, long offset, long length) {
+        this.name = name;
+        this.offset = offset;
+        this.length = length;
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    public long getOffset() {
+        return offset;
+    }
+    
+    public long getLength() {
+        return length;
+    }
+    
+    @Override
+    public String toString() {
+        return new StringBuilder(BatchEntry.class.getSimpleName())
+                .append('[')
+                  .append("name=").append(name)
+                  .append(", offset=").append(offset)
+                  .append(", length=").append(length)
+                .append(']')
+                .toString();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,40 @@
+package martinandersson.com.library.batch;
+
+/**
+ * Constants of the batch format, shared by {@link BatchPacker} and {@link
+ * BatchIndex}.<p>
+ * 
+ * A batch starts with a header and an index:
+ * <pre>{@code
+ * 
+ *     int  MAGIC
+ *     byte VERSION
+ *     int  number of files
+ * 
+ *     per file:
+ *       short length of the name
+ *       byte[length] UTF-8 name
+ *       long  length of the file
+ * 
+ * }</pre>
+ * 
+ * ..followed by the content of all files, concatenated in index order. The
+ * offset of a file is thus the end of the index plus the length of all files
+ * before it. All integers are big-endian.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+final class BatchFormat
+{
+    /** "SLFB", as in Secure Login File Batch. */
+    static final int MAGIC = 0x534C4642;
+    
+    static final byte VERSION = 1;
+    
+    /** Longest file name, in UTF-8 bytes. */
+    static final int MAX_NAME_LENGTH = Short.MAX_VALUE;
+    
+    private BatchFormat() {
+        // Must not be created
+    }
+}
\ No newline at end of file
@@ -0,0 +1,129 @@
+package martinandersson.com.library.batch;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Reads the index of a batch produced by {@link BatchPacker}.<p>
+ * 
+ * The index is checked against the length of the batch, so that every entry
+ * is known to be within the batch, and the batch has no bytes that belong to
+ * no entry. Names must be plain file names, without any directory, and must
+ * not repeat.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ * 
+ * @see BatchFormat
+ */
+public final class BatchIndex
+{
+    private BatchIndex() {
+        // Is utility class
+    }
+    
+    /**
+     * Read the index of a batch. The channel is read from position 0 and its
+     * position is left somewhere after the index.
+     * 
+     * @param batch the batch
+     * 
+     * @return all entries, in batch order
+     * 
+     * @throws IOException if the batch is malformed, or on IO failure
+     */
+    public static List<BatchEntry> read(SeekableByteChannel batch) throws IOException {
+        final long size = batch.size();
+        
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(batch.position(0L))));
+        
+        final int count;
+        final List<String> names;
+        final List<Long> lengths;
+        
+        long offset;
+        
+        try {
+            if (in.readInt() != BatchFormat.MAGIC) {
+                throw new IOException("Not a batch.");
+            }
+            
+            byte version = in.readByte();
+            
+            if (version != BatchFormat.VERSION) {
+                throw new IOException("Unsupported batch version: " + version);
+            }
+            
+            count = in.readInt();
+            offset = Integer.BYTES + Byte.BYTES + Integer.BYTES;
+            
+            // Each entry take at least 10 bytes, which bound a lying count:
+            if (count < 0 || count > (size - offset) / (Short.BYTES + Long.BYTES)) {
+                throw new IOException("Illegal file count: " + count);
+            }
+            
+            names = new ArrayList<>(count);
+            lengths = new ArrayList<>(count);
+            
+            Set<String> seen = new HashSet<>();
+            
+            for (int i = 0; i < count; ++i) {
+                byte[] name = new byte[in.readUnsignedShort()];
+                in.readFully(name);
+                
+                String n = new String(name, StandardCharsets.UTF_8);
+                long length = in.readLong();
+                
+                if (!isPlainName(n)) {
+                    throw new IOException("Not a plain file name: \"" + n + "\".");
+                }
+                
+                if (!seen.add(n)) {
+                    throw new IOException("Name given twice: " + n);
+                }
+                
+                if (length < 0L) {
+                    throw new IOException("Illegal length of " + n + ": " + length);
+                }
+                
+                names.add(n);
+                lengths.add(length);
+                offset += Short.BYTES + name.length + Long.BYTES;
+            }
+        }
+        catch (EOFException e) {
+            throw new IOException("Batch index is truncated.", e);
+        }
+        
+        List<BatchEntry> index = new ArrayList<>(count);
+        
+        for (int i = 0; i < count; ++i) {
+            index.add(new BatchEntry(names.get(i), offset, lengths.get(i)));
+            offset += lengths.get(i);
+            
+            if (offset > size || offset < 0L) {
+                throw new IOException("Entry " + names.get(i) + " ends beyond the batch of " + size + " byte(s).");
+            }
+        }
+        
+        if (offset != size) {
+            throw new IOException("Batch has " + (size - offset) + " byte(s) that belong to no entry.");
+        }
+        
+        return Collections.unmodifiableList(index);
+    }
+    
+    private static boolean isPlainName(String name) {
+        return !name.isEmpty() && !name.equals(".") && !name.equals("..") &&
+               name.indexOf('/') == -1 && name.indexOf('\\') == -1 && name.indexOf('\0') == -1;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,149 @@
+package martinandersson.com.library.batch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Packs many files into one batch, which is sent as one file transfer and
+ * unpacked by the server.<p>
+ * 
+ * Each file is known in the batch by its file name only, so two files with
+ * the same name can not go in the same batch.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ * 
+ * @see BatchFormat
+ */
+public final class BatchPacker
+{
+    private BatchPacker() {
+        // Is utility class
+    }
+    
+    /**
+     * Write a batch of the provided files.
+     * 
+     * @param files files to pack
+     * @param out where to write the batch
+     * 
+     * @return the index of the batch
+     * 
+     * @throws IllegalArgumentException if two files have the same name, or a
+     *         name is too long
+     * @throws IOException if a file changed size while packing, or on IO
+     *         failure
+     */
+    public static List<BatchEntry> pack(List<Path> files, WritableByteChannel out) throws IOException {
+        List<BatchEntry> index = index(files);
+        
+        write(ByteBuffer.wrap(encodeIndex(index)), out);
+        
+        for (int i = 0; i < files.size(); ++i) {
+            final Path file = files.get(i);
+            final long length = index.get(i).getLength();
+            
+            try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+                if (in.size() != length) {
+                    throw new IOException(file + " changed size while packing.");
+                }
+                
+                for (long done = 0L; done < length; ) {
+                    done += in.transferTo(done, length - done, out);
+                }
+            }
+        }
+        
+        return index;
+    }
+    
+    /**
+     * Returns the length of a batch of the provided files.
+     * 
+     * @param files files to pack
+     * 
+     * @return length in bytes
+     * 
+     * @throws IllegalArgumentException if two files have the same name, or a
+     *         name is too long
+     * @throws IOException if reading a file size fails
+     */
+    public static long length(List<Path> files) throws IOException {
+        List<BatchEntry> index = index(files);
+        BatchEntry last = index.isEmpty() ? null : index.get(index.size() - 1);
+        
+        return last == null ? encodeIndex(index).length : last.getOffset() + last.getLength();
+    }
+    
+    private static List<BatchEntry> index(List<Path> files) throws IOException {
+        List<String> names = new ArrayList<>(files.size());
+        Set<String> seen = new HashSet<>();
+        
+        int indexLength = Integer.BYTES + Byte.BYTES + Integer.BYTES;
+        
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            
+            if (!seen.add(name)) {
+                throw new IllegalArgumentException("Name given twice: " + name);
+            }
+            
+            int nameLength = name.getBytes(StandardCharsets.UTF_8).length;
+            
+            if (nameLength > BatchFormat.MAX_NAME_LENGTH) {
+                throw new IllegalArgumentException("Name too long: " + name);
+            }
+            
+            names.add(name);
+            indexLength += Short.BYTES + nameLength + Long.BYTES;
+        }
+        
+        List<BatchEntry> index = new ArrayList<>(files.size());
+        long offset = indexLength;
+        
+        for (int i = 0; i < files.size(); ++i) {
+            long length = Files.size(files.get(i));
+            index.add(new BatchEntry(names.get(i), offset, length));
+            offset += length;
+        }
+        
+        return Collections.unmodifiableList(index);
+    }
+    
+    private static byte[] encodeIndex(List<BatchEntry> index) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        
+        data.writeInt(BatchFormat.MAGIC);
+        data.writeByte(BatchFormat.VERSION);
+        data.writeInt(index.size());
+        
+        for (BatchEntry e : index) {
+            byte[] name = e.getName().getBytes(StandardCharsets.UTF_8);
+            data.writeShort(name.length);
+            data.write(name);
+            data.writeLong(e.getLength());
+        }
+        
+        data.flush();
+        return bytes.toByteArray();
+    }
+    
+    private static void write(ByteBuffer buff, WritableByteChannel out) throws IOException {
+        while (buff.hasRemaining()) {
+            out.write(buff);
+        }
+    }
+}
\ No newline at end of file
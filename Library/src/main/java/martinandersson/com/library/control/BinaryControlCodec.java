@@ -0,0 +1,333 @@
+package martinandersson.com.library.control;
+
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import martinandersson.com.library.dedup.Block;
+
+/**
+ * Encodes and decodes control messages using the compact binary protocol.<p>
+ * 
+ * A message starts with a fixed four byte header:
+ * <pre>{@code
+ * 
+ *     u16 magic    0x534C ("SL")
+ *     u8  version  currently 1
+ *     u8  count    number of fields that follow
+ * 
+ * }</pre>
+ * 
+ * Each field is a one byte {@linkplain Field#getId() id} followed by the value,
+ * encoded as described by the field's {@linkplain Field.Kind kind}. All numbers
+ * are big-endian. Big integers are sent as their raw two's-complement bytes,
+ * which is half the size of the hex strings used by the JSON protocol and need
+ * no parsing.<p>
+ * 
+ * Peers agree on the binary protocol by negotiating WebSocket subprotocol
+ * {@value #SUBPROTOCOL} when connecting. If the server does not select it,
+ * both peers use {@link JsonControlCodec} instead.<p>
+ * 
+ * An instance encodes into one internal buffer that is reused for every
+ * message, growing as needed. The buffer returned by {@code encode()} is only
+ * valid until the next call. Instances are not thread-safe.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class BinaryControlCodec
+{
+    /** WebSocket subprotocol of the binary protocol. Current value: {@value}. */
+    public static final String SUBPROTOCOL = "slft-binary-1";
+    
+    /** First two bytes of every message. Current value: {@value}. */
+    public static final short MAGIC = 0x534C;
+    
+    /** Protocol version. Current value: {@value}. */
+    public static final byte VERSION = 1;
+    
+    /** Length of the fixed header. Current value: {@value}. */
+    public static final int HEADER_LENGTH = 4;
+    
+    private static final int HASH_LENGTH = 32;
+    
+    
+    
+    private final CharsetEncoder utf8 = StandardCharsets.UTF_8.newEncoder();
+    
+    private ByteBuffer buff = ByteBuffer.allocate(1024);
+    
+    /**
+     * Encode a message.
+     * 
+     * @param msg message to encode
+     * 
+     * @return the encoded message, ready to be read (valid until next call)
+     */
+    public ByteBuffer encode(ControlMessage msg) {
+        buff.clear();
+        
+        ensureCapacity(HEADER_LENGTH);
+        buff.putShort(MAGIC)
+            .put(VERSION)
+            .put((byte) msg.fields().size());
+        
+        for (Field f : msg.fields()) {
+            Object value = msg.getRaw(f);
+            
+            ensureCapacity(1 + maxSizeOf(f.getKind(), value));
+            buff.put(f.getId());
+            
+            switch (f.getKind()) {
+                case STRING:
+                    putString((String) value);
+                    break;
+                
+                case BOOLEAN:
+                    buff.put((byte) ((Boolean) value ? 1 : 0));
+                    break;
+                
+                case LONG:
+                    buff.putLong((Long) value);
+                    break;
+                
+                case BIG_INTEGER:
+                    byte[] bigint = ((BigInteger) value).toByteArray();
+                    buff.putShort((short) bigint.length).put(bigint);
+                    break;
+                
+                case BYTES:
+                    byte[] bytes = (byte[]) value;
+                    buff.putInt(bytes.length).put(bytes);
+                    break;
+                
+                case INT_ARRAY:
+                    int[] ints = (int[]) value;
+                    buff.putInt(ints.length);
+                    
+                    for (int i : ints) {
+                        buff.putInt(i);
+                    }
+                    break;
+                
+                case BLOCKS:
+                    putBlocks(msg.getBlocks(f));
+                    break;
+                
+                default:
+                    throw new AssertionError("Has no encoder for " + f.getKind());
+            }
+        }
+        
+        buff.flip();
+        return buff;
+    }
+    
+    /**
+     * Decode a message. The buffer's position is advanced past the message.
+     * 
+     * @param in the encoded message
+     * 
+     * @return the message
+     * 
+     * @throws IllegalArgumentException if the bytes are not a valid message
+     */
+    public ControlMessage decode(ByteBuffer in) {
+        try {
+            return decode0(in);
+        }
+        catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated control message.", e);
+        }
+    }
+    
+    private ControlMessage decode0(ByteBuffer in) {
+        if (in.getShort() != MAGIC) {
+            throw new IllegalArgumentException("Not a control message.");
+        }
+        
+        byte version = in.get();
+        
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported control protocol version: " + version);
+        }
+        
+        final int count = in.get() & 0xFF;
+        ControlMessage msg = new ControlMessage();
+        
+        for (int n = 0; n < count; ++n) {
+            byte id = in.get();
+            Field f = Field.ofId(id);
+            
+            if (f == null) {
+                throw new IllegalArgumentException("Unknown field id: " + (id & 0xFF));
+            }
+            
+            switch (f.getKind()) {
+                case STRING:
+                    msg.put(f, getString(in, in.getShort() & 0xFFFF));
+                    break;
+                
+                case BOOLEAN:
+                    msg.put(f, in.get() != 0);
+                    break;
+                
+                case LONG:
+                    msg.put(f, in.getLong());
+                    break;
+                
+                case BIG_INTEGER:
+                    msg.put(f, new BigInteger(getBytes(in, in.getShort() & 0xFFFF)));
+                    break;
+                
+                case BYTES:
+                    msg.put(f, getBytes(in, in.getInt()));
+                    break;
+                
+                case INT_ARRAY:
+                    int[] ints = new int[checkCount(in, in.getInt(), Integer.BYTES)];
+                    
+                    for (int i = 0; i < ints.length; ++i) {
+                        ints[i] = in.getInt();
+                    }
+                    
+                    msg.put(f, ints);
+                    break;
+                
+                case BLOCKS:
+                    msg.put(f, getBlocks(in));
+                    break;
+                
+                default:
+                    throw new AssertionError("Has no decoder for " + f.getKind());
+            }
+        }
+        
+        return msg;
+    }
+    
+    private void putString(String value) {
+        final int lengthAt = buff.position();
+        buff.putShort((short) 0);
+        
+        utf8.reset();
+        CoderResult r = utf8.encode(CharBuffer.wrap(value), buff, true);
+        
+        if (r.isError() || r.isOverflow() || utf8.flush(buff).isOverflow()) {
+            throw new IllegalArgumentException("Failed to encode string: " + r);
+        }
+        
+        int length = buff.position() - lengthAt - Short.BYTES;
+        
+        if (length > 0xFFFF) {
+            throw new IllegalArgumentException("String too long: " + length + " bytes.");
+        }
+        
+        buff.putShort(lengthAt, (short) length);
+    }
+    
+    private void putBlocks(List<Block> blocks) {
+        buff.putInt(blocks.size());
+        
+        for (Block b : blocks) {
+            byte[] hash = b.getHash();
+            
+            if (hash.length != HASH_LENGTH) {
+                throw new IllegalArgumentException("Expected a " + HASH_LENGTH + " byte block hash, got " + hash.length + ".");
+            }
+            
+            buff.put(hash).putInt(b.getLength());
+        }
+    }
+    
+    private static String getString(ByteBuffer in, int length) {
+        if (in.hasArray()) {
+            String s = new String(in.array(), in.arrayOffset() + in.position(), checkLength(in, length), StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+            return s;
+        }
+        
+        return new String(getBytes(in, length), StandardCharsets.UTF_8);
+    }
+    
+    private static byte[] getBytes(ByteBuffer in, int length) {
+        byte[] bytes = new byte[checkLength(in, length)];
+        in.get(bytes);
+        return bytes;
+    }
+    
+    private static List<Block> getBlocks(ByteBuffer in) {
+        final int count = checkCount(in, in.getInt(), HASH_LENGTH + Integer.BYTES);
+        
+        List<Block> blocks = new ArrayList<>(count);
+        byte[] hash = new byte[HASH_LENGTH];
+        long offset = 0L;
+        
+        for (int i = 0; i < count; ++i) {
+            in.get(hash);
+            int length = in.getInt();
+            
+            blocks.add(new Block(offset, length, hash)); // <-- hash is cloned
+            offset += length;
+        }
+        
+        return blocks;
+    }
+    
+    /*
+     * A corrupt length must not make us allocate gigabytes, so all lengths are
+     * checked against what is actually left in the buffer.
+     */
+    
+    private static int checkLength(ByteBuffer in, int length) {
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("Illegal length " + length + ", " + in.remaining() + " byte(s) remaining.");
+        }
+        
+        return length;
+    }
+    
+    private static int checkCount(ByteBuffer in, int count, int elementSize) {
+        if (count < 0 || count > in.remaining() / elementSize) {
+            throw new IllegalArgumentException("Illegal count " + count + ", " + in.remaining() + " byte(s) remaining.");
+        }
+        
+        return count;
+    }
+    
+    private static int maxSizeOf(Field.Kind kind, Object value) {
+        switch (kind) {
+            case STRING:      return Short.BYTES + 3 * ((String) value).length(); // <-- at most 3 UTF-8 bytes per char
+            case BOOLEAN:     return 1;
+            case LONG:        return Long.BYTES;
+            case BIG_INTEGER: return Short.BYTES + ((BigInteger) value).bitLength() / 8 + 1;
+            case BYTES:       return Integer.BYTES + ((byte[]) value).length;
+            case INT_ARRAY:   return Integer.BYTES + Integer.BYTES * ((int[]) value).length;
+            case BLOCKS:      return Integer.BYTES + (HASH_LENGTH + Integer.BYTES) * ((List<?>) value).size();
+            default:
+                throw new AssertionError("Has no size for " + kind);
+        }
+    }
+    
+    private void ensureCapacity(int more) {
+        if (buff.remaining() >= more) {
+            return;
+        }
+        
+        int needed = buff.position() + more;
+        int capacity = buff.capacity();
+        
+        while (capacity < needed) {
+            capacity *= 2;
+        }
+        
+        ByteBuffer bigger = ByteBuffer.allocate(capacity);
+        buff.flip();
+        bigger.put(buff);
+        buff = bigger;
+    }
+}
@@ -0,0 +1,176 @@
+package martinandersson.com.library.control;
+
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import martinandersson.com.library.dedup.Block;
+
+/**
+ * A control message exchanged between client and server. That is any message
+ * that is not file data.<p>
+ * 
+ * A message is a flat collection of {@linkplain Field fields}, each of which
+ * has a value of the field's kind. What a message mean is decided by the
+ * fields present and the state of the protocol, exactly like before there was
+ * a class for it.<p>
+ * 
+ * Messages are encoded using {@link BinaryControlCodec} or, if the peer does
+ * not speak the binary protocol, {@link JsonControlCodec}. Both produce the
+ * same message.<p>
+ * 
+ * Not thread-safe.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class ControlMessage
+{
+    private final Map<Field, Object> values = new EnumMap<>(Field.class);
+    
+    public ControlMessage put(Field field, String value) {
+        return set(field, Field.Kind.STRING, value);
+    }
+    
+    public ControlMessage put(Field field, boolean value) {
+        return set(field, Field.Kind.BOOLEAN, value);
+    }
+    
+    public ControlMessage put(Field field, long value) {
+        return set(field, Field.Kind.LONG, value);
+    }
+    
+    public ControlMessage put(Field field, BigInteger value) {
+        return set(field, Field.Kind.BIG_INTEGER, value);
+    }
+    
+    /**
+     * Put a byte array. The array is not copied.
+     * 
+     * @param field the field
+     * @param value the value
+     * 
+     * @return this message
+     */
+    public ControlMessage put(Field field, byte[] value) {
+        return set(field, Field.Kind.BYTES, value);
+    }
+    
+    /**
+     * Put an int array. The array is not copied.
+     * 
+     * @param field the field
+     * @param value the value
+     * 
+     * @return this message
+     */
+    public ControlMessage put(Field field, int[] value) {
+        return set(field, Field.Kind.INT_ARRAY, value);
+    }
+    
+    public ControlMessage put(Field field, List<Block> value) {
+        return set(field, Field.Kind.BLOCKS, Collections.unmodifiableList(value));
+    }
+    
+    public boolean has(Field field) {
+        return values.containsKey(field);
+    }
+    
+    public Set<Field> fields() {
+        return Collections.unmodifiableSet(values.keySet());
+    }
+    
+    public String getString(Field field) {
+        return (String) get(field, Field.Kind.STRING);
+    }
+    
+    public boolean getBoolean(Field field) {
+        return (Boolean) get(field, Field.Kind.BOOLEAN);
+    }
+    
+    public boolean getBoolean(Field field, boolean defaultValue) {
+        return has(field) ? getBoolean(field) : defaultValue;
+    }
+    
+    public long getLong(Field field) {
+        return (Long) get(field, Field.Kind.LONG);
+    }
+    
+    public BigInteger getBigInteger(Field field) {
+        return (BigInteger) get(field, Field.Kind.BIG_INTEGER);
+    }
+    
+    public byte[] getBytes(Field field) {
+        return (byte[]) get(field, Field.Kind.BYTES);
+    }
+    
+    public int[] getInts(Field field) {
+        return (int[]) get(field, Field.Kind.INT_ARRAY);
+    }
+    
+    @SuppressWarnings("unchecked")
+    public List<Block> getBlocks(Field field) {
+        return (List<Block>) get(field, Field.Kind.BLOCKS);
+    }
+    
+    /**
+     * Returns the raw value of a field, used by the codecs.
+     * 
+     * @param field the field
+     * 
+     * @return the value, {@code null} if not present
+     */
+    Object getRaw(Field field) {
+        return values.get(field);
+    }
+    
+    @Override
+    public String toString() {
+        return values.entrySet().stream()
+                .map(e -> e.getKey().getKey() + "=" + describe(e.getValue()))
+                .collect(Collectors.joining(", ", ControlMessage.class.getSimpleName() + "[", "]"));
+    }
+    
+    private ControlMessage set(Field field, Field.Kind kind, Object value) {
+        if (field.getKind() != kind) {
+            throw new IllegalArgumentException(field + " is of kind " + field.getKind() + ", not " + kind + ".");
+        }
+        
+        if (value == null) {
+            throw new NullPointerException(field + " can not be null.");
+        }
+        
+        values.put(field, value);
+        return this;
+    }
+    
+    private Object get(Field field, Field.Kind kind) {
+        if (field.getKind() != kind) {
+            throw new IllegalArgumentException(field + " is of kind " + field.getKind() + ", not " + kind + ".");
+        }
+        
+        Object value = values.get(field);
+        
+        if (value == null) {
+            throw new IllegalArgumentException("Message has no " + field.getKey() + ": " + this);
+        }
+        
+        return value;
+    }
+    
+    private static String describe(Object value) {
+        if (value instanceof byte[]) {
+            return "byte[" + ((byte[]) value).length + "]";
+        }
+        else if (value instanceof int[]) {
+            return "int[" + ((int[]) value).length + "]";
+        }
+        else if (value instanceof List) {
+            return "blocks[" + ((List<?>) value).size() + "]";
+        }
+        
+        return String.valueOf(value);
+    }
+}
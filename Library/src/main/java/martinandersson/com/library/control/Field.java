@@ -0,0 +1,136 @@
+package martinandersson.com.library.control;
+
+/**
+ * All fields a control message may carry.<p>
+ * 
+ * Each field has a one byte id used by the binary protocol, a key used by the
+ * JSON protocol and a kind that decide how the value is encoded. The id of a
+ * field must never change, or else old and new peers will not understand each
+ * other.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public enum Field
+{
+    // Registration and SRP
+    USERNAME         (1,  "username",        Kind.STRING),
+    SALT             (2,  "salt",            Kind.BIG_INTEGER),
+    VERIFIER         (3,  "verifier",        Kind.BIG_INTEGER),
+    A                (4,  "A",               Kind.BIG_INTEGER),
+    B                (5,  "B",               Kind.BIG_INTEGER),
+    M1               (6,  "M1",              Kind.BIG_INTEGER),
+    M2               (7,  "M2",              Kind.BIG_INTEGER),
+    
+    // File transfer request
+    FILE             (8,  "file",            Kind.STRING),
+    CHUNKED          (9,  "chunked",         Kind.BOOLEAN),
+    ENCRYPTED        (10, "encrypted",       Kind.BOOLEAN),
+    STRATEGY         (11, "strategy",        Kind.STRING),
+    DEDUP            (12, "dedup",           Kind.BOOLEAN),
+    BLOCKS           (13, "blocks",          Kind.BLOCKS),
+    DELTA            (14, "delta",           Kind.BOOLEAN),
+    DIGEST_ALGORITHM (20, "digestAlgorithm", Kind.STRING),
+    SIZE             (22, "size",            Kind.LONG),
+    DURABILITY       (23, "durability",      Kind.STRING),
+    SYNC_INTERVAL    (24, "syncInterval",    Kind.LONG),
+    CIPHER_SUITES    (29, "cipherSuites",    Kind.STRING), // <-- see CipherSuite.offer()
+    OPTIMISTIC       (31, "optimistic",      Kind.BOOLEAN), // <-- data follow without waiting for the accept
+    BATCH            (32, "batch",           Kind.BOOLEAN), // <-- the file is a batch of files, see BatchPacker
+    SEALED           (37, "sealed",          Kind.BOOLEAN), // <-- server store the ciphertext as received
+    RECORD_SIZE      (38, "recordSize",      Kind.LONG),  // <-- plaintext bytes per chunk of a sealed transfer
+    TRANSFER         (39, "transfer",        Kind.LONG),  // <-- counter of a sealed transfer, see AesGcmCipher.forTransfer()
+    
+    // Download request
+    DOWNLOAD         (33, "download",        Kind.BOOLEAN), // <-- FILE is sent by the server
+    OFFSET           (34, "offset",          Kind.LONG),
+    LENGTH           (35, "length",          Kind.LONG),  // <-- of the range, also in the server's answer
+    
+    // Server's answers
+    ACCEPT           (15, "accept",          Kind.BOOLEAN),
+    MISSING          (16, "missing",         Kind.INT_ARRAY),
+    SIGNATURE        (17, "signature",       Kind.BYTES),
+    PROBLEM          (18, "problem",         Kind.STRING),
+    DIGEST           (21, "digest",          Kind.BYTES), // <-- also sent by client with EOF
+    SYNC_NANOS       (25, "syncNanos",       Kind.LONG),
+    QUEUE_POSITION   (26, "queuePosition",   Kind.LONG),
+    QUEUE_WAIT       (27, "queueWait",       Kind.LONG),  // <-- estimated millis, -1 if unknown
+    RATE             (28, "rate",            Kind.LONG),  // <-- bytes per second the client should not exceed
+    CIPHER_SUITE     (30, "cipherSuite",     Kind.STRING), // <-- also picked by an optimistic client
+    SLICE_SIZE       (36, "sliceSize",       Kind.LONG),  // <-- bytes of file per download message
+    
+    // End of a chunked transfer
+    EOF              (19, "eof",             Kind.BOOLEAN);
+    
+    /**
+     * How a field value is represented in Java and on the wire.
+     */
+    public enum Kind {
+        /** A {@code String}. UTF-8 with a two byte length prefix. */
+        STRING,
+        
+        /** A {@code Boolean}. One byte. */
+        BOOLEAN,
+        
+        /** A {@code Long}. Eight bytes. */
+        LONG,
+        
+        /** A {@code BigInteger}. Two's-complement bytes with a two byte length prefix (hex in JSON). */
+        BIG_INTEGER,
+        
+        /** A {@code byte[]}. Raw bytes with a four byte length prefix (Base64 in JSON). */
+        BYTES,
+        
+        /** An {@code int[]}. Four byte count followed by four bytes per element. */
+        INT_ARRAY,
+        
+        /**
+         * A {@code List<Block>}. Four byte count followed by the hash and
+         * length of each block (array of objects in JSON). Block offsets are
+         * not sent, blocks are assumed to follow each other.
+         */
+        BLOCKS;
+    }
+    
+    private static final Field[] BY_ID = new Field[256];
+    
+    static {
+        for (Field f : values()) {
+            BY_ID[f.id] = f;
+        }
+    }
+    
+    private final byte id;
+    
+    private final String key;
+    
+    private final Kind kind;
+    
+    Field(int id, String key, Kind kind) {
+        this.id = (byte) id;
+        this.key = key;
+        this.kind = kind;
+    }
+    
+    public byte getId() {
+        return id;
+    }
+    
+    public String getKey() {
+        return key;
+    }
+    
+    public Kind getKind() {
+        return kind;
+    }
+    
+    /**
+     * Returns the field with the provided id.
+     * 
+     * @param id field id
+     * 
+     * @return the field, or {@code null} if the id is unknown
+     */
+    public static Field ofId(byte id) {
+        return BY_ID[id & 0xFF];
+    }
+}
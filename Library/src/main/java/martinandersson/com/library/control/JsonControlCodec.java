@@ -0,0 +1,187 @@
+package martinandersson.com.library.control;
+
+import com.nimbusds.srp6.BigIntegerUtils;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonReader;
+import javax.json.JsonReaderFactory;
+import javax.json.JsonValue;
+import martinandersson.com.library.Hex;
+import martinandersson.com.library.dedup.Block;
+
+/**
+ * Encodes and decodes control messages as JSON text. This is the original
+ * protocol, kept as a fallback for peers that does not negotiate the binary
+ * one.<p>
+ * 
+ * Each field is a member of one JSON object, keyed by {@linkplain
+ * Field#getKey() the field's key}. Big integers are hex strings, byte arrays
+ * are Base64 strings and blocks are objects of {@code "hash"} (hex) and
+ * {@code "length"}. Unknown members are ignored.<p>
+ * 
+ * Safe to use by concurrent threads.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class JsonControlCodec
+{
+    /**
+     * Prefer this cached factory instead of {@code Json.createReader()} or
+     * other similar constructs. {@code Json.createReader()} will traverse the
+     * classpath each time to look for the Json provider.<p>
+     * 
+     * Safe to use by concurrent threads.
+     */
+    private static final JsonReaderFactory jsonReaderFactory = Json.createReaderFactory(null);
+    
+    private JsonControlCodec() {
+        // Is utility class
+    }
+    
+    public static String encode(ControlMessage msg) {
+        JsonObjectBuilder b = Json.createObjectBuilder();
+        
+        for (Field f : msg.fields()) {
+            Object value = msg.getRaw(f);
+            
+            switch (f.getKind()) {
+                case STRING:
+                    b.add(f.getKey(), msg.getString(f));
+                    break;
+                
+                case BOOLEAN:
+                    b.add(f.getKey(), msg.getBoolean(f));
+                    break;
+                
+                case LONG:
+                    b.add(f.getKey(), msg.getLong(f));
+                    break;
+                
+                case BIG_INTEGER:
+                    b.add(f.getKey(), BigIntegerUtils.toHex(msg.getBigInteger(f)));
+                    break;
+                
+                case BYTES:
+                    b.add(f.getKey(), Base64.getEncoder().encodeToString((byte[]) value));
+                    break;
+                
+                case INT_ARRAY:
+                    JsonArrayBuilder ints = Json.createArrayBuilder();
+                    
+                    for (int i : (int[]) value) {
+                        ints.add(i);
+                    }
+                    
+                    b.add(f.getKey(), ints);
+                    break;
+                
+                case BLOCKS:
+                    JsonArrayBuilder blocks = Json.createArrayBuilder();
+                    
+                    msg.getBlocks(f).forEach(block -> blocks.add(Json.createObjectBuilder()
+                            .add("hash", block.getHashHex())
+                            .add("length", block.getLength())));
+                    
+                    b.add(f.getKey(), blocks);
+                    break;
+                
+                default:
+                    throw new AssertionError("Has no encoder for " + f.getKind());
+            }
+        }
+        
+        return b.build().toString();
+    }
+    
+    /**
+     * Decode a message.
+     * 
+     * @param data JSON text
+     * 
+     * @return the message
+     * 
+     * @throws javax.json.JsonException if the text is not valid JSON
+     * @throws ClassCastException if a member has the wrong JSON type
+     * @throws IllegalArgumentException if a value is malformed
+     */
+    public static ControlMessage decode(String data) {
+        final JsonObject obj;
+        
+        try (StringReader strReader = new StringReader(data);
+             JsonReader jsonReader = jsonReaderFactory.createReader(strReader);) {
+             obj = jsonReader.readObject();
+        }
+        
+        ControlMessage msg = new ControlMessage();
+        
+        for (Field f : Field.values()) {
+            if (!obj.containsKey(f.getKey())) {
+                continue;
+            }
+            
+            switch (f.getKind()) {
+                case STRING:
+                    msg.put(f, obj.getString(f.getKey()));
+                    break;
+                
+                case BOOLEAN:
+                    msg.put(f, obj.getBoolean(f.getKey()));
+                    break;
+                
+                case LONG:
+                    msg.put(f, obj.getJsonNumber(f.getKey()).longValueExact());
+                    break;
+                
+                case BIG_INTEGER:
+                    msg.put(f, BigIntegerUtils.fromHex(obj.getString(f.getKey())));
+                    break;
+                
+                case BYTES:
+                    msg.put(f, Base64.getDecoder().decode(obj.getString(f.getKey())));
+                    break;
+                
+                case INT_ARRAY:
+                    JsonArray arr = obj.getJsonArray(f.getKey());
+                    int[] ints = new int[arr.size()];
+                    
+                    for (int i = 0; i < ints.length; ++i) {
+                        ints[i] = arr.getInt(i);
+                    }
+                    
+                    msg.put(f, ints);
+                    break;
+                
+                case BLOCKS:
+                    msg.put(f, toBlocks(obj.getJsonArray(f.getKey())));
+                    break;
+                
+                default:
+                    throw new AssertionError("Has no decoder for " + f.getKind());
+            }
+        }
+        
+        return msg;
+    }
+    
+    private static List<Block> toBlocks(JsonArray arr) {
+        List<Block> blocks = new ArrayList<>(arr.size());
+        long offset = 0L;
+        
+        for (JsonValue v : arr) {
+            JsonObject o = (JsonObject) v;
+            
+            int length = o.getInt("length");
+            blocks.add(new Block(offset, length, Hex.fromHex(o.getString("hash"))));
+            offset += length;
+        }
+        
+        return blocks;
+    }
+}
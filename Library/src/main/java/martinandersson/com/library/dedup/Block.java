@@ -0,0 +1,78 @@
+package martinandersson.com.library.dedup;
+
+import java.util.Arrays;
+import martinandersson.com.library.Hex;
+
+/**
+ * A content-defined block of a file, identified by the SHA-256 digest of its
+ * bytes.<p>
+ * 
+ * Two blocks with the same hash are considered equal no matter which file or
+ * offset they came from. That is the whole point of content addressing.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class Block
+{
+    private final long offset;
+    private final int length;
+    private final byte[] hash;
+    
+    public Block(long offset, int length, byte[] hash) {
+        if (length < 0) {
+            throw new IllegalArgumentException("Negative length: " + length);
+        }
+        
+        this.offset = offset;
+        this.length = length;
+        this.hash = hash.clone();
+    }
+    
+    /**
+     * Returns the position of this block in the file it was cut from. The
+     * offset has no meaning for the server, who only know blocks by hash.
+     * 
+     * @return the position of this block in the source file
+     */
+    public long getOffset() {
+        return offset;
+    }
+    
+    public int getLength() {
+        return length;
+    }
+    
+    public byte[] getHash() {
+        return hash.clone();
+    }
+    
+    public String getHashHex() {
+        return Hex.toHex(hash);
+    }
+    
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof Block)) {
+            return false;
+        }
+        
+        Block other = (Block) obj;
+        return length == other.length && Arrays.equals(hash, other.hash);
+    }
+    
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(hash);
+    }
+    
+    @Override
+    public String toString() {
+        return new StringBuilder(Block.class.getSimpleName())
+                .append('[')
+                  .append("offset=").append(offset)
+                  .append(", length=").append(length)
+                  .append(", hash=").append(getHashHex())
+                .append(']')
+                .toString();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,134 @@
+package martinandersson.com.library.dedup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cuts a stream of bytes into content-defined blocks.<p>
+ * 
+ * A block boundary is declared wherever a rolling "gear" hash of the most
+ * recent bytes has all bits of a mask cleared. Because the boundaries depend on
+ * the content and not on the offset, inserting or removing a few bytes in the
+ * middle of a file only change the blocks around the edit. All other blocks
+ * keep their hash and need not be uploaded again.<p>
+ * 
+ * The gear hash is the one described in the FastCDC paper:
+ * <pre>{@code
+ * 
+ *     hash = (hash << 1) + GEAR[byte]
+ * 
+ * }</pre>
+ * 
+ * Each byte shift the hash one bit to the left, so the hash "forget" a byte
+ * after 64 rounds and no explicit window is needed.<p>
+ * 
+ * The gear table is generated from a fixed seed. All clients must produce the
+ * same table or else they would cut the same file differently, and the server
+ * would never see a duplicate. Changing the seed or the block size limits is a
+ * breaking change of the block store.<p>
+ * 
+ * Instances are not thread-safe, but cheap to create.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class ContentDefinedChunker
+{
+    /** Smallest block produced (except for the last one). Current value: {@value}. */
+    public static final int MIN_BLOCK_SIZE = 16 * 1024;
+    
+    /** Expected average block size. Current value: {@value}. */
+    public static final int AVG_BLOCK_SIZE = 64 * 1024;
+    
+    /** Largest block produced. Current value: {@value}. */
+    public static final int MAX_BLOCK_SIZE = 256 * 1024;
+    
+    /** Algorithm used for the strong block hash. Current value: {@value}. */
+    public static final String HASH_ALGORITHM = "SHA-256";
+    
+    private static final long[] GEAR = new long[256];
+    
+    static {
+        // SplitMix64, spelled out so that the table never depend on a JDK implementation
+        long seed = 0x5EC0DEF11E5L;
+        
+        for (int i = 0; i < GEAR.length; ++i) {
+            long z = (seed += 0x9E3779B97F4A7C15L);
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+    
+    /**
+     * 16 one-bits gives a boundary once every 64 KiB on average. The bits are
+     * taken from the top of the hash, which has seen more bytes than the
+     * bottom.
+     */
+    private static final long MASK = 0xFFFFL << 48;
+    
+    
+    
+    private final MessageDigest digest;
+    
+    public ContentDefinedChunker() throws NoSuchAlgorithmException {
+        digest = MessageDigest.getInstance(HASH_ALGORITHM);
+    }
+    
+    /**
+     * Reads all bytes from the provided channel and return the blocks found.
+     * 
+     * @param in channel to read from
+     * 
+     * @return all blocks in order of appearance (empty if the channel has no
+     *         bytes)
+     * 
+     * @throws IOException if reading fails
+     */
+    public List<Block> chunk(ReadableByteChannel in) throws IOException {
+        List<Block> blocks = new ArrayList<>();
+        ByteBuffer buff = ByteBuffer.allocate(MAX_BLOCK_SIZE);
+        
+        long blockStart = 0L;
+        int length = 0;
+        long hash = 0L;
+        
+        digest.reset();
+        
+        while (in.read(buff) != -1) {
+            buff.flip();
+            
+            final byte[] arr = buff.array();
+            final int limit = buff.limit();
+            int from = 0;
+            
+            for (int i = 0; i < limit; ++i) {
+                hash = (hash << 1) + GEAR[arr[i] & 0xFF];
+                ++length;
+                
+                if ((length >= MIN_BLOCK_SIZE && (hash & MASK) == 0L) || length == MAX_BLOCK_SIZE) {
+                    digest.update(arr, from, i + 1 - from);
+                    blocks.add(new Block(blockStart, length, digest.digest()));
+                    
+                    blockStart += length;
+                    from = i + 1;
+                    length = 0;
+                    hash = 0L;
+                }
+            }
+            
+            digest.update(arr, from, limit - from);
+            buff.clear();
+        }
+        
+        if (length > 0) {
+            blocks.add(new Block(blockStart, length, digest.digest()));
+        }
+        
+        return blocks;
+    }
+}
\ No newline at end of file
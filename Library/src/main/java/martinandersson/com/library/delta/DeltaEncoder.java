@@ -0,0 +1,286 @@
+package martinandersson.com.library.delta;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Computes a delta of a new file against the signature of a basis file.<p>
+ * 
+ * The encoder slide a window the size of a signature block over the new file,
+ * one byte at a time, using a {@link RollingChecksum}. Whenever the weak
+ * checksum of the window equals the weak checksum of a basis block, the strong
+ * hash of the window is computed and compared. On a match, the bytes since the
+ * previous match are emitted as a literal, the block is emitted as a copy
+ * instruction and the window jump one block ahead.<p>
+ * 
+ * The new file is read exactly once, so a multi gigabyte file with a small
+ * change cost one sequential read and a delta not much bigger than the
+ * change.<p>
+ * 
+ * Instances are not thread-safe, but may be reused for many encodings against
+ * the same signature.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ * 
+ * @see DeltaFormat
+ */
+public final class DeltaEncoder
+{
+    /** Literals are split in records of at most this many bytes. Current value: {@value}. */
+    private static final int MAX_LITERAL = 1024 * 1024;
+    
+    private final Signature sig;
+    
+    private final int B;
+    
+    /** Weak checksum to index of all full-size basis blocks having that checksum. */
+    private final Map<Integer, int[]> blocks;
+    
+    private final MessageDigest strong = Signature.newStrongDigest(),
+                                whole  = Signature.newStrongDigest();
+    
+    private final RollingChecksum rc = new RollingChecksum();
+    
+    private final ByteBuffer header = ByteBuffer.allocate(64);
+    
+    private WritableByteChannel out;
+    
+    private byte[] buf;
+    private int end, pos, lit;
+    private boolean eof;
+    
+    private int copyStart, copyCount;
+    
+    private long literalBytes, copiedBytes;
+    
+    public DeltaEncoder(Signature signature) {
+        this.sig = signature;
+        this.B = signature.getBlockSize();
+        this.blocks = new HashMap<>();
+        
+        for (int i = 0; i < sig.getBlockCount(); ++i) {
+            if (sig.getBlockLength(i) != B) {
+                continue;
+            }
+            
+            int[] prev = blocks.get(sig.getWeak(i));
+            int[] next;
+            
+            if (prev == null) {
+                next = new int[]{ i };
+            }
+            else {
+                next = new int[prev.length + 1];
+                System.arraycopy(prev, 0, next, 0, prev.length);
+                next[prev.length] = i;
+            }
+            
+            blocks.put(sig.getWeak(i), next);
+        }
+    }
+    
+    /**
+     * Read the new file from {@code in} and write the delta to {@code out}.
+     * 
+     * @param in new file
+     * @param out delta destination
+     * 
+     * @return number of literal bytes in the delta
+     * 
+     * @throws IOException if reading or writing fails
+     */
+    public long encode(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        this.out = out;
+        buf = new byte[Math.max(8 * B, 2 * MAX_LITERAL)];
+        end = pos = lit = 0;
+        eof = false;
+        copyStart = copyCount = 0;
+        literalBytes = copiedBytes = 0L;
+        whole.reset();
+        
+        header.clear();
+        header.putInt(DeltaFormat.MAGIC).put(DeltaFormat.VERSION).putInt(B).putLong(sig.getLength());
+        writeHeader();
+        
+        boolean valid = false;
+        
+        while (true) {
+            if (!eof && end - pos <= B) {
+                fill(in);
+                continue;
+            }
+            
+            if (end - pos < B) {
+                break;
+            }
+            
+            if (!valid) {
+                rc.reset(buf, pos, B);
+                valid = true;
+            }
+            
+            int match = findMatch(rc.get(), pos, B);
+            
+            if (match >= 0) {
+                flushLiteral(pos);
+                addCopy(match);
+                pos += B;
+                lit = pos;
+                valid = false;
+                continue;
+            }
+            
+            if (pos + B == end) {
+                // End of file and no more bytes to roll in
+                break;
+            }
+            
+            rc.roll(buf[pos], buf[pos + B]);
+            ++pos;
+            
+            if (pos - lit >= MAX_LITERAL) {
+                flushLiteral(pos);
+            }
+        }
+        
+        // Tail is shorter than a block, but might still match the short last block of the basis:
+        final int last = sig.getBlockCount() - 1;
+        final int tail = end - pos;
+        
+        if (tail > 0 && last >= 0 && sig.getBlockLength(last) == tail && sig.getBlockLength(last) < B
+                && RollingChecksum.of(buf, pos, tail) == sig.getWeak(last)
+                && strongEquals(last, pos, tail)) {
+            flushLiteral(pos);
+            addCopy(last);
+            lit = pos = end;
+        }
+        
+        flushLiteral(end);
+        flushCopy();
+        
+        header.clear();
+        header.put(DeltaFormat.END).putLong(literalBytes + copiedBytes).put(whole.digest());
+        writeHeader();
+        
+        this.out = null;
+        buf = null;
+        
+        return literalBytes;
+    }
+    
+    private void fill(ReadableByteChannel in) throws IOException {
+        if (end == buf.length) {
+            // Make room, keeping the current window
+            flushLiteral(pos);
+            System.arraycopy(buf, pos, buf, 0, end - pos);
+            end -= pos;
+            pos = lit = 0;
+        }
+        
+        int r = in.read(ByteBuffer.wrap(buf, end, buf.length - end));
+        
+        if (r == -1) {
+            eof = true;
+        }
+        else {
+            whole.update(buf, end, r);
+            end += r;
+        }
+    }
+    
+    private int findMatch(int weak, int off, int len) {
+        int[] candidates = blocks.get(weak);
+        
+        if (candidates == null) {
+            return -1;
+        }
+        
+        // Prefer the block following the previous copy, so that copies coalesce:
+        int preferred = copyCount > 0 ? copyStart + copyCount : -1;
+        
+        strong.update(buf, off, len);
+        byte[] hash = strong.digest();
+        
+        int found = -1;
+        
+        for (int c : candidates) {
+            if (sig.strongEquals(c, hash)) {
+                if (c == preferred) {
+                    return c;
+                }
+                else if (found == -1) {
+                    found = c;
+                }
+            }
+        }
+        
+        return found;
+    }
+    
+    private boolean strongEquals(int block, int off, int len) {
+        strong.update(buf, off, len);
+        return sig.strongEquals(block, strong.digest());
+    }
+    
+    private void addCopy(int block) throws IOException {
+        if (copyCount > 0 && block == copyStart + copyCount) {
+            ++copyCount;
+        }
+        else {
+            flushCopy();
+            copyStart = block;
+            copyCount = 1;
+        }
+        
+        copiedBytes += sig.getBlockLength(block);
+    }
+    
+    private void flushCopy() throws IOException {
+        if (copyCount == 0) {
+            return;
+        }
+        
+        header.clear();
+        header.put(DeltaFormat.COPY).putInt(copyStart).putInt(copyCount);
+        writeHeader();
+        
+        copyCount = 0;
+    }
+    
+    /**
+     * Emit all bytes from {@code lit} up until {@code to} as a literal, then
+     * move {@code lit} to {@code to}.
+     */
+    private void flushLiteral(int to) throws IOException {
+        if (to == lit) {
+            return;
+        }
+        
+        flushCopy();
+        
+        header.clear();
+        header.put(DeltaFormat.LITERAL).putInt(to - lit);
+        writeHeader();
+        
+        writeFully(ByteBuffer.wrap(buf, lit, to - lit));
+        
+        literalBytes += to - lit;
+        lit = to;
+    }
+    
+    private void writeHeader() throws IOException {
+        header.flip();
+        writeFully(header);
+    }
+    
+    private void writeFully(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            out.write(src);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package martinandersson.com.library.delta;
+
+/**
+ * Constants of the delta format, shared by {@link DeltaEncoder} and {@link
+ * DeltaPatcher}.<p>
+ * 
+ * A delta starts with a header:
+ * <pre>{@code
+ * 
+ *     int  MAGIC
+ *     byte VERSION
+ *     int  block size of the signature used
+ *     long length of the basis file
+ * 
+ * }</pre>
+ * 
+ * ..followed by any number of records, each one starting with a byte telling
+ * the record type:
+ * <pre>{@code
+ * 
+ *     COPY:    int first block, int block count
+ *     LITERAL: int length, byte[length]
+ *     END:     long new file length, byte[32] SHA-256 of the new file
+ * 
+ * }</pre>
+ * 
+ * The END record must be last. All integers are big-endian.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+final class DeltaFormat
+{
+    /** "SLFD", as in Secure Login File Delta. */
+    static final int MAGIC = 0x534C4644;
+    
+    static final byte VERSION = 1;
+    
+    static final byte COPY = 'C', LITERAL = 'L', END = 'E';
+    
+    static final int DIGEST_LENGTH = 32;
+    
+    private DeltaFormat() {
+        // Must not be created
+    }
+}
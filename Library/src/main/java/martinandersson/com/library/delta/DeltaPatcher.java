@@ -0,0 +1,163 @@
+package martinandersson.com.library.delta;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Reconstructs a new file from a basis file and a delta produced by {@link
+ * DeltaEncoder}.<p>
+ * 
+ * Every byte written is also hashed, and the result must equal the SHA-256
+ * digest the encoder put in the END record. Hence a corrupt delta, or a delta
+ * computed against another version of the basis, is detected before anyone
+ * trust the output.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ * 
+ * @see DeltaFormat
+ */
+public final class DeltaPatcher
+{
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    private DeltaPatcher() {
+        // Is utility class
+    }
+    
+    /**
+     * Apply a delta.
+     * 
+     * @param basis the basis file the delta was computed against, read at
+     *              random positions
+     * @param delta the delta
+     * @param out where to write the new file
+     * 
+     * @return length of the new file
+     * 
+     * @throws IOException if the delta is malformed, does not belong to the
+     *         basis, fails verification, or on IO failure
+     */
+    public static long apply(SeekableByteChannel basis, ReadableByteChannel delta, WritableByteChannel out) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(delta), BUFFER_SIZE));
+        
+        if (in.readInt() != DeltaFormat.MAGIC) {
+            throw new IOException("Not a delta.");
+        }
+        
+        byte version = in.readByte();
+        
+        if (version != DeltaFormat.VERSION) {
+            throw new IOException("Unsupported delta version: " + version);
+        }
+        
+        final int blockSize = in.readInt();
+        final long basisLength = in.readLong();
+        
+        if (blockSize < 1) {
+            throw new IOException("Illegal block size: " + blockSize);
+        }
+        
+        if (basisLength != basis.size()) {
+            throw new IOException("Delta was computed against a basis of " + basisLength +
+                    " byte(s), but basis has " + basis.size() + " byte(s).");
+        }
+        
+        final MessageDigest digest = Signature.newStrongDigest();
+        final ByteBuffer buff = ByteBuffer.allocate(BUFFER_SIZE);
+        
+        long written = 0L;
+        
+        while (true) {
+            final byte type;
+            
+            try {
+                type = in.readByte();
+            }
+            catch (EOFException e) {
+                throw new IOException("Delta has no END record.", e);
+            }
+            
+            switch (type) {
+                case DeltaFormat.COPY: {
+                    long from = (long) in.readInt() * blockSize;
+                    long len = Math.min((long) in.readInt() * blockSize, basisLength - from);
+                    
+                    if (from < 0L || len < 1L) {
+                        throw new IOException("Illegal copy of " + len + " byte(s) from " + from + ".");
+                    }
+                    
+                    for (long done = 0L; done < len; ) {
+                        buff.clear();
+                        buff.limit((int) Math.min(buff.capacity(), len - done));
+                        
+                        if (basis.position(from + done).read(buff) == -1) {
+                            throw new IOException("Basis shrunk while patching.");
+                        }
+                        
+                        buff.flip();
+                        done += buff.remaining();
+                        written += write(buff, digest, out);
+                    }
+                    break;
+                }
+                
+                case DeltaFormat.LITERAL: {
+                    int len = in.readInt();
+                    
+                    if (len < 1) {
+                        throw new IOException("Illegal literal length: " + len);
+                    }
+                    
+                    for (int done = 0; done < len; ) {
+                        int n = Math.min(buff.capacity(), len - done);
+                        in.readFully(buff.array(), 0, n);
+                        buff.position(0).limit(n);
+                        done += n;
+                        written += write(buff, digest, out);
+                    }
+                    break;
+                }
+                
+                case DeltaFormat.END: {
+                    long length = in.readLong();
+                    byte[] expected = new byte[DeltaFormat.DIGEST_LENGTH];
+                    in.readFully(expected);
+                    
+                    if (length != written) {
+                        throw new IOException("Expected " + length + " byte(s), patched " + written + ".");
+                    }
+                    
+                    if (!Arrays.equals(expected, digest.digest())) {
+                        throw new IOException("Patched file failed SHA-256 verification.");
+                    }
+                    
+                    return written;
+                }
+                
+                default:
+                    throw new IOException("Unknown delta record type: " + type);
+            }
+        }
+    }
+    
+    private static int write(ByteBuffer buff, MessageDigest digest, WritableByteChannel out) throws IOException {
+        digest.update(buff.array(), buff.arrayOffset() + buff.position(), buff.remaining());
+        
+        int n = buff.remaining();
+        
+        while (buff.hasRemaining()) {
+            out.write(buff);
+        }
+        
+        return n;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,79 @@
+package martinandersson.com.library.delta;
+
+/**
+ * The weak, rolling checksum of rsync.<p>
+ * 
+ * For a window of bytes {@code x[k]..x[l]}, the checksum is made of two 16 bit
+ * halves:
+ * <pre>{@code
+ * 
+ *     a = (x[k] + .. + x[l]) mod 2^16
+ *     b = ((l - k + 1) * x[k] + (l - k) * x[k + 1] + .. + 1 * x[l]) mod 2^16
+ * 
+ *     checksum = a + 2^16 * b
+ * 
+ * }</pre>
+ * 
+ * The point is that moving the window one byte forward is O(1) no matter the
+ * window size, which is what make it affordable to look for a matching block at
+ * every single offset of a file.<p>
+ * 
+ * See: https://rsync.samba.org/tech_report/node3.html
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class RollingChecksum
+{
+    private int a, b, length;
+    
+    /**
+     * Compute the checksum from scratch.
+     * 
+     * @param buf bytes
+     * @param off offset of window start
+     * @param len window length
+     * 
+     * @return this, for chaining
+     */
+    public RollingChecksum reset(byte[] buf, int off, int len) {
+        a = b = 0;
+        length = len;
+        
+        for (int i = 0; i < len; ++i) {
+            int x = buf[off + i] & 0xFF;
+            a += x;
+            b += (len - i) * x;
+        }
+        
+        return this;
+    }
+    
+    /**
+     * Move the window one byte forward.
+     * 
+     * @param out byte leaving the window (the first)
+     * @param in byte entering the window (next after the last)
+     */
+    public void roll(byte out, byte in) {
+        int o = out & 0xFF;
+        a += (in & 0xFF) - o;
+        b += a - length * o;
+    }
+    
+    public int get() {
+        return (a & 0xFFFF) | (b << 16);
+    }
+    
+    /**
+     * Compute the checksum of a window without keeping state.
+     * 
+     * @param buf bytes
+     * @param off offset of window start
+     * @param len window length
+     * 
+     * @return the checksum
+     */
+    public static int of(byte[] buf, int off, int len) {
+        return new RollingChecksum().reset(buf, off, len).get();
+    }
+}
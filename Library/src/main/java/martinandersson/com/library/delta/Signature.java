@@ -0,0 +1,270 @@
+package martinandersson.com.library.delta;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The signature of a basis file: for each fixed-size block, a weak rolling
+ * checksum and a strong hash.<p>
+ * 
+ * The server compute the signature of the copy he already has and send it to
+ * the client, who then use it to find out which parts of the new file the
+ * server already has (see {@link DeltaEncoder}).<p>
+ * 
+ * The strong hash is a SHA-256 digest truncated to {@value #STRONG_LENGTH}
+ * bytes. It is only computed for blocks whose weak checksum already matched,
+ * and then it has to be right, so we don't skimp on the algorithm. Truncation
+ * halves the size of the signature without any practical loss.<p>
+ * 
+ * Instances are immutable.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class Signature
+{
+    /** Bytes of the strong hash stored per block. Current value: {@value}. */
+    public static final int STRONG_LENGTH = 16;
+    
+    /** Current value: {@value}. */
+    public static final int MIN_BLOCK_SIZE = 2 * 1024;
+    
+    /**
+     * Largest block size chosen by the square root rule. Larger files get
+     * larger blocks only to stay within {@link #MAX_BLOCKS}. Current value:
+     * {@value}.
+     */
+    public static final int MAX_BLOCK_SIZE = 128 * 1024;
+    
+    /**
+     * Most blocks a signature may have, so that the signature, some 640 KiB at
+     * most, fit the client's buffer for the accept message. Current value:
+     * {@value}.
+     */
+    public static final int MAX_BLOCKS = 32 * 1024;
+    
+    private static final int RECORD_LENGTH = Integer.BYTES + STRONG_LENGTH;
+    
+    private final int blockSize;
+    private final long length;
+    
+    private final int[] weak;
+    private final byte[] strong;
+    
+    private Signature(int blockSize, long length, int[] weak, byte[] strong) {
+        this.blockSize = blockSize;
+        this.length = length;
+        this.weak = weak;
+        this.strong = strong;
+    }
+    
+    /**
+     * Returns a block size suitable for a basis file of the provided length.<p>
+     * 
+     * Just like rsync, the block size is the square root of the file length,
+     * which balance the size of the signature against the size of the literal
+     * data sent around each change. The result is rounded up to a multiple of
+     * 1 KiB and kept between {@value #MIN_BLOCK_SIZE} and {@value
+     * #MAX_BLOCK_SIZE}, unless the file is so large (beyond some 4 GiB) that
+     * the block size has to grow further to stay within {@value #MAX_BLOCKS}
+     * blocks.
+     * 
+     * @param length basis file length
+     * 
+     * @return the block size
+     * 
+     * @throws IllegalArgumentException if the file is too large for any block size
+     */
+    public static int blockSizeFor(long length) {
+        long root = (long) Math.sqrt((double) length);
+        long rounded = (root + 1023L) & ~1023L;
+        long fewest = ((length + MAX_BLOCKS - 1) / MAX_BLOCKS + 1023L) & ~1023L; // <-- stay within MAX_BLOCKS
+        
+        if (fewest > Integer.MAX_VALUE - 1023) {
+            throw new IllegalArgumentException("File too large for a signature: " + length + " bytes.");
+        }
+        
+        return (int) Math.max(fewest, Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, rounded)));
+    }
+    
+    /**
+     * Compute the signature of a basis file.
+     * 
+     * @param basis channel to read the basis from, from position 0 and on
+     * @param blockSize block size
+     * 
+     * @return the signature
+     * 
+     * @throws IOException if reading fails
+     * @throws IllegalArgumentException if the basis would have more than
+     *         {@value #MAX_BLOCKS} blocks
+     */
+    public static Signature compute(SeekableByteChannel basis, int blockSize) throws IOException {
+        final long length = basis.size(),
+                   count = (length + blockSize - 1) / blockSize;
+        
+        if (count > MAX_BLOCKS) {
+            throw new IllegalArgumentException("Basis has " + count + " blocks of " + blockSize +
+                    " bytes, at most " + MAX_BLOCKS + " allowed.");
+        }
+        
+        final int blocks = (int) count;
+        
+        final MessageDigest sha = newStrongDigest();
+        final int[] weak = new int[blocks];
+        final byte[] strong = new byte[blocks * STRONG_LENGTH];
+        
+        ByteBuffer buff = ByteBuffer.allocate(blockSize);
+        
+        basis.position(0L);
+        
+        for (int i = 0; i < blocks; ++i) {
+            buff.clear();
+            
+            while (buff.hasRemaining() && basis.read(buff) != -1) {
+                ; // Keep reading until block is full or file is exhausted
+            }
+            
+            weak[i] = RollingChecksum.of(buff.array(), 0, buff.position());
+            
+            sha.update(buff.array(), 0, buff.position());
+            System.arraycopy(sha.digest(), 0, strong, i * STRONG_LENGTH, STRONG_LENGTH);
+        }
+        
+        return new Signature(blockSize, length, weak, strong);
+    }
+    
+    public int getBlockSize() {
+        return blockSize;
+    }
+    
+    /**
+     * Returns the length of the basis file.
+     * 
+     * @return the length of the basis file
+     */
+    public long getLength() {
+        return length;
+    }
+    
+    public int getBlockCount() {
+        return weak.length;
+    }
+    
+    /**
+     * Returns the length of a block. All blocks but the last one are {@code
+     * getBlockSize()} long.
+     * 
+     * @param block block index
+     * 
+     * @return the length of the block
+     */
+    public int getBlockLength(int block) {
+        return (int) Math.min(blockSize, length - (long) block * blockSize);
+    }
+    
+    public int getWeak(int block) {
+        return weak[block];
+    }
+    
+    /**
+     * Test if the strong hash of a block equals the provided strong hash.
+     * 
+     * @param block block index
+     * @param hash full or truncated strong hash
+     * 
+     * @return {@code true} if equal, otherwise {@code false}
+     */
+    public boolean strongEquals(int block, byte[] hash) {
+        final int off = block * STRONG_LENGTH;
+        
+        for (int i = 0; i < STRONG_LENGTH; ++i) {
+            if (strong[off + i] != hash[i]) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Serialize this signature into a byte array suitable for transport.
+     * 
+     * @return the serialized signature
+     */
+    public byte[] toBytes() {
+        ByteBuffer buff = ByteBuffer.allocate(Integer.BYTES + Long.BYTES + weak.length * RECORD_LENGTH);
+        
+        buff.putInt(blockSize).putLong(length);
+        
+        for (int i = 0; i < weak.length; ++i) {
+            buff.putInt(weak[i]).put(strong, i * STRONG_LENGTH, STRONG_LENGTH);
+        }
+        
+        return buff.array();
+    }
+    
+    /**
+     * Deserialize a signature produced by {@link #toBytes()}.
+     * 
+     * @param bytes the serialized signature
+     * 
+     * @return the signature
+     * 
+     * @throws IllegalArgumentException if the bytes are malformed
+     */
+    public static Signature fromBytes(byte[] bytes) {
+        ByteBuffer buff = ByteBuffer.wrap(bytes);
+        
+        int blockSize = buff.getInt();
+        long length = buff.getLong();
+        
+        if (blockSize < 1 || length < 0L || buff.remaining() % RECORD_LENGTH != 0) {
+            throw new IllegalArgumentException("Malformed signature.");
+        }
+        
+        int blocks = buff.remaining() / RECORD_LENGTH;
+        
+        if (blocks > MAX_BLOCKS) {
+            throw new IllegalArgumentException("Signature has " + blocks + " block(s), at most " + MAX_BLOCKS + " allowed.");
+        }
+        
+        if (blocks != (length + blockSize - 1) / blockSize) {
+            throw new IllegalArgumentException("Signature has " + blocks + " block(s), expected " +
+                    ((length + blockSize - 1) / blockSize) + ".");
+        }
+        
+        int[] weak = new int[blocks];
+        byte[] strong = new byte[blocks * STRONG_LENGTH];
+        
+        for (int i = 0; i < blocks; ++i) {
+            weak[i] = buff.getInt();
+            buff.get(strong, i * STRONG_LENGTH, STRONG_LENGTH);
+        }
+        
+        return new Signature(blockSize, length, weak, strong);
+    }
+    
+    static MessageDigest newStrongDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new AssertionError(e);
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return new StringBuilder(Signature.class.getSimpleName())
+                .append('[')
+                  .append("blockSize=").append(blockSize)
+                  .append(", length=").append(length)
+                  .append(", blocks=").append(weak.length)
+                .append(']')
+                .toString();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,159 @@
+package martinandersson.com.library.merkle;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A message digest whose result is the root of a {@link MerkleTree}.<p>
+ * 
+ * The digest plug into any code that already compute a digest of a transfer,
+ * on both sides, and build the tree as the bytes flow through. Each block is
+ * hashed as soon as it is complete, so the running cost is that of a flat
+ * SHA-256. After {@link #digest()}, the whole tree is available from {@link
+ * #getTree()}. Cloning, and so {@link
+ * martinandersson.com.library.Digests#peek(MessageDigest)}, is supported.<p>
+ * 
+ * Known to {@link martinandersson.com.library.Digests#newDigest(String)} by
+ * name {@value #ALGORITHM}.<p>
+ * 
+ * Not safe to use by concurrent threads.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class MerkleDigest extends MessageDigest implements Cloneable
+{
+    /** Name of the digest algorithm. Current value: {@value}. */
+    public static final String ALGORITHM = "MERKLE-SHA-256";
+    
+    
+    
+    private final int blockSize;
+    
+    /** Hash of the current block, fed the leaf prefix already. */
+    private MessageDigest block;
+    
+    private int inBlock;
+    
+    private long size;
+    
+    private List<byte[]> leaves = new ArrayList<>();
+    
+    private MerkleTree tree; // <-- of the last digest()
+    
+    /**
+     * Initializes a new digest using blocks of {@value
+     * MerkleTree#DEFAULT_BLOCK_SIZE} bytes.
+     */
+    public MerkleDigest() {
+        this(MerkleTree.DEFAULT_BLOCK_SIZE);
+    }
+    
+    /**
+     * Initializes a new digest.
+     * 
+     * @param blockSize bytes per leaf
+     * 
+     * @throws IllegalArgumentException if {@code blockSize} is not positive
+     */
+    public MerkleDigest(int blockSize) {
+        super(ALGORITHM);
+        
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Block size must be positive, got: " + blockSize);
+        }
+        
+        this.blockSize = blockSize;
+        this.block = MerkleTree.newHash();
+        this.block.update(MerkleTree.LEAF);
+    }
+    
+    /**
+     * Returns the tree whose root the last call to {@code digest()} returned.
+     * 
+     * @return the tree, or {@code null} if nothing has been digested yet
+     */
+    public MerkleTree getTree() {
+        return tree;
+    }
+    
+    @Override
+    protected void engineUpdate(byte input) {
+        engineUpdate(new byte[]{ input }, 0, 1);
+    }
+    
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int len) {
+        while (len > 0) {
+            final int n = Math.min(len, blockSize - inBlock);
+            
+            block.update(input, offset, n);
+            offset += n;
+            len -= n;
+            advance(n);
+        }
+    }
+    
+    @Override
+    protected void engineUpdate(ByteBuffer input) {
+        while (input.hasRemaining()) {
+            final int n = Math.min(input.remaining(), blockSize - inBlock);
+            
+            ByteBuffer part = input.duplicate();
+            part.limit(part.position() + n);
+            block.update(part); // <-- no copy if direct
+            
+            input.position(input.position() + n);
+            advance(n);
+        }
+    }
+    
+    @Override
+    protected byte[] engineDigest() {
+        if (inBlock > 0 || leaves.isEmpty()) {
+            endBlock();
+        }
+        
+        tree = new MerkleTree(blockSize, size, leaves.toArray(new byte[0][]));
+        engineReset();
+        return tree.getRoot();
+    }
+    
+    @Override
+    protected void engineReset() {
+        block.reset();
+        block.update(MerkleTree.LEAF);
+        inBlock = 0;
+        size = 0L;
+        leaves = new ArrayList<>();
+    }
+    
+    @Override
+    protected int engineGetDigestLength() {
+        return MerkleTree.HASH_LENGTH;
+    }
+    
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+        MerkleDigest clone = (MerkleDigest) super.clone();
+        clone.block = (MessageDigest) block.clone();
+        clone.leaves = new ArrayList<>(leaves); // <-- each leaf is never modified
+        return clone;
+    }
+    
+    private void advance(int n) {
+        inBlock += n;
+        size += n;
+        
+        if (inBlock == blockSize) {
+            endBlock();
+        }
+    }
+    
+    private void endBlock() {
+        leaves.add(block.digest());
+        block.update(MerkleTree.LEAF);
+        inBlock = 0;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,368 @@
+package martinandersson.com.library.merkle;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import martinandersson.com.library.Digests;
+
+/**
+ * A Merkle tree of SHA-256 hashes over the fixed-size blocks of a file.<p>
+ * 
+ * Each leaf is the hash of a zero byte followed by one block, the last block
+ * may be shorter. Each node above is the hash of a one byte followed by its
+ * two children. A node without a sibling is moved up as is. The prefixes keep
+ * a leaf from ever passing for a node. An empty file has one leaf, the hash of
+ * no block.<p>
+ * 
+ * Unlike a flat digest, blocks can be hashed in any order and by many
+ * threads, and a file can be checked block by block: {@link #verify(Source,
+ * int, Executor) verify()} tell which blocks of a file differ, and {@link
+ * #intactPrefix(BitSet) intactPrefix()} how much of a file, for example one
+ * whose transfer was interrupted, need not be sent again.<p>
+ * 
+ * The tree is built by a {@link MerkleDigest} as a file is transferred, and
+ * stored in a file of its own named after the file, see {@link #FILE_SUFFIX}.
+ * Only the leaves are stored, the nodes above are cheap to compute.<p>
+ * 
+ * Instances are immutable.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class MerkleTree
+{
+    /** Bytes of a file per leaf, unless configured. Current value: {@value}. */
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+    
+    /** Suffix of the file a tree is stored in. Current value: {@value}. */
+    public static final String FILE_SUFFIX = ".merkle";
+    
+    /** Hash of leaves and nodes. Current value: {@value}. */
+    static final String HASH_ALGORITHM = "SHA-256";
+    
+    /** Length of a hash. Current value: {@value}. */
+    static final int HASH_LENGTH = 32;
+    
+    static final byte LEAF = 0, NODE = 1;
+    
+    /** First four bytes of an encoded tree, "SLMT". Current value: {@value}. */
+    private static final int MAGIC = 0x534C4D54;
+    
+    /**
+     * Returns the name of the file holding the tree of a file.
+     * 
+     * @param file the file name
+     * 
+     * @return the tree file name
+     */
+    public static String fileOf(String file) {
+        return file + FILE_SUFFIX;
+    }
+    
+    /**
+     * Decode a tree.
+     * 
+     * @param in the encoded tree
+     * 
+     * @return the tree
+     * 
+     * @throws IOException if the tree is malformed
+     */
+    public static MerkleTree decode(ByteBuffer in) throws IOException {
+        try {
+            if (in.getInt() != MAGIC) {
+                throw new IOException("Not a Merkle tree.");
+            }
+            
+            final int blockSize = in.getInt();
+            final long size = in.getLong();
+            final int count = in.getInt();
+            
+            if (blockSize < 1 || size < 0L || count != blocks(size, blockSize) || (long) count * HASH_LENGTH > in.remaining()) {
+                throw new IOException("Bad sizes of Merkle tree: block size " + blockSize +
+                        ", file size " + size + ", " + count + " leaves.");
+            }
+            
+            final byte[][] leaves = new byte[count][HASH_LENGTH];
+            
+            for (byte[] leaf : leaves) {
+                in.get(leaf);
+            }
+            
+            return new MerkleTree(blockSize, size, leaves);
+        }
+        catch (RuntimeException e) {
+            // BufferUnderflowException
+            throw new IOException("Malformed Merkle tree.", e);
+        }
+    }
+    
+    /**
+     * Returns the number of blocks, and so leaves, of a file.
+     */
+    static int blocks(long size, int blockSize) {
+        return size == 0L ? 1 : (int) ((size + blockSize - 1) / blockSize);
+    }
+    
+    static MessageDigest newHash() {
+        return Digests.newDigest(HASH_ALGORITHM);
+    }
+    
+    /**
+     * Returns the root of the provided leaves.
+     */
+    static byte[] root(byte[][] leaves) {
+        final MessageDigest hash = newHash();
+        byte[][] level = leaves;
+        
+        while (level.length > 1) {
+            byte[][] up = new byte[(level.length + 1) / 2][];
+            
+            for (int i = 0; i < up.length; ++i) {
+                if (2 * i + 1 == level.length) {
+                    // No sibling:
+                    up[i] = level[2 * i];
+                }
+                else {
+                    hash.update(NODE);
+                    hash.update(level[2 * i]);
+                    hash.update(level[2 * i + 1]);
+                    up[i] = hash.digest();
+                }
+            }
+            
+            level = up;
+        }
+        
+        return level[0].clone();
+    }
+    
+    
+    
+    private final int blockSize;
+    
+    private final long size;
+    
+    private final byte[][] leaves;
+    
+    private final byte[] root;
+    
+    /**
+     * Initializes a new tree.
+     * 
+     * @param blockSize bytes of the file per leaf
+     * @param size bytes of the file
+     * @param leaves hash of each block, not copied
+     */
+    MerkleTree(int blockSize, long size, byte[][] leaves) {
+        this.blockSize = blockSize;
+        this.size = size;
+        this.leaves = leaves;
+        this.root = root(leaves);
+    }
+    
+    public int getBlockSize() {
+        return blockSize;
+    }
+    
+    public long getSize() {
+        return size;
+    }
+    
+    public int getBlockCount() {
+        return leaves.length;
+    }
+    
+    /**
+     * Returns the hash of a block.
+     * 
+     * @param index block index
+     * 
+     * @return the leaf
+     */
+    public byte[] getLeaf(int index) {
+        return leaves[index].clone();
+    }
+    
+    /**
+     * Returns the root hash, which vouch for the whole file.
+     * 
+     * @return the root
+     */
+    public byte[] getRoot() {
+        return root.clone();
+    }
+    
+    /**
+     * Hash the blocks of a file and compare each with its leaf.<p>
+     * 
+     * The blocks are split into as many contiguous slices as there are
+     * workers, and each worker hash its slice using a channel of its own. The
+     * calling thread is one of the workers, the others run on the provided
+     * executor.<p>
+     * 
+     * A block the file is too short to hold is bad. Bytes past the size of
+     * the tree are ignored.
+     * 
+     * @param source opens the file, once per worker
+     * @param workers most threads hashing at once
+     * @param executor runs all workers but one
+     * 
+     * @return index of all blocks that differ, empty if the file is intact
+     * 
+     * @throws IOException if reading the file fails
+     */
+    public BitSet verify(Source source, int workers, Executor executor) throws IOException {
+        final int n = Math.max(1, Math.min(workers, leaves.length));
+        final BitSet bad = new BitSet(leaves.length);
+        
+        List<CompletableFuture<BitSet>> others = new ArrayList<>(n - 1);
+        
+        for (int w = 1; w < n; ++w) {
+            final int from = leaves.length * w / n,
+                      to   = leaves.length * (w + 1) / n;
+            
+            others.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return verify(source, from, to);
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, executor));
+        }
+        
+        IOException failure = null;
+        
+        try {
+            bad.or(verify(source, 0, leaves.length / n));
+        }
+        catch (IOException e) {
+            failure = e;
+        }
+        
+        for (CompletableFuture<BitSet> f : others) {
+            try {
+                bad.or(f.join());
+            }
+            catch (CompletionException e) {
+                IOException cause = e.getCause() instanceof UncheckedIOException ?
+                        ((UncheckedIOException) e.getCause()).getCause() :
+                        new IOException(e.getCause());
+                
+                if (failure == null) {
+                    failure = cause;
+                }
+                else {
+                    failure.addSuppressed(cause);
+                }
+            }
+        }
+        
+        if (failure != null) {
+            throw failure;
+        }
+        
+        return bad;
+    }
+    
+    /**
+     * Returns how many bytes from the start of a file are intact, given the
+     * blocks {@link #verify(Source, int, Executor) verify()} found bad. A
+     * resumed transfer may continue from there.
+     * 
+     * @param bad blocks that differ
+     * 
+     * @return length of the intact prefix
+     */
+    public long intactPrefix(BitSet bad) {
+        final int first = bad.nextSetBit(0);
+        return first < 0 || first >= leaves.length ? size : (long) first * blockSize;
+    }
+    
+    /**
+     * Encode this tree: magic, block size, file size, number of leaves and the
+     * leaves.
+     * 
+     * @return the encoded tree, ready to be written
+     */
+    public ByteBuffer encode() {
+        ByteBuffer out = ByteBuffer.allocate(Integer.BYTES * 3 + Long.BYTES + leaves.length * HASH_LENGTH);
+        out.putInt(MAGIC).putInt(blockSize).putLong(size).putInt(leaves.length);
+        
+        for (byte[] leaf : leaves) {
+            out.put(leaf);
+        }
+        
+        out.flip();
+        return out;
+    }
+    
+    @Override
+    public String toString() {
+        return new StringBuilder(MerkleTree.class.getSimpleName())
+                .append('[')
+                  .append("blockSize=").append(blockSize)
+                  .append(", size=").append(size)
+                  .append(", blocks=").append(leaves.length)
+                .append(']')
+                .toString();
+    }
+    
+    /**
+     * Hash blocks {@code from} (inclusive) to {@code to} (exclusive) of a
+     * file.
+     */
+    private BitSet verify(Source source, int from, int to) throws IOException {
+        final BitSet bad = new BitSet();
+        final MessageDigest hash = newHash();
+        final ByteBuffer buff = ByteBuffer.allocate((int) Math.min(blockSize, Math.max(size, 1L)));
+        
+        try (SeekableByteChannel in = source.open()) {
+            in.position((long) from * blockSize);
+            
+            for (int i = from; i < to; ++i) {
+                buff.clear().limit((int) Math.min(blockSize, size - (long) i * blockSize));
+                
+                while (buff.hasRemaining() && in.read(buff) >= 0) {
+                    // Keep reading
+                }
+                
+                buff.flip();
+                hash.update(LEAF);
+                hash.update(buff);
+                
+                byte[] leaf = hash.digest();
+                
+                // A short read hash to something else, so the file being too short need no check of its own:
+                if (!MessageDigest.isEqual(leaf, leaves[i])) {
+                    bad.set(i);
+                }
+            }
+        }
+        
+        return bad;
+    }
+    
+    /**
+     * Opens the file to verify.
+     */
+    @FunctionalInterface
+    public interface Source {
+        /**
+         * Open the file for reading.
+         * 
+         * @return a new channel of the file
+         * 
+         * @throws IOException on IO failure
+         */
+        SeekableByteChannel open() throws IOException;
+    }
+}
\ No newline at end of file
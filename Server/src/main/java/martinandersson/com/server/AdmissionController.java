@@ -0,0 +1,449 @@
+package martinandersson.com.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Caps the number of file transfers running at the same time, in total and
+ * per user, and queue the rest.<p>
+ * 
+ * A queued request is admitted as soon as a slot is free, but not in arrival
+ * order. Each user has a count of bytes admitted so far (the "service") and
+ * the next request admitted is the one whose user has received the least
+ * service. A user pushing 50 files therefore get every other slot at most
+ * while someone else is waiting, and a user sending small files is not stuck
+ * behind a few huge ones. This is start-time fair queuing with the
+ * announced file size as cost. A user who was idle start at the service of
+ * the least served user still around, so idling does not earn credit.<p>
+ * 
+ * Every queued request is told its position and an estimated wait each time
+ * the queue change. Both come from playing the queue forward, assuming that
+ * transfers finish in the order they started, that no more requests arrive,
+ * and respecting both limits, so a request held back by the limit of its own
+ * user is told so. The estimate divide the bytes that must finish first by an
+ * average of the throughput observed for completed transfers, times the
+ * number of slots. It is rough, but better than nothing.<p>
+ * 
+ * Listeners are always called without holding the controller's lock, and
+ * {@code onQueued()} is never called after {@code onAdmitted()}.<p>
+ * 
+ * Safe to use by concurrent threads.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class AdmissionController
+{
+    private static final Logger LOGGER = Logger.getLogger(AdmissionController.class.getName());
+    
+    /** System property setting the maximum number of transfers running at once. Current value: {@value}. */
+    public static final String TOTAL_PROPERTY = "martinandersson.com.server.admission.total";
+    
+    /** System property setting the maximum number of transfers per user. Current value: {@value}. */
+    public static final String PER_USER_PROPERTY = "martinandersson.com.server.admission.perUser";
+    
+    /** Cost of a transfer of unknown size. Current value: {@value}. */
+    private static final long UNKNOWN_SIZE_COST = 1_000_000L;
+    
+    /** Weight of a new throughput sample. */
+    private static final double EWMA_WEIGHT = 0.2;
+    
+    
+    
+    /**
+     * Called when a request change state. Methods are called by whichever
+     * thread caused the change.
+     */
+    public interface Listener {
+        /**
+         * The request is waiting.
+         * 
+         * @param position 1 if the request is next in line
+         * @param estimatedWaitMillis estimated time until admission, or
+         *        {@code -1} if unknown
+         */
+        void onQueued(int position, long estimatedWaitMillis);
+        
+        /**
+         * The request has been admitted and may start. Release the ticket
+         * once the transfer is done.
+         * 
+         * @param ticket the ticket
+         */
+        void onAdmitted(Ticket ticket);
+    }
+    
+    private final int maxTotal, maxPerUser;
+    
+    private final Map<String, User> users = new HashMap<>();
+    
+    /** Waiting tickets, in arrival order. */
+    private final List<Ticket> queue = new ArrayList<>();
+    
+    /** Admitted tickets, in admission order. */
+    private final List<Ticket> running = new ArrayList<>();
+    
+    private int active;
+    
+    private long seq;
+    
+    /** Average bytes per second of one transfer, {@code 0} until a transfer has completed. */
+    private double throughput;
+    
+    /**
+     * Initializes a controller with limits read from system properties
+     * {@value #TOTAL_PROPERTY} (default 8) and {@value #PER_USER_PROPERTY}
+     * (default 2).
+     * 
+     * @return a new controller
+     */
+    public static AdmissionController fromSystemProperties() {
+        return new AdmissionController(
+                Integer.getInteger(TOTAL_PROPERTY, 8),
+                Integer.getInteger(PER_USER_PROPERTY, 2));
+    }
+    
+    /**
+     * Initializes a new controller.
+     * 
+     * @param maxTotal transfers running at once, in total
+     * @param maxPerUser transfers running at once, per user
+     * 
+     * @throws IllegalArgumentException if a limit is not positive
+     */
+    public AdmissionController(int maxTotal, int maxPerUser) {
+        if (maxTotal < 1 || maxPerUser < 1) {
+            throw new IllegalArgumentException("Limits must be positive, got: " + maxTotal + " and " + maxPerUser);
+        }
+        
+        this.maxTotal = maxTotal;
+        this.maxPerUser = maxPerUser;
+        
+        LOGGER.info(() -> "Admitting " + maxTotal + " transfer(s) at once, " + maxPerUser + " per user.");
+    }
+    
+    /**
+     * Ask for a transfer to be admitted. The listener is called with {@code
+     * onAdmitted()} once, possibly before this method return, and before
+     * that, with {@code onQueued()} zero or more times.
+     * 
+     * @param user who ask
+     * @param size announced file size, or {@code -1} if unknown
+     * @param listener listener
+     * 
+     * @return the ticket, to be released when the transfer is done or
+     *         abandoned
+     */
+    public Ticket request(String user, long size, Listener listener) {
+        final Ticket t;
+        final List<Runnable> notify;
+        
+        synchronized (this) {
+            User u = users.computeIfAbsent(user, name -> new User(name, leastService()));
+            t = new Ticket(u, size > 0L ? size : UNKNOWN_SIZE_COST, listener, ++seq);
+            
+            queue.add(t);
+            ++u.waiting;
+            
+            notify = schedule();
+        }
+        
+        run(notify);
+        return t;
+    }
+    
+    public synchronized int getActive() {
+        return active;
+    }
+    
+    public synchronized int getQueued() {
+        return queue.size();
+    }
+    
+    /**
+     * Admit as many tickets as the limits allow, then compute the position of
+     * all still waiting.
+     * 
+     * @return listener calls to make once the lock has been released
+     */
+    private List<Runnable> schedule() {
+        List<Runnable> notify = new ArrayList<>();
+        
+        Ticket next;
+        
+        while (active < maxTotal && (next = pickNext()) != null) {
+            queue.remove(next);
+            running.add(next);
+            
+            User u = next.user;
+            --u.waiting;
+            ++u.active;
+            u.service += next.cost;
+            ++active;
+            
+            next.admittedAt = System.nanoTime();
+            
+            final Ticket t = next;
+            LOGGER.fine(() -> "Admitted a transfer of " + t.user.name + ", " + active + " running, " + queue.size() + " waiting.");
+            notify.add(() -> {
+                synchronized (t) {
+                    t.admitted = true;
+                }
+                
+                t.listener.onAdmitted(t);
+            });
+        }
+        
+        if (!queue.isEmpty()) {
+            positions(notify);
+        }
+        
+        return notify;
+    }
+    
+    /**
+     * Returns the waiting ticket whose user is least served, not counting
+     * users who already run as many transfers as they may.
+     * 
+     * @return next ticket to admit, or {@code null}
+     */
+    private Ticket pickNext() {
+        Ticket best = null;
+        
+        for (Ticket t : queue) {
+            if (t.user.active >= maxPerUser) {
+                continue;
+            }
+            
+            if (best == null || t.user.service < best.user.service) {
+                best = t; // <-- queue is in arrival order, so ties go to the oldest
+            }
+        }
+        
+        return best;
+    }
+    
+    /**
+     * Compute the order in which waiting tickets would be admitted, assuming
+     * no more requests arrive and transfers finish in the order they started,
+     * and queue a notification for each.
+     * 
+     * @param notify where to put the notifications
+     */
+    private void positions(List<Runnable> notify) {
+        Map<User, Long> service = new HashMap<>();
+        Map<User, Integer> busy = new HashMap<>();
+        
+        List<Ticket> left = new ArrayList<>(queue);
+        
+        // Who finish next, oldest first:
+        Deque<Ticket> started = new ArrayDeque<>(running);
+        
+        int free = maxTotal - active;
+        long ahead = 0L;
+        
+        for (Ticket t : queue) {
+            service.put(t.user, t.user.service);
+            busy.put(t.user, t.user.active);
+        }
+        
+        for (Ticket t : running) {
+            busy.put(t.user, t.user.active);
+        }
+        
+        for (int position = 1; !left.isEmpty(); ++position) {
+            Ticket best;
+            
+            // Let transfers finish until a slot is free and someone may take it:
+            while ((best = pickNext(left, service, busy)) == null || free == 0) {
+                Ticket done = started.poll();
+                
+                if (done == null) {
+                    return; // <-- can not happen, a user who may not start has something running
+                }
+                
+                busy.merge(done.user, -1, Integer::sum);
+                ahead += done.cost;
+                ++free;
+            }
+            
+            left.remove(best);
+            started.add(best);
+            service.merge(best.user, best.cost, Long::sum);
+            busy.merge(best.user, 1, Integer::sum);
+            --free;
+            
+            final Ticket t = best;
+            final int p = position;
+            final long wait = estimateMillis(ahead);
+            
+            if (t.position != p) {
+                t.position = p;
+                notify.add(() -> t.queued(p, wait));
+            }
+        }
+    }
+    
+    /**
+     * Returns the ticket whose user is least served, not counting users who
+     * would run as many transfers as they may.
+     */
+    private Ticket pickNext(List<Ticket> left, Map<User, Long> service, Map<User, Integer> busy) {
+        Ticket best = null;
+        
+        for (Ticket t : left) {
+            if (busy.get(t.user) >= maxPerUser) {
+                continue;
+            }
+            
+            if (best == null || service.get(t.user) < service.get(best.user)) {
+                best = t;
+            }
+        }
+        
+        return best;
+    }
+    
+    private long estimateMillis(long bytesAhead) {
+        if (throughput <= 0.0) {
+            return -1L;
+        }
+        
+        return (long) (1000.0 * bytesAhead / (throughput * maxTotal));
+    }
+    
+    private long leastService() {
+        return users.values().stream()
+                .mapToLong(u -> u.service)
+                .min()
+                .orElse(0L);
+    }
+    
+    private void release(Ticket t) {
+        final List<Runnable> notify;
+        
+        synchronized (this) {
+            if (t.released) {
+                return;
+            }
+            
+            t.released = true;
+            User u = t.user;
+            
+            if (queue.remove(t)) {
+                --u.waiting;
+            }
+            else {
+                running.remove(t);
+                --u.active;
+                --active;
+                sample(t);
+            }
+            
+            if (u.active == 0 && u.waiting == 0) {
+                users.remove(u.name);
+            }
+            
+            notify = schedule();
+        }
+        
+        run(notify);
+    }
+    
+    private static void run(List<Runnable> notify) {
+        for (Runnable n : notify) {
+            try {
+                n.run();
+            }
+            catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Admission listener failed.", e);
+            }
+        }
+    }
+    
+    private void sample(Ticket t) {
+        if (t.cost == UNKNOWN_SIZE_COST) {
+            return;
+        }
+        
+        double seconds = (System.nanoTime() - t.admittedAt) / 1e9;
+        
+        if (seconds <= 0.0) {
+            return;
+        }
+        
+        double bps = t.cost / seconds;
+        throughput = throughput == 0.0 ? bps : (1 - EWMA_WEIGHT) * throughput + EWMA_WEIGHT * bps;
+    }
+    
+    private static final class User {
+        final String name;
+        
+        long service;
+        
+        int active, waiting;
+        
+        User(String name, long service) {
+            this.name = name;
+            this.service = service;
+        }
+    }
+    
+    /**
+     * A request for, or the right to run, one transfer.
+     */
+    public final class Ticket {
+        private final User user;
+        private final long cost;
+        private final Listener listener;
+        private final long id;
+        
+        private long admittedAt;
+        private int position;
+        private boolean released;
+        
+        private boolean admitted; // <-- guarded by this, not the controller
+        
+        private Ticket(User user, long cost, Listener listener, long id) {
+            this.user = user;
+            this.cost = cost;
+            this.listener = listener;
+            this.id = id;
+        }
+        
+        /**
+         * Give back the slot of an admitted transfer, or leave the queue.
+         * Does nothing if already released.
+         */
+        public void release() {
+            AdmissionController.this.release(this);
+        }
+        
+        /**
+         * Notify the listener of a new position, unless another thread has
+         * already told him that he is admitted. Notifications are run outside
+         * the controller's lock, so a stale one may come late.
+         */
+        private synchronized void queued(int position, long waitMillis) {
+            if (!admitted) {
+                listener.onQueued(position, waitMillis);
+            }
+        }
+        
+        @Override
+        public String toString() {
+            return new StringBuilder(Ticket.class.getSimpleName())
+                    .append('[')
+                      .append("id=").append(id)
+                      .append(", user=").append(user.name)
+                      .append(", cost=").append(cost)
+                    .append(']')
+                    .toString();
+        }
+    }
+}
\ No newline at end of file
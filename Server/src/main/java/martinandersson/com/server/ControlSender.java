@@ -0,0 +1,16 @@
+package martinandersson.com.server;
+
+import java.io.IOException;
+import martinandersson.com.library.control.ControlMessage;
+
+/**
+ * Sends control messages to the client, using whichever control protocol was
+ * negotiated.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+@FunctionalInterface
+public interface ControlSender
+{
+    void send(ControlMessage msg) throws IOException;
+}
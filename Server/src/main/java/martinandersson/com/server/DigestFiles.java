@@ -0,0 +1,93 @@
+package martinandersson.com.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import martinandersson.com.library.Hex;
+import martinandersson.com.library.merkle.MerkleTree;
+import martinandersson.com.server.storage.StorageBackend;
+import martinandersson.com.server.storage.StorageWriter;
+
+/**
+ * Persists the integrity digest of a received file in a file of its own.<p>
+ * 
+ * The digest file is named after the file and the algorithm, for example
+ * {@code movie.mkv.sha256}, and use the format of {@code sha256sum} and
+ * friends, so it may be checked from a shell standing in the directory of the
+ * file. A sharded storage might have put the digest file on another disk:
+ * <pre>{@code
+ * 
+ *     sha256sum -c /mnt/disk2/movie.mkv.sha256
+ * 
+ * }</pre>
+ * 
+ * The root of a {@link MerkleTree} is not written this way, no shell tool
+ * check it. If the client asked for one, the whole tree is written instead,
+ * to {@code movie.mkv.merkle}, so that the blocks of the file can be verified
+ * in parallel, or a copy of it checked block by block.<p>
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class DigestFiles
+{
+    private DigestFiles() {
+        // Is utility class
+    }
+    
+    /**
+     * Returns the name of the digest file of the provided file.
+     * 
+     * @param file the file name
+     * @param algorithm digest algorithm
+     * 
+     * @return the digest file name
+     */
+    public static String of(String file, String algorithm) {
+        String ext = algorithm.toLowerCase(Locale.ROOT).replace("-", "");
+        return file + "." + ext;
+    }
+    
+    /**
+     * Write the digest of a file.
+     * 
+     * @param storage where the file is
+     * @param file the file name
+     * @param algorithm digest algorithm
+     * @param digest the digest
+     * 
+     * @throws IOException if writing fails
+     */
+    public static void write(StorageBackend storage, String file, String algorithm, byte[] digest) throws IOException {
+        String line = Hex.toHex(digest) + " *" + file + "\n";
+        write(storage, of(file, algorithm), ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8)));
+    }
+    
+    /**
+     * Write the Merkle tree of a file.
+     * 
+     * @param storage where the file is
+     * @param file the file name
+     * @param tree the tree
+     * 
+     * @throws IOException if writing fails
+     */
+    public static void write(StorageBackend storage, String file, MerkleTree tree) throws IOException {
+        write(storage, MerkleTree.fileOf(file), tree.encode());
+    }
+    
+    private static void write(StorageBackend storage, String name, ByteBuffer bytes) throws IOException {
+        StorageWriter out = storage.openForWrite(name);
+        
+        try {
+            while (bytes.hasRemaining()) {
+                out.write(bytes);
+            }
+            
+            out.commit();
+        }
+        finally {
+            out.abort(); // <-- no-op if committed
+        }
+    }
+}
\ No newline at end of file
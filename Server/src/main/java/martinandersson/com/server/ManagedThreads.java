@@ -0,0 +1,121 @@
+package martinandersson.com.server;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+
+/**
+ * Runs tasks asynchronously using the container's default managed executor
+ * service, or a new managed thread if the executor reject the task.<p>
+ * 
+ * Used for work that must not happen on the thread that deliver a websocket
+ * message, such as removing the message handler that is currently executing.<p>
+ * 
+ * If system property {@value #MODE_PROPERTY} is set to {@code "virtual"}, then
+ * all tasks instead run on a virtual thread per task, and the InputStream
+ * file receivers drain each message on one, see {@link
+ * martinandersson.com.server.filereceiver.AbstractInputStreamFileReceiver}.
+ * Ten thousand slow uploads then cost memory instead of platform threads.
+ * Virtual threads are
+ * looked up reflectively, so the server still build for Java 8. On a runtime
+ * without them, each task get a new daemon thread with a small stack, which is
+ * the next best thing. These threads are not managed by the
+ * container, so tasks must not depend on container context such as JNDI.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class ManagedThreads
+{
+    private static final Logger LOGGER = Logger.getLogger(ManagedThreads.class.getName());
+    
+    /** System property selecting the execution mode. Current value: {@value}. */
+    public static final String MODE_PROPERTY = "martinandersson.com.server.threads";
+    
+    /** Stack size of fallback threads when virtual threads are not available. Current value: {@value}. */
+    private static final long FALLBACK_STACK_SIZE = 256 * 1024;
+    
+    private static final ExecutorService executor;
+    private static final ThreadFactory threads;
+    
+    /** {@code null} unless running in virtual mode. */
+    private static final Executor virtual;
+    
+    static {
+        ExecutorService exec = null;
+        ThreadFactory factory = null;
+        
+        try {
+            exec = InitialContext.doLookup("java:comp/DefaultManagedExecutorService");
+        } catch (NamingException e) {
+            LOGGER.log(Level.SEVERE, "Failed to lookup managed executor service.", e);
+        }
+        
+        try {
+            factory = InitialContext.doLookup("java:comp/DefaultManagedThreadFactory");
+        } catch (NamingException e) {
+            LOGGER.log(Level.SEVERE, "Failed to lookup managed thread factory.", e);
+        }
+        
+        executor = exec;
+        threads = factory;
+        
+        virtual = "virtual".equalsIgnoreCase(System.getProperty(MODE_PROPERTY)) ?
+                newVirtualExecutor() :
+                null;
+    }
+    
+    private ManagedThreads() {
+        // Is utility class
+    }
+    
+    /**
+     * Returns {@code true} if tasks run on a thread of their own, so that a
+     * task may block for long without tying up a pooled thread.
+     * 
+     * @return {@code true} if running in virtual mode
+     */
+    public static boolean isVirtual() {
+        return virtual != null;
+    }
+    
+    public static void execute(Runnable task) {
+        if (virtual != null) {
+            virtual.execute(task);
+            return;
+        }
+        
+        try {
+            executor.submit(task);
+        }
+        catch (RejectedExecutionException e) {
+            LOGGER.warning(() -> "Task rejected, submitting to a new thread instead..");
+            threads.newThread(task).start();
+        }
+    }
+    
+    private static Executor newVirtualExecutor() {
+        try {
+            Executor exec = (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            LOGGER.info("Running blocking work on virtual threads.");
+            return exec;
+        }
+        catch (ReflectiveOperationException e) {
+            LOGGER.info(() -> "Virtual threads not available (" + e + "), using small-stack threads instead.");
+        }
+        
+        AtomicInteger n = new AtomicInteger();
+        
+        return task -> {
+            Thread t = new Thread(null, task, "slft-worker-" + n.incrementAndGet(), FALLBACK_STACK_SIZE);
+            t.setDaemon(true);
+            t.start();
+        };
+    }
+}
\ No newline at end of file
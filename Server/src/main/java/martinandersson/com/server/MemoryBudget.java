@@ -0,0 +1,297 @@
+package martinandersson.com.server;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * A global budget of heap memory that file receivers may hold in transfer
+ * buffers.<p>
+ * 
+ * Before a receiver process a message part, it {@linkplain #reserve(long)
+ * reserve} room for the bytes it is about to hold: the part itself, the
+ * decrypted output and whatever the cipher keep buffered until {@code
+ * doFinal()} (SunJCE's GCM buffer the whole ciphertext). If the budget is
+ * exhausted, the receiving thread wait for other receivers to release memory.
+ * The thread is the one that deliver the message, so waiting suspend delivery
+ * of the next part and for a chunked transfer, delay the chunk confirmation.
+ * The client is slowed down by TCP flow control instead of the server running
+ * out of heap.<p>
+ * 
+ * A receiver that wait longer than the configured timeout fail with an {@code
+ * IOException}. This is what break the tie should all receivers hold some
+ * memory while waiting for more. A reservation that grow past the whole budget
+ * is granted once no other reservation hold anything, so a receiver should
+ * keep all it hold in one reservation, see {@link Reservation#shrink(long)}.<p>
+ * 
+ * The budget is read from system property {@value #BUDGET_PROPERTY} (bytes)
+ * and default to a quarter of the maximum heap. The timeout is read from
+ * {@value #TIMEOUT_PROPERTY} (seconds) and default to 60. Usage is published
+ * as a platform MXBean named {@value #OBJECT_NAME}.<p>
+ * 
+ * Safe to use by concurrent threads.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class MemoryBudget implements MemoryBudgetMXBean
+{
+    private static final Logger LOGGER = Logger.getLogger(MemoryBudget.class.getName());
+    
+    /** System property setting the budget in bytes. Current value: {@value}. */
+    public static final String BUDGET_PROPERTY = "martinandersson.com.server.memory.budget";
+    
+    /** System property setting the longest wait in seconds. Current value: {@value}. */
+    public static final String TIMEOUT_PROPERTY = "martinandersson.com.server.memory.timeout";
+    
+    /** Name of the published MXBean. Current value: {@value}. */
+    public static final String OBJECT_NAME = "martinandersson.com.server:type=MemoryBudget";
+    
+    private static final MemoryBudget GLOBAL = new MemoryBudget(
+            Long.getLong(BUDGET_PROPERTY, Runtime.getRuntime().maxMemory() / 4),
+            TimeUnit.SECONDS.toNanos(Long.getLong(TIMEOUT_PROPERTY, 60L)));
+    
+    static {
+        GLOBAL.publish();
+    }
+    
+    /**
+     * Returns the budget shared by all file receivers.
+     * 
+     * @return the global budget
+     */
+    public static MemoryBudget global() {
+        return GLOBAL;
+    }
+    
+    
+    
+    private final long capacity;
+    
+    private final long timeoutNanos;
+    
+    private long used, peak, waitCount, waitNanos, timeouts;
+    
+    private int waiting;
+    
+    /**
+     * Initializes a new budget.
+     * 
+     * @param capacity bytes available
+     * @param timeoutNanos longest wait for a reservation
+     * 
+     * @throws IllegalArgumentException if {@code capacity} is not positive
+     */
+    public MemoryBudget(long capacity, long timeoutNanos) {
+        if (capacity < 1L) {
+            throw new IllegalArgumentException("Capacity must be positive, got: " + capacity);
+        }
+        
+        this.capacity = capacity;
+        this.timeoutNanos = timeoutNanos;
+    }
+    
+    /**
+     * Reserve the provided number of bytes, waiting for room if needed.
+     * 
+     * @param bytes bytes to reserve, may be {@code 0}
+     * 
+     * @return the reservation, to be closed when the bytes are no longer held
+     * 
+     * @throws IOException if room could not be made before the timeout, or if
+     *         interrupted while waiting
+     */
+    public Reservation reserve(long bytes) throws IOException {
+        Reservation r = new Reservation();
+        r.grow(bytes);
+        return r;
+    }
+    
+    @Override
+    public long getCapacity() {
+        return capacity;
+    }
+    
+    @Override
+    public synchronized long getUsed() {
+        return used;
+    }
+    
+    @Override
+    public synchronized long getPeak() {
+        return peak;
+    }
+    
+    @Override
+    public synchronized int getWaiting() {
+        return waiting;
+    }
+    
+    @Override
+    public synchronized long getWaitCount() {
+        return waitCount;
+    }
+    
+    @Override
+    public synchronized long getWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos);
+    }
+    
+    @Override
+    public synchronized long getTimeouts() {
+        return timeouts;
+    }
+    
+    @Override
+    public String toString() {
+        return new StringBuilder(MemoryBudget.class.getSimpleName())
+                .append('[')
+                  .append("used=").append(getUsed())
+                  .append(", capacity=").append(capacity)
+                  .append(", waiting=").append(getWaiting())
+                .append(']')
+                .toString();
+    }
+    
+    /**
+     * Take bytes from the budget, waiting for room if needed.
+     * 
+     * @param bytes bytes to take
+     * @param own bytes already held by the reservation that grow, which never
+     *        count as held by someone else
+     */
+    private synchronized void take(long bytes, long own) throws IOException {
+        if (fits(bytes, own)) {
+            add(bytes);
+            return;
+        }
+        
+        final long start = System.nanoTime();
+        long left = timeoutNanos;
+        
+        ++waiting;
+        ++waitCount;
+        
+        LOGGER.fine(() -> "Waiting for " + bytes + " byte(s) of memory budget, " + this + ".");
+        
+        try {
+            while (!fits(bytes, own)) {
+                if (left <= 0L) {
+                    ++timeouts;
+                    throw new IOException("Memory budget exhausted, waited " +
+                            TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms for " + bytes + " byte(s). " + this);
+                }
+                
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+                left = timeoutNanos - (System.nanoTime() - start);
+            }
+            
+            add(bytes);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for memory budget.", e);
+        }
+        finally {
+            --waiting;
+            waitNanos += System.nanoTime() - start;
+        }
+    }
+    
+    private boolean fits(long bytes, long own) {
+        // Only others can release what we wait for, so if nothing is theirs, waiting is pointless:
+        return used + bytes <= capacity || used == own;
+    }
+    
+    private void add(long bytes) {
+        used += bytes;
+        peak = Math.max(peak, used);
+    }
+    
+    private synchronized void give(long bytes) {
+        used -= bytes;
+        notifyAll();
+    }
+    
+    private void publish() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            
+            // Left behind by a previous deployment:
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            
+            server.registerMBean(this, name);
+        }
+        catch (JMException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to publish memory budget metrics.", e);
+        }
+        
+        LOGGER.info(() -> "Memory budget for transfer buffers: " + capacity + " byte(s).");
+    }
+    
+    /**
+     * Bytes held from a {@link MemoryBudget}.<p>
+     * 
+     * Not safe to use by concurrent threads.
+     */
+    public final class Reservation implements AutoCloseable {
+        private long bytes;
+        
+        private Reservation() {
+            // Created by reserve()
+        }
+        
+        /**
+         * Reserve more bytes, waiting for room if needed.
+         * 
+         * @param more bytes to add to this reservation
+         * 
+         * @throws IOException if room could not be made before the timeout, or
+         *         if interrupted while waiting
+         */
+        public void grow(long more) throws IOException {
+            if (more <= 0L) {
+                return;
+            }
+            
+            take(more, bytes);
+            bytes += more;
+        }
+        
+        /**
+         * Return some of the reserved bytes to the budget.
+         * 
+         * @param less bytes to return, at most all of them
+         */
+        public void shrink(long less) {
+            final long n = Math.min(less, bytes);
+            
+            if (n > 0L) {
+                give(n);
+                bytes -= n;
+            }
+        }
+        
+        public long getBytes() {
+            return bytes;
+        }
+        
+        /**
+         * Return all reserved bytes to the budget. May be called many times.
+         */
+        @Override
+        public void close() {
+            if (bytes > 0L) {
+                give(bytes);
+                bytes = 0L;
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,58 @@
+package martinandersson.com.server;
+
+/**
+ * Usage of the {@link MemoryBudget}, as published over JMX.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public interface MemoryBudgetMXBean
+{
+    /**
+     * Returns the size of the budget.
+     * 
+     * @return bytes available in total
+     */
+    long getCapacity();
+    
+    /**
+     * Returns the bytes currently reserved.
+     * 
+     * @return bytes reserved
+     */
+    long getUsed();
+    
+    /**
+     * Returns the most bytes ever reserved at the same time.
+     * 
+     * @return peak bytes reserved
+     */
+    long getPeak();
+    
+    /**
+     * Returns the number of threads currently waiting for room.
+     * 
+     * @return waiting threads
+     */
+    int getWaiting();
+    
+    /**
+     * Returns how many reservations have had to wait for room.
+     * 
+     * @return number of waits
+     */
+    long getWaitCount();
+    
+    /**
+     * Returns the total time reservations have spent waiting for room.
+     * 
+     * @return milliseconds waited
+     */
+    long getWaitMillis();
+    
+    /**
+     * Returns how many reservations gave up waiting.
+     * 
+     * @return number of timeouts
+     */
+    long getTimeouts();
+}
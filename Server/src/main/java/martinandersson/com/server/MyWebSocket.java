@@ -3,35 +3,48 @@ package martinandersson.com.server;
 import com.nimbusds.srp6.SRP6Exception;
 import com.nimbusds.srp6.SRP6Exception.CauseType;
 import java.io.IOException;
-import java.io.StringReader;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.EnumMap;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import javax.crypto.NoSuchPaddingException;
-import javax.json.Json;
-import javax.json.JsonObject;
-import javax.json.JsonObjectBuilder;
-import javax.json.JsonReader;
-import javax.json.JsonReaderFactory;
 import javax.websocket.CloseReason;
 import javax.websocket.CloseReason.CloseCodes;
 import javax.websocket.EndpointConfig;
+import javax.websocket.MessageHandler;
 import javax.websocket.OnClose;
 import javax.websocket.OnError;
 import javax.websocket.OnMessage;
 import javax.websocket.OnOpen;
-import javax.websocket.RemoteEndpoint.Async;
 import javax.websocket.RemoteEndpoint.Basic;
 import javax.websocket.Session;
 import martinandersson.com.library.AesGcmCipher;
+import martinandersson.com.library.CipherSuite;
+import martinandersson.com.library.Digests;
+import martinandersson.com.library.Durability;
+import martinandersson.com.library.Hex;
 import martinandersson.com.library.ServerStrategy;
+import martinandersson.com.library.control.BinaryControlCodec;
+import martinandersson.com.library.control.ControlMessage;
+import martinandersson.com.library.control.Field;
+import martinandersson.com.library.control.JsonControlCodec;
+import martinandersson.com.library.merkle.MerkleDigest;
+import martinandersson.com.library.merkle.MerkleTree;
+import martinandersson.com.server.batch.BatchTransfer;
+import martinandersson.com.server.dedup.BlockStore;
+import martinandersson.com.server.dedup.DedupTransfer;
+import martinandersson.com.server.delta.DeltaTransfer;
+import martinandersson.com.server.download.FileDownload;
+import martinandersson.com.server.download.SegmentCache;
 import martinandersson.com.server.filereceiver.ByteArrayFileReceiver;
 import martinandersson.com.server.filereceiver.ByteBufferFileReceiver;
 import martinandersson.com.server.filereceiver.CopyInputStreamFileReceiver;
@@ -40,6 +53,11 @@ import martinandersson.com.server.filereceiver.NoUseInputFileReceiver;
 import martinandersson.com.server.filereceiver.SingleByteInputStreamFileReceiver;
 import martinandersson.com.server.login.Credentials;
 import martinandersson.com.server.login.SRP6ServerLogin;
+import martinandersson.com.server.sealed.SealedFiles;
+import martinandersson.com.server.sealed.SealedTransfer;
+import martinandersson.com.server.storage.FileStat;
+import martinandersson.com.server.storage.ShardedStorageBackend;
+import martinandersson.com.server.storage.StorageBackend;
 
 /**
  * The server endpoint receive messages from client and respond according to the
@@ -49,31 +67,112 @@ import martinandersson.com.server.login.SRP6ServerLogin;
  *   <li>Client register a new user by sending username, salt and verifier to
  *       the server.</li>
  *   <li>Client authenticate the newly registered user using SRP (Secure Remote
- *       Protocol).</li>
+ *       Protocol). The client need not wait for the server's M2 before he
+ *       send his first request, messages are processed in order and M2 is
+ *       sent before the request is looked at.</li>
  *   <li>Client may send a file:<ol>
  *      <li>Client send a request for a file transfer, providing 1) file name,
  *          2) server's receiving strategy, 3) whether or not to use encryption,
- *          and 4) if the transfer will be chunked.</li>
- *      <li>Server will setup his message handler and respond with an accept.</li>
+ *          and 4) if the transfer will be chunked. The request may also list
+ *          the hash and length of all content-defined blocks of the file, in
+ *          which case the transfer is deduplicated. The request may also name
+ *          a digest algorithm, in which case every confirmation carry the
+ *          digest of all bytes received so far. A chunked file whose digest
+ *          differ from the one in the end-of-file message is discarded. The request may also
+ *          carry the file size, which the server use to preallocate the file,
+ *          and a durability policy, in which case every confirmation carry
+ *          the time the server spent forcing the file to disk.</li>
+ *      <li>If too many transfers are running, in total or for this user, the
+ *          server queue the request and tell the client his position in the
+ *          queue and an estimated wait, every time they change. See {@link
+ *          AdmissionController}.</li>
+ *      <li>Server will setup his message handler and respond with an accept.
+ *          If the transfer is deduplicated, the accept list which blocks the
+ *          server is missing and the client send only those, concatenated.
+ *          If no block is missing, nothing is sent and the server respond
+ *          with a confirmation right away. A block list that is malformed or
+ *          longer than {@value DedupTransfer#MAX_BLOCKS} blocks is refused. The request may instead ask for a
+ *          delta transfer. If the server already has a file with the same
+ *          name, the accept carry the signature of that file and the client
+ *          send only a delta against it. If the session is rate limited,
+ *          the accept carry the rate the client should not exceed, see
+ *          {@link Throttle}. If the transfer is encrypted, the accept name
+ *          the cipher suite picked from those offered in the request, see
+ *          {@link CipherSuite}. The request may instead say the file is a
+ *          batch of many small files, which the server unpack once received,
+ *          see {@link BatchTransfer}. The request may also ask for the file
+ *          to be stored sealed, in which case the server write the encrypted
+ *          messages as received and never decrypt them on ingest, see {@link
+ *          SealedFiles}. A sealed transfer must be chunked, and the
+ *          request carry the plaintext bytes of each chunk, at most {@value
+ *          SealedFiles#MAX_RECORD_SIZE}, and a transfer counter, greater
+ *          than that of any earlier sealed transfer of the session. The
+ *          messages must be encrypted using consecutive invocations of the
+ *          key derived for the transfer, see {@link
+ *          AesGcmCipher#forTransfer(String, long)}.</li>
+ *      <li>The request may be optimistic, in which case the client does not
+ *          wait for the accept but send the file, or its first chunk, right
+ *          after the request, having picked the cipher suite himself. The
+ *          client must not send anything past that one binary message until
+ *          he has the accept or the refusal. The server set up the receiver
+ *          before he process the next message, so the early bytes reach it,
+ *          and send the accept anyway. If he can not do that, because the
+ *          transfer is deduplicated or a delta, the suite is not available
+ *          or the transfer would have to queue, the server refuse the
+ *          request and register a handler that drop the early message. The
+ *          client then ask again, the ordinary way. Over the binary control
+ *          protocol, an optimistic request is always refused and the client
+ *          must not send any early bytes, they would be taken for a control
+ *          message.</li>
  *      <li>Client begin sending bytes. If the file transfer was chunked, then
  *          client must complete the process with an end-of-file message once
- *          all chunks has been transferred.</li></ol></li>
+ *          all chunks has been transferred. The server answer with a final
+ *          confirmation once the chunks have been merged, carrying any
+ *          problem, and the client must wait for it before he send anything
+ *          else.</li></ol></li>
+ *   <li>Client may fetch a file, or a byte range thereof:<ol>
+ *      <li>Client send a download request, providing 1) file name, 2)
+ *          optionally the offset and length of the range and 3) whether or
+ *          not to use encryption, with the cipher suites he offer.</li>
+ *      <li>The request is queued the same way as a file transfer, see
+ *          above.</li>
+ *      <li>Server respond with an accept that carry the file size, the range
+ *          he will send, which is clamped to the file, the number of file
+ *          bytes per message and the cipher suite picked. A sealed file is
+ *          fetched by its plain name, and decrypted as it is sent.</li>
+ *      <li>Server send the range in binary messages, see {@link FileDownload},
+ *          then a confirmation. The client must not send anything until he
+ *          has the confirmation. A client fetch several ranges in parallel
+ *          over several sessions.</li></ol></li>
  * </ol>
  * 
  * Unless something really unexpected happens, client may continue to send files
  * for as many times as he want to until the client disconnect.<p>
  * 
- * The server store all files and file chunks in a folder that is hard coded as
- * a constant in this class, namely {@code SAVE_DIR} (current value:
- * "{@value #SAVE_DIR}").<p>
+ * The server store all files and file chunks in a {@link StorageBackend}. By
+ * default, that is a folder hard coded as a constant in this class, namely
+ * {@code SAVE_DIR} (current value: "{@value #SAVE_DIR}"). System property
+ * {@value #STORAGE_PROPERTY} may instead list several folders, separated by
+ * the platform's path separator, ideally one per disk. Files are then spread
+ * across all of them, see {@link ShardedStorageBackend}.<p>
  * 
  * On the server-side, the protocol is fully realized in method
- * {@linkplain #processJson(JsonObject) processJson(JsonObject)}. On the
- * client-side, different page controllers will guide the human user step by
- * step.<p>
+ * {@linkplain #processControl(ControlMessage) processControl(ControlMessage)}.
+ * On the client-side, different page controllers will guide the human user
+ * step by step.<p>
+ * 
+ * Control messages (all messages that are not file data) use a compact binary
+ * protocol if the client negotiate WebSocket subprotocol {@value
+ * BinaryControlCodec#SUBPROTOCOL} when connecting, otherwise JSON text. See
+ * {@link BinaryControlCodec}. While a file receiver own the binary stream,
+ * the binary control handler is removed, which is why the end-of-file message
+ * of a chunked transfer is always sent as JSON text.<p>
  * 
  * Only binary data transfers (a file or a chunk thereof) may optionally be
- * encrypted. All other messages exchanged are not encrypted.<p>
+ * encrypted. All other messages exchanged are not encrypted. An encrypted
+ * file or chunk begin with the {@value AesGcmCipher#NONCE_LENGTH} byte
+ * invocation counter its IV was made from, so that the server need not keep
+ * in lockstep with the client. See {@link AesGcmCipher}.<p>
  * 
  * This endpoint is not production friendly. The whole application is a
  * "proof of concept" with the chief goal of demonstrating SRP, AES/GCM and
@@ -88,14 +187,17 @@ import martinandersson.com.server.login.SRP6ServerLogin;
  * 
  * @author Martin Andersson (webmaster at martinandersson.com)
  */
-@javax.websocket.server.ServerEndpoint("/mywebsocket")
+@javax.websocket.server.ServerEndpoint(value = "/mywebsocket", subprotocols = BinaryControlCodec.SUBPROTOCOL)
 public class MyWebSocket
 {
     private static final Logger LOGGER = Logger.getLogger(MyWebSocket.class.getName());
     
-    /** Where to put all incoming files. Current value: {@value}. */
+    /** Where to put all incoming files, unless configured. Current value: {@value}. */
     private static final String SAVE_DIR = "C:/Temp";
     
+    /** System property listing where to put all incoming files. Current value: {@value}. */
+    private static final String STORAGE_PROPERTY = "martinandersson.com.server.storage";
+    
     private static final EnumMap<SRP6Exception.CauseType, CloseReason> closeReasons;
     static {
         closeReasons = new EnumMap<>(CauseType.class);
@@ -122,14 +224,38 @@ public class MyWebSocket
         fileReceivers.put(ServerStrategy.BYTE_BUFFER,              ByteBufferFileReceiver::new);
     }
     
+    private static final ShardedStorageBackend storage = ShardedStorageBackend.of(
+            System.getProperty(STORAGE_PROPERTY, SAVE_DIR));
+    
+    static {
+        // Downloads must not be served what was cached of a file since replaced:
+        storage.addChangeListener(name -> {
+            SegmentCache.global().invalidate(name);
+            
+            // A sealed file is downloaded by its plain name:
+            SegmentCache.global().invalidate(SealedFiles.plainName(name));
+        });
+    }
+    
     /**
-     * Prefer this cached factory instead of {@code Json.createReader()} or
-     * other similar constructs. {@code Json.createReader()} will traverse the
-     * classpath each time to look for the JSON provider.<p>
-     * 
-     * Safe to use by concurrent threads.
+     * Blocks of all files received using deduplication. Shared by all
+     * sessions, stored in a hidden folder inside the first storage folder.
+     */
+    private static final BlockStore blockStore = new BlockStore(storage.getRoots().get(0).resolve(".blocks"));
+    
+    /**
+     * Files stored sealed, as received from the client. The master key is
+     * stored outside the storage, see {@link SealedFiles#masterKeyFile()}.
      */
-    private static final JsonReaderFactory jsonReaderFactory = Json.createReaderFactory(null);
+    private static final SealedFiles sealedFiles = new SealedFiles(storage, SealedFiles.masterKeyFile());
+    
+    /** Decides when file transfers may start. Shared by all sessions. */
+    private static final AdmissionController admission = AdmissionController.fromSystemProperties();
+    
+    static {
+        // Measure the cipher suites before the first client offer his:
+        ManagedThreads.execute(CipherSuite::throughputs);
+    }
     
     
     
@@ -139,13 +265,30 @@ public class MyWebSocket
     
     private AesGcmCipher aesGcmCipher;
     
-    private FileReceiver receiver; // <-- field only used during chunked transfers
+    private long transfer; // <-- counter of the last sealed transfer, each must be greater
+    
+    private Throttle throttle; // <-- created by the first file transfer request
+    
+    private volatile FileReceiver receiver; // <-- field only used during chunked transfers, set once admitted
+    
+    private PayloadAssembler assembler; // <-- field only used during chunked deduplicated or delta transfers
+    
+    private MessageDigest digest; // <-- field only used during chunked transfers with a digest
+    
+    private String file; // <-- field only used during chunked transfers
+    
+    private volatile AdmissionController.Ticket ticket; // <-- held while a transfer is queued or running
     
     private Session session;
     
-    private Async async;
     private Basic basic;
     
+    private BinaryControlCodec binary; // <-- null unless the binary control protocol was negotiated
+    
+    private ControlHandler controlHandler;
+    
+    private Drain drain; // <-- drops the early message of a refused optimistic request, until the next request
+    
     
     
     /*
@@ -154,13 +297,13 @@ public class MyWebSocket
      *  --------------------
      */
     
-    private void processJson(JsonObject json) throws SRP6Exception, GeneralSecurityException {
+    private void processControl(ControlMessage msg) throws SRP6Exception, GeneralSecurityException, IOException {
         if (login == null) {
             // Accept registration
-            creds = new Credentials(json);
+            creds = new Credentials(msg);
             LOGGER.info(() -> "Registered \"new\" user: " + creds);
             
-            login = new SRP6ServerLogin(creds, basic);
+            login = new SRP6ServerLogin(creds, this::send);
             login.whenAuthenticated(key -> {
                 try {
                     aesGcmCipher = new AesGcmCipher(key);
@@ -173,77 +316,644 @@ public class MyWebSocket
         }
         else if (!login.isAuthenticated()) {
             // Proceed with SRP
-            login.handle(json); // <-- SRP6Exception
+            login.handle(msg); // <-- SRP6Exception
         }
         else {
-            if (receiver == null) {
+            if (receiver == null && msg.getBoolean(Field.DOWNLOAD, false)) {
+                processDownloadRequest(msg);
+            }
+            else if (receiver == null) {
                 // No chunked file transfer is active:
-                processNewFileTransferRequest(json);
+                processNewFileTransferRequest(msg);
             }
             else {
                 // Chunked file transfer is active:
-                processChunkedTransferCompleted(json);
+                processChunkedTransferCompleted(msg);
             }
         }
     }
     
-    private void processNewFileTransferRequest(JsonObject json) throws GeneralSecurityException {
-        Path file = Paths.get(SAVE_DIR, json.getString("file"));
-
-        ServerStrategy strategy = ServerStrategy.valueOf(json.getString("strategy"));
+    private void processNewFileTransferRequest(ControlMessage msg) throws GeneralSecurityException, IOException {
+        String file = msg.getString(Field.FILE);
+        
+        // Any early message of a refused request has been dropped by now, the file receiver may need the handler slot:
+        stopDraining();
+        
+        final boolean optimistic = msg.getBoolean(Field.OPTIMISTIC, false);
+        
+        if (optimistic) {
+            String refusal = refuseOptimistic(msg);
+            
+            if (refusal != null) {
+                sendOptimisticRefusal(refusal);
+                return;
+            }
+        }
+        
+        AesGcmCipher cipher = !msg.getBoolean(Field.ENCRYPTED) ? null :
+                msg.has(Field.CIPHER_SUITE) ?
+                        aesGcmCipher.withSuite(CipherSuite.valueOf(msg.getString(Field.CIPHER_SUITE))) : // <-- GeneralSecurityException
+                        aesGcmCipher.withSuite(CipherSuite.negotiate(msg.has(Field.CIPHER_SUITES) ? msg.getString(Field.CIPHER_SUITES) : null));
+        
+        final PayloadAssembler assembler;
+        
+        try {
+            assembler = newAssembler(msg, file, cipher);
+        }
+        catch (IOException | IllegalArgumentException e) {
+            // For example a malformed block list or a record size too large, the client must hear of it:
+            LOGGER.log(Level.WARNING, "Failed to prepare transfer of " + file + ".", e);
+            
+            if (optimistic) {
+                sendOptimisticRefusal(e.getMessage());
+            }
+            else {
+                sendRefusal(e.getMessage());
+            }
+            
+            return;
+        }
+        
+        // The records of a sealed file are stored as received:
+        AesGcmCipher decrypting = msg.getBoolean(Field.SEALED, false) ? null : cipher;
+        
+        if (assembler != null && !assembler.expectsPayload()) {
+            // Server can assemble the file already, there is nothing to receive:
+            try {
+                send(buildAccept(assembler, null));
+            }
+            catch (IOException e) {
+                __onError(e);
+                return;
+            }
+            
+            sendConfirmation(completeAssembly(assembler, Optional.empty()));
+            return;
+        }
+        
+        ServerStrategy strategy = ServerStrategy.valueOf(msg.getString(Field.STRATEGY));
         FileReceiver receiver = fileReceivers.get(strategy).get();
-
-        AesGcmCipher cipher = json.getBoolean("encrypted") ? aesGcmCipher : null;
-        boolean chunked = json.getBoolean("chunked");
-
-        if (chunked) {
-            this.receiver = receiver;
+        
+        if (throttle == null) {
+            throttle = Throttle.forUser(creds.getUsername());
         }
-
-        receiver.init(session, file, chunked, cipher, exception -> {
-            JsonObjectBuilder b = Json.createObjectBuilder();
-            // Report any problems to client:
-            if (exception.isPresent()) {
-                this.receiver = null;
-                b.add("problem", exception.get().toString());
-            } else {
-                b.add("problem", "");
+        
+        receiver.useThrottle(throttle);
+        
+        boolean chunked = msg.getBoolean(Field.CHUNKED);
+        
+        MessageDigest digest = msg.has(Field.DIGEST_ALGORITHM) ?
+                Digests.newDigest(msg.getString(Field.DIGEST_ALGORITHM)) : // <-- IllegalArgumentException
+                null;
+        
+        receiver.useDigest(digest);
+        
+        receiver.useDurability(
+                Durability.valueOf(msg.has(Field.DURABILITY) ? msg.getString(Field.DURABILITY) : Durability.NONE.name()),
+                msg.has(Field.SYNC_INTERVAL) ? msg.getLong(Field.SYNC_INTERVAL) : Durability.DEFAULT_SYNC_INTERVAL);
+        
+        if (assembler == null && msg.has(Field.SIZE)) {
+            // A payload has a size of its own, only the file itself is preallocated:
+            receiver.expectSize(msg.getLong(Field.SIZE));
+        }
+        
+        String target = assembler == null ? file : assembler.getPayloadFile();
+        
+        Runnable start = () -> {
+            if (assembler != null) {
+                try {
+                    assembler.prepare();
+                }
+                catch (IOException | IllegalArgumentException e) { // <-- a basis too large for a signature
+                    LOGGER.log(Level.WARNING, "Failed to prepare transfer of " + file + ".", e);
+                    releaseTicket();
+                    resumeControl();
+                    
+                    if (optimistic) {
+                        sendOptimisticRefusal(e.getMessage());
+                    }
+                    else {
+                        sendRefusal(e.getMessage());
+                    }
+                    
+                    return;
+                }
             }
-
+            
+            if (chunked) {
+                // Only now, a control message sent while queued must not reach a receiver not yet initialized:
+                this.assembler = assembler;
+                this.digest = digest;
+                this.file = file;
+                this.receiver = receiver; // <-- last, publish the others to the message thread
+            }
+            
+            receiver.init(session, storage, target, chunked, decrypting, exception -> {
+                Optional<? extends Throwable> problem = exception;
+                
+                if (assembler != null && !chunked) {
+                    problem = completeAssembly(assembler, exception);
+                }
+                
+                byte[] received = null;
+                
+                if (digest != null && !problem.isPresent()) {
+                    // Chunked transfer keep digesting, the client compare what we've got so far:
+                    received = chunked ? Digests.peek(digest) : digest.digest();
+                    
+                    if (!chunked && assembler == null) {
+                        writeDigest(file, digest, received);
+                    }
+                }
+                
+                // Report any problems to client:
+                if (problem.isPresent()) {
+                    this.receiver = null;
+                    this.assembler = null;
+                    this.digest = null;
+                    this.file = null;
+                }
+                
+                // Receiver has deregistered his handler, unless he just finished a chunk and wait for the next:
+                if (!chunked || exception.isPresent()) {
+                    resumeControl();
+                }
+                
+                // A chunked transfer hold his slot until the chunks are merged:
+                if (!chunked || problem.isPresent()) {
+                    releaseTicket();
+                }
+                
+                sendConfirmation(problem, received, receiver.getSyncNanos());
+            });
+            
             try {
-                basic.sendText(b.build().toString());
+                send(buildAccept(assembler, cipher));
+            }
+            catch (IOException e) {
+                releaseTicket();
+                reportError(e);
+            }
+        };
+        
+        long size = msg.has(Field.SIZE) ? msg.getLong(Field.SIZE) : -1L;
+        
+        // Set by whoever first decide the fate of an optimistic request, onAdmitted() or the refusal below:
+        final AtomicBoolean decided = new AtomicBoolean();
+        
+        // May be admitted right away, in which case onAdmitted() run before request() return:
+        ticket = admission.request(creds.getUsername(), size, new AdmissionController.Listener() {
+            @Override
+            public void onQueued(int position, long estimatedWaitMillis) {
+                if (!optimistic) {
+                    sendQueued(position, estimatedWaitMillis);
+                }
             }
-            catch (IOException e1) {
+            
+            @Override
+            public void onAdmitted(AdmissionController.Ticket admitted) {
+                if (optimistic && !decided.compareAndSet(false, true)) {
+                    // Already refused:
+                    admitted.release();
+                    return;
+                }
+                
+                ticket = admitted;
+                
+                if (binary == null && (assembler == null || optimistic)) {
+                    start.run();
+                }
+                else if (binary == null) {
+                    // Preparing the assembler may read a whole basis file:
+                    ManagedThreads.execute(start);
+                }
+                else {
+                    // The receiver's handler will take over all binary messages:
+                    suspendControl(start);
+                }
+            }
+        });
+        
+        if (optimistic && decided.compareAndSet(false, true)) {
+            // Not admitted right away, the early bytes have nowhere to go:
+            releaseTicket();
+            sendOptimisticRefusal("Server is busy, transfer would have to queue.");
+        }
+    }
+    
+    private void processDownloadRequest(ControlMessage msg) throws GeneralSecurityException, IOException {
+        final String file = msg.getString(Field.FILE);
+        final Optional<FileStat> plain = storage.stat(file), // <-- IOException
+                                 stat = plain.isPresent() ? plain : sealedFiles.stat(file); // <-- IOException
+        
+        if (!stat.isPresent()) {
+            sendRefusal("No such file: " + file);
+            return;
+        }
+        
+        final long size = stat.get().getSize(),
+                   offset = msg.has(Field.OFFSET) ? msg.getLong(Field.OFFSET) : 0L;
+        
+        if (offset < 0L || offset > size) {
+            sendRefusal("Offset " + offset + " is outside " + file + " of " + size + " byte(s).");
+            return;
+        }
+        
+        final long length = Math.min(size - offset,
+                msg.has(Field.LENGTH) && msg.getLong(Field.LENGTH) >= 0L ? msg.getLong(Field.LENGTH) : Long.MAX_VALUE);
+        
+        // Server-to-client messages use a key of their own:
+        final AesGcmCipher cipher = !msg.getBoolean(Field.ENCRYPTED, false) ? null :
+                aesGcmCipher.reversed().withSuite(CipherSuite.negotiate( // <-- GeneralSecurityException
+                        msg.has(Field.CIPHER_SUITES) ? msg.getString(Field.CIPHER_SUITES) : null));
+        
+        ticket = admission.request(creds.getUsername(), length, new AdmissionController.Listener() {
+            @Override
+            public void onQueued(int position, long estimatedWaitMillis) {
+                sendQueued(position, estimatedWaitMillis);
+            }
+            
+            @Override
+            public void onAdmitted(AdmissionController.Ticket admitted) {
+                ticket = admitted;
+                
+                ControlMessage accept = new ControlMessage()
+                        .put(Field.ACCEPT, true)
+                        .put(Field.SIZE, size)
+                        .put(Field.OFFSET, offset)
+                        .put(Field.LENGTH, length)
+                        .put(Field.SLICE_SIZE, FileDownload.SLICE_SIZE);
+                
+                if (cipher != null) {
+                    accept.put(Field.CIPHER_SUITE, cipher.getSuite().name());
+                }
+                
                 try {
-                    __onError(e1);
+                    send(accept);
                 }
-                catch (IOException e2) {
-                    LOGGER.log(Level.WARNING, "Failed to send a file confirmation, then failed some more :'(", e2);
+                catch (IOException e) {
+                    releaseTicket();
+                    reportError(e);
+                    return;
                 }
+                
+                FileDownload.Opener opener = plain.isPresent() ? storage::openForRead : sealedFiles::openForRead;
+                
+                new FileDownload(opener, stat.get(), offset, length, cipher, session.getAsyncRemote()).start()
+                        .whenComplete((ignored, failure) -> {
+                            releaseTicket();
+                            
+                            if (failure != null) {
+                                LOGGER.log(Level.WARNING, "Failed to send " + file + ".", failure);
+                            }
+                            
+                            sendConfirmation(Optional.ofNullable(failure));
+                        });
             }
         });
-
-        async.sendText(Json.createObjectBuilder().add("accept", true).build().toString());
     }
     
-    private void processChunkedTransferCompleted(JsonObject json) {
-        if (!json.getBoolean("eof")) {
-            LOGGER.warning("Did not expect the message we received.");
+    /**
+     * Returns why an optimistic request can not be served, if it can not.
+     * 
+     * @param msg the file transfer request
+     * 
+     * @return reason to refuse, or {@code null} if the request may proceed
+     */
+    private String refuseOptimistic(ControlMessage msg) {
+        if (binary != null) {
+            // Early bytes would reach the control handler, which is removed only after the request:
+            return "Optimistic start requires the JSON control protocol.";
         }
-
+        
+        if (msg.getBoolean(Field.DEDUP, false) || msg.getBoolean(Field.DELTA, false)) {
+            return "A deduplicated or delta transfer must wait for the accept.";
+        }
+        
+        if (msg.getBoolean(Field.ENCRYPTED)) {
+            if (!msg.has(Field.CIPHER_SUITE)) {
+                return "An encrypted optimistic transfer must name the cipher suite.";
+            }
+            
+            final String suite = msg.getString(Field.CIPHER_SUITE);
+            
+            // Ask with the name, valueOf() would throw if the client knows of suites we don't:
+            if (CipherSuite.throughputs().keySet().stream().noneMatch(s -> s.name().equals(suite))) {
+                return "Cipher suite not available: " + suite;
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Refuse a download request, or a file transfer request the server can not
+     * prepare for. A refused optimistic request may be asked again without
+     * being optimistic.
+     * 
+     * @param reason why
+     */
+    private void sendRefusal(String reason) {
+        LOGGER.info(() -> "Refused request: " + reason);
+        
         try {
-            receiver.completeChunked();
-        } catch (IOException e) {
+            send(new ControlMessage()
+                    .put(Field.ACCEPT, false)
+                    .put(Field.PROBLEM, reason));
+        }
+        catch (IOException e) {
+            reportError(e);
+        }
+    }
+    
+    /**
+     * Refuse an optimistic file transfer request. The client has already sent
+     * the file, or its first chunk, and JSR-356 does not say what happens to
+     * a binary message no handler receive, so a handler that drop it is
+     * registered first. It stays until the next file transfer request.<p>
+     * 
+     * Over the binary control protocol, the control handler take all binary
+     * messages and there is nothing to register. The client does not start
+     * optimistically there.
+     * 
+     * @param reason why
+     */
+    private void sendOptimisticRefusal(String reason) {
+        if (binary == null && drain == null) {
+            drain = new Drain();
+            session.addMessageHandler(drain);
+        }
+        
+        sendRefusal(reason);
+    }
+    
+    /**
+     * Remove the handler registered by {@link #sendOptimisticRefusal(String)},
+     * if any. Called from the text handler, so the drain is not running and
+     * removal does not block.
+     */
+    private void stopDraining() {
+        if (drain != null) {
+            session.removeMessageHandler(drain);
+            drain = null;
+        }
+    }
+    
+    /**
+     * Returns an assembler if the client asked for a deduplicated, batch or
+     * sealed transfer, or a delta transfer and the server has a basis file,
+     * otherwise {@code null}.
+     * 
+     * @param msg the file transfer request
+     * @param file final file name
+     * @param cipher cipher of the transfer, {@code null} if not encrypted
+     * 
+     * @return an assembler, or {@code null} if the file is sent whole
+     * 
+     * @throws IOException if the block list is malformed, or on IO failure
+     * @throws IllegalArgumentException if the request is not one the server
+     *         can accept, for example a sealed transfer with too large records
+     */
+    private PayloadAssembler newAssembler(ControlMessage msg, String file, AesGcmCipher cipher) throws IOException {
+        boolean dedup = msg.getBoolean(Field.DEDUP, false),
+                delta = msg.getBoolean(Field.DELTA, false),
+                batch = msg.getBoolean(Field.BATCH, false),
+                sealed = msg.getBoolean(Field.SEALED, false);
+        
+        if ((dedup ? 1 : 0) + (delta ? 1 : 0) + (batch ? 1 : 0) + (sealed ? 1 : 0) > 1) {
+            throw new IllegalArgumentException("A transfer can be only one of deduplicated, a delta, a batch or sealed.");
+        }
+        
+        if (sealed) {
+            if (cipher == null || !msg.has(Field.SIZE)) {
+                throw new IllegalArgumentException("A sealed transfer must be encrypted and give the file size.");
+            }
+            
+            if (!msg.getBoolean(Field.CHUNKED) || !msg.has(Field.RECORD_SIZE)) {
+                // Or else the whole file would be one record, decrypted in memory when read:
+                throw new IllegalArgumentException("A sealed transfer must be chunked and give the record size.");
+            }
+            
+            if (msg.has(Field.DIGEST_ALGORITHM)) {
+                throw new IllegalArgumentException("A sealed transfer is verified by its tags, not a digest.");
+            }
+            
+            if (!msg.has(Field.TRANSFER) || msg.getLong(Field.TRANSFER) <= transfer) {
+                // Or else the records of an earlier transfer could be replayed into this one:
+                throw new IllegalArgumentException("A sealed transfer must give a transfer counter greater than the last.");
+            }
+            
+            transfer = msg.getLong(Field.TRANSFER);
+            
+            long size = msg.getLong(Field.SIZE),
+                 recordSize = msg.getLong(Field.RECORD_SIZE);
+            
+            final AesGcmCipher own;
+            
+            try {
+                own = cipher.forTransfer(file, transfer);
+            }
+            catch (GeneralSecurityException e) {
+                throw new IOException("Failed to derive the key of " + file + ".", e);
+            }
+            
+            return new SealedTransfer(sealedFiles, file, own, size, recordSize); // <-- IllegalArgumentException
+        }
+        
+        if (batch) {
+            return new BatchTransfer(storage, file);
+        }
+        
+        if (dedup) {
+            return new DedupTransfer(blockStore, storage, file, msg.getBlocks(Field.BLOCKS));
+        }
+        
+        return delta ? DeltaTransfer.ifBasisExists(storage, file) : null;
+    }
+    
+    private ControlMessage buildAccept(PayloadAssembler assembler, AesGcmCipher cipher) {
+        ControlMessage accept = new ControlMessage().put(Field.ACCEPT, true);
+        
+        if (cipher != null) {
+            accept.put(Field.CIPHER_SUITE, cipher.getSuite().name());
+        }
+        
+        if (throttle != null && throttle.getRate() > 0L) {
+            // Client should not send faster than we receive:
+            accept.put(Field.RATE, throttle.getRate());
+        }
+        
+        if (assembler != null) {
+            assembler.addTo(accept);
+        }
+        
+        return accept;
+    }
+    
+    /**
+     * Assemble the destination file from the received payload, unless the
+     * payload transfer already failed.
+     * 
+     * @param assembler the assembler
+     * @param exception problem of the payload transfer, if any
+     * 
+     * @return problem of the whole transfer, if any
+     */
+    private Optional<? extends Throwable> completeAssembly(PayloadAssembler assembler, Optional<? extends Throwable> exception) {
+        if (exception.isPresent()) {
+            try {
+                assembler.abort();
+            }
+            catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to delete payload of a failed transfer.", e);
+            }
+            
+            return exception;
+        }
+        
+        try {
+            assembler.complete();
+            return Optional.empty();
+        }
+        catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to assemble file from payload.", e);
+            return Optional.of(e);
+        }
+    }
+    
+    /**
+     * Tell the client that his transfer request is queued.
+     * 
+     * @param position 1 if next in line
+     * @param waitMillis estimated time until the transfer start, {@code -1} if unknown
+     */
+    private void sendQueued(int position, long waitMillis) {
+        try {
+            send(new ControlMessage()
+                    .put(Field.QUEUE_POSITION, position)
+                    .put(Field.QUEUE_WAIT, waitMillis));
+        }
+        catch (IOException e) {
+            reportError(e);
+        }
+    }
+    
+    private void sendConfirmation(Optional<? extends Throwable> problem) {
+        sendConfirmation(problem, null, 0L);
+    }
+    
+    /**
+     * Send a file confirmation.
+     * 
+     * @param problem problem of the transfer, if any
+     * @param digest digest of all bytes received, may be {@code null}
+     * @param syncNanos time spent forcing the file to disk, {@code 0} if none
+     */
+    private void sendConfirmation(Optional<? extends Throwable> problem, byte[] digest, long syncNanos) {
+        ControlMessage msg = new ControlMessage()
+                .put(Field.PROBLEM, problem.isPresent() ? problem.get().toString() : "");
+        
+        if (digest != null) {
+            msg.put(Field.DIGEST, digest);
+        }
+        
+        if (syncNanos > 0L) {
+            msg.put(Field.SYNC_NANOS, syncNanos);
+        }
+        
+        try {
+            send(msg);
+        }
+        catch (IOException e1) {
+            try {
+                __onError(e1);
+            }
+            catch (IOException e2) {
+                LOGGER.log(Level.WARNING, "Failed to send a file confirmation, then failed some more :'(", e2);
+            }
+        }
+    }
+    
+    /**
+     * Merge the chunks of a completed chunked transfer.<p>
+     * 
+     * The merge run asynchronously, so the message thread is not blocked by
+     * disk IO. The client get his final confirmation when the file has been
+     * merged (and assembled) and not before, carrying any problem of the
+     * merge, the assembly or the digest.
+     * 
+     * @param msg the last message of the chunked transfer
+     */
+    private void processChunkedTransferCompleted(ControlMessage msg) {
+        if (!msg.getBoolean(Field.EOF, false)) {
+            LOGGER.warning("Did not expect the message we received.");
+        }
+        
+        final FileReceiver receiver = this.receiver;
+        final PayloadAssembler assembler = this.assembler;
+        final MessageDigest digest = this.digest;
+        final String file = this.file;
+        
+        this.receiver = null;
+        this.assembler = null;
+        this.digest = null;
+        this.file = null;
+        
+        CompletableFuture<Void> deregistered = new CompletableFuture<>();
+        
+        receiver.completeChunked(() -> deregistered.complete(null)).handle((ignored, failure) -> {
+            Optional<IOException> problem = Optional.empty();
+            
+            if (failure != null) {
+                IOException e = failure instanceof IOException ? (IOException) failure : new IOException(failure);
+                LOGGER.log(Level.WARNING, "Failed to merge file chunks after completing a chunked file transfer.", e);
+                problem = Optional.of(e);
+            }
+            
+            byte[] received = null;
+            
+            if (digest != null && !problem.isPresent()) {
+                received = digest.digest();
+                
+                if (msg.has(Field.DIGEST) && !MessageDigest.isEqual(received, msg.getBytes(Field.DIGEST))) {
+                    problem = Optional.of(new IOException("Digest mismatch, received " + Hex.toHex(received) +
+                            " but client computed " + Hex.toHex(msg.getBytes(Field.DIGEST)) + ", discarded " + file + "."));
+                    
+                    LOGGER.warning(problem.get().getMessage());
+                    discard(file, assembler, digest);
+                }
+            }
+            
+            if (assembler != null && !problem.isPresent()) {
+                try {
+                    assembler.complete();
+                }
+                catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to assemble file from payload.", e);
+                    problem = Optional.of(e);
+                }
+            }
+            else if (digest != null && !problem.isPresent()) {
+                writeDigest(file, digest, received);
+            }
+            
+            releaseTicket();
+            
             /*
-             * WARNING! If anything like this software architecture would run in
-             * production code, then catching a MergeException here should be
-             * reported back to client because that can only mean that the file
-             * wasn't properly received. I ignore that in this test project.
+             * The client wait for a final confirmation before he send his next
+             * control message. A binary one must not reach the file receiver's
+             * handler.
              */
-            LOGGER.log(Level.WARNING, "Failed to merge or delete file chunks after completing a chunked file transfer.", e);
-        }
-
-        receiver = null;
+            final Optional<IOException> p = problem;
+            final long syncNanos = receiver.getSyncNanos();
+            
+            deregistered.thenRun(() -> {
+                resumeControl();
+                sendConfirmation(p, null, syncNanos);
+            });
+            
+            return null;
+        });
     }
     
     
@@ -260,9 +970,16 @@ public class MyWebSocket
         
         this.session = session;
         
-        this.async = session.getAsyncRemote();
         this.basic = session.getBasicRemote();
         
+        if (BinaryControlCodec.SUBPROTOCOL.equals(session.getNegotiatedSubprotocol())) {
+            binary = new BinaryControlCodec();
+            controlHandler = new ControlHandler();
+            session.addMessageHandler(controlHandler);
+        }
+        
+        LOGGER.info(() -> "Control protocol: " + (binary == null ? "JSON" : "binary"));
+        
         LOGGER.info(() -> "Max buffer size of text mesages: " + session.getMaxTextMessageBufferSize());
         LOGGER.info(() -> "Max buffer size of binary mesages: " + session.getMaxBinaryMessageBufferSize());
     }
@@ -270,20 +987,32 @@ public class MyWebSocket
     @OnClose
     public void __onClose(Session session, CloseReason reason) {
         trace("__onClose", session, reason);
+        
+        // Leave the queue, or give back the slot of an abandoned transfer:
+        releaseTicket();
+        
+        if (throttle != null) {
+            LOGGER.info(() -> "Receivers waited " + throttle.getWaitMillis() + " ms on rate limits.");
+            throttle.close();
+        }
     }
     
+    /**
+     * Receives all control messages of the JSON protocol. A client speaking
+     * the binary protocol use text only for the end-of-file message of a
+     * chunked transfer, because at that time, all binary messages goes to the
+     * file receiver.
+     * 
+     * @param data JSON text
+     * 
+     * @throws SRP6Exception if authentication fails
+     * @throws GeneralSecurityException if cipher setup fails
+     * @throws IOException if IO fails
+     */
     @OnMessage
-    public void __onMessage(String data) throws SRP6Exception, GeneralSecurityException {
+    public void __onMessage(String data) throws SRP6Exception, GeneralSecurityException, IOException {
         trace("__onMessage", data);
-        
-        final JsonObject obj;
-        
-        try (StringReader strRead = new StringReader(data);
-             JsonReader jsonRead = jsonReaderFactory.createReader(strRead);) {
-             obj = jsonRead.readObject();
-        }
-        
-        processJson(obj);
+        processControl(JsonControlCodec.decode(data));
     }
     
     @OnError
@@ -309,6 +1038,121 @@ public class MyWebSocket
      *  --------------
      */
     
+    /**
+     * Send a control message using the negotiated protocol.
+     * 
+     * @param msg message to send
+     * 
+     * @throws IOException if sending fails
+     */
+    private void send(ControlMessage msg) throws IOException {
+        // Queue updates are sent by whichever thread changed the queue:
+        synchronized (basic) {
+            if (binary == null) {
+                basic.sendText(JsonControlCodec.encode(msg));
+            }
+            else {
+                basic.sendBinary(binary.encode(msg)); // <-- codec buffer reused only after we return
+            }
+        }
+    }
+    
+    private void releaseTicket() {
+        AdmissionController.Ticket t = ticket;
+        
+        if (t != null) {
+            t.release(); // <-- no-op if already released
+        }
+    }
+    
+    /**
+     * Remove the binary control handler, then run the provided task.<p>
+     * 
+     * Removing a handler might block until the handler is done, and we are
+     * most likely called by the very handler we remove. Hence removal happens
+     * in another thread.
+     * 
+     * @param then what to run once the handler is gone
+     */
+    private void suspendControl(Runnable then) {
+        ManagedThreads.execute(() -> {
+            session.removeMessageHandler(controlHandler);
+            
+            try {
+                then.run();
+            }
+            catch (RuntimeException e) {
+                resumeControl();
+                reportError(e);
+            }
+        });
+    }
+    
+    private void resumeControl() {
+        if (binary != null) {
+            session.addMessageHandler(controlHandler);
+        }
+    }
+    
+    /**
+     * Delete a received file, or the payload it was to be assembled from, that
+     * did not match the digest of the client.
+     * 
+     * @param file the file name
+     * @param assembler the assembler, or {@code null} if the file was sent
+     *        whole
+     * @param digest the digest, whose files of an earlier version of the file
+     *        are deleted too
+     */
+    private void discard(String file, PayloadAssembler assembler, MessageDigest digest) {
+        try {
+            if (assembler != null) {
+                assembler.abort();
+            }
+            else {
+                storage.delete(file);
+                storage.delete(DigestFiles.of(file, digest.getAlgorithm()));
+                storage.delete(MerkleTree.fileOf(file));
+            }
+        }
+        catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to discard " + file + ".", e);
+        }
+    }
+    
+    /**
+     * Write the digest of a received file, or its Merkle tree if the digest
+     * is the root of one.
+     * 
+     * @param file the file name
+     * @param digest the digest, just completed
+     * @param received what {@code digest()} returned
+     */
+    private void writeDigest(String file, MessageDigest digest, byte[] received) {
+        try {
+            if (digest instanceof MerkleDigest) {
+                // The root alone is of no use to sha256sum, the tree is:
+                DigestFiles.write(storage, file, ((MerkleDigest) digest).getTree());
+            }
+            else {
+                DigestFiles.write(storage, file, digest.getAlgorithm(), received);
+            }
+        }
+        catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to write digest of " + file + ".", e);
+        }
+    }
+    
+    private void reportError(Throwable t) {
+        try {
+            __onError(t);
+        }
+        catch (IOException e) {
+            e.addSuppressed(t);
+            LOGGER.log(Level.WARNING, "Failed to handle error.", e);
+        }
+    }
+    
     private void trace(String method, Object... args) {
         LOGGER.info(() -> {
             String prefix = "ENTER " + method + ", ARGS: ";
@@ -320,4 +1164,44 @@ public class MyWebSocket
             return prefix + stringified;
         });
     }
+    
+    
+    
+    /**
+     * Drops the early message of a refused optimistic request, part by part.
+     * Registered only when the JSON control protocol is used.
+     */
+    private final class Drain implements MessageHandler.Partial<ByteBuffer> {
+        private long dropped;
+        
+        @Override
+        public void onMessage(ByteBuffer part, boolean last) {
+            dropped += part.remaining();
+            
+            if (last) {
+                final long n = dropped;
+                dropped = 0L;
+                LOGGER.fine(() -> "Dropped " + n + " early byte(s) of a refused optimistic request.");
+            }
+        }
+    }
+    
+    /**
+     * Receives all control messages of the binary protocol. Registered only
+     * when the protocol has been negotiated, and only when no file receiver
+     * is using the binary stream.
+     */
+    private final class ControlHandler implements MessageHandler.Whole<ByteBuffer> {
+        @Override
+        public void onMessage(ByteBuffer data) {
+            trace("ControlHandler.onMessage", data);
+            
+            try {
+                processControl(binary.decode(data));
+            }
+            catch (SRP6Exception | GeneralSecurityException | IOException | RuntimeException e) {
+                reportError(e);
+            }
+        }
+    }
 }
\ No newline at end of file
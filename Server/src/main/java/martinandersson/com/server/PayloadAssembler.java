@@ -0,0 +1,69 @@
+package martinandersson.com.server;
+
+import java.io.IOException;
+import martinandersson.com.library.control.ControlMessage;
+
+/**
+ * A file transfer where the client does not send the file itself, but a
+ * payload from which the server assemble the file.<p>
+ * 
+ * The payload is received as an ordinary file transfer into a payload file
+ * in the same storage as the destination, so any receiving strategy, encryption and chunking
+ * may be used. Once the payload has been received, {@linkplain #complete()
+ * complete()} produce the destination file.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public interface PayloadAssembler
+{
+    /**
+     * Returns the name of the file the receiver should put the payload in.
+     * 
+     * @return the payload file name
+     */
+    String getPayloadFile();
+    
+    /**
+     * Returns {@code true} if the client has something to send, otherwise
+     * {@code false} in which case {@code complete()} may be called right away.
+     * 
+     * @return {@code true} if the client has something to send
+     */
+    boolean expectsPayload();
+    
+    /**
+     * Do whatever slow work must be done before the accept can be built, for
+     * example reading a basis file whole. Called once the transfer has been
+     * admitted, and not on the thread that received the request.<p>
+     * 
+     * Does nothing by default.
+     * 
+     * @throws IOException on IO failure
+     */
+    default void prepare() throws IOException {
+        // Nothing to prepare
+    }
+    
+    /**
+     * Add whatever the client need to know in order to produce the payload to
+     * the accept message. Called after {@code prepare()}.
+     * 
+     * @param accept the accept message being built
+     */
+    void addTo(ControlMessage accept);
+    
+    /**
+     * Assemble the destination file from the received payload. The payload
+     * file is deleted whether or not assembly succeed.
+     * 
+     * @throws IOException if the payload is corrupt, or on IO failure
+     */
+    void complete() throws IOException;
+    
+    /**
+     * Discard the payload of a failed transfer.
+     * 
+     * @throws IOException if deleting the payload fails
+     */
+    void abort() throws IOException;
+}
\ No newline at end of file
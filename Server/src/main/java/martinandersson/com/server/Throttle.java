@@ -0,0 +1,212 @@
+package martinandersson.com.server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import martinandersson.com.library.TokenBucket;
+
+/**
+ * Limits the rate at which a session receive file bytes.<p>
+ * 
+ * Up to three {@link TokenBucket}s apply to each session: one of its own, one
+ * shared by all sessions of the same user and one shared by the whole server.
+ * The rates, in bytes per second, are read from system properties {@value
+ * #SESSION_PROPERTY}, {@value #USER_PROPERTY} and {@value #GLOBAL_PROPERTY}.
+ * A rate that is not set, or is {@code 0}, means no limit, which is the
+ * default.<p>
+ * 
+ * File receivers call {@link #acquire(long)} before they consume received
+ * bytes. An empty bucket make the receiving thread wait, so no data is
+ * dropped. The next part is not consumed, and for a chunked transfer, the
+ * confirmation is delayed, until the bytes fit the rate. The client is slowed
+ * down by TCP flow control, and should also pace itself using the {@linkplain
+ * #getRate() advertised rate}.<p>
+ * 
+ * Safe to use by concurrent threads.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class Throttle implements AutoCloseable
+{
+    private static final Logger LOGGER = Logger.getLogger(Throttle.class.getName());
+    
+    /** System property setting the rate of each session. Current value: {@value}. */
+    public static final String SESSION_PROPERTY = "martinandersson.com.server.rate.session";
+    
+    /** System property setting the rate of each user. Current value: {@value}. */
+    public static final String USER_PROPERTY = "martinandersson.com.server.rate.user";
+    
+    /** System property setting the rate of the whole server. Current value: {@value}. */
+    public static final String GLOBAL_PROPERTY = "martinandersson.com.server.rate.global";
+    
+    private static final long SESSION_RATE = Long.getLong(SESSION_PROPERTY, 0L),
+                              USER_RATE    = Long.getLong(USER_PROPERTY, 0L),
+                              GLOBAL_RATE  = Long.getLong(GLOBAL_PROPERTY, 0L);
+    
+    private static final TokenBucket GLOBAL = GLOBAL_RATE > 0L ? new TokenBucket(GLOBAL_RATE) : null;
+    
+    /** Buckets of users with at least one open throttle. */
+    private static final Map<String, UserBucket> USERS = new HashMap<>();
+    
+    static {
+        LOGGER.info(() -> "Receive rate limits in bytes/s (0 = none), session: " + SESSION_RATE +
+                ", user: " + USER_RATE + ", server: " + GLOBAL_RATE + ".");
+    }
+    
+    /**
+     * Returns a new throttle for a session of the provided user. The throttle
+     * must be closed when the session ends.
+     * 
+     * @param user authenticated username
+     * 
+     * @return a new throttle
+     */
+    public static Throttle forUser(String user) {
+        return new Throttle(user);
+    }
+    
+    
+    
+    private final String user;
+    
+    private final TokenBucket[] buckets;
+    
+    private long waitNanos;
+    
+    private boolean closed;
+    
+    private Throttle(String user) {
+        this.user = user;
+        
+        List<TokenBucket> buckets = new ArrayList<>(3);
+        
+        if (SESSION_RATE > 0L) {
+            buckets.add(new TokenBucket(SESSION_RATE));
+        }
+        
+        if (USER_RATE > 0L) {
+            synchronized (USERS) {
+                UserBucket b = USERS.computeIfAbsent(user, u -> new UserBucket(USER_RATE));
+                ++b.sessions;
+                buckets.add(b.bucket);
+            }
+        }
+        
+        if (GLOBAL != null) {
+            buckets.add(GLOBAL);
+        }
+        
+        this.buckets = buckets.toArray(new TokenBucket[buckets.size()]);
+    }
+    
+    /**
+     * Take the provided number of bytes from all buckets and wait until they
+     * fit the lowest rate.
+     * 
+     * @param bytes bytes about to be consumed
+     * 
+     * @throws IOException if interrupted while waiting
+     */
+    public void acquire(long bytes) throws IOException {
+        if (buckets.length == 0 || bytes <= 0L) {
+            return;
+        }
+        
+        long wait = 0L;
+        
+        for (TokenBucket b : buckets) {
+            wait = Math.max(wait, b.take(bytes));
+        }
+        
+        if (wait == 0L) {
+            return;
+        }
+        
+        try {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while throttled.");
+        }
+        
+        synchronized (this) {
+            waitNanos += wait;
+        }
+    }
+    
+    /**
+     * Returns the lowest rate that apply to this throttle. This is the rate
+     * advertised to the client.
+     * 
+     * @return bytes per second, or {@code 0} if not limited
+     */
+    public long getRate() {
+        long rate = 0L;
+        
+        for (TokenBucket b : buckets) {
+            rate = rate == 0L ? b.getRate() : Math.min(rate, b.getRate());
+        }
+        
+        return rate;
+    }
+    
+    /**
+     * Returns the total time receivers have waited on this throttle.
+     * 
+     * @return milliseconds waited
+     */
+    public synchronized long getWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos);
+    }
+    
+    /**
+     * Give up the share of the user's bucket. May be called many times.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            
+            closed = true;
+        }
+        
+        if (USER_RATE > 0L) {
+            synchronized (USERS) {
+                UserBucket b = USERS.get(user);
+                
+                if (b != null && --b.sessions == 0) {
+                    USERS.remove(user);
+                }
+            }
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return new StringBuilder(Throttle.class.getSimpleName())
+                .append('[')
+                  .append("user=").append(user)
+                  .append(", rate=").append(getRate())
+                  .append(", waitMillis=").append(getWaitMillis())
+                .append(']')
+                .toString();
+    }
+    
+    private static final class UserBucket {
+        final TokenBucket bucket;
+        
+        int sessions;
+        
+        UserBucket(long rate) {
+            bucket = new TokenBucket(rate);
+        }
+    }
+}
\ No newline at end of file
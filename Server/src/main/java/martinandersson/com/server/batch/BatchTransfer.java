@@ -0,0 +1,214 @@
+package martinandersson.com.server.batch;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.logging.Logger;
+import martinandersson.com.library.batch.BatchEntry;
+import martinandersson.com.library.batch.BatchIndex;
+import martinandersson.com.library.control.ControlMessage;
+import martinandersson.com.server.ManagedThreads;
+import martinandersson.com.server.PayloadAssembler;
+import martinandersson.com.server.storage.StorageBackend;
+import martinandersson.com.server.storage.StorageWriter;
+
+/**
+ * Server-side state of one batch transfer.<p>
+ * 
+ * The client pack many small files into one batch, see {@link
+ * martinandersson.com.library.batch.BatchPacker}, and send it as an ordinary
+ * file transfer into a payload file, with a hidden name of its own for each
+ * transfer. Thousands of small files then cost one request, one accept and
+ * one confirmation, instead of one of each per file.<p>
+ * 
+ * Once the payload has been received, {@linkplain #complete() complete()}
+ * read the index and write the files, committing each on its own. The index
+ * is split into as many contiguous slices as there are workers, at most as
+ * many as system property {@value #WORKERS_PROPERTY} say (default {@value
+ * #DEFAULT_WORKERS}), and each worker read its slice of the payload using a
+ * channel of its own. The calling thread is one of the workers.<p>
+ * 
+ * A file that fails is not written, but files already committed are not
+ * taken back.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class BatchTransfer implements PayloadAssembler
+{
+    private static final Logger LOGGER = Logger.getLogger(BatchTransfer.class.getName());
+    
+    /** System property setting the most workers writing files of one batch. Current value: {@value}. */
+    public static final String WORKERS_PROPERTY = "martinandersson.com.server.batch.workers";
+    
+    /** Workers used unless configured. Current value: {@value}. */
+    public static final int DEFAULT_WORKERS = 4;
+    
+    private static final int WORKERS = Math.max(1, Integer.getInteger(WORKERS_PROPERTY, DEFAULT_WORKERS));
+    
+    
+    
+    private final StorageBackend storage;
+    
+    private final String batch, payload;
+    
+    /**
+     * Initializes a new batch transfer.
+     * 
+     * @param storage where to put the files
+     * @param batch name of the batch, as requested by the client
+     */
+    public BatchTransfer(StorageBackend storage, String batch) {
+        this.storage = storage;
+        this.batch = batch;
+        this.payload = "." + batch + "." + UUID.randomUUID() + ".batch"; // <-- no client name, nor another transfer, can clash
+    }
+    
+    /**
+     * Returns where the file receiver should put the batch.
+     * 
+     * @return the payload file name
+     */
+    @Override
+    public String getPayloadFile() {
+        return payload;
+    }
+    
+    /**
+     * Returns {@code true}, even an empty batch has an index.
+     * 
+     * @return {@code true}
+     */
+    @Override
+    public boolean expectsPayload() {
+        return true;
+    }
+    
+    /**
+     * Adds nothing, the client need no help to pack a batch.
+     * 
+     * @param accept the accept message being built
+     */
+    @Override
+    public void addTo(ControlMessage accept) {
+        // Nothing to add
+    }
+    
+    /**
+     * Write all files of the received batch. The payload file is deleted
+     * whether or not all files were written.
+     * 
+     * @throws IOException if the batch is malformed, or if writing any file
+     *         fails
+     */
+    @Override
+    public void complete() throws IOException {
+        try {
+            final List<BatchEntry> index;
+            
+            try (SeekableByteChannel in = storage.openForRead(payload)) {
+                index = BatchIndex.read(in);
+            }
+            
+            final long start = System.nanoTime();
+            final int workers = Math.max(1, Math.min(WORKERS, index.size()));
+            
+            List<CompletableFuture<Void>> others = new ArrayList<>(workers - 1);
+            
+            for (int w = 1; w < workers; ++w) {
+                List<BatchEntry> slice = slice(index, w, workers);
+                
+                others.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        unpack(slice);
+                    }
+                    catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }, ManagedThreads::execute));
+            }
+            
+            IOException failure = null;
+            
+            try {
+                unpack(slice(index, 0, workers));
+            }
+            catch (IOException e) {
+                failure = e;
+            }
+            
+            for (CompletableFuture<Void> f : others) {
+                try {
+                    f.join();
+                }
+                catch (CompletionException e) {
+                    IOException cause = e.getCause() instanceof UncheckedIOException ?
+                            ((UncheckedIOException) e.getCause()).getCause() :
+                            new IOException(e.getCause());
+                    
+                    if (failure == null) {
+                        failure = cause;
+                    }
+                    else {
+                        failure.addSuppressed(cause);
+                    }
+                }
+            }
+            
+            if (failure != null) {
+                throw failure;
+            }
+            
+            LOGGER.info(() -> "Unpacked " + index.size() + " file(s) of batch " + batch + " using " + workers +
+                    " worker(s) in " + (System.nanoTime() - start) / 1_000_000 + " ms.");
+        }
+        finally {
+            storage.delete(payload);
+        }
+    }
+    
+    @Override
+    public void abort() throws IOException {
+        storage.delete(payload);
+    }
+    
+    /**
+     * Write the provided entries, in order, each to a file of its own.
+     * 
+     * @param entries entries to write
+     * 
+     * @throws IOException if the payload or a file fails
+     */
+    private void unpack(List<BatchEntry> entries) throws IOException {
+        try (SeekableByteChannel in = storage.openForRead(payload)) {
+            for (BatchEntry e : entries) {
+                StorageWriter out = storage.openForWrite(e.getName());
+                
+                try {
+                    in.position(e.getOffset());
+                    
+                    if (out.transferFrom(in, 0L, e.getLength()) != e.getLength()) {
+                        throw new IOException("Batch " + batch + " shrunk while unpacking " + e.getName() + ".");
+                    }
+                    
+                    out.commit();
+                }
+                finally {
+                    out.abort(); // <-- no-op if committed
+                }
+            }
+        }
+    }
+    
+    /**
+     * Returns the {@code n}th of {@code of} contiguous slices, all about the
+     * same number of entries.
+     */
+    private static List<BatchEntry> slice(List<BatchEntry> index, int n, int of) {
+        return index.subList(index.size() * n / of, index.size() * (n + 1) / of);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,210 @@
+package martinandersson.com.server.dedup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import martinandersson.com.library.Hex;
+
+/**
+ * A persistent, content-addressed store of file blocks.<p>
+ * 
+ * All blocks are appended to one pack file, {@code blocks.pack}. For each
+ * block, a fixed-size record of 1) the 32 byte block hash, 2) the offset in
+ * the pack and 3) the block length is appended to an index file,
+ * {@code blocks.idx}. The index is read into memory the first time the store is
+ * used.<p>
+ * 
+ * The pack is always written before the index. Should the server crash in
+ * between, the next start will find index records pointing beyond the end of
+ * the pack and drop them. A block in the pack without an index record is just
+ * wasted space.<p>
+ * 
+ * Blocks are never removed, this is a proof of concept after all. A real
+ * store would need reference counting or a mark-and-sweep pass over all
+ * files.<p>
+ * 
+ * Safe to use by concurrent threads.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class BlockStore
+{
+    private static final Logger LOGGER = Logger.getLogger(BlockStore.class.getName());
+    
+    /** Length of a block hash. Current value: {@value}. */
+    static final int HASH_LENGTH = 32;
+    
+    private static final int RECORD_LENGTH = HASH_LENGTH + Long.BYTES + Integer.BYTES;
+    
+    private final Path dir;
+    
+    private final Map<ByteBuffer, Location> index = new ConcurrentHashMap<>();
+    
+    private FileChannel pack, idx;
+    
+    private volatile boolean open;
+    
+    /**
+     * Initializes a block store rooted in the provided directory. No IO
+     * happens until the store is used.
+     * 
+     * @param dir where to put the pack and index files
+     */
+    public BlockStore(Path dir) {
+        this.dir = dir;
+    }
+    
+    public boolean contains(byte[] hash) throws IOException {
+        ensureOpen();
+        return index.containsKey(ByteBuffer.wrap(hash));
+    }
+    
+    /**
+     * Store a block, unless a block with the same hash is already stored.<p>
+     * 
+     * The caller is responsible for the hash actually being the hash of the
+     * block.
+     * 
+     * @param hash block hash
+     * @param block the bytes to store (all remaining)
+     * 
+     * @throws IOException if writing fails
+     */
+    public void put(byte[] hash, ByteBuffer block) throws IOException {
+        ensureOpen();
+        
+        if (hash.length != HASH_LENGTH) {
+            throw new IllegalArgumentException("Expected a " + HASH_LENGTH + " byte hash, got " + hash.length + ".");
+        }
+        
+        ByteBuffer key = ByteBuffer.wrap(hash.clone());
+        
+        synchronized (this) {
+            if (index.containsKey(key)) {
+                return;
+            }
+            
+            long offset = pack.size();
+            int length = block.remaining();
+            
+            while (block.hasRemaining()) {
+                pack.write(block, offset + length - block.remaining());
+            }
+            
+            ByteBuffer record = ByteBuffer.allocate(RECORD_LENGTH);
+            record.put(hash).putLong(offset).putInt(length).flip();
+            
+            while (record.hasRemaining()) {
+                idx.write(record);
+            }
+            
+            index.put(key, new Location(offset, length));
+        }
+    }
+    
+    /**
+     * Copy a stored block to the provided target.
+     * 
+     * @param hash block hash
+     * @param target where to put the bytes
+     * 
+     * @return number of bytes copied
+     * 
+     * @throws IOException if the block is unknown, or on IO failure
+     */
+    public long copyTo(byte[] hash, WritableByteChannel target) throws IOException {
+        ensureOpen();
+        
+        Location loc = index.get(ByteBuffer.wrap(hash));
+        
+        if (loc == null) {
+            throw new IOException("No such block: " + Hex.toHex(hash));
+        }
+        
+        long done = 0L;
+        
+        while (done < loc.length) {
+            done += pack.transferTo(loc.offset + done, loc.length - done, target);
+        }
+        
+        return done;
+    }
+    
+    private void ensureOpen() throws IOException {
+        if (open) {
+            return;
+        }
+        
+        synchronized (this) {
+            if (open) {
+                return;
+            }
+            
+            Files.createDirectories(dir);
+            
+            pack = FileChannel.open(dir.resolve("blocks.pack"),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            
+            idx = FileChannel.open(dir.resolve("blocks.idx"),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            
+            loadIndex();
+            open = true;
+        }
+    }
+    
+    private void loadIndex() throws IOException {
+        final long packSize = pack.size();
+        final long records = idx.size() / RECORD_LENGTH;
+        
+        ByteBuffer record = ByteBuffer.allocate(RECORD_LENGTH);
+        int dropped = 0;
+        
+        for (long i = 0L; i < records; ++i) {
+            record.clear();
+            
+            while (record.hasRemaining()) {
+                idx.read(record, i * RECORD_LENGTH + record.position());
+            }
+            
+            record.flip();
+            
+            byte[] hash = new byte[HASH_LENGTH];
+            record.get(hash);
+            long offset = record.getLong();
+            int length = record.getInt();
+            
+            if (offset + length > packSize) {
+                ++dropped;
+                continue;
+            }
+            
+            index.put(ByteBuffer.wrap(hash), new Location(offset, length));
+        }
+        
+        // Truncate torn records, so that new records start on a record boundary:
+        idx.truncate(records * RECORD_LENGTH);
+        idx.position(idx.size());
+        
+        final int d = dropped;
+        LOGGER.info(() -> "Block store " + dir + " has " + index.size() + " block(s)" +
+                (d > 0 ? ", dropped " + d + " record(s) pointing beyond the pack." : "."));
+    }
+    
+    private static final class Location {
+        final long offset;
+        final int length;
+        
+        Location(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
\ No newline at end of file
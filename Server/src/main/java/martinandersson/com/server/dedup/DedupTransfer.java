@@ -0,0 +1,246 @@
+package martinandersson.com.server.dedup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.logging.Logger;
+import martinandersson.com.library.control.ControlMessage;
+import martinandersson.com.library.control.Field;
+import martinandersson.com.library.dedup.Block;
+import martinandersson.com.library.dedup.ContentDefinedChunker;
+import martinandersson.com.server.PayloadAssembler;
+import martinandersson.com.server.storage.StorageBackend;
+import martinandersson.com.server.storage.StorageWriter;
+
+/**
+ * Server-side state of one deduplicated file transfer.<p>
+ * 
+ * The client announce the hash and length of every block in the file. This
+ * class figure out which blocks the store is missing. The client then send
+ * only those blocks, concatenated in index order, as an ordinary file transfer
+ * into a payload file in the same storage as the destination. Any receiving strategy,
+ * encryption and chunking may be used for the payload. The payload file has a
+ * hidden name of its own for each transfer, so concurrent uploads of the same
+ * file never share it.<p>
+ * 
+ * Once the payload has been received, {@linkplain #complete() complete()}
+ * verify and store each new block, then write the destination file block by
+ * block from the store.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class DedupTransfer implements PayloadAssembler
+{
+    private static final Logger LOGGER = Logger.getLogger(DedupTransfer.class.getName());
+    
+    /**
+     * Most blocks a file may have, some 4 GiB on average. The indices of
+     * missing blocks are sent in one control message, which must fit the
+     * client's buffer. Current value: {@value}.
+     */
+    public static final int MAX_BLOCKS = 64 * 1024;
+    
+    private final BlockStore store;
+    
+    private final StorageBackend storage;
+    
+    private final String destination, payload;
+    
+    private final List<byte[]> hashes;
+    private final int[] lengths;
+    
+    private final List<Integer> missing;
+    
+    private final long payloadSize;
+    
+    /**
+     * Initializes a new deduplicated transfer.
+     * 
+     * @param store the block store
+     * @param storage where to put the file
+     * @param destination final file name
+     * @param blocks hash and length of all blocks in the file
+     * 
+     * @throws IOException if there are too many blocks, a block is malformed
+     *         or the block store fails
+     */
+    public DedupTransfer(BlockStore store, StorageBackend storage, String destination, List<Block> blocks) throws IOException {
+        this.store = store;
+        this.storage = storage;
+        this.destination = destination;
+        this.payload = "." + destination + "." + UUID.randomUUID() + ".dedup"; // <-- no client name, nor another transfer, can clash
+        
+        if (blocks.size() > MAX_BLOCKS) {
+            throw new IOException("File has " + blocks.size() + " block(s), at most " + MAX_BLOCKS + " are supported.");
+        }
+        
+        hashes = new ArrayList<>(blocks.size());
+        lengths = new int[blocks.size()];
+        
+        List<Integer> missing = new ArrayList<>();
+        Set<ByteBuffer> requested = new HashSet<>();
+        long size = 0L;
+        
+        for (int i = 0; i < blocks.size(); ++i) {
+            Block block = blocks.get(i);
+            
+            byte[] hash = block.getHash();
+            int length = block.getLength();
+            
+            if (length < 1 || length > ContentDefinedChunker.MAX_BLOCK_SIZE) {
+                throw new IOException("Block " + i + " has an illegal length: " + length);
+            }
+            
+            if (hash.length != BlockStore.HASH_LENGTH) {
+                throw new IOException("Block " + i + " has a hash of " + hash.length + " byte(s), expected " + BlockStore.HASH_LENGTH + ".");
+            }
+            
+            hashes.add(hash);
+            lengths[i] = length;
+            
+            // Ask for each unknown hash once, even if the file repeat the block:
+            if (!store.contains(hash) && requested.add(ByteBuffer.wrap(hash))) {
+                missing.add(i);
+                size += length;
+            }
+        }
+        
+        this.missing = Collections.unmodifiableList(missing);
+        this.payloadSize = size;
+        
+        LOGGER.info(() -> destination + ": " + this.missing.size() + " of " + hashes.size() +
+                " block(s) missing, expecting " + payloadSize + " byte(s).");
+    }
+    
+    /**
+     * Returns the indices of blocks the client must send, in the order the
+     * client must send them.
+     * 
+     * @return indices of missing blocks
+     */
+    public List<Integer> getMissing() {
+        return missing;
+    }
+    
+    public long getPayloadSize() {
+        return payloadSize;
+    }
+    
+    /**
+     * Returns where the file receiver should put the missing blocks.
+     * 
+     * @return the payload file name
+     */
+    @Override
+    public String getPayloadFile() {
+        return payload;
+    }
+    
+    @Override
+    public boolean expectsPayload() {
+        return !missing.isEmpty();
+    }
+    
+    /**
+     * Adds the indices of missing blocks as {@link Field#MISSING}.
+     * 
+     * @param accept the accept message being built
+     */
+    @Override
+    public void addTo(ControlMessage accept) {
+        accept.put(Field.MISSING, missing.stream().mapToInt(Integer::intValue).toArray());
+    }
+    
+    /**
+     * Verify and store all received blocks, then assemble the destination
+     * file. The payload file is deleted whether or not assembly succeed.
+     * 
+     * @throws IOException if a block fails verification, or on IO failure
+     */
+    @Override
+    public void complete() throws IOException {
+        try {
+            if (payloadSize > 0L) {
+                storeReceived();
+            }
+            
+            assemble();
+        }
+        finally {
+            storage.delete(payload);
+        }
+    }
+    
+    @Override
+    public void abort() throws IOException {
+        storage.delete(payload);
+    }
+    
+    private void storeReceived() throws IOException {
+        final MessageDigest digest;
+        
+        try {
+            digest = MessageDigest.getInstance(ContentDefinedChunker.HASH_ALGORITHM);
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        
+        ByteBuffer buff = ByteBuffer.allocate(ContentDefinedChunker.MAX_BLOCK_SIZE);
+        
+        try (SeekableByteChannel in = storage.openForRead(payload)) {
+            if (in.size() != payloadSize) {
+                throw new IOException("Expected " + payloadSize + " payload byte(s), received " + in.size() + ".");
+            }
+            
+            for (int i : missing) {
+                buff.clear().limit(lengths[i]);
+                
+                while (buff.hasRemaining()) {
+                    if (in.read(buff) == -1) {
+                        throw new IOException("Unexpected end of payload in block " + i + ".");
+                    }
+                }
+                
+                buff.flip();
+                digest.update(buff.array(), 0, buff.limit());
+                
+                if (!Arrays.equals(digest.digest(), hashes.get(i))) {
+                    throw new IOException("Block " + i + " failed hash verification.");
+                }
+                
+                store.put(hashes.get(i), buff);
+            }
+        }
+    }
+    
+    private void assemble() throws IOException {
+        StorageWriter out = storage.openForWrite(destination);
+        
+        try {
+            for (int i = 0; i < hashes.size(); ++i) {
+                long copied = store.copyTo(hashes.get(i), out);
+                
+                if (copied != lengths[i]) {
+                    throw new IOException("Stored block " + i + " has length " + copied + ", expected " + lengths[i] + ".");
+                }
+            }
+            
+            out.commit();
+        }
+        finally {
+            out.abort(); // <-- no-op if committed
+        }
+        
+        LOGGER.info(() -> "Assembled " + destination + " from " + hashes.size() + " block(s).");
+    }
+}
\ No newline at end of file
@@ -0,0 +1,148 @@
+package martinandersson.com.server.delta;
+
+import java.io.IOException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.UUID;
+import java.util.logging.Logger;
+import martinandersson.com.library.control.ControlMessage;
+import martinandersson.com.library.control.Field;
+import martinandersson.com.library.delta.DeltaPatcher;
+import martinandersson.com.library.delta.Signature;
+import martinandersson.com.server.PayloadAssembler;
+import martinandersson.com.server.storage.StorageBackend;
+import martinandersson.com.server.storage.StorageWriter;
+
+/**
+ * Server-side state of one delta file transfer.<p>
+ * 
+ * If the server already has a file with the requested name, the signature of
+ * that file (the "basis") is put in the accept message. The basis is read
+ * whole to compute the signature, which is done by {@link #prepare()} once the
+ * transfer has been admitted. The client compute a
+ * delta of his file against the signature and send the delta as an ordinary
+ * file transfer into a payload file in the same storage as the destination.
+ * The payload file has a hidden name of its own for each transfer, so
+ * concurrent uploads of the same file never share it.<p>
+ * 
+ * Once the payload has been received, {@linkplain #complete() complete()} patch
+ * the basis into a new file which is committed to the storage, replacing the
+ * basis. A delta that fails verification leave the basis untouched.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class DeltaTransfer implements PayloadAssembler
+{
+    private static final Logger LOGGER = Logger.getLogger(DeltaTransfer.class.getName());
+    
+    private final StorageBackend storage;
+    
+    private final String destination, payload;
+    
+    private Signature signature; // <-- computed by prepare()
+    
+    /**
+     * Returns a delta transfer if the destination already exists, otherwise
+     * {@code null} in which case the file must be sent whole.
+     * 
+     * @param storage where to put the file
+     * @param destination final file name
+     * 
+     * @return a delta transfer, or {@code null}
+     * 
+     * @throws IOException on IO failure
+     */
+    public static DeltaTransfer ifBasisExists(StorageBackend storage, String destination) throws IOException {
+        return storage.stat(destination).isPresent() ? new DeltaTransfer(storage, destination) : null;
+    }
+    
+    private DeltaTransfer(StorageBackend storage, String destination) {
+        this.storage = storage;
+        this.destination = destination;
+        this.payload = "." + destination + "." + UUID.randomUUID() + ".delta"; // <-- no client name, nor another transfer, can clash
+    }
+    
+    /**
+     * Compute the signature of the basis.
+     * 
+     * @throws IOException if reading the basis fails
+     */
+    @Override
+    public void prepare() throws IOException {
+        try (SeekableByteChannel basis = storage.openForRead(destination)) {
+            signature = Signature.compute(basis, Signature.blockSizeFor(basis.size()));
+        }
+        
+        LOGGER.info(() -> destination + ": computed " + signature);
+    }
+    
+    /**
+     * Returns where the file receiver should put the delta.
+     * 
+     * @return the payload file name
+     */
+    @Override
+    public String getPayloadFile() {
+        return payload;
+    }
+    
+    /**
+     * Returns {@code true}, even an identical file produce a delta.
+     * 
+     * @return {@code true}
+     */
+    @Override
+    public boolean expectsPayload() {
+        return true;
+    }
+    
+    /**
+     * Adds the signature of the basis as {@link Field#SIGNATURE}.
+     * 
+     * @param accept the accept message being built
+     * 
+     * @throws IllegalStateException if not prepared
+     */
+    @Override
+    public void addTo(ControlMessage accept) {
+        if (signature == null) {
+            throw new IllegalStateException("Signature not computed.");
+        }
+        
+        accept.put(Field.SIGNATURE, signature.toBytes());
+    }
+    
+    /**
+     * Apply the received delta to the basis and replace the basis with the
+     * result. The payload file is deleted whether or not patching succeed.
+     * 
+     * @throws IOException if the delta fails verification, or on IO failure
+     */
+    @Override
+    public void complete() throws IOException {
+        StorageWriter out = storage.openForWrite(destination);
+        
+        try {
+            final long length, deltaLength;
+            
+            try (SeekableByteChannel basis = storage.openForRead(destination);
+                 SeekableByteChannel delta = storage.openForRead(payload)) {
+                deltaLength = delta.size();
+                length = DeltaPatcher.apply(basis, delta, out);
+            }
+            
+            out.commit();
+            
+            LOGGER.info(() -> "Patched " + destination + " (" + length + " byte(s)) from a delta of " +
+                    deltaLength + " byte(s).");
+        }
+        finally {
+            out.abort(); // <-- no-op if committed
+            storage.delete(payload);
+        }
+    }
+    
+    @Override
+    public void abort() throws IOException {
+        storage.delete(payload);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,331 @@
+package martinandersson.com.server.download;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.crypto.Cipher;
+import javax.websocket.RemoteEndpoint;
+import martinandersson.com.library.AesGcmCipher;
+import martinandersson.com.server.ManagedThreads;
+import martinandersson.com.server.storage.FileStat;
+
+/**
+ * Sends a byte range of a stored file to the client.<p>
+ * 
+ * The range is cut into slices of at most {@value #SLICE_SIZE} bytes, each
+ * sent as one binary message using {@link RemoteEndpoint.Async}. The next
+ * slice is read only once the container has sent the previous one, so a slow
+ * client slow down the download instead of filling the server's memory, and
+ * no thread ever block on the client.<p>
+ * 
+ * Slices are read from the {@link SegmentCache}, which serve popular files
+ * from memory. If the cache is disabled, or neither hold nor admit a segment,
+ * only the slice is read from the file. If the file is opened as a {@code
+ * FileChannel}, slices are read from a read-only mapping of at most
+ * {@value #MAP_SIZE} bytes of the file, and the file content is copied only
+ * once, into the message. Otherwise slices are read into a buffer.<p>
+ * 
+ * Each message start with the position in the file of its first byte, a
+ * {@value #HEADER_LENGTH} byte big-endian long, so the client may write it
+ * where it belong without keeping count. The two first bytes of any position
+ * below 6 exabytes are zero, so a message is never mistaken for a binary
+ * control message, which start with {@link
+ * martinandersson.com.library.control.BinaryControlCodec#MAGIC}. If the
+ * download is encrypted, the position is followed by the invocation and the
+ * ciphertext, and the position is authenticated as additional data, so that a
+ * slice can not be moved.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class FileDownload
+{
+    private static final Logger LOGGER = Logger.getLogger(FileDownload.class.getName());
+    
+    /** Most bytes of the file sent in one message. Current value: {@value}. */
+    public static final int SLICE_SIZE = 256 * 1024;
+    
+    /** Length of the position that prefix each message. Current value: {@value}. */
+    public static final int HEADER_LENGTH = Long.BYTES;
+    
+    /** Most bytes of the file mapped at once. Current value: {@value}. */
+    private static final int MAP_SIZE = 64 * SLICE_SIZE;
+    
+    
+    
+    private final Opener opener;
+    
+    private final SegmentCache cache;
+    
+    private final FileStat stat;
+    
+    private final String file;
+    
+    private final long offset, length;
+    
+    private final AesGcmCipher cipher;
+    
+    private final RemoteEndpoint.Async remote;
+    
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+    
+    private SeekableByteChannel channel;
+    
+    private MappedByteBuffer mapped; // <-- null unless the channel is a FileChannel
+    
+    private long mappedAt;
+    
+    /** Bytes of the range sent so far. Only touched by the one thread moving the download forward. */
+    private long sent;
+    
+    /**
+     * Initializes a new download.
+     * 
+     * @param opener opens the file, for example {@link
+     *        martinandersson.com.server.storage.StorageBackend#openForRead(String)}
+     * @param stat the file, as it was when asked for
+     * @param offset position of the first byte to send
+     * @param length number of bytes to send, must be within the file
+     * @param cipher cipher for messages sent to the client, or {@code null}
+     *        if not encrypted
+     * @param remote where to send
+     */
+    public FileDownload(Opener opener, FileStat stat, long offset, long length, AesGcmCipher cipher, RemoteEndpoint.Async remote) {
+        this.opener = opener;
+        this.cache = SegmentCache.global();
+        this.stat = stat;
+        this.file = stat.getName();
+        this.offset = offset;
+        this.length = length;
+        this.cipher = cipher;
+        this.remote = remote;
+    }
+    
+    /**
+     * Start sending. Must be called only once.
+     * 
+     * @return a future completed when the last slice has been sent, or
+     *         exceptionally if reading or sending fails
+     */
+    public CompletableFuture<Void> start() {
+        try {
+            channel = opener.open(file);
+        }
+        catch (IOException e) {
+            done.completeExceptionally(e);
+            return done;
+        }
+        
+        final long start = System.nanoTime();
+        
+        done.whenComplete((ignored, failure) -> {
+            close();
+            
+            if (failure == null) {
+                LOGGER.info(() -> "Sent " + length + " byte(s) of " + file + " from position " + offset +
+                        " in " + (System.nanoTime() - start) / 1_000_000 + " ms, " + cache + ".");
+            }
+        });
+        
+        sendNext();
+        return done;
+    }
+    
+    private void sendNext() {
+        if (sent == length) {
+            done.complete(null);
+            return;
+        }
+        
+        final int n = (int) Math.min(SLICE_SIZE, length - sent);
+        final ByteBuffer message;
+        
+        try {
+            message = encode(offset + sent, read(offset + sent, n));
+        }
+        catch (IOException | GeneralSecurityException | RuntimeException e) {
+            done.completeExceptionally(e);
+            return;
+        }
+        
+        remote.sendBinary(message, result -> {
+            if (!result.isOK()) {
+                done.completeExceptionally(result.getException());
+                return;
+            }
+            
+            sent += n;
+            
+            // Don't read the next slice on the container's thread, nor grow the stack if it called us right away:
+            ManagedThreads.execute(this::sendNext);
+        });
+    }
+    
+    /**
+     * Returns the bytes at the provided position of the file.
+     * 
+     * @param position position in the file
+     * @param n number of bytes
+     * 
+     * @return a buffer holding exactly {@code n} bytes
+     * 
+     * @throws IOException if the file has shrunk, or on IO failure
+     */
+    private ByteBuffer read(long position, int n) throws IOException {
+        if (cache.getCapacity() > 0L) {
+            ByteBuffer cached = readCached(position, n);
+            
+            if (cached != null) {
+                return cached;
+            }
+        }
+        
+        if (channel instanceof FileChannel) {
+            if (mapped == null || position < mappedAt || position + n > mappedAt + mapped.capacity()) {
+                FileChannel fc = (FileChannel) channel;
+                long size = Math.min(MAP_SIZE, offset + length - position);
+                
+                if (position + size > fc.size()) {
+                    throw new IOException(file + " shrunk while sending.");
+                }
+                
+                mapped = fc.map(FileChannel.MapMode.READ_ONLY, position, size);
+                mappedAt = position;
+            }
+            
+            ByteBuffer slice = mapped.duplicate();
+            slice.position((int) (position - mappedAt)).limit((int) (position - mappedAt) + n);
+            return slice;
+        }
+        
+        ByteBuffer buff = ByteBuffer.allocate(n);
+        channel.position(position);
+        
+        while (buff.hasRemaining()) {
+            if (channel.read(buff) < 0) {
+                throw new IOException(file + " shrunk while sending.");
+            }
+        }
+        
+        buff.flip();
+        return buff;
+    }
+    
+    /**
+     * Returns the bytes at the provided position of the file, from the
+     * segment cache.
+     * 
+     * @param position position in the file
+     * @param n number of bytes, at most one segment
+     * 
+     * @return a buffer holding exactly {@code n} bytes, or {@code null} if a
+     *         segment is neither cached nor admitted
+     * 
+     * @throws IOException if the file has shrunk, or on IO failure
+     */
+    private ByteBuffer readCached(long position, int n) throws IOException {
+        final long index = position / SegmentCache.SEGMENT_SIZE;
+        final int at = (int) (position % SegmentCache.SEGMENT_SIZE);
+        
+        ByteBuffer first = segment(index);
+        
+        if (first == null) {
+            return null;
+        }
+        
+        if (at + n <= first.limit()) {
+            first.position(at).limit(at + n);
+            return first;
+        }
+        
+        if (first.limit() < SegmentCache.SEGMENT_SIZE) {
+            throw new IOException(file + " shrunk while sending.");
+        }
+        
+        // Slice span two segments:
+        ByteBuffer second = segment(index + 1);
+        
+        if (second == null) {
+            return null;
+        }
+        
+        ByteBuffer buff = ByteBuffer.allocate(n);
+        buff.put((ByteBuffer) first.position(at));
+        
+        if (second.limit() < buff.remaining()) {
+            throw new IOException(file + " shrunk while sending.");
+        }
+        
+        second.limit(buff.remaining());
+        buff.put(second).flip();
+        return buff;
+    }
+    
+    private ByteBuffer segment(long index) throws IOException {
+        final long start = index * SegmentCache.SEGMENT_SIZE;
+        final int size = (int) Math.min(SegmentCache.SEGMENT_SIZE, stat.getSize() - start);
+        
+        return cache.get(file, stat.getLastModified(), start, size, into -> {
+            channel.position(start);
+            
+            while (into.hasRemaining()) {
+                if (channel.read(into) < 0) {
+                    throw new IOException(file + " shrunk while sending.");
+                }
+            }
+        });
+    }
+    
+    private ByteBuffer encode(long position, ByteBuffer slice) throws GeneralSecurityException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).putLong(0, position);
+        
+        if (cipher == null) {
+            ByteBuffer message = ByteBuffer.allocate(HEADER_LENGTH + slice.remaining());
+            message.put(header).put(slice).flip();
+            return message;
+        }
+        
+        long invocation = cipher.nextInvocation();
+        Cipher c = cipher.initForEncryption(invocation);
+        c.updateAAD(header.array()); // <-- a slice sent for one position does not decrypt at another
+        
+        ByteBuffer message = ByteBuffer.allocate(HEADER_LENGTH + AesGcmCipher.NONCE_LENGTH + c.getOutputSize(slice.remaining()));
+        message.put(header).putLong(invocation);
+        c.doFinal(slice, message);
+        message.flip();
+        return message;
+    }
+    
+    private void close() {
+        mapped = null; // <-- unmapped once collected
+        
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to close " + file + ".", e);
+        }
+    }
+    
+    /**
+     * Opens the file to send.
+     */
+    @FunctionalInterface
+    public interface Opener {
+        /**
+         * Open a file for reading.
+         * 
+         * @param file file name
+         * 
+         * @return a channel of the file's content
+         * 
+         * @throws IOException on IO failure
+         */
+        SeekableByteChannel open(String file) throws IOException;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,399 @@
+package martinandersson.com.server.download;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.attribute.FileTime;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * A global cache of file segments read by downloads, so that a file fetched
+ * over and over is served from memory instead of disk.<p>
+ * 
+ * A file is cut into segments of {@value #SEGMENT_SIZE} bytes, each cached on
+ * its own in a direct buffer outside the heap. A segment is known by file
+ * name, offset and last modified time. A file that is replaced therefore never
+ * serve the old content, and the storage backend also tell the cache to drop
+ * all segments of a file as soon as it is committed or deleted, see {@link
+ * martinandersson.com.server.storage.StorageBackend#addChangeListener(
+ * java.util.function.Consumer)}.<p>
+ * 
+ * The cache hold at most the budget read from system property {@value
+ * #BUDGET_PROPERTY} (bytes, default {@value #DEFAULT_BUDGET}, {@code 0}
+ * disable the cache). Eviction is frequency-aware: how often each segment has
+ * been asked for lately, cached or not, is counted in a small count-min
+ * sketch whose counters are halved every so often, so that old popularity
+ * fade. When a new segment need room, the least often asked for of the
+ * {@value #SAMPLE} least recently used segments is evicted, but only if the
+ * new segment has been asked for more often. A download of a file nobody else
+ * want thus does not flush the popular ones.<p>
+ * 
+ * Hits, misses and the hit ratio are published as a platform MXBean named
+ * {@value #OBJECT_NAME}.<p>
+ * 
+ * Safe to use by concurrent threads.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class SegmentCache implements SegmentCacheMXBean
+{
+    private static final Logger LOGGER = Logger.getLogger(SegmentCache.class.getName());
+    
+    /** System property setting the budget in bytes. Current value: {@value}. */
+    public static final String BUDGET_PROPERTY = "martinandersson.com.server.download.cache";
+    
+    /** Budget used unless configured. Current value: {@value}. */
+    public static final long DEFAULT_BUDGET = 64L * 1024 * 1024;
+    
+    /** Name of the published MXBean. Current value: {@value}. */
+    public static final String OBJECT_NAME = "martinandersson.com.server:type=SegmentCache";
+    
+    /** Bytes of a file per segment. Current value: {@value}. */
+    public static final int SEGMENT_SIZE = 1024 * 1024;
+    
+    /** Number of least recently used segments an eviction pick among. Current value: {@value}. */
+    private static final int SAMPLE = 8;
+    
+    private static final int SKETCH_DEPTH = 4, SKETCH_WIDTH = 1 << 12, MAX_COUNT = 15;
+    
+    /** Counted lookups after which all counters are halved. Current value: {@value}. */
+    private static final int AGING_PERIOD = 8 * SKETCH_WIDTH;
+    
+    private static final SegmentCache GLOBAL = new SegmentCache(Long.getLong(BUDGET_PROPERTY, DEFAULT_BUDGET));
+    
+    static {
+        GLOBAL.publish();
+    }
+    
+    /**
+     * Returns the cache shared by all downloads.
+     * 
+     * @return the global cache
+     */
+    public static SegmentCache global() {
+        return GLOBAL;
+    }
+    
+    
+    
+    private final long capacity;
+    
+    /** All cached segments, least recently used first. */
+    private final LinkedHashMap<Key, ByteBuffer> segments = new LinkedHashMap<>(16, 0.75f, true);
+    
+    private final int[] sketch = new int[SKETCH_DEPTH * SKETCH_WIDTH];
+    
+    private int counted;
+    
+    private long used, hits, misses, evictions, rejections;
+    
+    /**
+     * Initializes a new cache.
+     * 
+     * @param capacity bytes available, {@code 0} to cache nothing
+     * 
+     * @throws IllegalArgumentException if {@code capacity} is negative
+     */
+    public SegmentCache(long capacity) {
+        if (capacity < 0L) {
+            throw new IllegalArgumentException("Capacity must not be negative, got: " + capacity);
+        }
+        
+        this.capacity = capacity;
+    }
+    
+    /**
+     * Returns a segment of a file, reading it from storage unless cached.
+     * A segment that is not cached, and would not be admitted, is not read at
+     * all. The caller read only the bytes he need instead.
+     * 
+     * @param file file name
+     * @param lastModified last modified time of the file being read
+     * @param offset position in the file of the segment's first byte, a
+     *        multiple of {@value #SEGMENT_SIZE}
+     * @param length bytes in the segment, less than {@value #SEGMENT_SIZE}
+     *        only for the last segment of a file
+     * @param loader reads the segment if not cached but admitted
+     * 
+     * @return a read-only buffer of the segment, positioned at 0, or {@code
+     *         null} if the segment is neither cached nor admitted
+     * 
+     * @throws IOException if reading the segment fails
+     */
+    public ByteBuffer get(String file, FileTime lastModified, long offset, int length, Loader loader) throws IOException {
+        final Key key = new Key(file, offset, lastModified);
+        
+        synchronized (this) {
+            count(key);
+            
+            ByteBuffer cached = segments.get(key);
+            
+            if (cached != null) {
+                ++hits;
+                return cached.duplicate();
+            }
+            
+            ++misses;
+            
+            if (!wouldAdmit(key, length)) {
+                // Reading a whole segment only to throw it away is a waste:
+                ++rejections;
+                return null;
+            }
+        }
+        
+        ByteBuffer loaded = ByteBuffer.allocateDirect(length);
+        loader.load(loaded);
+        loaded.flip();
+        
+        ByteBuffer segment = loaded.asReadOnlyBuffer();
+        
+        synchronized (this) {
+            admit(key, segment);
+        }
+        
+        return segment.duplicate();
+    }
+    
+    /**
+     * Drop all segments of a file.
+     * 
+     * @param file file name
+     */
+    public synchronized void invalidate(String file) {
+        Iterator<Map.Entry<Key, ByteBuffer>> it = segments.entrySet().iterator();
+        
+        while (it.hasNext()) {
+            Map.Entry<Key, ByteBuffer> e = it.next();
+            
+            if (e.getKey().file.equals(file)) {
+                used -= e.getValue().capacity();
+                it.remove();
+            }
+        }
+    }
+    
+    @Override
+    public long getCapacity() {
+        return capacity;
+    }
+    
+    @Override
+    public synchronized long getUsed() {
+        return used;
+    }
+    
+    @Override
+    public synchronized int getSegments() {
+        return segments.size();
+    }
+    
+    @Override
+    public synchronized long getHits() {
+        return hits;
+    }
+    
+    @Override
+    public synchronized long getMisses() {
+        return misses;
+    }
+    
+    @Override
+    public synchronized double getHitRatio() {
+        return hits + misses == 0L ? 0.0 : (double) hits / (hits + misses);
+    }
+    
+    @Override
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+    
+    @Override
+    public synchronized long getRejections() {
+        return rejections;
+    }
+    
+    @Override
+    public String toString() {
+        return new StringBuilder(SegmentCache.class.getSimpleName())
+                .append('[')
+                  .append("used=").append(getUsed())
+                  .append(", capacity=").append(capacity)
+                  .append(", hitRatio=").append(String.format("%.3f", getHitRatio()))
+                .append(']')
+                .toString();
+    }
+    
+    private boolean wouldAdmit(Key key, int length) {
+        if (length > capacity) {
+            return false;
+        }
+        
+        if (used + length <= capacity) {
+            return true;
+        }
+        
+        Key victim = victim();
+        return victim != null && frequency(key) > frequency(victim);
+    }
+    
+    private void admit(Key key, ByteBuffer segment) {
+        final int length = segment.capacity();
+        
+        if (segments.containsKey(key) || length > capacity) {
+            // Loaded by someone else meanwhile, or never fit:
+            return;
+        }
+        
+        final int frequency = frequency(key);
+        
+        while (used + length > capacity) {
+            Key victim = victim();
+            
+            if (frequency <= frequency(victim)) {
+                ++rejections;
+                return;
+            }
+            
+            used -= segments.remove(victim).capacity();
+            ++evictions;
+        }
+        
+        segments.put(key, segment);
+        used += length;
+    }
+    
+    /**
+     * Returns the least often asked for of the least recently used segments.
+     */
+    private Key victim() {
+        Key victim = null;
+        int lowest = Integer.MAX_VALUE, n = 0;
+        
+        for (Key k : segments.keySet()) {
+            int f = frequency(k);
+            
+            if (f < lowest) {
+                victim = k;
+                lowest = f;
+            }
+            
+            if (++n == SAMPLE) {
+                break;
+            }
+        }
+        
+        return victim;
+    }
+    
+    private void count(Key key) {
+        final int hash = key.hashCode();
+        
+        for (int row = 0; row < SKETCH_DEPTH; ++row) {
+            int i = index(hash, row);
+            
+            if (sketch[i] < MAX_COUNT) {
+                ++sketch[i];
+            }
+        }
+        
+        if (++counted == AGING_PERIOD) {
+            for (int i = 0; i < sketch.length; ++i) {
+                sketch[i] >>>= 1;
+            }
+            
+            counted /= 2;
+        }
+    }
+    
+    private int frequency(Key key) {
+        final int hash = key.hashCode();
+        int min = MAX_COUNT;
+        
+        for (int row = 0; row < SKETCH_DEPTH; ++row) {
+            min = Math.min(min, sketch[index(hash, row)]);
+        }
+        
+        return min;
+    }
+    
+    /**
+     * Returns the counter of the provided row, from a hash mixed with the row.
+     */
+    private static int index(int hash, int row) {
+        int h = (hash + row) * 0x9E3779B9;
+        h ^= h >>> 16;
+        return row * SKETCH_WIDTH + (h & (SKETCH_WIDTH - 1));
+    }
+    
+    private void publish() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            
+            // Left behind by a previous deployment:
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            
+            server.registerMBean(this, name);
+        }
+        catch (JMException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to publish segment cache metrics.", e);
+        }
+        
+        LOGGER.info(() -> "Cache for downloaded file segments: " + capacity + " byte(s).");
+    }
+    
+    /**
+     * Reads a segment that is not cached.
+     */
+    @FunctionalInterface
+    public interface Loader {
+        /**
+         * Fill the provided buffer with the segment.
+         * 
+         * @param into buffer with room for exactly the segment
+         * 
+         * @throws IOException if the file has shrunk, or on IO failure
+         */
+        void load(ByteBuffer into) throws IOException;
+    }
+    
+    private static final class Key {
+        final String file;
+        
+        final long offset;
+        
+        final FileTime lastModified;
+        
+        Key(String file, long offset, FileTime lastModified) {
+            this.file = file;
+            this.offset = offset;
+            this.lastModified = lastModified;
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            
+            Key other = (Key) obj;
+            return offset == other.offset && file.equals(other.file) && lastModified.equals(other.lastModified);
+        }
+        
+        @Override
+        public int hashCode() {
+            return Objects.hash(file, offset, lastModified);
+        }
+    }
+}
\ No newline at end of file
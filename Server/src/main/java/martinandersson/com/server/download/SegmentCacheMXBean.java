@@ -0,0 +1,67 @@
+package martinandersson.com.server.download;
+
+/**
+ * Usage of the {@link SegmentCache}, as published over JMX.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public interface SegmentCacheMXBean
+{
+    /**
+     * Returns the size of the cache.
+     * 
+     * @return bytes available in total, {@code 0} if caching is disabled
+     */
+    long getCapacity();
+    
+    /**
+     * Returns the bytes currently cached.
+     * 
+     * @return bytes cached
+     */
+    long getUsed();
+    
+    /**
+     * Returns the number of segments currently cached.
+     * 
+     * @return cached segments
+     */
+    int getSegments();
+    
+    /**
+     * Returns how many segments were served from memory.
+     * 
+     * @return number of hits
+     */
+    long getHits();
+    
+    /**
+     * Returns how many segments had to be read from storage.
+     * 
+     * @return number of misses
+     */
+    long getMisses();
+    
+    /**
+     * Returns hits divided by all lookups.
+     * 
+     * @return hit ratio, {@code 0} if nothing has been looked up
+     */
+    double getHitRatio();
+    
+    /**
+     * Returns how many segments were evicted to make room for others.
+     * 
+     * @return number of evictions
+     */
+    long getEvictions();
+    
+    /**
+     * Returns how many segments read from storage were not cached, because
+     * they were asked for less often than those that would have been
+     * evicted.
+     * 
+     * @return number of rejections
+     */
+    long getRejections();
+}
\ No newline at end of file
@@ -1,19 +1,29 @@
 package martinandersson.com.server.filereceiver;
 
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.file.Path;
 import java.security.GeneralSecurityException;
+import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.websocket.MessageHandler;
+import martinandersson.com.server.MemoryBudget;
+import martinandersson.com.server.storage.StorageWriter;
 
 /**
- * Base class for all byte-based file receivers that receive message parts.
+ * Base class for all byte-based file receivers that receive message parts.<p>
+ * 
+ * Every part is accounted for in the global {@link MemoryBudget} before it is
+ * processed, together with the decrypted output, the sink's buffer and the
+ * ciphertext the cipher keep until {@code doFinal()}. If the budget is
+ * exhausted, the delivering thread wait and the next part is not delivered
+ * until memory has been released. Rate limits, if any, are applied the same
+ * way, before the part is processed.
  * 
  * @param <T> type of binary message part
  * @param <S> type of destination sink
@@ -85,7 +95,27 @@ public abstract class AbstractByteFileReceiver<T, S extends Closeable> extends A
         }
     }
     
-    protected abstract S getSink(Path destination) throws IOException;
+    /**
+     * Wrap the provided writer in the sink type of the subclass. Closing the
+     * sink must close the writer.
+     * 
+     * @param writer writer of the file or chunk received
+     * 
+     * @return the sink
+     * 
+     * @throws IOException on IO failure
+     */
+    protected abstract S getSink(StorageWriter writer) throws IOException;
+    
+    /**
+     * Returns the number of bytes the sink buffer, to be accounted for in the
+     * memory budget for as long as the sink is open.
+     * 
+     * @return size of the sink's buffer, default is {@code 0}
+     */
+    protected int getSinkBufferSize() {
+        return 0;
+    }
     
     /**
      * Note that at least GlassFish (don't know about WildFly because WildFly
@@ -101,14 +131,59 @@ public abstract class AbstractByteFileReceiver<T, S extends Closeable> extends A
      */
     protected abstract boolean hasBytes(T part);
     
+    /**
+     * Decrypt (if cipher is provided) and write all bytes of the provided
+     * part. Implementations must pass the plaintext to {@code
+     * updateDigest()} on the way.
+     * 
+     * @param part the message part
+     * @param out where to write
+     * @param cipher cipher to use, or {@code null}
+     * 
+     * @return number of plaintext bytes written
+     * 
+     * @throws IOException if writing fails
+     */
     protected abstract int transferAllBytes(T part, S out, Cipher cipher) throws IOException;
     
     protected abstract void putCipherFinal(byte[] bytes, S out) throws IOException;
     
+    private int length(T part) {
+        return part instanceof byte[] ?
+                ((byte[]) part).length :
+                ((ByteBuffer) part).remaining();
+    }
+    
+    /**
+     * Read what is left of the nonce header from the provided part.
+     * 
+     * @param part the message part
+     * 
+     * @return the rest of the part, possibly empty
+     * 
+     * @throws GeneralSecurityException if the cipher could not be initialized
+     */
+    @SuppressWarnings("unchecked")
+    private T skipNonce(T part) throws GeneralSecurityException {
+        if (part instanceof ByteBuffer) {
+            readNonce((ByteBuffer) part); // <-- advance the part itself
+            return part;
+        }
+        
+        byte[] bytes = (byte[]) part;
+        ByteBuffer view = ByteBuffer.wrap(bytes);
+        readNonce(view);
+        
+        return (T) Arrays.copyOfRange(bytes, view.position(), bytes.length);
+    }
+    
     private class MessageHandlerImpl implements MessageHandler.Partial<T> {
         S out;
         long bytesRead = 0L;
         
+        /** Sink buffer and buffered ciphertext, held until the transfer is done. */
+        MemoryBudget.Reservation held;
+        
         @Override
         public void onMessage(T buff, boolean lastPart) {
             try {
@@ -116,14 +191,48 @@ public abstract class AbstractByteFileReceiver<T, S extends Closeable> extends A
                     startTransfer();
                 }
                 
-                doMessage(buff, lastPart, getCipher());
+                final int len = length(buff);
+                
+                // Rate limits first, so that we don't hold memory while we wait:
+                throttle(len);
+                
+                if (isEncrypted() && getCipher() == null) {
+                    buff = skipNonce(buff);
+                    
+                    if (getCipher() == null) {
+                        if (lastPart) {
+                            throw new EOFException("Message ended before its nonce.");
+                        }
+                        
+                        return; // <-- header split over parts, wait for the rest
+                    }
+                }
+                
+                final Cipher cipher = getCipher();
+                
+                // The part, and possibly the decrypted part, held only while we process it:
+                final long inFlight = cipher == null ? len : 2L * len;
+                
+                // GCM keep all ciphertext until doFinal(), see http://stackoverflow.com/q/26920906/1268003
+                final long kept = cipher == null ? 0L : len;
+                
+                // One reservation, so that it may outgrow the budget when alone:
+                held.grow(inFlight + kept);
+                
+                try {
+                    doMessage(buff, lastPart, cipher);
+                }
+                finally {
+                    if (held != null) {
+                        held.shrink(inFlight);
+                    }
+                }
                 
                 if (lastPart) {
                     done(null);
                 }
             }
             catch (IOException | GeneralSecurityException e) {
-                // TODO: Should remove file?
                 if (e instanceof IOException && e.getCause() != null) {
                     done(e.getCause());
                 }
@@ -147,7 +256,9 @@ public abstract class AbstractByteFileReceiver<T, S extends Closeable> extends A
             
             if (lastPart) {
                 if (cipher != null) {
+                    held.grow(cipher.getOutputSize(0));
                     byte[] res = cipher.doFinal(); // <-- IllegalBlockSizeException, BadPaddingException
+                    updateDigest(res, 0, res.length);
                     putCipherFinal(res, out);
                     bytesRead += res.length;
                 }
@@ -158,25 +269,36 @@ public abstract class AbstractByteFileReceiver<T, S extends Closeable> extends A
         
         private void startTransfer() throws IOException {
             AbstractByteFileReceiver.super.startTransfer();
-            out = getSink(getFile()); // <-- IOException
+            held = MemoryBudget.global().reserve(getSinkBufferSize()); // <-- IOException
+            out = getSink(openWriter()); // <-- IOException
         }
         
         private void done(Throwable problem) {
-            transferFinished(problem);
-
             bytesRead = 0L;
-
+            
+            // Flush the sink before the file is committed:
             if (out != null) {
                 try {
                     out.close();
                 }
                 catch (IOException e) {
                     LOGGER.log(Level.WARNING, "Failed to close sink.", e);
+                    
+                    if (problem == null) {
+                        problem = e;
+                    }
                 }
                 finally {
                     out = null;
                 }
             }
+            
+            if (held != null) {
+                held.close();
+                held = null;
+            }
+            
+            transferFinished(problem);
         }
     }
 }
\ No newline at end of file
@@ -1,32 +1,35 @@
 package martinandersson.com.server.filereceiver;
 
 import java.io.IOException;
-import java.nio.channels.FileChannel;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.crypto.Cipher;
-import javax.naming.InitialContext;
-import javax.naming.NamingException;
 import javax.websocket.MessageHandler;
 import javax.websocket.Session;
 import martinandersson.com.library.AesGcmCipher;
+import martinandersson.com.library.Durability;
+import martinandersson.com.server.ManagedThreads;
+import martinandersson.com.server.Throttle;
+import martinandersson.com.server.storage.StorageBackend;
+import martinandersson.com.server.storage.StorageWriter;
+import martinandersson.com.server.storage.SyncingWriter;
 
 /**
  * Base class for all file receivers.<p>
  * 
- * This class take care of state, initiation of the cipher and life cycle of the
- * message handler.<p>
+ * This class take care of state, initiation of the cipher, life cycle of the
+ * message handler and of the storage writer. A subclass ask for the writer
+ * using {@link #openWriter()} and close whatever it wrapped the writer in
+ * before calling {@code transferFinished()}. Thereafter this class commit or
+ * abort the file.<p>
  * 
  * The architecture is arguable a bit complex and hard to read. It was chosen
  * so that the client may dynamically select which strategy the server should
@@ -44,37 +47,21 @@ public abstract class AbstractFileReceiver<T extends MessageHandler> implements
 {
     private static final Logger LOGGER = Logger.getLogger(AbstractFileReceiver.class.getName());
     
-    private static final ExecutorService executor;
-    private static final ThreadFactory threads;
     
-    static {
-        ExecutorService exec = null;
-        ThreadFactory factory = null;
-        
-        try {
-            exec = InitialContext.doLookup("java:comp/DefaultManagedExecutorService");
-        } catch (NamingException e) {
-            LOGGER.log(Level.SEVERE, "Failed to lookup managed executor service.", e);
-        }
-        
-        try {
-            factory = InitialContext.doLookup("java:comp/DefaultManagedThreadFactory");
-        } catch (NamingException e) {
-            LOGGER.log(Level.SEVERE, "Failed to lookup managed thread factory.", e);
-        }
-        
-        executor = exec;
-        threads = factory;
-    }
     
+    private volatile State state = State.NOT_INITITATED;
     
+    private StorageBackend storage;
     
-    private volatile State state = State.NOT_INITITATED;
+    private String currentChunk;
+    private String destination;
     
-    private Path currentChunk;
-    private Path destination;
+    private List<String> chunks;
     
-    private List<Path> chunks;
+    /** Merge chunks of a chunked transfer as they arrive, {@code null} until the first one does. */
+    private ChunkMerger merger;
+    
+    private StorageWriter writer;
     
     private Session session;
     private T handler;
@@ -82,6 +69,19 @@ public abstract class AbstractFileReceiver<T extends MessageHandler> implements
     private AesGcmCipher aesGcmCipher;
     private Cipher usedCipher;
     
+    /** Invocation header of the current file or chunk, read so far. */
+    private final ByteBuffer nonce = ByteBuffer.allocate(AesGcmCipher.NONCE_LENGTH);
+    
+    private MessageDigest digest;
+    
+    private Durability durability = Durability.NONE;
+    private long syncInterval = Durability.DEFAULT_SYNC_INTERVAL;
+    private long syncNanos;
+    
+    private long expectedSize = -1L;
+    
+    private Throttle throttle;
+    
     private boolean chunked;
     
     /** Never {@code null}, but might be an empty handler doing nothing. */
@@ -96,17 +96,67 @@ public abstract class AbstractFileReceiver<T extends MessageHandler> implements
      */
     
     @Override
-    public final void init(Session session, Path file, boolean chunked, AesGcmCipher cipher, Consumer<Optional<? extends Throwable>> onCompletion) {
+    public final void useDigest(MessageDigest digest) {
+        if (state != State.NOT_INITITATED) {
+            throw new IllegalStateException("Too late. Current state: " + state);
+        }
+        
+        this.digest = digest;
+    }
+    
+    @Override
+    public final void useDurability(Durability durability, long syncInterval) {
+        if (state != State.NOT_INITITATED) {
+            throw new IllegalStateException("Too late. Current state: " + state);
+        }
+        
+        if (syncInterval < 1L) {
+            throw new IllegalArgumentException("Sync interval must be positive, got: " + syncInterval);
+        }
+        
+        this.durability = durability;
+        this.syncInterval = syncInterval;
+    }
+    
+    @Override
+    public final void expectSize(long size) {
+        if (state != State.NOT_INITITATED) {
+            throw new IllegalStateException("Too late. Current state: " + state);
+        }
+        
+        this.expectedSize = size;
+    }
+    
+    @Override
+    public final void useThrottle(Throttle throttle) {
+        if (state != State.NOT_INITITATED) {
+            throw new IllegalStateException("Too late. Current state: " + state);
+        }
+        
+        this.throttle = throttle;
+    }
+    
+    @Override
+    public final long getSyncNanos() {
+        return syncNanos;
+    }
+    
+    @Override
+    public final void init(Session session, StorageBackend storage, String file, boolean chunked, AesGcmCipher cipher, Consumer<Optional<? extends Throwable>> onCompletion) {
         if (state != State.NOT_INITITATED) {
             throw new IllegalStateException("Already initiated. Current state: " + state);
         }
         
         this.chunked = chunked;
         this.session = session;
+        this.storage = storage;
         this.destination = file;
         this.onCompletion = onCompletion != null ? onCompletion : e -> {};
         
         this.aesGcmCipher = cipher;
+        this.usedCipher = null;
+        this.nonce.clear();
+        this.syncNanos = 0L;
         
         if (chunked) {
             chunks = new ArrayList<>();
@@ -120,10 +170,35 @@ public abstract class AbstractFileReceiver<T extends MessageHandler> implements
     }
     
     @Override
-    public final void completeChunked() throws MergeException, DeleteException {
-        deregisterHandler(null);
-        mergeChunks();
-        deleteChunks();
+    public final CompletableFuture<Void> completeChunked(Runnable whenDeregistered) {
+        deregisterHandler(whenDeregistered);
+        
+        final StorageBackend storage = this.storage;
+        final List<String> chunks = this.chunks == null ?
+                new ArrayList<>() :
+                new ArrayList<>(this.chunks);
+        
+        CompletableFuture<Void> merged = mergeChunks();
+        
+        // Merging has its own copy of everything needed, so we are free for a new transfer:
+        resetChunked();
+        
+        merged.whenComplete((ignored, e) -> {
+            if (e == null) {
+                return; // <-- merger deleted each chunk as it went
+            }
+            
+            ManagedThreads.execute(() -> {
+                try {
+                    deleteChunks(storage, chunks);
+                }
+                catch (DeleteException e2) {
+                    LOGGER.log(Level.WARNING, "Failed to delete chunks after a failed merge.", e2);
+                }
+            });
+        });
+        
+        return merged;
     }
     
     @Override
@@ -159,30 +234,116 @@ public abstract class AbstractFileReceiver<T extends MessageHandler> implements
     }
     
     /**
-     * Reinitiate cipher for each new chunk and only upon the first invocation
-     * of this method after a new chunk has begun.
+     * Returns {@code true} if the file is encrypted. Then each file, or each
+     * chunk, begin with a header of {@value AesGcmCipher#NONCE_LENGTH} bytes
+     * that must be given to {@link #readNonce(ByteBuffer)} before the
+     * ciphertext can be decrypted.
      * 
-     * @return the ready to use cipher instance
+     * @return {@code true} if the file is encrypted
+     */
+    protected final boolean isEncrypted() {
+        return aesGcmCipher != null;
+    }
+    
+    /**
+     * Consume header bytes from the provided buffer, which is advanced past
+     * them. The header may be split over many calls. Once complete, a new
+     * cipher is initialized for the invocation it carry.
      * 
-     * @throws GeneralSecurityException on like, failure
+     * @param src received bytes, starting with all or the rest of the header
+     * 
+     * @return the ready to use cipher, or {@code null} if more header bytes
+     *         are needed
+     * 
+     * @throws GeneralSecurityException if the invocation has been used before
+     *         or the cipher could not be initialized
      */
-    protected final Cipher getCipher() throws GeneralSecurityException {
+    protected final Cipher readNonce(ByteBuffer src) throws GeneralSecurityException {
         if (!isReceiving()) {
             throw new IllegalStateException("Not in the state of receiving, so what you gonna use a cipher for?");
         }
         
-        if (aesGcmCipher == null) {
-            return null;
+        if (usedCipher != null) {
+            throw new IllegalStateException("Nonce already read.");
+        }
+        
+        while (nonce.hasRemaining() && src.hasRemaining()) {
+            nonce.put(src.get());
         }
         
-        if (usedCipher == null) {
-            usedCipher = aesGcmCipher.initForDecryption();
+        if (nonce.hasRemaining()) {
+            return null;
         }
         
+        nonce.flip();
+        usedCipher = aesGcmCipher.initForDecryption(nonce.getLong()); // <-- GeneralSecurityException
         return usedCipher;
     }
     
-    protected final Path getFile() {
+    /**
+     * Returns the cipher of the current file or chunk.
+     * 
+     * @return the cipher, or {@code null} if the file is not encrypted or the
+     *         header has not been read yet
+     */
+    protected final Cipher getCipher() {
+        return usedCipher;
+    }
+    
+    /**
+     * Wait until the provided number of received bytes fit the rate limits,
+     * if any. Must be called before the bytes are consumed.
+     * 
+     * @param bytes bytes about to be consumed
+     * 
+     * @throws IOException if interrupted while waiting
+     */
+    protected final void throttle(long bytes) throws IOException {
+        if (throttle != null) {
+            throttle.acquire(bytes);
+        }
+    }
+    
+    /**
+     * Returns the digest to update, if any.
+     * 
+     * @return the digest, or {@code null}
+     */
+    protected final MessageDigest getDigest() {
+        return digest;
+    }
+    
+    /**
+     * Update the digest, if any, with received plaintext.
+     * 
+     * @param bytes plaintext
+     * @param off offset
+     * @param len length
+     */
+    protected final void updateDigest(byte[] bytes, int off, int len) {
+        if (digest != null) {
+            digest.update(bytes, off, len);
+        }
+    }
+    
+    /**
+     * Update the digest, if any, with the remaining plaintext of the provided
+     * buffer. The buffer's position is not changed.
+     * 
+     * @param bytes plaintext
+     */
+    protected final void updateDigest(ByteBuffer bytes) {
+        if (digest != null) {
+            digest.update(bytes.duplicate());
+        }
+    }
+    
+    /**
+     * Returns the name of the file or chunk currently received.
+     * 
+     * @return the name of the file or chunk currently received
+     */
+    protected final String getFile() {
         if (state == State.NOT_INITITATED) {
             throw new IllegalStateException("Not initialized.");
         }
@@ -190,12 +351,38 @@ public abstract class AbstractFileReceiver<T extends MessageHandler> implements
         return currentChunk;
     }
     
+    /**
+     * Open the file or chunk currently received for writing. The writer is
+     * committed or aborted by {@code transferFinished()}.
+     * 
+     * @return the writer
+     * 
+     * @throws IOException on IO failure
+     */
+    protected final StorageWriter openWriter() throws IOException {
+        if (!isReceiving()) {
+            throw new IllegalStateException("Not in the state of receiving.");
+        }
+        
+        if (writer != null) {
+            throw new IllegalStateException("Writer already open.");
+        }
+        
+        writer = chunked ?
+                storage.openForWrite(currentChunk) :
+                openDestination();
+        
+        return writer;
+    }
+    
     protected final void transferFinished() {
         transferFinished(null);
     }
     
     /**
-     * If not chunked, deregister handler at once, otherwise start a new chunk.
+     * Commit the received file or chunk, or discard it if there was a
+     * problem. Then, if not chunked, deregister handler at once, otherwise
+     * hand the chunk to the background merger and start a new chunk.
      * 
      * @param problem provided by sub class
      */
@@ -203,17 +390,29 @@ public abstract class AbstractFileReceiver<T extends MessageHandler> implements
         if (! (isWaiting() || isReceiving())) {
             return;
         }
-
+        
+        problem = settleWriter(problem);
+        
         if (chunked) {
+            if (problem == null) {
+                problem = mergeInBackground(currentChunk);
+            }
+            
             if (problem != null) {
+                abandonMerge();
+                
                 try {
-                    deleteChunks();
-                    deregisterHandler(() -> onCompletion.accept(Optional.of(problem)));
+                    deleteChunks(storage, chunks);
                 }
                 catch (DeleteException e) {
                     e.addSuppressed(problem);
-                    deregisterHandler(() -> onCompletion.accept(Optional.of(e)));
+                    problem = e;
                 }
+                
+                final Throwable p = problem;
+                
+                resetChunked();
+                deregisterHandler(() -> onCompletion.accept(Optional.of(p)));
             }
             else {
                 startNewChunk();
@@ -221,9 +420,11 @@ public abstract class AbstractFileReceiver<T extends MessageHandler> implements
             }
         }
         else {
+            final Throwable p = problem;
+            
             destination = null;
             state = State.NOT_INITITATED;
-            deregisterHandler(() -> onCompletion.accept(Optional.ofNullable(problem)));
+            deregisterHandler(() -> onCompletion.accept(Optional.ofNullable(p)));
         }
     }
     
@@ -235,69 +436,235 @@ public abstract class AbstractFileReceiver<T extends MessageHandler> implements
      *  --------------
      */
     
+    /**
+     * Commit the writer if there was no problem, otherwise abort.
+     * 
+     * @param problem problem so far, may be {@code null}
+     * 
+     * @return problem after settling, may be {@code null}
+     */
+    private Throwable settleWriter(Throwable problem) {
+        if (writer == null) {
+            return problem;
+        }
+        
+        try {
+            if (problem == null) {
+                writer.commit();
+                recordSync(writer);
+            }
+            else {
+                writer.abort();
+            }
+        }
+        catch (IOException e) {
+            if (problem == null) {
+                problem = e;
+            }
+            else {
+                LOGGER.log(Level.WARNING, "Failed to discard " + writer.getName() + ".", e);
+            }
+        }
+        finally {
+            writer = null;
+        }
+        
+        return problem;
+    }
+    
+    /**
+     * Open the destination file for writing, with the durability policy
+     * applied and the expected size preallocated.
+     * 
+     * @return the writer
+     * 
+     * @throws IOException on IO failure, or if there is not room for the file
+     */
+    private StorageWriter openDestination() throws IOException {
+        StorageWriter w = storage.openForWrite(destination);
+        
+        if (durability != Durability.NONE) {
+            w = new SyncingWriter(w, durability, syncInterval);
+        }
+        
+        if (expectedSize > 0L) {
+            try {
+                w.preallocate(expectedSize);
+            }
+            catch (IOException e) {
+                try {
+                    w.abort();
+                }
+                catch (IOException e2) {
+                    e.addSuppressed(e2);
+                }
+                
+                throw e;
+            }
+        }
+        
+        return w;
+    }
+    
+    private void recordSync(StorageWriter w) {
+        if (!(w instanceof SyncingWriter)) {
+            return;
+        }
+        
+        SyncingWriter s = (SyncingWriter) w;
+        syncNanos += s.getSyncNanos();
+        
+        LOGGER.info(() -> "Forced " + s.getName() + " to disk " + s.getSyncCount() + " time(s) in " +
+                s.getSyncNanos() / 1_000_000 + " ms (" + s.getDurability() + ").");
+    }
+    
     private void startNewChunk() {
-        // Create new random temp chunk in hopefully same folder..
-        currentChunk = destination.resolveSibling(
-                destination.getFileName() + ".part" + (chunks.size() + 1));
+        // The storage decide where the chunk goes, possibly not next to the others:
+        currentChunk = destination + ".part" + (chunks.size() + 1);
         
         chunks.add(currentChunk);
         usedCipher = null;
+        nonce.clear();
         state = State.WAITING;
     }
     
-    private void mergeChunks() throws MergeException {
-        if (chunks == null || chunks.isEmpty()) {
+    /**
+     * Queue a committed chunk for merging into the destination, opening the
+     * destination if this is the first chunk.
+     * 
+     * @param chunk the chunk
+     * 
+     * @return {@code null} if queued, otherwise the problem
+     */
+    private IOException mergeInBackground(String chunk) {
+        try {
+            if (merger == null) {
+                merger = new ChunkMerger(storage, openDestination());
+            }
+            
+            merger.add(chunk);
+            return null;
+        }
+        catch (IOException e) {
+            return e;
+        }
+    }
+    
+    /**
+     * Stop the background merger, if any, and discard the destination.
+     */
+    private void abandonMerge() {
+        if (merger == null) {
             return;
         }
         
+        final ChunkMerger m = merger;
+        merger = null;
+        
+        m.cancel().whenComplete((ignored, e) -> {
+            try {
+                m.getTarget().abort();
+            }
+            catch (IOException e2) {
+                LOGGER.log(Level.WARNING, "Failed to discard " + m.getTarget().getName() + ".", e2);
+            }
+        });
+    }
+    
+    /**
+     * Wait for the background merger to copy the chunks still queued, then
+     * commit the destination. If no chunk was received at all, an empty
+     * destination is committed.
+     * 
+     * @return a future completed when the destination has been committed, or
+     *         completed exceptionally with a {@code MergeException}
+     */
+    private CompletableFuture<Void> mergeChunks() {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        
+        if (chunks == null) {
+            done.complete(null);
+            return done;
+        }
+        
         /*
          * "Last chunk" is never transfered. startNewChunk() is always called
-         * after each previous chunked was completed. Therefore only the chunks
-         * except the last one will be processed.
+         * after each previous chunked was completed, and only those were
+         * handed to the merger.
          */
         
-        try (FileChannel target = FileChannel.open(destination,
-                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
-            for (int i = 0; i < chunks.size() - 1; ++i) {
-                Path chunk = chunks.get(i);
-                long size = Files.size(chunk);
-                try (FileChannel source = FileChannel.open(chunk, StandardOpenOption.READ)) {
-                    source.transferTo(0L, size, target);
-                }
-            }
+        final ChunkMerger m;
+        
+        try {
+            m = merger != null ? merger : new ChunkMerger(storage, openDestination());
         }
         catch (IOException e) {
-            throw new MergeException(e);
+            done.completeExceptionally(new MergeException(e));
+            return done;
         }
+        
+        merger = null;
+        final StorageWriter target = m.getTarget();
+        
+        m.finish().whenComplete((ignored, failure) -> {
+            IOException e = failure == null ? null :
+                    failure instanceof IOException ? (IOException) failure :
+                    new IOException(failure);
+            
+            try {
+                if (e == null) {
+                    target.commit();
+                    recordSync(target);
+                }
+            }
+            catch (IOException e2) {
+                e = e2;
+            }
+            
+            if (e == null) {
+                done.complete(null);
+                return;
+            }
+            
+            try {
+                target.abort();
+            }
+            catch (IOException e2) {
+                e.addSuppressed(e2);
+            }
+            
+            done.completeExceptionally(new MergeException(e));
+        });
+        
+        return done;
     }
     
-    private void deleteChunks() throws DeleteException {
-        if (chunks == null || chunks.isEmpty()) {
-            currentChunk = destination = null;
-            chunks = null;
-            state = State.NOT_INITITATED;
+    /**
+     * Delete the provided chunks.<p>
+     * 
+     * Chunks already merged have been deleted by the merger, deleting them
+     * again is a no-op. We might or might not have to delete the last chunk.
+     * Almost same resoning applies here as in mergeChunks(). However, it is
+     * possible for a chunked transfer to crash during the transmission of a
+     * chunk or right after without startNewChunk() called (for example on
+     * AEADBadTagException). A crashed chunk is never committed, so deleting it
+     * is a no-op.
+     * 
+     * @param storage where the chunks are
+     * @param chunks names of all chunks (may be {@code null})
+     * 
+     * @throws DeleteException if at least one chunk failed to be deleted
+     */
+    private static void deleteChunks(StorageBackend storage, List<String> chunks) throws DeleteException {
+        if (chunks == null) {
             return;
         }
         
-        /*
-         * We might or might not have to delete the last chunk. Almost same
-         * resoning applies here as in mergeChunks(). However, it is possible
-         * for a chunked transfer to crash during the transmission of a chunk or
-         * right after without startNewChunk() called (for example on
-         * AEADBadTagException). Thus we delete the "last chunk" only if it
-         * exists.
-         */
-        
-        final int ceiling = Files.exists(chunks.get(chunks.size() - 1)) ?
-                chunks.size() :
-                chunks.size() - 1;
-        
         IOException oops = null;
         
-        for (int i = 0; i < ceiling; ++i) {
-            Path chunk = chunks.get(i);
+        for (String chunk : chunks) {
             try {
-                Files.delete(chunk); }
+                storage.delete(chunk); }
             catch (IOException e) {
                 if (oops != null) {
                     e.addSuppressed(oops); }
@@ -305,16 +672,19 @@ public abstract class AbstractFileReceiver<T extends MessageHandler> implements
             }
         }
         
+        if (oops != null) {
+            throw new DeleteException(oops);
+        }
+    }
+    
+    private void resetChunked() {
+        merger = null;
+        storage = null;
         destination = null;
         currentChunk = null;
-        chunks.clear();
         chunks = null;
         
         state = State.NOT_INITITATED;
-        
-        if (oops != null) {
-            throw new DeleteException(oops);
-        }
     }
     
     private void registerHandler() {
@@ -340,9 +710,9 @@ public abstract class AbstractFileReceiver<T extends MessageHandler> implements
                 // I don't trust them managed things..
                 LOGGER.warning("Deregistering message handler not done in another thread, we might block forever now..");
             }
-
+            
             session.removeMessageHandler(handler);
-
+            
             if (id == Thread.currentThread().getId()) {
                 LOGGER.warning("I survived, job done! =)");
             }
@@ -351,13 +721,7 @@ public abstract class AbstractFileReceiver<T extends MessageHandler> implements
                 after.run();
             }
         };
-
-        try {
-            executor.submit(deregister);
-        }
-        catch (RejectedExecutionException e) {
-            LOGGER.warning(() -> "Deregistration task rejected, submitting to a new thread instead..");
-            threads.newThread(deregister).start();
-        }
+        
+        ManagedThreads.execute(deregister);
     }
 }
\ No newline at end of file
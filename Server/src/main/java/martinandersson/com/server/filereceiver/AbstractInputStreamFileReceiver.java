@@ -1,47 +1,196 @@
 package martinandersson.com.server.filereceiver;
 
+import java.io.EOFException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.Path;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.security.DigestInputStream;
 import java.security.GeneralSecurityException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
 import javax.websocket.MessageHandler;
+import martinandersson.com.library.AesGcmCipher;
+import martinandersson.com.server.ManagedThreads;
+import martinandersson.com.server.storage.StorageWriter;
 
 /**
  * Base class for all file receivers reading whole messages from an input
  * stream.<p>
  * 
- * Manages decryption by decorating the raw input stream with a {@code
- * CipherInputStream} which is then provided to subclass (if decryption was
- * enabled).<p>
+ * The nonce of an encrypted message is read here, the rest of the raw stream
+ * is handed to {@link #readAllBytes(InputStream, Cipher, StorageWriter)
+ * readAllBytes()} together with a cipher ready to decrypt it. {@link
+ * CopyInputStreamFileReceiver} move the bytes in bulk, the single-byte
+ * strategies read a stream {@linkplain #decorate(InputStream, Cipher)
+ * decorated} with a {@code CipherInputStream} and a {@code DigestInputStream}
+ * instead, and are kept that way on purpose, as something to compare the bulk
+ * transfer against.<p>
  * 
  * The specification say that provider must buffer the message before feeding
  * the {@code MessageHandler.Whole<InputStream>}, but in reality, that isn't the
  * case. Both GlassFish and WildFly feed the message handler with an input
- * stream as soon as bytes has arrived.
+ * stream as soon as bytes has arrived.<p>
+ * 
+ * The stream is only guaranteed to be readable until {@code onMessage()}
+ * return, so it is drained right there, which block the container thread that
+ * delivered the message for the whole transfer. Chunking bound how long that
+ * is.<p>
+ * 
+ * In the virtual mode of {@link ManagedThreads}, a {@code
+ * MessageHandler.Partial<ByteBuffer>} is registered instead. Each part is
+ * copied into a {@link PartStream} and the container thread return at once,
+ * while the stream is drained by the very same code on a virtual thread of
+ * its own. A slow upload then hold no platform thread between its parts. Only
+ * a drainer that fall {@value PartStream#MAX_QUEUED} bytes behind, for
+ * example one paused by the rate limits, make the container thread wait.
  * 
  * @author Martin Andersson (webmaster at martinandersson.com)
  */
-public abstract class AbstractInputStreamFileReceiver extends AbstractFileReceiver<MessageHandler.Whole<InputStream>>
+public abstract class AbstractInputStreamFileReceiver extends AbstractFileReceiver<MessageHandler>
 {
+    private static final Logger LOGGER = Logger.getLogger(AbstractInputStreamFileReceiver.class.getName());
+    
+    
+    
     /**
-     * Read all bytes from the provided input stream and then return how many
-     * bytes was read.
+     * Read all bytes from the provided input stream, decrypt and digest them
+     * and write them, then return how many plaintext bytes was written.
      * 
-     * @param in input stream provided by WebSocket provider
-     * @param destination where to put the bytes
+     * @param in raw input stream provided by WebSocket provider, past the
+     *           nonce
+     * @param cipher cipher initialized for the message, or {@code null} if not
+     *        encrypted
+     * @param out where to put the bytes, closed by the caller, or {@code
+     *        null} if {@link #needsWriter()} return {@code false}
      * 
-     * @return bytes read
+     * @return bytes written
      * 
-     * @throws java.io.IOException if anything goes to hell
+     * @throws IOException if anything goes to hell, with a {@code
+     *         GeneralSecurityException} as cause if decryption fails
      */
-    protected abstract long readAllBytes(InputStream in, Path destination) throws IOException;
-
+    protected abstract long readAllBytes(InputStream in, Cipher cipher, StorageWriter out) throws IOException;
+    
+    /**
+     * Returns whether the bytes received are written anywhere. A receiver
+     * that throw them away must not open a writer, committing it would
+     * replace any file by the same name with an empty one.
+     * 
+     * @return {@code true} unless overridden
+     */
+    protected boolean needsWriter() {
+        return true;
+    }
+    
     @Override
-    protected final MessageHandler.Whole<InputStream> getMessageHandler() {
-        return new MessageHandlerImpl();
+    protected final MessageHandler getMessageHandler() {
+        return ManagedThreads.isVirtual() ?
+                new PartFeeder(new MessageHandlerImpl()) :
+                new MessageHandlerImpl();
+    }
+    
+    /**
+     * Decorate a raw input stream such that reading it apply the rate limits,
+     * decrypt and digest, as needed.
+     * 
+     * @param in raw input stream
+     * @param cipher cipher to decrypt with, or {@code null}
+     * 
+     * @return the decorated stream
+     */
+    protected final InputStream decorate(InputStream in, Cipher cipher) {
+        InputStream source = new ThrottledInputStream(in);
+        
+        if (cipher != null) {
+            source = new CipherInputStream(source, cipher);
+        }
+        
+        if (getDigest() != null) {
+            // Digest the plaintext as the subclass read it, no second pass:
+            source = new DigestInputStream(source, getDigest());
+        }
+        
+        return source;
+    }
+    
+    /**
+     * Apply the rate limits to a raw input stream. Single-byte reads are
+     * throttled in batches so that a baseline is not slowed down by the
+     * throttle itself.
+     */
+    private class ThrottledInputStream extends FilterInputStream {
+        private static final int BATCH = 8 * 1024;
+        
+        private int unpaid;
+        
+        ThrottledInputStream(InputStream in) {
+            super(in);
+        }
+        
+        @Override
+        public int read() throws IOException {
+            if (unpaid == 0) {
+                throttle(BATCH); // <-- pay in advance
+                unpaid = BATCH;
+            }
+            
+            int b = super.read();
+            
+            if (b != -1) {
+                --unpaid;
+            }
+            
+            return b;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int r = super.read(b, off, len);
+            
+            if (r > 0) {
+                throttle(r);
+            }
+            
+            return r;
+        }
+    }
+    
+    /**
+     * Copy each part of a message into a stream, drained by the whole-message
+     * handler on a thread of its own.
+     */
+    private static final class PartFeeder implements MessageHandler.Partial<ByteBuffer> {
+        final MessageHandler.Whole<InputStream> drainer;
+        
+        PartStream current; // <-- null between messages
+        
+        PartFeeder(MessageHandler.Whole<InputStream> drainer) {
+            this.drainer = drainer;
+        }
+        
+        @Override
+        public void onMessage(ByteBuffer part, boolean last) {
+            if (current == null) {
+                final PartStream stream = current = new PartStream();
+                ManagedThreads.execute(() -> drainer.onMessage(stream));
+            }
+            
+            try {
+                current.put(part, last); // <-- may wait for the drainer
+            }
+            catch (InterruptedIOException e) {
+                // A closed stream fail the drainer, and so the transfer:
+                LOGGER.log(Level.WARNING, "Interrupted while feeding a message, dropping the rest of it.", e);
+                current.close();
+            }
+            
+            if (last) {
+                current = null;
+            }
+        }
     }
     
     private class MessageHandlerImpl implements MessageHandler.Whole<InputStream> {
@@ -54,25 +203,27 @@ public abstract class AbstractInputStreamFileReceiver extends AbstractFileReceiv
         public void onMessage(InputStream in) {
             startTransfer();
             
-            try {
-                if (getCipher() != null) {
-                    in = new CipherInputStream(in, getCipher());
-                }
-            }
-            catch (GeneralSecurityException e) {
-                transferFinished(e);
-            }
-            catch (IllegalStateException e) {
-                closeSilently(in);
-                throw e;
-            }
-            
             Throwable problem = null;
             
             try {
-                long len = readAllBytes(in, getFile());
+                final Cipher cipher = readNonce(in);
+                final long len;
+                
+                if (needsWriter()) {
+                    try (StorageWriter out = openWriter()) {
+                        len = readAllBytes(in, cipher, out);
+                    }
+                }
+                else {
+                    len = readAllBytes(in, cipher, null);
+                }
+                
                 logger.info(() -> "Successfully stored " + len + " bytes in " + getFile());
             }
+            catch (GeneralSecurityException e) {
+                logger.log(Level.WARNING, "Failed to initialize cipher for file " + getFile() + ":", e);
+                problem = e;
+            }
             catch (IOException e) {
                 logger.log(Level.WARNING, "Failed to receive file " + getFile() + ":", e);
                 problem = e.getCause() != null ? e.getCause() : e;
@@ -83,6 +234,34 @@ public abstract class AbstractInputStreamFileReceiver extends AbstractFileReceiv
             }
         }
         
+        /**
+         * Read the nonce header from the raw stream, if the file is encrypted.
+         * 
+         * @param in raw stream
+         * 
+         * @return the cipher, or {@code null} if not encrypted
+         * 
+         * @throws IOException if reading fails or the stream end first
+         * @throws GeneralSecurityException if the cipher could not be initialized
+         */
+        Cipher readNonce(InputStream in) throws IOException, GeneralSecurityException {
+            if (!isEncrypted()) {
+                return null;
+            }
+            
+            byte[] header = new byte[AesGcmCipher.NONCE_LENGTH];
+            
+            for (int n = 0, r; n < header.length; n += r) {
+                r = in.read(header, n, header.length - n);
+                
+                if (r == -1) {
+                    throw new EOFException("Message ended before its nonce.");
+                }
+            }
+            
+            return AbstractInputStreamFileReceiver.this.readNonce(ByteBuffer.wrap(header));
+        }
+        
         void closeSilently(InputStream in) {
             try {
                 in.close();
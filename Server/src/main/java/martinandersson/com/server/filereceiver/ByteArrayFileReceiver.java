@@ -3,10 +3,9 @@ package martinandersson.com.server.filereceiver;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
+import java.nio.channels.Channels;
 import javax.crypto.Cipher;
+import martinandersson.com.server.storage.StorageWriter;
 
 /**
  * Uses a message part handler that process {@code byte[]}.
@@ -14,19 +13,26 @@ import javax.crypto.Cipher;
  * @author Martin Andersson (webmaster at martinandersson.com)
  */
 public class ByteArrayFileReceiver extends AbstractByteFileReceiver<byte[], OutputStream>
-{   
+{
+    /** Size of the sink buffer. Current value: {@value}. */
+    private static final int BUFFER_SIZE = 8 * 1024;
+    
+    
+    
     public ByteArrayFileReceiver() {
         super(byte[].class);
     }
-
+    
     @Override
-    protected OutputStream getSink(Path destination) throws IOException {
-        OutputStream raw = Files.newOutputStream(destination,
-                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
-        
-        return new BufferedOutputStream(raw);
+    protected OutputStream getSink(StorageWriter writer) {
+        return new BufferedOutputStream(Channels.newOutputStream(writer), BUFFER_SIZE);
     }
-
+    
+    @Override
+    protected int getSinkBufferSize() {
+        return BUFFER_SIZE;
+    }
+    
     @Override
     protected boolean hasBytes(byte[] part) {
         return part.length > 0;
@@ -40,12 +46,13 @@ public class ByteArrayFileReceiver extends AbstractByteFileReceiver<byte[], Outp
         }
         
         if (part.length > 0) {
+            updateDigest(part, 0, part.length);
             out.write(part);
         }
         
         return part.length;
     }
-
+    
     @Override
     protected void putCipherFinal(byte[] bytes, OutputStream out) throws IOException {
         out.write(bytes);
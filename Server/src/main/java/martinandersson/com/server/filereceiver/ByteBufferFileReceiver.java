@@ -2,64 +2,69 @@ package martinandersson.com.server.filereceiver;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
-import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
-import java.security.GeneralSecurityException;
 import java.util.logging.Logger;
 import javax.crypto.Cipher;
+import martinandersson.com.server.storage.StorageWriter;
 
 /**
  * Uses a message part handler that process {@code ByteBuffer}.
  * 
  * @author Martin Andersson (webmaster at martinandersson.com)
  */
-public class ByteBufferFileReceiver extends AbstractByteFileReceiver<ByteBuffer, FileChannel>
+public class ByteBufferFileReceiver extends AbstractByteFileReceiver<ByteBuffer, StorageWriter>
 {
     private static final Logger LOGGER = Logger.getLogger(ByteBufferFileReceiver.class.getName());
     
     public ByteBufferFileReceiver() {
         super(ByteBuffer.class);
     }
-
+    
     @Override
-    protected FileChannel getSink(Path destination) throws IOException {
-        return FileChannel.open(destination, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    protected StorageWriter getSink(StorageWriter writer) {
+        return writer;
     }
-
+    
     @Override
     protected boolean hasBytes(ByteBuffer part) {
         return part.hasRemaining();
     }
     
     @Override
-    protected int transferAllBytes(ByteBuffer part, FileChannel out, Cipher cipher) throws IOException {
+    protected int transferAllBytes(ByteBuffer part, StorageWriter out, Cipher cipher) throws IOException {
         if (cipher != null) {
-            try {
-                int len = part.remaining();
-                ByteBuffer decoded = ByteBuffer.allocate(cipher.getOutputSize(len));
-                
-                // See: http://stackoverflow.com/q/26920906/1268003
-                int wrote = cipher.update(part, decoded);
-                
-                if (wrote == 0) {
-                    return 0;
-                }
-                else {
-                    decoded.flip();
-                    part = decoded;
-                }
+            /*
+             * Not update(ByteBuffer, ByteBuffer), which want an output buffer
+             * of getOutputSize() and for GCM, that is all ciphertext received
+             * so far. See: http://stackoverflow.com/q/26920906/1268003
+             */
+            
+            final int len = part.remaining();
+            final byte[] plain;
+            
+            if (part.hasArray()) {
+                plain = cipher.update(part.array(), part.arrayOffset() + part.position(), len);
+                part.position(part.limit());
             }
-            catch (GeneralSecurityException e) {
-                throw new RuntimeException(e);
+            else {
+                byte[] copy = new byte[len];
+                part.get(copy);
+                plain = cipher.update(copy);
             }
+            
+            if (plain == null || plain.length == 0) {
+                return 0;
+            }
+            
+            part = ByteBuffer.wrap(plain);
         }
         
+        updateDigest(part);
+        
         int bytesRead = out.write(part);
-
-        if (part.hasRemaining()) { // <-- will never happen because channel is in blocking mode..
+        
+        while (part.hasRemaining()) { // <-- will never happen because channel is in blocking mode..
             LOGGER.warning(() -> "Retrying without sleep..");
-            return bytesRead + transferAllBytes(part, out, null);
+            bytesRead += out.write(part);
         }
         
         // Surely the WebSocket provider must clear() the buffer..
@@ -68,7 +73,7 @@ public class ByteBufferFileReceiver extends AbstractByteFileReceiver<ByteBuffer,
     }
     
     @Override
-    protected void putCipherFinal(byte[] bytes, FileChannel out) throws IOException {
+    protected void putCipherFinal(byte[] bytes, StorageWriter out) throws IOException {
         out.write(ByteBuffer.wrap(bytes));
     }
 }
\ No newline at end of file
@@ -0,0 +1,225 @@
+package martinandersson.com.server.filereceiver;
+
+import java.io.IOException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import martinandersson.com.server.ManagedThreads;
+import martinandersson.com.server.storage.StorageBackend;
+import martinandersson.com.server.storage.StorageWriter;
+
+/**
+ * Copies the chunks of a chunked transfer into the destination file while the
+ * transfer is still going on.<p>
+ * 
+ * Each chunk is {@linkplain #add(String) added} as soon as it has been
+ * committed. Chunks arrive in file order, so the offset of a chunk in the
+ * destination is the sum of the sizes of all chunks added before it. A bounded
+ * number of workers pull chunks off a queue and copy each one to its offset
+ * using a positional {@code transferFrom()}, then delete the chunk. When the
+ * client says EOF, at most the last few chunks are left to copy, and at no time
+ * do all chunks occupy disk space next to the destination.<p>
+ * 
+ * The number of workers is read from system property {@value
+ * #PARALLELISM_PROPERTY} and default to the number of processors. Workers
+ * run on {@link ManagedThreads}, never on the thread that add a chunk.<p>
+ * 
+ * The merger never commit nor abort the destination, that is left to the
+ * caller once the future returned by {@link #finish()} has completed.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+final class ChunkMerger
+{
+    private static final Logger LOGGER = Logger.getLogger(ChunkMerger.class.getName());
+    
+    /** System property setting the number of chunks copied concurrently. Current value: {@value}. */
+    static final String PARALLELISM_PROPERTY = "martinandersson.com.server.merge.threads";
+    
+    private static final int PARALLELISM = Math.max(1,
+            Integer.getInteger(PARALLELISM_PROPERTY, Runtime.getRuntime().availableProcessors()));
+    
+    
+    
+    private final StorageBackend storage;
+    
+    private final StorageWriter target;
+    
+    private final Deque<Piece> queue = new ArrayDeque<>();
+    
+    private final CompletableFuture<Void> result = new CompletableFuture<>();
+    
+    /** Offset of the next chunk added. */
+    private long position;
+    
+    private int active, merged;
+    
+    private boolean finished;
+    
+    private IOException failure;
+    
+    /**
+     * Initializes a new merger.
+     * 
+     * @param storage where the chunks are
+     * @param target destination
+     */
+    ChunkMerger(StorageBackend storage, StorageWriter target) {
+        this.storage = storage;
+        this.target = target;
+    }
+    
+    /**
+     * Queue a committed chunk for merging. Chunks must be added in file order.
+     * 
+     * @param chunk chunk name
+     * 
+     * @throws IOException if the chunk can not be found, or a previous chunk
+     *         failed to merge
+     * @throws IllegalStateException if already finished
+     */
+    synchronized void add(String chunk) throws IOException {
+        if (finished) {
+            throw new IllegalStateException("Already finished.");
+        }
+        
+        if (failure != null) {
+            throw failure;
+        }
+        
+        long size = storage.stat(chunk).orElseThrow(() -> new NoSuchFileException(chunk)).getSize();
+        
+        queue.add(new Piece(chunk, position, size));
+        position += size;
+        
+        if (active < PARALLELISM) {
+            ++active;
+            ManagedThreads.execute(this::work);
+        }
+    }
+    
+    /**
+     * Declare that no more chunks will be added.
+     * 
+     * @return a future completed when all chunks have been copied, or
+     *         completed exceptionally with the first {@code IOException}
+     */
+    synchronized CompletableFuture<Void> finish() {
+        if (!finished) {
+            finished = true;
+            
+            final int left = queue.size() + active;
+            final long total = position;
+            
+            LOGGER.info(() -> "At most " + left + " chunk(s) left to merge into " +
+                    target.getName() + ", " + total + " byte(s) in total.");
+            
+            settleIfDone();
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Stop merging. Chunks not yet copied are left as they are.
+     * 
+     * @return a future completed when no worker touch the destination anymore
+     */
+    synchronized CompletableFuture<Void> cancel() {
+        queue.clear();
+        
+        if (failure == null) {
+            failure = new IOException("Merge of " + target.getName() + " cancelled.");
+        }
+        
+        return finish();
+    }
+    
+    StorageWriter getTarget() {
+        return target;
+    }
+    
+    private void work() {
+        Piece p;
+        
+        while ((p = next()) != null) {
+            try {
+                copy(p);
+            }
+            catch (IOException | RuntimeException e) {
+                fail(e);
+                continue;
+            }
+            
+            try {
+                storage.delete(p.chunk);
+            }
+            catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to delete " + p.chunk + " after merging.", e);
+            }
+        }
+    }
+    
+    private synchronized Piece next() {
+        Piece p = failure == null ? queue.poll() : null;
+        
+        if (p == null) {
+            --active;
+            settleIfDone();
+        }
+        
+        return p;
+    }
+    
+    private void copy(Piece p) throws IOException {
+        try (SeekableByteChannel source = storage.openForRead(p.chunk)) {
+            if (target.transferFrom(source, p.offset, p.size) != p.size) {
+                throw new IOException("Chunk " + p.chunk + " shrunk while merging.");
+            }
+        }
+        
+        synchronized (this) {
+            ++merged;
+        }
+    }
+    
+    private synchronized void fail(Exception e) {
+        IOException io = e instanceof IOException ? (IOException) e : new IOException(e);
+        
+        if (failure == null) {
+            failure = io;
+        }
+        else {
+            failure.addSuppressed(io);
+        }
+    }
+    
+    private void settleIfDone() {
+        if (!finished || active > 0) {
+            return;
+        }
+        
+        if (failure == null) {
+            LOGGER.fine(() -> "Merged " + merged + " chunk(s) into " + target.getName() + ".");
+            result.complete(null);
+        }
+        else {
+            result.completeExceptionally(failure);
+        }
+    }
+    
+    private static final class Piece {
+        final String chunk;
+        final long offset, size;
+        
+        Piece(String chunk, long offset, long size) {
+            this.chunk = chunk;
+            this.offset = offset;
+            this.size = size;
+        }
+    }
+}
\ No newline at end of file
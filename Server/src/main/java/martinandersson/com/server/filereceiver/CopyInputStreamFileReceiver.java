@@ -2,18 +2,98 @@ package martinandersson.com.server.filereceiver;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import javax.crypto.Cipher;
+import martinandersson.com.server.MemoryBudget;
+import martinandersson.com.server.storage.StorageWriter;
 
 /**
- * Use {@code Files.copy()} to transfer all bytes.
+ * Transfer all bytes in bulk: the raw input stream is read into a buffer, each
+ * buffer is decrypted using {@code Cipher.update()} directly (if decryption
+ * was enabled), digested and written to the storage channel.<p>
+ * 
+ * The buffer, and the ciphertext the cipher keep until {@code doFinal()}, are
+ * accounted for in the global {@link MemoryBudget}. If the budget is
+ * exhausted, reading the stream stop until memory has been released. Rate
+ * limits, if any, pause reading the same way.
  * 
  * @author Martin Andersson (webmaster at martinandersson.com)
  */
 public class CopyInputStreamFileReceiver extends AbstractInputStreamFileReceiver {
+    /** Size of the bulk transfer buffer. Current value: {@value}. */
+    private static final int BULK_BUFFER_SIZE = 64 * 1024;
+    
+    /**
+     * {@inheritDoc}
+     * 
+     * @throws IOException if reading or writing fails, if the memory budget
+     *         is exhausted, or with a {@code GeneralSecurityException} as
+     *         cause if decryption fails
+     */
     @Override
-    protected long readAllBytes(InputStream in, Path destination) throws IOException {
-        return Files.copy(in, destination, StandardCopyOption.REPLACE_EXISTING);
+    protected long readAllBytes(InputStream in, Cipher cipher, StorageWriter out) throws IOException {
+        try (MemoryBudget.Reservation held = MemoryBudget.global().reserve(BULK_BUFFER_SIZE)) {
+            return bulkTransfer(in, cipher, out, held);
+        }
+    }
+    
+    /**
+     * Read all bytes from the raw input stream, decrypt, digest and write
+     * them.
+     * 
+     * @param held reservation of the buffer, grown with buffered ciphertext
+     */
+    private long bulkTransfer(InputStream in, Cipher cipher, StorageWriter out, MemoryBudget.Reservation held) throws IOException {
+        final byte[] buffer = new byte[BULK_BUFFER_SIZE]; // <-- one per message, never shared
+        
+        long n = 0L;
+        int r;
+        
+        while ((r = in.read(buffer)) != -1) {
+            throttle(r); // <-- may wait, which pause reading
+            
+            if (cipher == null) {
+                n += write(buffer, r, out);
+            }
+            else {
+                // GCM withhold all plaintext until doFinal(), see http://stackoverflow.com/q/26920906/1268003
+                held.grow(r); // <-- may wait, which pause reading
+                byte[] plain = cipher.update(buffer, 0, r);
+                
+                if (plain != null) {
+                    n += write(plain, plain.length, out);
+                }
+            }
+        }
+        
+        if (cipher != null) {
+            try {
+                held.grow(cipher.getOutputSize(0));
+                byte[] last = cipher.doFinal();
+                n += write(last, last.length, out);
+            }
+            catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            }
+        }
+        
+        return n;
+    }
+    
+    private int write(byte[] bytes, int len, StorageWriter out) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        
+        updateDigest(bytes, 0, len);
+        
+        ByteBuffer b = ByteBuffer.wrap(bytes, 0, len);
+        
+        while (b.hasRemaining()) {
+            out.write(b);
+        }
+        
+        return len;
     }
-}
\ No newline at end of file
+}
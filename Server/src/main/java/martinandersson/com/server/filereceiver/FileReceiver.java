@@ -1,15 +1,22 @@
 package martinandersson.com.server.filereceiver;
 
 import java.io.IOException;
-import java.nio.file.Path;
+import java.security.MessageDigest;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
 import javax.websocket.Session;
 import martinandersson.com.library.AesGcmCipher;
+import martinandersson.com.library.Durability;
+import martinandersson.com.server.Throttle;
+import martinandersson.com.server.storage.StorageBackend;
 
 /**
  * A file receiver receives files or file chunks that is finally merged into a
- * file destination.
+ * file destination.<p>
+ * 
+ * All files and chunks are written to a {@link StorageBackend}. A file or
+ * chunk is committed once fully received, and discarded if the transfer fail.
  * 
  * @author Martin Andersson (webmaster at martinandersson.com)
  */
@@ -21,6 +28,53 @@ public interface FileReceiver
         RECEIVING;
     }
     
+    /**
+     * Update the provided digest with every received byte, after decryption.
+     * Must be called before {@code init()}. The digest is never reset by the
+     * receiver, so for a chunked transfer, it cover all chunks received so
+     * far. A {@link martinandersson.com.library.merkle.MerkleDigest} build the
+     * Merkle tree of the file as it is received.
+     * 
+     * @param digest digest to update, or {@code null} for none
+     */
+    void useDigest(MessageDigest digest);
+    
+    /**
+     * Apply a durability policy to the destination file. Chunks of a chunked
+     * transfer are never forced, only the file they are merged into. Must be
+     * called before {@code init()}. Default is {@link Durability#NONE}.
+     * 
+     * @param durability the policy
+     * @param syncInterval bytes between forces, only used by {@link
+     *        Durability#PERIODIC}
+     * 
+     * @throws IllegalArgumentException if {@code syncInterval} is not positive
+     */
+    void useDurability(Durability durability, long syncInterval);
+    
+    /**
+     * Preallocate the destination file. Must be called before {@code init()}.
+     * 
+     * @param size expected size of the destination file, or {@code -1} if
+     *        unknown (default)
+     */
+    void expectSize(long size);
+    
+    /**
+     * Limit the rate at which received bytes are consumed. Must be called
+     * before {@code init()}.
+     * 
+     * @param throttle the throttle, or {@code null} for none (default)
+     */
+    void useThrottle(Throttle throttle);
+    
+    /**
+     * Returns the total time spent forcing the destination file to disk.
+     * 
+     * @return nanoseconds spent forcing, so far
+     */
+    long getSyncNanos();
+    
     /**
      * Initiates a new file transfer.<p>
      * 
@@ -32,23 +86,44 @@ public interface FileReceiver
      * 
      * @param session the web socket session, used for registration of the
      *                message handler
-     * @param file destination
+     * @param storage where to put the file
+     * @param file name of the destination file
      * @param pieces {@code true} if the file is sent in pieces (chunks),
      *               otherwise {@code false}
      * @param cipher may be {@code null}, in which case no decryption will
      *              happen
      * @param onCompletion called when the file transfer has been completed
      */
-    void init(Session session, Path file, boolean pieces, AesGcmCipher cipher, Consumer<Optional<? extends Throwable>> onCompletion);
+    void init(Session session, StorageBackend storage, String file, boolean pieces, AesGcmCipher cipher, Consumer<Optional<? extends Throwable>> onCompletion);
     
     /**
      * Must be called after last file chunk has been received.<p>
      * 
-     * @throws MergeException on failure to merge all chunks into the final file
-     *         destination
-     * @throws DeleteException if at least one file chunk failed to be deleted
+     * The chunks are merged into the final file destination asynchronously
+     * and the receiver is ready for a new transfer as soon as this method
+     * return. Once merged, the chunks are deleted in the background. A chunk
+     * that fail to be deleted is logged as a {@link DeleteException}, it does
+     * not fail the transfer.
+     * 
+     * @return a future completed when the final file has been committed, or
+     *         completed exceptionally with a {@link MergeException}
+     */
+    default CompletableFuture<Void> completeChunked() {
+        return completeChunked(null);
+    }
+    
+    /**
+     * Same as {@link #completeChunked()}, but also run the provided callback
+     * once the message handler has been deregistered. Deregistration happens
+     * asynchronously, so the callback might run before or after this method
+     * return.
+     * 
+     * @param whenDeregistered called after deregistration (may be {@code null})
+     * 
+     * @return a future completed when the final file has been committed, or
+     *         completed exceptionally with a {@link MergeException}
      */
-    void completeChunked() throws MergeException, DeleteException;
+    CompletableFuture<Void> completeChunked(Runnable whenDeregistered);
     
     State getState();
     
@@ -2,7 +2,8 @@ package martinandersson.com.server.filereceiver;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.Path;
+import javax.crypto.Cipher;
+import martinandersson.com.server.storage.StorageWriter;
 
 /**
  * Read every byte and throw it away without writing anything to disk.<p>
@@ -15,8 +16,19 @@ import java.nio.file.Path;
  * @author Martin Andersson (webmaster at martinandersson.com)
  */
 public class NoUseInputFileReceiver extends AbstractInputStreamFileReceiver {
+    /**
+     * Returns {@code false}, no file is ever opened.
+     * 
+     * @return {@code false}
+     */
     @Override
-    protected long readAllBytes(InputStream in, Path ignored) throws IOException {
+    protected boolean needsWriter() {
+        return false;
+    }
+    
+    @Override
+    protected long readAllBytes(InputStream raw, Cipher cipher, StorageWriter ignored) throws IOException {
+        InputStream in = decorate(raw, cipher);
         long n = 0L;
         
         while (in.read() != -1) {
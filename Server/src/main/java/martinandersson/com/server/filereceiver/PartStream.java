@@ -0,0 +1,145 @@
+package martinandersson.com.server.filereceiver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Input stream of one message, fed part by part by the container thread that
+ * deliver the message and read by another thread.<p>
+ * 
+ * Each part is copied before {@link #put(ByteBuffer, boolean)} return, so the
+ * container may reuse its buffer as soon as {@code onMessage()} return. At most
+ * {@value #MAX_QUEUED} bytes are queued. Beyond that, {@code put()} wait until
+ * the reader has caught up, so a reader slower than the network push back on
+ * the container thread, while a slow network cost no thread at all. Once the
+ * reader close the stream, all parts queued or still to come are dropped.<p>
+ * 
+ * Safe to use by one feeding and one reading thread.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+final class PartStream extends InputStream
+{
+    /** Most bytes queued before the feeder has to wait. Current value: {@value}. */
+    static final int MAX_QUEUED = 256 * 1024;
+    
+    
+    
+    private final Deque<ByteBuffer> parts = new ArrayDeque<>();
+    
+    private int queued;
+    
+    private boolean last, closed;
+    
+    /**
+     * Queue a copy of the remaining bytes of a part, waiting first if too
+     * many bytes are queued already.
+     * 
+     * @param part received bytes, consumed
+     * @param last {@code true} if this is the last part of the message
+     * 
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    synchronized void put(ByteBuffer part, boolean last) throws InterruptedIOException {
+        while (queued >= MAX_QUEUED && !closed) {
+            await();
+        }
+        
+        if (!closed && part.hasRemaining()) {
+            ByteBuffer copy = ByteBuffer.allocate(part.remaining());
+            copy.put(part).flip();
+            parts.addLast(copy);
+            queued += copy.remaining();
+        }
+        
+        part.position(part.limit()); // <-- dropped if closed
+        this.last = last;
+        notifyAll();
+    }
+    
+    @Override
+    public synchronized int read() throws IOException {
+        ByteBuffer head = head();
+        
+        if (head == null) {
+            return -1;
+        }
+        
+        int b = head.get() & 0xFF;
+        
+        if (!head.hasRemaining()) {
+            parts.removeFirst();
+        }
+        
+        --queued;
+        notifyAll();
+        return b;
+    }
+    
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        
+        ByteBuffer head = head();
+        
+        if (head == null) {
+            return -1;
+        }
+        
+        int n = Math.min(len, head.remaining());
+        head.get(b, off, n);
+        
+        if (!head.hasRemaining()) {
+            parts.removeFirst();
+        }
+        
+        queued -= n;
+        notifyAll();
+        return n;
+    }
+    
+    @Override
+    public synchronized int available() {
+        return queued;
+    }
+    
+    @Override
+    public synchronized void close() {
+        closed = true;
+        parts.clear();
+        queued = 0;
+        notifyAll();
+    }
+    
+    /**
+     * Returns the first part queued, waiting for one if need be, or {@code
+     * null} if the message has ended.
+     */
+    private ByteBuffer head() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed.");
+        }
+        
+        while (parts.isEmpty() && !last) {
+            await();
+        }
+        
+        return parts.peekFirst();
+    }
+    
+    private void await() throws InterruptedIOException {
+        try {
+            wait();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the other end of the stream.");
+        }
+    }
+}
\ No newline at end of file
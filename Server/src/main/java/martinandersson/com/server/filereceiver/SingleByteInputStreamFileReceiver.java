@@ -1,23 +1,27 @@
 package martinandersson.com.server.filereceiver;
 
 import java.io.BufferedOutputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.Path;
+import java.nio.channels.Channels;
+import javax.crypto.Cipher;
+import martinandersson.com.server.storage.StorageWriter;
 
 /**
- * Write every single byte directly to a buffered file output stream.
+ * Write every single byte directly to a buffered output stream.<p>
+ * 
+ * A baseline: with decryption on, every byte also go through {@code
+ * CipherInputStream} one at a time.
  * 
  * @author Martin Andersson (webmaster at martinandersson.com)
  */
 public class SingleByteInputStreamFileReceiver extends AbstractInputStreamFileReceiver {
     @Override
-    protected long readAllBytes(InputStream in, Path destination) throws IOException {
+    protected long readAllBytes(InputStream raw, Cipher cipher, StorageWriter writer) throws IOException {
+        InputStream in = decorate(raw, cipher);
         long n = 0L;
         
-        try (FileOutputStream raw = new FileOutputStream(destination.toFile());
-             BufferedOutputStream out = new BufferedOutputStream(raw))
+        try (BufferedOutputStream out = new BufferedOutputStream(Channels.newOutputStream(writer)))
         {
             int b;
             
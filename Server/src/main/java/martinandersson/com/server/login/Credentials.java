@@ -2,8 +2,9 @@ package martinandersson.com.server.login;
 
 import com.nimbusds.srp6.BigIntegerUtils;
 import java.math.BigInteger;
-import javax.json.JsonObject;
 import martinandersson.com.library.Constants;
+import martinandersson.com.library.control.ControlMessage;
+import martinandersson.com.library.control.Field;
 
 /**
  * Quote from: http://en.wikipedia.org/wiki/Secure_Remote_Password_protocol
@@ -24,9 +25,9 @@ public class Credentials
     private final BigInteger salt;
     private final BigInteger verifier;
     
-    public Credentials(JsonObject json) {
-        this.username = json.getString("username");
-        this.salt = BigIntegerUtils.fromHex(json.getString("salt"));
+    public Credentials(ControlMessage msg) {
+        this.username = msg.getString(Field.USERNAME);
+        this.salt = msg.getBigInteger(Field.SALT);
         
         // Stolen from impl. of BigInteger.toByteArray():
         final int byteLen = (this.salt.bitLength() / 8) + 1;
@@ -35,7 +36,7 @@ public class Credentials
             throw new IllegalArgumentException("Salt required to be " + Constants.SALT_LENGTH + " bytes long.");
         }
         
-        this.verifier = BigIntegerUtils.fromHex(json.getString("verifier"));
+        this.verifier = msg.getBigInteger(Field.VERIFIER);
     }
     
     public Credentials(String username, BigInteger salt, BigInteger verifier) {
@@ -1,6 +1,5 @@
 package martinandersson.com.server.login;
 
-import com.nimbusds.srp6.BigIntegerUtils;
 import com.nimbusds.srp6.SRP6ClientSession;
 import com.nimbusds.srp6.SRP6ClientSession.State;
 import com.nimbusds.srp6.SRP6Exception;
@@ -10,12 +9,10 @@ import java.io.UncheckedIOException;
 import java.math.BigInteger;
 import java.util.function.Predicate;
 import java.util.logging.Logger;
-import javax.json.Json;
-import javax.json.JsonObject;
-import javax.json.JsonObjectBuilder;
-import javax.websocket.RemoteEndpoint;
-import javax.websocket.RemoteEndpoint.Basic;
 import martinandersson.com.library.Constants;
+import martinandersson.com.library.control.ControlMessage;
+import martinandersson.com.library.control.Field;
+import martinandersson.com.server.ControlSender;
 
 /**
  * Is the server's abstraction of the login, or rather, authentication process
@@ -28,7 +25,7 @@ public class SRP6ServerLogin
     private static final Logger LOGGER = Logger.getLogger(SRP6ServerLogin.class.getName());
     
     private final Credentials creds;
-    private final Basic basic;
+    private final ControlSender sender;
     
     private SRP6ServerSession session;
     
@@ -42,9 +39,9 @@ public class SRP6ServerLogin
     private BigInteger M2;
     
     
-    public SRP6ServerLogin(Credentials credentials, RemoteEndpoint.Basic basic) {
+    public SRP6ServerLogin(Credentials credentials, ControlSender sender) {
         this.creds = credentials;
-        this.basic = basic;
+        this.sender = sender;
         
         completed = State.INIT;
     }
@@ -93,7 +90,7 @@ public class SRP6ServerLogin
         return session.getSessionKey(false);
     }
     
-    public void handle(JsonObject loginMsg) throws SRP6Exception {
+    public void handle(ControlMessage loginMsg) throws SRP6Exception {
         switch (completed) {
             case INIT:
                 step1(loginMsg);
@@ -121,8 +118,8 @@ public class SRP6ServerLogin
      * 
      * @return the server session
      */
-    private void step1(JsonObject msg) {
-        final String username = msg.getString("username");
+    private void step1(ControlMessage msg) {
+        final String username = msg.getString(Field.USERNAME);
         
         if (!creds.getUsername().equals(username)) {
             throw new IllegalArgumentException("Unknown username.");
@@ -136,12 +133,9 @@ public class SRP6ServerLogin
         
         // Respond with salt 's' and public server value 'B'
         
-        JsonObjectBuilder b = Json.createObjectBuilder();
-        
-        b.add("salt", creds.getSaltHex())
-         .add("B", BigIntegerUtils.toHex(B));
-        
-        send(b.build());
+        send(new ControlMessage()
+                .put(Field.SALT, creds.getSalt())
+                .put(Field.B, B));
         
         completed = State.STEP_1;
     }
@@ -156,18 +150,14 @@ public class SRP6ServerLogin
      * @throws SRP6Exception if session has timed out, the client public value
      *         'A' is invalid or the user credentials are invalid
      */
-    private void step2(JsonObject msg) throws SRP6Exception {
-        BigInteger A = BigIntegerUtils.fromHex(msg.getString("A"));
-        BigInteger M1 = BigIntegerUtils.fromHex(msg.getString("M1"));
+    private void step2(ControlMessage msg) throws SRP6Exception {
+        BigInteger A = msg.getBigInteger(Field.A);
+        BigInteger M1 = msg.getBigInteger(Field.M1);
         
         M2 = session.step2(A, M1); // <-- thrower of SRP6Exception
         
         // Send M2
-        JsonObject reply = Json.createObjectBuilder()
-                .add("M2", BigIntegerUtils.toHex(M2))
-                .build();
-        
-        send(reply);
+        send(new ControlMessage().put(Field.M2, M2));
         
         completed = State.STEP_2;
         
@@ -192,9 +182,9 @@ public class SRP6ServerLogin
         }
     }
     
-    private void send(JsonObject obj) {
+    private void send(ControlMessage msg) {
         try {
-            basic.sendText(obj.toString());
+            sender.send(msg);
         }
         catch (IOException e) {
             throw new UncheckedIOException(e);
@@ -0,0 +1,236 @@
+package martinandersson.com.server.sealed;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import martinandersson.com.library.AesGcmCipher;
+import martinandersson.com.library.CipherSuite;
+
+/**
+ * What it takes to read the records of a sealed file: cipher suite, plaintext
+ * size, record size, invocation of the first record and the key that
+ * encrypted the records. That is the key derived for the one transfer of
+ * the file, see {@link AesGcmCipher#forTransfer(String, long)}, never the
+ * session key itself.<p>
+ * 
+ * The records were encrypted using consecutive invocations, so record {@code
+ * i} must carry invocation {@code first + i}. A record moved to another place
+ * in the file is therefore found out when read, and a record taken from
+ * another file does not authenticate under this key.<p>
+ * 
+ * Encoded as magic, version, suite name, size, record size and first
+ * invocation, followed by the derived key encrypted using AES-GCM under the
+ * master key. The file name
+ * and all fields before the key are authenticated as additional data, so an
+ * envelope can neither be altered nor moved to another file.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+final class Envelope
+{
+    /** First four bytes of an envelope, "SLFE". Current value: {@value}. */
+    static final int MAGIC = 0x534C4645;
+    
+    static final byte VERSION = 2;
+    
+    /** Most bytes an envelope may take. Current value: {@value}. */
+    static final int MAX_LENGTH = 1024;
+    
+    private static final String WRAPPING = "AES/GCM/NoPadding";
+    
+    private static final int WRAPPING_IV_LENGTH = 12, WRAPPING_TAG_BITS = 128;
+    
+    private static final SecureRandom RANDOM = new SecureRandom();
+    
+    
+    
+    final CipherSuite suite;
+    
+    final long size, recordSize, first;
+    
+    final byte[] key;
+    
+    /**
+     * Initializes a new envelope.
+     * 
+     * @param suite cipher suite of the records
+     * @param size plaintext bytes of the file
+     * @param recordSize plaintext bytes of each record but the last
+     * @param first invocation of the first record
+     * @param key derived key the records were encrypted with, not copied
+     */
+    Envelope(CipherSuite suite, long size, long recordSize, long first, byte[] key) {
+        this.suite = suite;
+        this.size = size;
+        this.recordSize = recordSize;
+        this.first = first;
+        this.key = key;
+    }
+    
+    /**
+     * Returns the number of records. An empty file still has one record,
+     * carrying only the tag.
+     * 
+     * @return number of records
+     */
+    long records() {
+        return size == 0L ? 1L : (size + recordSize - 1) / recordSize;
+    }
+    
+    /**
+     * Returns the bytes each record add to its plaintext.
+     * 
+     * @return invocation and tag length
+     */
+    int overhead() {
+        return AesGcmCipher.NONCE_LENGTH + suite.getTagLength();
+    }
+    
+    /**
+     * Returns the expected length of the file holding the records.
+     * 
+     * @return bytes of all records
+     */
+    long sealedSize() {
+        return size + records() * overhead();
+    }
+    
+    /**
+     * Returns the position of a record in the file holding the records.
+     * 
+     * @param index record index
+     * 
+     * @return position of the record's invocation
+     */
+    long offsetOf(long index) {
+        return index * (recordSize + overhead());
+    }
+    
+    /**
+     * Returns the invocation a record must carry.
+     * 
+     * @param index record index
+     * 
+     * @return the invocation
+     */
+    long invocationOf(long index) {
+        return first + index; // <-- overflow safe, as is the counter itself
+    }
+    
+    /**
+     * Returns the plaintext bytes of a record.
+     * 
+     * @param index record index
+     * 
+     * @return plaintext bytes
+     */
+    int plainLength(long index) {
+        return Math.toIntExact(Math.min(recordSize, size - index * recordSize)); // <-- record size is bounded on decode
+    }
+    
+    /**
+     * Encode this envelope.
+     * 
+     * @param master key to encrypt the derived key with
+     * @param file plain name of the sealed file
+     * 
+     * @return the encoded envelope, ready to be written
+     * 
+     * @throws GeneralSecurityException if encrypting the derived key fails
+     */
+    ByteBuffer encode(SecretKey master, String file) throws GeneralSecurityException {
+        byte[] iv = new byte[WRAPPING_IV_LENGTH];
+        RANDOM.nextBytes(iv);
+        
+        ByteBuffer header = header();
+        
+        Cipher c = Cipher.getInstance(WRAPPING);
+        c.init(Cipher.ENCRYPT_MODE, master, new GCMParameterSpec(WRAPPING_TAG_BITS, iv));
+        c.updateAAD(file.getBytes(StandardCharsets.UTF_8));
+        c.updateAAD(header.duplicate());
+        
+        byte[] wrapped = c.doFinal(key);
+        
+        ByteBuffer out = ByteBuffer.allocate(header.remaining() + iv.length + Short.BYTES + wrapped.length);
+        out.put(header).put(iv).putShort((short) wrapped.length).put(wrapped).flip();
+        return out;
+    }
+    
+    /**
+     * Decode an envelope.
+     * 
+     * @param in the encoded envelope
+     * @param master key the derived key was encrypted with
+     * @param file plain name of the sealed file
+     * 
+     * @return the envelope
+     * 
+     * @throws IOException if the envelope is malformed, was altered or
+     *         belong to another file
+     */
+    static Envelope decode(ByteBuffer in, SecretKey master, String file) throws IOException {
+        final int start = in.position();
+        
+        try {
+            if (in.getInt() != MAGIC) {
+                throw new IOException("Not an envelope: " + file);
+            }
+            
+            if (in.get() != VERSION) {
+                throw new IOException("Unknown envelope version: " + file);
+            }
+            
+            byte[] name = new byte[in.getShort()];
+            in.get(name);
+            
+            CipherSuite suite = CipherSuite.valueOf(new String(name, StandardCharsets.US_ASCII));
+            long size = in.getLong(),
+                 recordSize = in.getLong(),
+                 first = in.getLong();
+            
+            ByteBuffer header = in.duplicate();
+            header.limit(in.position()).position(start);
+            
+            byte[] iv = new byte[WRAPPING_IV_LENGTH];
+            in.get(iv);
+            
+            byte[] wrapped = new byte[in.getShort()];
+            in.get(wrapped);
+            
+            Cipher c = Cipher.getInstance(WRAPPING);
+            c.init(Cipher.DECRYPT_MODE, master, new GCMParameterSpec(WRAPPING_TAG_BITS, iv));
+            c.updateAAD(file.getBytes(StandardCharsets.UTF_8));
+            c.updateAAD(header);
+            
+            byte[] key = c.doFinal(wrapped); // <-- AEADBadTagException
+            
+            // An empty file may have been sealed unchunked, with a record size of 0:
+            if (size < 0L || recordSize < 0L || (recordSize == 0L && size > 0L) || recordSize > SealedFiles.MAX_RECORD_SIZE) {
+                throw new IOException("Bad sizes in envelope of " + file + ".");
+            }
+            
+            return new Envelope(suite, size, recordSize, first, key);
+        }
+        catch (GeneralSecurityException e) {
+            throw new IOException("Failed to open envelope of " + file + ".", e);
+        }
+        catch (RuntimeException e) {
+            // BufferUnderflowException, NegativeArraySizeException, IllegalArgumentException of valueOf()
+            throw new IOException("Malformed envelope of " + file + ".", e);
+        }
+    }
+    
+    private ByteBuffer header() {
+        byte[] name = suite.name().getBytes(StandardCharsets.US_ASCII);
+        
+        ByteBuffer header = ByteBuffer.allocate(Integer.BYTES + 1 + Short.BYTES + name.length + 3 * Long.BYTES);
+        header.putInt(MAGIC).put(VERSION).putShort((short) name.length).put(name)
+              .putLong(size).putLong(recordSize).putLong(first).flip();
+        return header;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,185 @@
+package martinandersson.com.server.sealed;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.security.GeneralSecurityException;
+import javax.crypto.Cipher;
+import martinandersson.com.library.AesGcmCipher;
+
+/**
+ * Read-only channel of the plaintext of a sealed file.<p>
+ * 
+ * A record is read, decrypted and its tag verified as a whole before any of
+ * its bytes are handed out, so nothing that fails authentication ever leave
+ * the channel. A record must also carry the invocation its place in the file
+ * call for, see {@link Envelope#invocationOf(long)}, so records that have
+ * been reordered fail too. The record last decrypted is kept, so reading it
+ * in small pieces cost one decryption.<p>
+ * 
+ * Not safe to use by concurrent threads.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+final class SealedChannel implements SeekableByteChannel
+{
+    private final SeekableByteChannel records;
+    
+    private final Envelope envelope;
+    
+    private final AesGcmCipher cipher;
+    
+    private final String file;
+    
+    private long position;
+    
+    private long decrypted = -1L; // <-- index of the record in plain
+    
+    private ByteBuffer plain;
+    
+    SealedChannel(SeekableByteChannel records, Envelope envelope, AesGcmCipher cipher, String file) {
+        this.records = records;
+        this.envelope = envelope;
+        this.cipher = cipher;
+        this.file = file;
+    }
+    
+    /**
+     * Decrypt all records, in order.
+     * 
+     * @throws SealedFiles.TamperedException if a record fails authentication,
+     *         or the records are not in the order they were sent
+     * @throws IOException on IO failure
+     */
+    void verify() throws IOException {
+        for (long i = 0; i < envelope.records(); ++i) {
+            record(i);
+        }
+        
+        if (records.size() != envelope.sealedSize()) {
+            throw new SealedFiles.TamperedException(file + " has " + records.size() + " sealed byte(s), expected " +
+                    envelope.sealedSize() + ".", null);
+        }
+    }
+    
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        
+        if (position >= envelope.size) {
+            return -1;
+        }
+        
+        final long index = position / envelope.recordSize;
+        final ByteBuffer src = record(index).duplicate();
+        final int at = Math.toIntExact(position - index * envelope.recordSize), // <-- less than the bounded record size
+                  n = Math.min(src.limit() - at, dst.remaining());
+        
+        src.limit(at + n).position(at);
+        dst.put(src);
+        position += n;
+        return n;
+    }
+    
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+    
+    @Override
+    public long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+    
+    @Override
+    public SeekableByteChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        
+        if (newPosition < 0L) {
+            throw new IllegalArgumentException("Negative position: " + newPosition);
+        }
+        
+        position = newPosition;
+        return this;
+    }
+    
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return envelope.size;
+    }
+    
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+    
+    @Override
+    public boolean isOpen() {
+        return records.isOpen();
+    }
+    
+    @Override
+    public void close() throws IOException {
+        plain = null;
+        records.close();
+    }
+    
+    /**
+     * Returns the plaintext of a record, decrypting it unless already done.
+     */
+    private ByteBuffer record(long index) throws IOException {
+        if (index == decrypted) {
+            return plain;
+        }
+        
+        final int length = envelope.plainLength(index);
+        final ByteBuffer raw = ByteBuffer.allocate(envelope.overhead() + length);
+        
+        records.position(envelope.offsetOf(index));
+        
+        while (raw.hasRemaining()) {
+            if (records.read(raw) < 0) {
+                throw new SealedFiles.TamperedException(file + " is truncated, record " + index + " is missing.", null);
+            }
+        }
+        
+        raw.flip();
+        
+        final long invocation = raw.getLong();
+        
+        if (invocation != envelope.invocationOf(index)) {
+            throw new SealedFiles.TamperedException("Record " + index + " of " + file + " is out of order.", null);
+        }
+        
+        final ByteBuffer out = ByteBuffer.allocate(length);
+        
+        try {
+            Cipher c = cipher.initForStoredDecryption(invocation);
+            
+            // Nothing is returned before the tag has been checked:
+            if (c.doFinal(raw, out) != length) { // <-- AEADBadTagException
+                throw new SealedFiles.TamperedException("Record " + index + " of " + file + " has the wrong length.", null);
+            }
+        }
+        catch (GeneralSecurityException e) {
+            throw new SealedFiles.TamperedException("Record " + index + " of " + file + " failed authentication.", e);
+        }
+        
+        out.flip();
+        
+        this.plain = out.asReadOnlyBuffer();
+        this.decrypted = index;
+        
+        return plain;
+    }
+    
+    private void ensureOpen() throws ClosedChannelException {
+        if (!records.isOpen()) {
+            throw new ClosedChannelException();
+        }
+    }
+}
\ No newline at end of file
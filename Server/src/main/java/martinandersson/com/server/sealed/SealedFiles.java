@@ -0,0 +1,396 @@
+package martinandersson.com.server.sealed;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Optional;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import martinandersson.com.library.AesGcmCipher;
+import martinandersson.com.server.ManagedThreads;
+import martinandersson.com.server.storage.FileStat;
+import martinandersson.com.server.storage.ShardedStorageBackend;
+import martinandersson.com.server.storage.StorageBackend;
+import martinandersson.com.server.storage.StorageWriter;
+
+/**
+ * Files stored sealed: as the ciphertext the client sent, never decrypted on
+ * the way in.<p>
+ * 
+ * A sealed file {@code movie.mkv} is kept in two files of the storage. {@code
+ * movie.mkv.sealed} hold the records back to back, one record per message of
+ * the transfer, each the invocation, the ciphertext and the tag exactly as
+ * received. {@code movie.mkv.envelope} hold what it takes to read them, see
+ * {@link Envelope}, among which the key that encrypted them, encrypted under
+ * a master key of the server. That key was derived for the transfer of the
+ * file alone, from the session key, the cipher suite, the file name and a
+ * transfer counter, see {@link AesGcmCipher#forTransfer(String, long)}. An
+ * envelope therefore open the records of its file, and nothing else sent
+ * over the connection.<p>
+ * 
+ * The master key is kept in a file read from system property {@value
+ * #MASTER_KEY_PROPERTY}, by default {@code .secure-login-file-transfer/master.key}
+ * in the user's home folder, and created the first time it is needed. The
+ * file must be outside all folders of the storage, so that whoever can read
+ * the sealed files does not also get the key to them.<p>
+ * 
+ * A sealed transfer is always chunked, each chunk of at most {@value
+ * #MAX_RECORD_SIZE} bytes. The client must encrypt the records using
+ * consecutive invocations. The envelope keep the first, and so tell which
+ * invocation each record must carry.<p>
+ * 
+ * Tags are verified lazily. A download decrypt each record as it is read, see
+ * {@link #openForRead(String)}, and fail on the first that does not
+ * authenticate or is out of order. If system property {@value #SCRUB_PROPERTY} is {@code true},
+ * all records of a file are also verified in the background right after the
+ * file has been received, and the file is deleted if any fails.<p>
+ * 
+ * Safe to use by concurrent threads.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class SealedFiles
+{
+    private static final Logger LOGGER = Logger.getLogger(SealedFiles.class.getName());
+    
+    /** Suffix of the file holding the records. Current value: {@value}. */
+    public static final String RECORDS_SUFFIX = ".sealed";
+    
+    /** Suffix of the file holding the envelope. Current value: {@value}. */
+    public static final String ENVELOPE_SUFFIX = ".envelope";
+    
+    /**
+     * Largest plaintext size of a record. A record is decrypted as a whole
+     * before any of it is read, so this bound the memory of each download of
+     * a sealed file. Current value: {@value}.
+     */
+    public static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+    
+    /** System property enabling the background scrub of received files. Current value: {@value}. */
+    public static final String SCRUB_PROPERTY = "martinandersson.com.server.sealed.scrub";
+    
+    private static final boolean SCRUB = Boolean.getBoolean(SCRUB_PROPERTY);
+    
+    /** System property naming the file holding the master key. Current value: {@value}. */
+    public static final String MASTER_KEY_PROPERTY = "martinandersson.com.server.sealed.masterKey";
+    
+    /** Length of the master key. Current value: {@value}. */
+    private static final int MASTER_KEY_LENGTH = 32;
+    
+    /**
+     * Returns the file holding the master key, as configured by system
+     * property {@value #MASTER_KEY_PROPERTY}.
+     * 
+     * @return the master key file
+     */
+    public static Path masterKeyFile() {
+        String configured = System.getProperty(MASTER_KEY_PROPERTY);
+        
+        return configured != null ? Paths.get(configured) :
+                Paths.get(System.getProperty("user.home"), ".secure-login-file-transfer", "master.key");
+    }
+    
+    /**
+     * Returns the name of the file holding the records of a sealed file.
+     * 
+     * @param file plain file name
+     * 
+     * @return the records file name
+     */
+    public static String recordsOf(String file) {
+        return file + RECORDS_SUFFIX;
+    }
+    
+    /**
+     * Returns the name of the file holding the envelope of a sealed file.
+     * 
+     * @param file plain file name
+     * 
+     * @return the envelope file name
+     */
+    public static String envelopeOf(String file) {
+        return file + ENVELOPE_SUFFIX;
+    }
+    
+    /**
+     * Returns the plain name of a file, stripping the suffix of a records or
+     * envelope file.
+     * 
+     * @param name any file name
+     * 
+     * @return the plain name
+     */
+    public static String plainName(String name) {
+        for (String suffix : new String[]{ RECORDS_SUFFIX, ENVELOPE_SUFFIX }) {
+            if (name.endsWith(suffix) && name.length() > suffix.length()) {
+                return name.substring(0, name.length() - suffix.length());
+            }
+        }
+        
+        return name;
+    }
+    
+    
+    
+    private final StorageBackend storage;
+    
+    private final Path keyFile;
+    
+    private SecretKey master; // <-- read or created when first needed
+    
+    /**
+     * Initializes a new instance.
+     * 
+     * @param storage where the sealed files are
+     * @param keyFile file holding the master key, created if need be
+     * 
+     * @throws IllegalArgumentException if {@code keyFile} is inside a folder
+     *         of the storage
+     */
+    public SealedFiles(StorageBackend storage, Path keyFile) {
+        final Path key = keyFile.toAbsolutePath().normalize();
+        
+        if (storage instanceof ShardedStorageBackend) {
+            for (Path root : ((ShardedStorageBackend) storage).getRoots()) {
+                if (key.startsWith(root.toAbsolutePath().normalize())) {
+                    throw new IllegalArgumentException("Master key " + key + " must not be inside storage folder " + root + ".");
+                }
+            }
+        }
+        
+        this.storage = storage;
+        this.keyFile = key;
+    }
+    
+    /**
+     * Returns information about a sealed file, with the plaintext size.
+     * 
+     * @param file plain file name
+     * 
+     * @return information about the file, or empty if there is no such
+     *         sealed file
+     * 
+     * @throws IOException if the envelope is broken, or on IO failure
+     */
+    public Optional<FileStat> stat(String file) throws IOException {
+        Optional<FileStat> records = storage.stat(recordsOf(file));
+        
+        if (!records.isPresent() || !storage.stat(envelopeOf(file)).isPresent()) {
+            return Optional.empty();
+        }
+        
+        return Optional.of(new FileStat(file, readEnvelope(file).size,
+                records.get().getLastModified(), records.get().getLocation()));
+    }
+    
+    /**
+     * Open the plaintext of a sealed file for reading. Each record is
+     * verified when read.
+     * 
+     * @param file plain file name
+     * 
+     * @return a read-only channel of the plaintext
+     * 
+     * @throws IOException if the envelope is broken, or on IO failure
+     */
+    public SeekableByteChannel openForRead(String file) throws IOException {
+        final Envelope envelope = readEnvelope(file);
+        final AesGcmCipher cipher;
+        
+        try {
+            cipher = AesGcmCipher.ofDerivedKey(envelope.suite, envelope.key); // <-- IllegalArgumentException
+        }
+        catch (GeneralSecurityException | IllegalArgumentException e) {
+            throw new IOException("Failed to create a Cipher for " + file + ".", e);
+        }
+        
+        return new SealedChannel(storage.openForRead(recordsOf(file)), envelope, cipher, file);
+    }
+    
+    /**
+     * Seal a received file, by writing the envelope of its records. Any plain
+     * file by the same name is deleted, it has been replaced.
+     * 
+     * @param file plain file name
+     * @param cipher cipher of the transfer the records were encrypted with,
+     *        its derived key is put in the envelope
+     * @param size plaintext bytes of the file
+     * @param recordSize plaintext bytes of each record but the last
+     * 
+     * @throws IOException if the records file does not have the length the
+     *         sizes imply, if the first and last record are not as many
+     *         invocations apart as there are records, or on IO failure
+     */
+    public void seal(String file, AesGcmCipher cipher, long size, long recordSize) throws IOException {
+        final Envelope sizes = new Envelope(cipher.getSuite(), size, recordSize, 0L, null);
+        final long sealed = storage.stat(recordsOf(file)).map(FileStat::getSize).orElse(-1L);
+        
+        // Tags are checked later, but a wrong length we can see already:
+        if (sealed != sizes.sealedSize()) {
+            throw new IOException("Expected " + sizes.sealedSize() + " sealed byte(s) of " + file + ", received " + sealed + ".");
+        }
+        
+        final long first = invocationAt(file, 0L),
+                   last  = invocationAt(file, sizes.offsetOf(sizes.records() - 1));
+        
+        // A client that skip invocations is refused already, each record is checked against the first when read:
+        if (last - first != sizes.records() - 1) {
+            throw new IOException("Records of " + file + " were not encrypted using consecutive invocations.");
+        }
+        
+        final Envelope envelope = new Envelope(cipher.getSuite(), size, recordSize, first, cipher.getDerivedKey());
+        
+        final ByteBuffer bytes;
+        
+        try {
+            bytes = envelope.encode(master(), file);
+        }
+        catch (GeneralSecurityException e) {
+            throw new IOException("Failed to seal " + file + ".", e);
+        }
+        
+        StorageWriter out = storage.openForWrite(envelopeOf(file));
+        
+        try {
+            while (bytes.hasRemaining()) {
+                out.write(bytes);
+            }
+            
+            out.commit();
+        }
+        finally {
+            out.abort(); // <-- no-op if committed
+        }
+        
+        storage.delete(file);
+        
+        LOGGER.info(() -> "Sealed " + file + " of " + size + " byte(s) in " + envelope.records() + " record(s).");
+        
+        if (SCRUB) {
+            ManagedThreads.execute(() -> scrub(file));
+        }
+    }
+    
+    /**
+     * Delete both files of a sealed file.
+     * 
+     * @param file plain file name
+     * 
+     * @throws IOException on IO failure
+     */
+    public void delete(String file) throws IOException {
+        storage.delete(envelopeOf(file));
+        storage.delete(recordsOf(file));
+    }
+    
+    /**
+     * Verify all records of a sealed file, deleting the file if one fails.
+     * 
+     * @param file plain file name
+     */
+    private void scrub(String file) {
+        final long start = System.nanoTime();
+        
+        try (SealedChannel c = (SealedChannel) openForRead(file)) {
+            c.verify();
+            LOGGER.fine(() -> "Scrubbed " + file + " in " + (System.nanoTime() - start) / 1_000_000 + " ms.");
+        }
+        catch (TamperedException e) {
+            LOGGER.log(Level.SEVERE, "Deleting sealed file that failed verification: " + file, e);
+            
+            try {
+                delete(file);
+            }
+            catch (IOException e2) {
+                LOGGER.log(Level.WARNING, "Failed to delete " + file + ".", e2);
+            }
+        }
+        catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to scrub " + file + ".", e);
+        }
+    }
+    
+    /**
+     * Returns the invocation of the record at the provided position of the
+     * records file.
+     */
+    private long invocationAt(String file, long position) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(AesGcmCipher.NONCE_LENGTH);
+        
+        try (SeekableByteChannel in = storage.openForRead(recordsOf(file))) {
+            in.position(position);
+            
+            while (bytes.hasRemaining()) {
+                if (in.read(bytes) < 0) {
+                    throw new IOException(recordsOf(file) + " is truncated.");
+                }
+            }
+        }
+        
+        bytes.flip();
+        return bytes.getLong();
+    }
+    
+    private Envelope readEnvelope(String file) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(Envelope.MAX_LENGTH);
+        
+        try (SeekableByteChannel in = storage.openForRead(envelopeOf(file))) {
+            while (bytes.hasRemaining() && in.read(bytes) >= 0) {
+                // Keep reading
+            }
+        }
+        
+        bytes.flip();
+        return Envelope.decode(bytes, master(), file);
+    }
+    
+    private synchronized SecretKey master() throws IOException {
+        if (master != null) {
+            return master;
+        }
+        
+        byte[] key;
+        
+        if (Files.exists(keyFile)) {
+            key = Files.readAllBytes(keyFile);
+            
+            if (key.length != MASTER_KEY_LENGTH) {
+                throw new IOException("Expected a " + MASTER_KEY_LENGTH + " byte master key in " + keyFile + ", got " + key.length + ".");
+            }
+        }
+        else {
+            key = new byte[MASTER_KEY_LENGTH];
+            new SecureRandom().nextBytes(key);
+            
+            Files.createDirectories(keyFile.getParent());
+            
+            try {
+                Files.write(keyFile, key, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE, StandardOpenOption.SYNC);
+                LOGGER.info(() -> "Created master key for sealed files: " + keyFile);
+            }
+            catch (FileAlreadyExistsException e) {
+                // Another deployment beat us to it:
+                return master();
+            }
+        }
+        
+        return master = new SecretKeySpec(key, "AES");
+    }
+    
+    /**
+     * Thrown when the records of a sealed file fail verification.
+     */
+    public static class TamperedException extends IOException {
+        private static final long serialVersionUID = 1L;
+        
+        TamperedException(String message, Throwable cause) { super(message, cause); } }
+}
\ No newline at end of file
@@ -0,0 +1,118 @@
+package martinandersson.com.server.sealed;
+
+import java.io.IOException;
+import martinandersson.com.library.AesGcmCipher;
+import martinandersson.com.library.control.ControlMessage;
+import martinandersson.com.server.PayloadAssembler;
+
+/**
+ * Server-side state of one sealed transfer.<p>
+ * 
+ * The client encrypt the file as usual, but the file receiver is given no
+ * cipher, so it write each message as received, invocation and tag included,
+ * into the records file. The server never spend a cycle decrypting on
+ * ingest. A sealed transfer is always chunked, each chunk is one record.<p>
+ * 
+ * Once the payload has been received, {@linkplain #complete() complete()}
+ * check its length and write the envelope, see {@link SealedFiles}.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class SealedTransfer implements PayloadAssembler
+{
+    private final SealedFiles sealed;
+    
+    private final String file;
+    
+    private final AesGcmCipher cipher;
+    
+    private final long size, recordSize;
+    
+    /**
+     * Initializes a new sealed transfer.
+     * 
+     * @param sealed sealed files of the storage
+     * @param file name of the file, as requested by the client
+     * @param cipher cipher of the transfer, see {@link
+     *        AesGcmCipher#forTransfer(String, long)}
+     * @param size plaintext bytes of the file
+     * @param recordSize plaintext bytes of each chunk
+     * 
+     * @throws IllegalArgumentException if {@code size} is negative, or if
+     *         {@code recordSize} is not positive or larger than {@link
+     *         SealedFiles#MAX_RECORD_SIZE}
+     */
+    public SealedTransfer(SealedFiles sealed, String file, AesGcmCipher cipher, long size, long recordSize) {
+        if (size < 0L || recordSize <= 0L) {
+            throw new IllegalArgumentException("Bad size " + size + " or record size " + recordSize + ".");
+        }
+        
+        if (recordSize > SealedFiles.MAX_RECORD_SIZE) {
+            throw new IllegalArgumentException("Record size " + recordSize + " exceeds the limit of " +
+                    SealedFiles.MAX_RECORD_SIZE + " byte(s).");
+        }
+        
+        this.sealed = sealed;
+        this.file = file;
+        this.cipher = cipher;
+        this.size = size;
+        this.recordSize = recordSize;
+    }
+    
+    /**
+     * Returns where the file receiver should put the records.
+     * 
+     * @return the records file name
+     */
+    @Override
+    public String getPayloadFile() {
+        return SealedFiles.recordsOf(file);
+    }
+    
+    /**
+     * Returns {@code true}, even an empty file has a tag.
+     * 
+     * @return {@code true}
+     */
+    @Override
+    public boolean expectsPayload() {
+        return true;
+    }
+    
+    /**
+     * Adds nothing, the cipher suite is already in the accept.
+     * 
+     * @param accept the accept message being built
+     */
+    @Override
+    public void addTo(ControlMessage accept) {
+        // Nothing to add
+    }
+    
+    /**
+     * Seal the received records. The file is deleted if their length is off,
+     * the records no longer match any envelope.
+     * 
+     * @throws IOException if the records have the wrong length, or on IO
+     *         failure
+     */
+    @Override
+    public void complete() throws IOException {
+        try {
+            sealed.seal(file, cipher, size, recordSize);
+        }
+        catch (IOException e) {
+            sealed.delete(file);
+            throw e;
+        }
+    }
+    
+    /**
+     * Does nothing. A failed transfer commit no records, so a file sealed
+     * earlier by the same name is left as it was.
+     */
+    @Override
+    public void abort() {
+        // Nothing to delete
+    }
+}
\ No newline at end of file
@@ -0,0 +1,59 @@
+package martinandersson.com.server.storage;
+
+import java.nio.file.attribute.FileTime;
+
+/**
+ * Information about a file in a {@link StorageBackend}.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class FileStat
+{
+    private final String name;
+    private final long size;
+    private final FileTime lastModified;
+    private final String location;
+    
+    /**
+     * Initializes a new file stat.
+     * 
+     * @param name file name
+     * @param size file size in bytes
+     * @param lastModified when the file was last committed
+     * @param location a description of where the file is stored, for logging
+     */
+    public FileStat(String name, long size, FileTime lastModified, String location) {
+        this.name = name;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.location = location;
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    public long getSize() {
+        return size;
+    }
+    
+    public FileTime getLastModified() {
+        return lastModified;
+    }
+    
+    public String getLocation() {
+        return location;
+    }
+    
+    @Override
+    public String toString() {
+        return new StringBuilder(FileStat.class.getSimpleName())
+                .append('[')
+                  .append("name=").append(name)
+                  .append(", size=").append(size)
+                  .append(", lastModified=").append(lastModified)
+                  .append(", location=").append(location)
+                .append(']')
+                .toString();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,487 @@
+package martinandersson.com.server.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Stores files on local disk, spread across one or more root directories.<p>
+ * 
+ * Each root is meant to be on a mount point of its own, one per disk, so that
+ * concurrent transfers of different files write to different devices. With
+ * just one root, this backend is a plain directory.<p>
+ * 
+ * A new file is placed using weighted rendezvous hashing: each root get a
+ * pseudo-random score from the hash of the file name and the root's index,
+ * scaled by the root's usable space. The root with the highest score win.
+ * The same name therefore tend to land on the same root, names spread evenly
+ * across roots of equal size, and a root with twice the free space receive
+ * twice as many files. Free space is sampled at most once every {@value
+ * #FREE_SPACE_TTL_MILLIS} ms.<p>
+ * 
+ * Because free space change, a file is not guaranteed to be found where its
+ * name would be placed today. Looking up a file therefore probe all roots,
+ * which is cheap for the handful of mount points a server has. Overwriting a
+ * file keep it on the root it is already on, and committing a file remove any
+ * stray copy on other roots.<p>
+ * 
+ * Bytes are written to a temporary file, {@code .<name>.<random>.tmp}, in the
+ * chosen root which is then atomically moved into place on commit. Temporary
+ * files left behind by a crash may be deleted by hand.<p>
+ * 
+ * Java has no portable {@code fallocate()}. Preallocation check that the root
+ * has room for the file and then extend the file to its final length, so the
+ * size is not updated by every write. Most file systems keep the extended
+ * part sparse until written. If the writer was ever forced, the root
+ * directory is forced as well after commit so that the rename survive a crash
+ * too, on platforms that allow forcing a directory.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class ShardedStorageBackend implements StorageBackend
+{
+    private static final Logger LOGGER = Logger.getLogger(ShardedStorageBackend.class.getName());
+    
+    /** How long a sample of a root's usable space is trusted. Current value: {@value}. */
+    private static final long FREE_SPACE_TTL_MILLIS = 5_000L;
+    
+    
+    
+    private final List<Root> roots;
+    
+    private final List<Consumer<String>> listeners = new CopyOnWriteArrayList<>();
+    
+    /**
+     * Initializes a backend from a string of root directories separated by
+     * the platform's path separator ({@code File.pathSeparator}).
+     * 
+     * @param roots root directories
+     * 
+     * @return a new backend
+     * 
+     * @throws IllegalArgumentException if no root is given
+     */
+    public static ShardedStorageBackend of(String roots) {
+        return new ShardedStorageBackend(Stream.of(roots.split(File.pathSeparator))
+                .map(String::trim)
+                .filter(s -> !s.isEmpty())
+                .map(Paths::get)
+                .collect(Collectors.toList()));
+    }
+    
+    /**
+     * Initializes a new backend. Roots that does not exist are created when
+     * first written to.
+     * 
+     * @param roots root directories, at least one
+     * 
+     * @throws IllegalArgumentException if no root is given, or a root is
+     *         given twice
+     */
+    public ShardedStorageBackend(List<Path> roots) {
+        if (roots.isEmpty()) {
+            throw new IllegalArgumentException("Need at least one root.");
+        }
+        
+        List<Root> list = new ArrayList<>(roots.size());
+        
+        for (Path p : roots) {
+            Root r = new Root(p.toAbsolutePath().normalize(), list.size());
+            
+            if (list.stream().anyMatch(other -> other.dir.equals(r.dir))) {
+                throw new IllegalArgumentException("Root given twice: " + r.dir);
+            }
+            
+            list.add(r);
+        }
+        
+        this.roots = Collections.unmodifiableList(list);
+        
+        LOGGER.info(() -> "Storing files in " + this.roots.size() + " root(s): " + getRoots());
+    }
+    
+    /**
+     * Returns all root directories, in the order given.
+     * 
+     * @return all root directories
+     */
+    public List<Path> getRoots() {
+        return roots.stream().map(r -> r.dir).collect(Collectors.toList());
+    }
+    
+    @Override
+    public StorageWriter openForWrite(String name) throws IOException {
+        Root root = locate(name);
+        
+        if (root == null) {
+            root = choose(name);
+        }
+        
+        Files.createDirectories(root.dir);
+        
+        Path temp = root.resolve("." + name + "." + UUID.randomUUID() + ".tmp");
+        
+        return new Writer(name, root, temp);
+    }
+    
+    @Override
+    public SeekableByteChannel openForRead(String name) throws IOException {
+        Root root = locate(name);
+        
+        if (root == null) {
+            throw new NoSuchFileException(name);
+        }
+        
+        return FileChannel.open(root.resolve(name), StandardOpenOption.READ);
+    }
+    
+    @Override
+    public boolean delete(String name) throws IOException {
+        boolean deleted = false;
+        
+        for (Root r : roots) {
+            deleted |= Files.deleteIfExists(r.resolve(name));
+        }
+        
+        if (deleted) {
+            changed(name);
+        }
+        
+        return deleted;
+    }
+    
+    @Override
+    public void addChangeListener(Consumer<String> listener) {
+        listeners.add(listener);
+    }
+    
+    @Override
+    public Optional<FileStat> stat(String name) throws IOException {
+        Root root = locate(name);
+        
+        if (root == null) {
+            return Optional.empty();
+        }
+        
+        BasicFileAttributes attr = Files.readAttributes(root.resolve(name), BasicFileAttributes.class);
+        return Optional.of(new FileStat(name, attr.size(), attr.lastModifiedTime(), root.dir.toString()));
+    }
+    
+    @Override
+    public String toString() {
+        return new StringBuilder(ShardedStorageBackend.class.getSimpleName())
+                .append('[')
+                  .append("roots=").append(getRoots())
+                .append(']')
+                .toString();
+    }
+    
+    /**
+     * Returns the root that has the file, or {@code null}.
+     */
+    private Root locate(String name) {
+        for (Root r : roots) {
+            if (Files.isRegularFile(r.resolve(name))) {
+                return r;
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Returns the root where a new file should go.
+     */
+    private Root choose(String name) {
+        if (roots.size() == 1) {
+            return roots.get(0);
+        }
+        
+        Root best = null;
+        double bestScore = -1.0;
+        
+        for (Root r : roots) {
+            // Uniform in (0, 1), from the top 53 bits of the mixed hash:
+            double u = ((mix(name.hashCode(), r.index) >>> 11) + 0.5) * 0x1.0p-53;
+            double score = r.usableSpace() / -Math.log(u);
+            
+            if (score > bestScore) {
+                best = r;
+                bestScore = score;
+            }
+        }
+        
+        return best;
+    }
+    
+    private void changed(String name) {
+        listeners.forEach(l -> l.accept(name));
+    }
+    
+    /**
+     * Force a directory, so that a rename in it is durable. Works on Linux and
+     * most other Unix systems, but not on Windows where it is a no-op.
+     */
+    private static void forceDirectory(Path dir) {
+        try (FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)) {
+            ch.force(true);
+        }
+        catch (IOException e) {
+            LOGGER.log(Level.FINE, "Can not force directory " + dir + ".", e);
+        }
+    }
+    
+    /**
+     * SplitMix64 finalizer over name hash and root index.
+     */
+    private static long mix(int hash, int index) {
+        long z = ((long) hash << 32 | index) + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+    
+    private static final class Root {
+        final Path dir;
+        final int index;
+        
+        private long usable, sampled;
+        
+        Root(Path dir, int index) {
+            this.dir = dir;
+            this.index = index;
+        }
+        
+        /**
+         * Resolve a plain file name against this root.
+         * 
+         * @throws IllegalArgumentException if the name would escape the root
+         */
+        Path resolve(String name) {
+            Path p = dir.resolve(name).normalize();
+            
+            if (name.isEmpty() || !dir.equals(p.getParent())) {
+                throw new IllegalArgumentException("Not a plain file name: \"" + name + "\".");
+            }
+            
+            return p;
+        }
+        
+        /**
+         * Returns usable bytes, at least 1 so that a root never has a zero
+         * weight. A root that can not be queried is treated as almost full.
+         */
+        synchronized long usableSpace() {
+            long now = System.currentTimeMillis();
+            
+            if (sampled == 0L || now - sampled > FREE_SPACE_TTL_MILLIS) {
+                try {
+                    Files.createDirectories(dir);
+                    usable = Files.getFileStore(dir).getUsableSpace();
+                }
+                catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to read usable space of " + dir + ".", e);
+                    usable = 0L;
+                }
+                
+                sampled = now;
+            }
+            
+            return Math.max(usable, 1L);
+        }
+    }
+    
+    private final class Writer implements StorageWriter {
+        final String name;
+        final Root root;
+        final Path temp;
+        final FileChannel channel;
+        
+        /** End of the last byte written, everything after is unused preallocation. */
+        long end;
+        
+        boolean committed, aborted, forced;
+        
+        Writer(String name, Root root, Path temp) throws IOException {
+            this.name = name;
+            this.root = root;
+            this.temp = temp;
+            this.channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        }
+        
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            long position = channel.position();
+            int n = channel.write(src);
+            advance(position + n);
+            return n;
+        }
+        
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            int n = channel.write(src, position);
+            advance(position + n);
+            return n;
+        }
+        
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            if (position > channel.size()) {
+                // FileChannel transfer nothing past the end, leave the gap to a plain write:
+                return StorageWriter.super.transferFrom(src, position, count);
+            }
+            
+            long done = 0L;
+            
+            // FileChannel may transfer less than asked for even though src has more:
+            while (done < count) {
+                long n = channel.transferFrom(src, position + done, count - done);
+                
+                if (n == 0L) {
+                    break;
+                }
+                
+                done += n;
+            }
+            
+            advance(position + done);
+            return done;
+        }
+        
+        @Override
+        public void preallocate(long size) throws IOException {
+            long more = size - channel.size();
+            
+            if (more <= 0L) {
+                return;
+            }
+            
+            long usable = Files.getFileStore(temp).getUsableSpace();
+            
+            if (usable < more) {
+                throw new IOException("Not enough space in " + root.dir + " for " + name +
+                        ", need " + more + " byte(s) but only " + usable + " is usable.");
+            }
+            
+            // Does not move end, this byte is cut off unless written for real:
+            channel.write(ByteBuffer.allocate(1), size - 1);
+        }
+        
+        @Override
+        public void force(boolean metaData) throws IOException {
+            channel.force(metaData);
+            forced = true;
+        }
+        
+        @Override
+        public String getName() {
+            return name;
+        }
+        
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+        
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+        
+        @Override
+        public void commit() throws IOException {
+            if (committed) {
+                return;
+            }
+            
+            if (aborted) {
+                throw new IllegalStateException("Aborted.");
+            }
+            
+            try {
+                if (channel.isOpen()) {
+                    cutPreallocation(channel);
+                    channel.close();
+                }
+                else if (Files.size(temp) > end) {
+                    try (FileChannel reopened = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                        cutPreallocation(reopened);
+                    }
+                }
+                
+                Files.move(temp, root.resolve(name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                committed = true;
+            }
+            catch (IOException e) {
+                try {
+                    abort();
+                }
+                catch (IOException e2) {
+                    e.addSuppressed(e2);
+                }
+                
+                throw e;
+            }
+            
+            if (forced) {
+                forceDirectory(root.dir);
+            }
+            
+            // Two concurrent writers of a new name might have picked different roots:
+            for (Root r : roots) {
+                if (r != root) {
+                    Files.deleteIfExists(r.resolve(name));
+                }
+            }
+            
+            changed(name);
+        }
+        
+        /** Positional writes may come from concurrent threads, see {@link StorageWriter}. */
+        private synchronized void advance(long written) {
+            end = Math.max(end, written);
+        }
+        
+        private void cutPreallocation(FileChannel ch) throws IOException {
+            if (ch.size() > end) {
+                ch.truncate(end);
+                
+                if (forced) {
+                    ch.force(true);
+                }
+            }
+        }
+        
+        @Override
+        public void abort() throws IOException {
+            if (committed || aborted) {
+                return;
+            }
+            
+            aborted = true;
+            channel.close();
+            Files.deleteIfExists(temp);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,89 @@
+package martinandersson.com.server.storage;
+
+import java.io.IOException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+/**
+ * Where the server put received files.<p>
+ * 
+ * Files are addressed by name only. A name is a plain file name without any
+ * directory, for example {@code movie.mkv} or {@code movie.mkv.part1}. How the
+ * name map to a physical location is up to the backend.<p>
+ * 
+ * A file is written through a {@link StorageWriter} and does not become
+ * visible until the writer is {@linkplain StorageWriter#commit() committed}.
+ * Committing replace any existing file with the same name. Hence a reader
+ * never see a half-written file, and a failed transfer leave nothing
+ * behind.<p>
+ * 
+ * Whoever keep something derived from a file, such as a cache of its
+ * content, may {@linkplain #addChangeListener(Consumer) listen} for the file
+ * being replaced or deleted.<p>
+ * 
+ * Implementations must be safe to use by concurrent threads.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public interface StorageBackend
+{
+    /**
+     * Open a new file for writing.
+     * 
+     * @param name file name
+     * 
+     * @return a writer positioned at the start of an empty file
+     * 
+     * @throws IOException on IO failure
+     * @throws IllegalArgumentException if the name is not a plain file name
+     */
+    StorageWriter openForWrite(String name) throws IOException;
+    
+    /**
+     * Open a committed file for reading.
+     * 
+     * @param name file name
+     * 
+     * @return a channel positioned at the start of the file
+     * 
+     * @throws java.nio.file.NoSuchFileException if there is no such file
+     * @throws IOException on IO failure
+     * @throws IllegalArgumentException if the name is not a plain file name
+     */
+    SeekableByteChannel openForRead(String name) throws IOException;
+    
+    /**
+     * Delete a file.
+     * 
+     * @param name file name
+     * 
+     * @return {@code true} if the file was deleted, {@code false} if there was
+     *         no such file
+     * 
+     * @throws IOException on IO failure
+     * @throws IllegalArgumentException if the name is not a plain file name
+     */
+    boolean delete(String name) throws IOException;
+    
+    /**
+     * Returns information about a committed file.
+     * 
+     * @param name file name
+     * 
+     * @return information about the file, or empty if there is no such file
+     * 
+     * @throws IOException on IO failure
+     * @throws IllegalArgumentException if the name is not a plain file name
+     */
+    Optional<FileStat> stat(String name) throws IOException;
+    
+    /**
+     * Register a listener that is told the name of every file committed or
+     * deleted, after the fact. The listener is called by the committing or
+     * deleting thread and must return quickly.
+     * 
+     * @param listener receiver of file names
+     */
+    void addChangeListener(Consumer<String> listener);
+}
\ No newline at end of file
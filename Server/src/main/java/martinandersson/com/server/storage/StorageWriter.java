@@ -0,0 +1,135 @@
+package martinandersson.com.server.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A file being written to a {@link StorageBackend}.<p>
+ * 
+ * Bytes may be written sequentially, like to any other channel, or at a given
+ * position which does not move the channel's own position. The life cycle is:
+ * 
+ * <ol>
+ *   <li>Write all bytes.</li>
+ *   <li>Optionally {@linkplain #close() close} the channel. Closing only
+ *       release the underlying resources, the file is not published. This is
+ *       what allow the writer to be wrapped in a buffered stream that is closed
+ *       before we know if the transfer succeeded.</li>
+ *   <li>Finalize the file by calling {@link #commit()}, or discard it by
+ *       calling {@link #abort()}.</li>
+ * </ol>
+ * 
+ * A writer that is never committed nor aborted might leave a temporary file
+ * behind.<p>
+ * 
+ * Positional writes, {@link #write(ByteBuffer, long)} and {@link
+ * #transferFrom(ReadableByteChannel, long, long) transferFrom()}, of regions
+ * that do not overlap may be made by concurrent threads. Everything else is
+ * not safe to use by concurrent threads.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public interface StorageWriter extends WritableByteChannel
+{
+    /**
+     * Write bytes at the given position. The channel's position is not
+     * changed. Writing beyond the current end of the file grow the file, the
+     * gap has unspecified content.
+     * 
+     * @param src bytes to write (all remaining, unless the write is short)
+     * @param position file position to write at
+     * 
+     * @return number of bytes written
+     * 
+     * @throws IOException on IO failure, or if the channel is closed
+     */
+    int write(ByteBuffer src, long position) throws IOException;
+    
+    /**
+     * Copy bytes from the current position of the provided channel to the
+     * given position of this file, like {@code FileChannel.transferFrom()}.
+     * The channel's position of this writer is not changed.<p>
+     * 
+     * The default implementation copy through a heap buffer. Implementations
+     * backed by a file system are encouraged to do better.
+     * 
+     * @param src channel to read from
+     * @param position file position to write at
+     * @param count maximum number of bytes to copy
+     * 
+     * @return number of bytes copied, less than {@code count} only if
+     *         {@code src} ran out of bytes
+     * 
+     * @throws IOException on IO failure, or if the channel is closed
+     */
+    default long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+        ByteBuffer buff = ByteBuffer.allocate((int) Math.min(count, 64 * 1024));
+        long done = 0L;
+        
+        while (done < count) {
+            buff.clear().limit((int) Math.min(buff.capacity(), count - done));
+            
+            if (src.read(buff) == -1) {
+                break;
+            }
+            
+            buff.flip();
+            
+            while (buff.hasRemaining()) {
+                done += write(buff, position + done);
+            }
+        }
+        
+        return done;
+    }
+    
+    /**
+     * Reserve room for a file of the provided size, so that a lack of space
+     * is discovered before any byte has been received. Whatever part of the
+     * reservation is not written to is cut off on commit.
+     * 
+     * @param size expected file size in bytes
+     * 
+     * @throws IOException if there is not enough space, or on IO failure
+     */
+    void preallocate(long size) throws IOException;
+    
+    /**
+     * Force all bytes written so far to the storage device, like {@code
+     * FileChannel.force()}.
+     * 
+     * @param metaData {@code true} if file metadata such as the size should be
+     *                 forced too
+     * 
+     * @throws IOException on IO failure, or if the channel is closed
+     */
+    void force(boolean metaData) throws IOException;
+    
+    /**
+     * Returns the name of the file being written.
+     * 
+     * @return the file name
+     */
+    String getName();
+    
+    /**
+     * Finalize the file: close the channel if still open and atomically
+     * publish the file, replacing any existing file with the same name.
+     * Does nothing if already committed.
+     * 
+     * @throws IOException if publishing fails, in which case the file is
+     *         discarded
+     * @throws IllegalStateException if already aborted
+     */
+    void commit() throws IOException;
+    
+    /**
+     * Close the channel if still open and discard all bytes written. Does
+     * nothing if already aborted or committed.
+     * 
+     * @throws IOException if removing the temporary file fails
+     */
+    void abort() throws IOException;
+}
\ No newline at end of file
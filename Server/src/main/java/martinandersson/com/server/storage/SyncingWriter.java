@@ -0,0 +1,176 @@
+package martinandersson.com.server.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import martinandersson.com.library.Durability;
+
+/**
+ * Decorates a {@link StorageWriter} with a {@link Durability} policy.<p>
+ * 
+ * {@link Durability#PERIODIC} force the file every time the configured number
+ * of bytes has been written since the last force. Both {@code PERIODIC} and
+ * {@link Durability#ON_COMPLETION} force the file, including metadata, when the
+ * channel is closed or committed, whichever come first. Closing happens before
+ * we know if the transfer succeeded, so a failed transfer might be forced
+ * too.<p>
+ * 
+ * All time spent forcing is measured, see {@link #getSyncNanos()}. Positional
+ * writes from concurrent threads are counted together.
+ * 
+ * @author Martin Andersson (webmaster at martinandersson.com)
+ */
+public final class SyncingWriter implements StorageWriter
+{
+    private final StorageWriter delegate;
+    
+    private final Durability durability;
+    
+    private final long interval;
+    
+    private long unsynced, syncNanos;
+    
+    private int syncs;
+    
+    /**
+     * Initializes a new syncing writer.
+     * 
+     * @param delegate writer to decorate
+     * @param durability the policy
+     * @param interval bytes between forces, only used by {@code PERIODIC}
+     * 
+     * @throws IllegalArgumentException if {@code interval} is not positive
+     */
+    public SyncingWriter(StorageWriter delegate, Durability durability, long interval) {
+        if (interval < 1L) {
+            throw new IllegalArgumentException("Sync interval must be positive, got: " + interval);
+        }
+        
+        this.delegate = delegate;
+        this.durability = durability;
+        this.interval = interval;
+    }
+    
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int n = delegate.write(src);
+        wrote(n);
+        return n;
+    }
+    
+    @Override
+    public int write(ByteBuffer src, long position) throws IOException {
+        int n = delegate.write(src, position);
+        wrote(n);
+        return n;
+    }
+    
+    @Override
+    public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+        if (durability != Durability.PERIODIC) {
+            return delegate.transferFrom(src, position, count);
+        }
+        
+        long done = 0L;
+        
+        // One interval at a time, so that we get to force in between:
+        while (done < count) {
+            long n = delegate.transferFrom(src, position + done, Math.min(interval, count - done));
+            
+            if (n == 0L) {
+                break;
+            }
+            
+            wrote(n);
+            done += n;
+        }
+        
+        return done;
+    }
+    
+    @Override
+    public void preallocate(long size) throws IOException {
+        delegate.preallocate(size);
+    }
+    
+    @Override
+    public synchronized void force(boolean metaData) throws IOException {
+        long start = System.nanoTime();
+        
+        try {
+            delegate.force(metaData);
+        }
+        finally {
+            syncNanos += System.nanoTime() - start;
+            ++syncs;
+            unsynced = 0L;
+        }
+    }
+    
+    @Override
+    public String getName() {
+        return delegate.getName();
+    }
+    
+    @Override
+    public boolean isOpen() {
+        return delegate.isOpen();
+    }
+    
+    @Override
+    public void close() throws IOException {
+        try {
+            forceOnCompletion();
+        }
+        finally {
+            delegate.close();
+        }
+    }
+    
+    @Override
+    public void commit() throws IOException {
+        forceOnCompletion();
+        delegate.commit();
+    }
+    
+    @Override
+    public void abort() throws IOException {
+        delegate.abort();
+    }
+    
+    /**
+     * Returns the total time spent forcing the file.
+     * 
+     * @return nanoseconds spent forcing
+     */
+    public synchronized long getSyncNanos() {
+        return syncNanos;
+    }
+    
+    /**
+     * Returns how many times the file has been forced.
+     * 
+     * @return number of forces
+     */
+    public synchronized int getSyncCount() {
+        return syncs;
+    }
+    
+    public Durability getDurability() {
+        return durability;
+    }
+    
+    private synchronized void wrote(long bytes) throws IOException {
+        unsynced += bytes;
+        
+        if (durability == Durability.PERIODIC && unsynced >= interval) {
+            force(false);
+        }
+    }
+    
+    private void forceOnCompletion() throws IOException {
+        if (durability != Durability.NONE && delegate.isOpen()) {
+            force(true);
+        }
+    }
+}
\ No newline at end of file